@@ -0,0 +1,101 @@
+package com.serenegiant.xiaxl;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.serenegiant.xiaxl.gl_recoder.XRecoderGLRenderRunnable;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 开始录制到第一帧编码数据的时间(VIDEO_FIRST_FRAME_LATENCY_US)，新建录制线程与复用空闲录制线程的对比
+ * <p>
+ * 反复点击录制按钮开始/结束录制；cold 在开始前释放空闲的录制线程(重新创建EGLContext)，
+ * reused 紧接在上一次录制之后(复用录制线程)。两者在同一个进程中交替进行，相机与编码器的预热对两者相同。
+ * <p>
+ * 在真机上运行(需要相机):
+ * <pre>
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.serenegiant.xiaxl.XFirstFrameLatencyTest
+ * adb logcat -s XFirstFrameLatencyTest
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class XFirstFrameLatencyTest {
+
+    private static final String TAG = XFirstFrameLatencyTest.class.getSimpleName();
+
+    private static final int ROUNDS = 10;
+    // 每次录制的时长
+    private static final long RECORD_MS = 1000;
+    // 结束录制后等待编码器停止、录制线程回收
+    private static final long SETTLE_MS = 1500;
+    private static final long FIRST_FRAME_TIMEOUT_MS = 5000;
+
+    @Rule
+    public final ActivityTestRule<XShowActivity> mActivityRule = new ActivityTestRule<XShowActivity>(XShowActivity.class);
+
+    private void clickRecord() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mActivityRule.getActivity().findViewById(R.id.record_button).performClick();
+            }
+        });
+    }
+
+    /**
+     * 录制一次
+     *
+     * @return 第一帧的延时 [us]，超时为 -1
+     */
+    private long record() throws InterruptedException {
+        XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.VIDEO_FIRST_FRAME_LATENCY_US, 0);
+        clickRecord();
+        long latencyUs = 0;
+        final long deadlineMs = System.currentTimeMillis() + FIRST_FRAME_TIMEOUT_MS;
+        while (latencyUs == 0 && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+            latencyUs = XMetricsRegistry.getGauge(XMetricsRegistry.Gauge.VIDEO_FIRST_FRAME_LATENCY_US);
+        }
+        Thread.sleep(RECORD_MS);
+        clickRecord();
+        Thread.sleep(SETTLE_MS);
+        return latencyUs != 0 ? latencyUs : -1;
+    }
+
+    private static long median(final long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    @Test
+    public void coldVsReused() throws InterruptedException {
+        // 第一次录制包含相机、编码器与类加载的初始化，不计入
+        Thread.sleep(SETTLE_MS);
+        Log.i(TAG, "warm-up: " + record() + "us");
+
+        final long[] cold = new long[ROUNDS];
+        final long[] reused = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            XRecoderGLRenderRunnable.releaseIdle();
+            cold[i] = record();
+            reused[i] = record();
+            Log.i(TAG, "round " + i + ": cold=" + cold[i] + "us reused=" + reused[i] + "us");
+        }
+        Log.i(TAG, "VIDEO_FIRST_FRAME_LATENCY_US median of " + ROUNDS
+                + ": cold=" + median(cold) + "us reused=" + median(reused) + "us");
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue("no encoded frame in round " + i, cold[i] > 0 && reused[i] > 0);
+        }
+    }
+}
@@ -2,14 +2,76 @@ package com.serenegiant.xiaxl;
 
 import android.util.Log;
 
+import java.io.PrintStream;
+
 /**
  * 系统的日志处理类，对android默认日志做了封装，根据系统配置的日志级别打印日志
+ * <p>
+ * 实际的输出交给 Printer，android上默认为 android.util.Log，
+ * 其他JVM上默认为 System.out/System.err，可以用 setPrinter 替换
  */
 public class LogUtils {
     private static final int LOG_LEVEL_MIN = Log.VERBOSE;
 
     private static final String SNS_TAG = "xiaxl ";
 
+    /**
+     * 日志的输出
+     */
+    public interface Printer {
+        /**
+         * @param priority Log.VERBOSE ~ Log.ERROR
+         * @param tag
+         * @param msg
+         * @param tr       可以为null
+         */
+        void println(int priority, String tag, String msg, Throwable tr);
+    }
+
+    /**
+     * android.util.Log
+     */
+    public static final Printer ANDROID_PRINTER = new Printer() {
+        @Override
+        public void println(final int priority, final String tag, final String msg, final Throwable tr) {
+            if (tr != null) {
+                Log.println(priority, tag, msg + '\n' + Log.getStackTraceString(tr));
+            } else {
+                Log.println(priority, tag, msg);
+            }
+        }
+    };
+
+    /**
+     * System.out / System.err(WARN以上)
+     */
+    public static final Printer SYSTEM_PRINTER = new Printer() {
+        @Override
+        public void println(final int priority, final String tag, final String msg, final Throwable tr) {
+            final PrintStream out = priority >= Log.WARN ? System.err : System.out;
+            out.println(tag + " " + msg);
+            if (tr != null) {
+                tr.printStackTrace(out);
+            }
+        }
+    };
+
+    private static volatile Printer sPrinter = defaultPrinter();
+
+    /**
+     * @return ART/Dalvik 的 java.vm.name 都是 Dalvik
+     */
+    private static Printer defaultPrinter() {
+        return "Dalvik".equals(System.getProperty("java.vm.name")) ? ANDROID_PRINTER : SYSTEM_PRINTER;
+    }
+
+    /**
+     * @param printer 为null时恢复默认
+     */
+    public static void setPrinter(final Printer printer) {
+        sPrinter = printer != null ? printer : defaultPrinter();
+    }
+
     /**
      *
      * @param msg
@@ -55,7 +117,7 @@ public class LogUtils {
 
     public static void i(String tag, String s) {
         if (LOG_LEVEL_MIN <= Log.INFO) {
-            Log.i(getTAG(tag), getStr(s));
+            sPrinter.println(Log.INFO, getTAG(tag), getStr(s), null);
         }
     }
 
@@ -67,43 +129,43 @@ public class LogUtils {
 
     public static void e(String tag, String s) {
         if (LOG_LEVEL_MIN <= Log.ERROR) {
-            Log.e(getTAG(tag), getStr(s));
+            sPrinter.println(Log.ERROR, getTAG(tag), getStr(s), null);
         }
     }
 
     public static void e(String tag, String s, Throwable tr) {
         if (LOG_LEVEL_MIN <= Log.ERROR) {
-            Log.e(getTAG(tag), getStr(s), tr);
+            sPrinter.println(Log.ERROR, getTAG(tag), getStr(s), tr);
         }
     }
 
     public static void d(String tag, String s) {
         if (LOG_LEVEL_MIN <= Log.DEBUG) {
-            Log.d(getTAG(tag), getStr(s));
+            sPrinter.println(Log.DEBUG, getTAG(tag), getStr(s), null);
         }
     }
 
     public static void w(String tag, String s) {
         if (LOG_LEVEL_MIN <= Log.WARN) {
-            Log.w(getTAG(tag), getStr(s));
+            sPrinter.println(Log.WARN, getTAG(tag), getStr(s), null);
         }
     }
 
     public static void w(String tag, String s, Throwable tr) {
         if (LOG_LEVEL_MIN <= Log.WARN) {
-            Log.w(getTAG(tag), getStr(s), tr);
+            sPrinter.println(Log.WARN, getTAG(tag), getStr(s), tr);
         }
     }
 
     public static void v(String tag, String s) {
         if (LOG_LEVEL_MIN <= Log.VERBOSE) {
-            Log.v(getTAG(tag), getStr(s));
+            sPrinter.println(Log.VERBOSE, getTAG(tag), getStr(s), null);
         }
     }
 
     public static void v(String tag, String s, Throwable tr) {
         if (LOG_LEVEL_MIN <= Log.VERBOSE) {
-            Log.v(getTAG(tag), getStr(s), tr);
+            sPrinter.println(Log.VERBOSE, getTAG(tag), getStr(s), tr);
         }
     }
 }
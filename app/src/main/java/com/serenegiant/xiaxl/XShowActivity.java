@@ -72,7 +72,7 @@ public class XShowActivity extends Activity {
             mMediaMuxerManager = new XMediaMuxerManager(XShowActivity.this, ".mp4");
             //开始视频录制
             new MediaVideoEncoderRunable(mMediaMuxerManager, mMediaEncoderListener, 480, 480);
-            // 开启音频录制
+            // 开启音频录制(视频使用延时摄影 XFrameRateGovernor.timeLapse 时不能录音)
             new MediaAudioEncoderRunable(mMediaMuxerManager, mMediaEncoderListener);
             // 视频，音频 录制初始化
             mMediaMuxerManager.prepare();
@@ -10,12 +10,24 @@ import android.os.Build;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 
-import com.serenegiant.xiaxl.gl_util.GLMatrixState;
+import com.serenegiant.xiaxl.gl_recoder.XRecoderGLRenderRunnable;
+import com.serenegiant.xiaxl.gl_util.GLMatrixStack;
+import com.serenegiant.xiaxl.gl_util.GLProgramCache;
+import com.serenegiant.xiaxl.gl_util.GLRenderTarget;
+import com.serenegiant.xiaxl.gl_util.GLStateCache;
 import com.serenegiant.xiaxl.gl_util.GLTextureUtil;
+import com.serenegiant.xiaxl.gl_widget.XCameraFrameStage;
+import com.serenegiant.xiaxl.gl_widget.XGLFilter;
+import com.serenegiant.xiaxl.gl_widget.XGLFilterGraph;
 import com.serenegiant.xiaxl.gl_widget.XTextureGLRect;
 import com.serenegiant.xiaxl.media_encoder.MediaVideoEncoderRunable;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
+import com.serenegiant.xiaxl.media_metrics.XStageMetrics;
 import com.serenegiant.xiaxl.util.CameraHelper;
 
+import java.io.File;
+import java.util.ArrayList;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -29,13 +41,19 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
     //
     public int mCameraPreviewWidth = 1920;
     public int mCameraPreviewHeight = 1080;
+    // 相机帧剪裁/旋转后的纹理大小，没有录制时使用默认的编码分辨率
+    private static final int DEFAULT_FRAME_SIZE = 480;
 
     // 渐变矩形的纹理id
     private int mTextureId = 100;
     // 用于与Camera绑定的 SurfaceTexture
     private SurfaceTexture mSurfaceTexture = null;
-    //
+    // 相机帧 -> 编码分辨率的2D纹理，预览与录制共用
+    private XCameraFrameStage mFrameStage;
+    // 绘制 mFrameStage 的输出
     private XTextureGLRect mXTextureGLRect;
+    // 预览/录制的滤镜
+    private final XGLFilterGraph mFilterGraph = new XGLFilterGraph();
 
     // 渲染器
     private final GLSceneRenderer mRenderer;
@@ -54,6 +72,8 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
 
     public XShowGLSurfaceView(final Context context, final AttributeSet attrs, final int defStyle) {
         super(context, attrs);
+        // 着色器程序二进制的缓存目录
+        GLProgramCache.setCacheDir(new File(context.getCacheDir(), "gl_programs"));
         // render
         mRenderer = new GLSceneRenderer();
         // 2.0
@@ -93,6 +113,8 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
         }
         //
         mRenderer.onSurfaceDestroyed();
+        // 空闲录制线程的 EGLContext 与预览的 EGLContext 共享，一起释放
+        XRecoderGLRenderRunnable.releaseIdle();
         //
         super.surfaceDestroyed(holder);
     }
@@ -105,8 +127,13 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
             implements GLSurfaceView.Renderer {
 
 
-        //
-        private MediaVideoEncoderRunable mMediaVideoEncoderRunable;
+        // 正在录制的视频编码器，可以同时有多个
+        private final ArrayList<MediaVideoEncoderRunable> mVideoEncoders = new ArrayList<MediaVideoEncoderRunable>();
+        // 预览的视窗大小
+        private int mViewWidth;
+        private int mViewHeight;
+        // 矩阵状态，只在GLThread中使用
+        private final GLMatrixStack mMatrixStack = new GLMatrixStack();
 
 
         public GLSceneRenderer() {
@@ -117,9 +144,12 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
             // 清屏颜色为黑色
             GLES20.glClearColor(0, 0, 0, 0);
+            // 新的 EGLContext，GL状态未知，之前的程序id已经无效
+            GLStateCache.current().invalidate();
+            GLProgramCache.invalidate();
 
             // 初始化矩阵
-            GLMatrixState.setInitStack();
+            mMatrixStack.setInitStack();
 
 
             // 生成纹理Id
@@ -143,21 +173,28 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
             mCameraPreviewHeight = mCameraHelper.getPreviewHeight();
 
 
+            // 新的 EGLContext，之前的滤镜程序/framebuffer 已经无效
+            mFilterGraph.abandonGLResources();
+            // 相机帧只在这里采样一次
+            mFrameStage = new XCameraFrameStage(mCameraPreviewWidth, mCameraPreviewHeight,
+                    DEFAULT_FRAME_SIZE, DEFAULT_FRAME_SIZE);
             // create object for preview display
-            mXTextureGLRect = new XTextureGLRect(mCameraPreviewWidth, mCameraPreviewHeight);
+            mXTextureGLRect = new XTextureGLRect();
 
         }
 
         @Override
         public void onSurfaceChanged(final GL10 unused, final int width, final int height) {
             // 设置视窗大小及位置
+            mViewWidth = width;
+            mViewHeight = height;
             GLES20.glViewport(0, 0, width, height);
 
 
             // 计算GLSurfaceView的宽高比
             float ratio = (float) width / height;
             // 设置camera位置
-            GLMatrixState.setCamera(
+            mMatrixStack.setCamera(
                     //
                     0, // 人眼位置的X
                     0, // 人眼位置的Y
@@ -171,7 +208,7 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
                     1,
                     0);
             // 调用此方法计算产生透视投影矩阵
-            GLMatrixState.setProjectFrustum(-ratio, ratio, -1, 1, 1, 20);
+            mMatrixStack.setProjectFrustum(-ratio, ratio, -1, 1, 1, 20);
 
         }
 
@@ -189,23 +226,61 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
 
 
         /**
-         * 有摄像头数据后requesrUpdateTex为true
+         * 在GLThread中调用(持有 mRenderer 锁)
+         * <p>
+         * 相机帧纹理的大小取所有编码器中最大的宽/高，编码器大小不同时由录制线程缩放
+         *
+         * @param encoder
          */
-        private boolean flip = true;
+        private void attachVideoEncoder(final MediaVideoEncoderRunable encoder) {
+            mVideoEncoders.add(encoder);
+            int width = 0;
+            int height = 0;
+            for (int i = 0, n = mVideoEncoders.size(); i < n; i++) {
+                width = Math.max(width, mVideoEncoders.get(i).getWidth());
+                height = Math.max(height, mVideoEncoders.get(i).getHeight());
+            }
+            mFrameStage.setSize(width, height);
+            // 这里是获取了一个GLThread的EGL14.eglGetCurrentContext()
+            encoder.setEglContext(EGL14.eglGetCurrentContext(), XShowGLSurfaceView.this, mFrameStage.getTextureId());
+        }
+
+        // 相机帧到onDrawFrame的延时 / 预览绘制耗时
+        private final XStageMetrics mCaptureMetrics = XMetricsRegistry.stage(XMetricsRegistry.Stage.CAPTURE);
+        private final XStageMetrics mPreviewDrawMetrics = XMetricsRegistry.stage(XMetricsRegistry.Stage.PREVIEW_DRAW);
 
         @Override
         public void onDrawFrame(final GL10 unused) {
             //------------取camera数据begin------------
             // 如果camera数据可用，手动取一次
+            long timestampNs = 0;
             try {
                 // 从摄像机更新数据
                 if (mSurfaceTexture != null) {
                     mSurfaceTexture.updateTexImage();
+                    timestampNs = mSurfaceTexture.getTimestamp();
+                    mCaptureMetrics.onFrame(timestampNs > 0 ? (System.nanoTime() - timestampNs) / 1000L : -1, 0);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
             //-----------取camera数据end-------------
+            final long drawStartNs = System.nanoTime();
+
+            // 相机帧剪裁、旋转、缩放到编码分辨率，只采样一次OES纹理
+            final float rotation;
+            //适配Nexus 5X（后置摄像头装反了）
+            if (Build.MODEL.equals("Nexus 5X") && mCameraHelper.getCurrentPreviewCameraId() == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                rotation = -270;
+            } else {
+                // 注: 因为正常获取的摄像头数据是旋转了90度的，所以这里要旋转回来
+                rotation = -90;
+            }
+            final int frameTexId = mFrameStage.render(mTextureId, rotation);
+            final int frameWidth = mFrameStage.getWidth();
+            final int frameHeight = mFrameStage.getHeight();
+            final int previewTexId = mFilterGraph.process(frameTexId, frameWidth, frameHeight, XGLFilter.Target.PREVIEW);
+            GLES20.glViewport(0, 0, mViewWidth, mViewHeight);
 
             // 清除深度缓冲与颜色缓冲
             GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT
@@ -213,40 +288,71 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
 
 
             // 进行渐变矩形的绘制
-            GLMatrixState.pushMatrix();
-            GLMatrixState.translate(0, 0, -1);
-
-            //适配Nexus 5X（后置摄像头装反了）
-            if (Build.MODEL.equals("Nexus 5X") && mCameraHelper.getCurrentPreviewCameraId() == Camera.CameraInfo.CAMERA_FACING_BACK) {
-                GLMatrixState.rotate(-270, 0, 0, 1);
-            } else {
-                // 注: 因为正常获取的摄像头数据是旋转了90度的，所以这里要旋转回来
-                GLMatrixState.rotate(-90, 0, 0, 1);
-            }
+            mMatrixStack.pushMatrix();
+            mMatrixStack.translate(0, 0, -1);
             // 最总变化矩阵
-            float[] mVpMatrix = GLMatrixState.getFinalMatrix();
+            float[] mVpMatrix = mMatrixStack.getFinalMatrix();
             // 绘制纹理矩形
-            mXTextureGLRect.draw(mTextureId, mVpMatrix);
+            mXTextureGLRect.draw(previewTexId, mVpMatrix);
+            mPreviewDrawMetrics.onFrame((System.nanoTime() - drawStartNs) / 1000L, 0);
 
             //---------------视频写入----------------
-            // 减少一半的视频数据写入
-            flip = !flip;
-            if (flip) {    // ~30fps
-                synchronized (this) {
-                    if (mMediaVideoEncoderRunable != null) {
+            // 每个编码器按自己的帧率根据相机时间戳选帧
+            synchronized (this) {
+                final int n = mVideoEncoders.size();
+                if (n > 0) {
+                    final long frameNs = timestampNs > 0 ? timestampNs : System.nanoTime();
+                    int recordTexId = -1;
+                    GLRenderTarget recordTarget = null;
+                    for (int i = 0; i < n; i++) {
+                        final MediaVideoEncoderRunable encoder = mVideoEncoders.get(i);
+                        final long outputNs = encoder.selectFrame(frameNs);
+                        if (outputNs < 0) {
+                            continue;
+                        }
+                        if (recordTexId < 0) {
+                            recordTexId = mFilterGraph.isShared() ? previewTexId
+                                    : mFilterGraph.process(frameTexId, frameWidth, frameHeight, XGLFilter.Target.RECORDING);
+                            // 录制线程用完之前不会改写这张纹理(mFrameStage 与滤镜链都跳过被持有的渲染目标)
+                            recordTarget = recordTexId == frameTexId ? mFrameStage.getTarget()
+                                    : mFilterGraph.getOutputTarget(mFilterGraph.isShared()
+                                    ? XGLFilter.Target.PREVIEW : XGLFilter.Target.RECORDING);
+                            if (recordTarget != null) {
+                                recordTarget.markWritten();
+                            }
+                        }
                         // notify to capturing thread that the camera frame is available.
-                        mMediaVideoEncoderRunable.frameAvailableSoon(mVpMatrix);
+                        // 录制线程直接把编码分辨率的纹理铺满编码器的surface
+                        if (recordTarget != null) {
+                            encoder.frameAvailableSoon(recordTarget, mFrameStage.getFillMatrix(), outputNs);
+                        } else {
+                            encoder.frameAvailableSoon(recordTexId, mFrameStage.getFillMatrix(), outputNs);
+                        }
                     }
                 }
             }
             // 恢复变换矩阵
-            GLMatrixState.popMatrix();
+            mMatrixStack.popMatrix();
+
+            final GLStateCache cache = GLStateCache.current();
+            cache.endFrame();
+            XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.PREVIEW_GL_CALLS, cache.getLastFrameCalls());
+            XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.PREVIEW_GL_CALLS_SKIPPED, cache.getLastFrameSkipped());
         }
     }
 
 
+    /**
+     * @return 预览/录制的滤镜链，可以在任意线程增删滤镜
+     */
+    public XGLFilterGraph getFilterGraph() {
+        return mFilterGraph;
+    }
+
     /**
      * 开始录制视频时，由主线程||异步线程回调回来的
+     * <p>
+     * 替换所有正在录制的编码器，null 时停止向编码器输出
      *
      * @param mediaVideoEncoderRunable
      */
@@ -256,11 +362,42 @@ public final class XShowGLSurfaceView extends GLSurfaceView {
             @Override
             public void run() {
                 synchronized (mRenderer) {
-                    // 这里是获取了一个GLThread的EGL14.eglGetCurrentContext()
+                    mRenderer.mVideoEncoders.clear();
                     if (mediaVideoEncoderRunable != null) {
-                        mediaVideoEncoderRunable.setEglContext(EGL14.eglGetCurrentContext(), XShowGLSurfaceView.this, mTextureId);
+                        mRenderer.attachVideoEncoder(mediaVideoEncoderRunable);
                     }
-                    mRenderer.mMediaVideoEncoderRunable = mediaVideoEncoderRunable;
+                }
+            }
+        });
+    }
+
+    /**
+     * 增加一个同时录制的编码器，与其他编码器共用同一张相机帧纹理
+     *
+     * @param mediaVideoEncoderRunable
+     */
+    public void addVideoEncoder(final MediaVideoEncoderRunable mediaVideoEncoderRunable) {
+        if (mediaVideoEncoderRunable == null) {
+            return;
+        }
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRenderer) {
+                    if (!mRenderer.mVideoEncoders.contains(mediaVideoEncoderRunable)) {
+                        mRenderer.attachVideoEncoder(mediaVideoEncoderRunable);
+                    }
+                }
+            }
+        });
+    }
+
+    public void removeVideoEncoder(final MediaVideoEncoderRunable mediaVideoEncoderRunable) {
+        queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRenderer) {
+                    mRenderer.mVideoEncoders.remove(mediaVideoEncoderRunable);
                 }
             }
         });
@@ -0,0 +1,145 @@
+package com.serenegiant.xiaxl.gl_recoder;
+
+import android.opengl.Matrix;
+
+import com.serenegiant.xiaxl.gl_util.GLRenderTarget;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * GLThread 与录制线程之间的三缓冲帧描述(变换矩阵/纹理/时间戳)
+ * <p>
+ * 三个槽预先分配：生产者写 back，发布时与 middle 交换；消费者取帧时用 front 与 middle 交换。
+ * 消费者总是拿到最新的一帧，还没被取走就被新帧替换的帧计为跳过；两边都不加锁，不分配内存
+ * <p>
+ * 帧的 GLRenderTarget 由生产者 hold 后写入：被替换的帧由生产者 releaseHold，
+ * 取走的帧由消费者用完后调用 finish
+ */
+final class XFrameSlots {
+
+    static final class Slot {
+        final float[] mvpMatrix = new float[16];
+        int texId;
+        // 持有中的渲染目标，没有时为null
+        GLRenderTarget target;
+        // 送给编码器的时间戳(选帧后可能被改写)
+        long timestampNs;
+        // 相机帧的采集时刻，用于统计延时
+        long captureNs;
+    }
+
+    // middle 的下标(低2位) + 是否有未取走的新帧
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    private final Slot[] mSlots = new Slot[]{new Slot(), new Slot(), new Slot()};
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // 只在生产者线程使用
+    private int mBack = 0;
+    // 只在消费者线程使用
+    private int mFront = 2;
+
+    private volatile long mPublishedCount;
+    private volatile long mSkippedCount;
+
+    /**
+     * 生产者调用，写入下一帧(写完后调用 publish)
+     *
+     * @param texId
+     * @param target      已经 hold 的渲染目标(texId 的来源)，可以为null
+     * @param mvpMatrix   null 时为单位矩阵
+     * @param timestampNs
+     * @param captureNs
+     */
+    void write(final int texId, final GLRenderTarget target, final float[] mvpMatrix,
+               final long timestampNs, final long captureNs) {
+        final Slot slot = mSlots[mBack];
+        if (mvpMatrix != null) {
+            System.arraycopy(mvpMatrix, 0, slot.mvpMatrix, 0, 16);
+        } else {
+            Matrix.setIdentityM(slot.mvpMatrix, 0);
+        }
+        slot.texId = texId;
+        slot.target = target;
+        slot.timestampNs = timestampNs;
+        slot.captureNs = captureNs;
+    }
+
+    /**
+     * 生产者调用，发布刚写入的帧
+     *
+     * @return true 上一帧还没被取走，被这一帧替换
+     */
+    boolean publish() {
+        final int previous = mMiddle.getAndSet(mBack | FRESH);
+        mBack = previous & INDEX_MASK;
+        mPublishedCount++;
+        if ((previous & FRESH) != 0) {
+            mSkippedCount++;
+            // 被替换的帧消费者没有看到，这里释放它的渲染目标
+            final Slot replaced = mSlots[mBack];
+            if (replaced.target != null) {
+                replaced.target.releaseHold();
+                replaced.target = null;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 消费者调用
+     *
+     * @return 最新的帧，没有新帧时为null；返回的槽在下一次 acquire 之前不会被改写，用完后调用 finish
+     */
+    Slot acquire() {
+        if ((mMiddle.get() & FRESH) == 0) {
+            return null;
+        }
+        mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        return mSlots[mFront];
+    }
+
+    /**
+     * @return 有还没被取走的帧
+     */
+    boolean hasPending() {
+        return (mMiddle.get() & FRESH) != 0;
+    }
+
+    /**
+     * 消费者调用，acquire 取得的帧用完
+     *
+     * @param slot
+     * @param sampled true 已经在消费者的 EGLContext 中采样了 slot.target
+     */
+    void finish(final Slot slot, final boolean sampled) {
+        final GLRenderTarget target = slot.target;
+        if (target != null) {
+            slot.target = null;
+            if (sampled) {
+                target.releaseAfterRead();
+            } else {
+                target.releaseHold();
+            }
+        }
+    }
+
+    /**
+     * 消费者调用，丢弃未取走的帧
+     */
+    void clearPending() {
+        final Slot slot = acquire();
+        if (slot != null) {
+            finish(slot, false);
+        }
+    }
+
+    long getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    long getSkippedCount() {
+        return mSkippedCount;
+    }
+}
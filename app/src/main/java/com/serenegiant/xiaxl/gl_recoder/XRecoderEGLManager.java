@@ -5,6 +5,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLConfig;
 import android.opengl.EGLContext;
 import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
 import android.opengl.EGLSurface;
 import android.util.Log;
 import android.view.Surface;
@@ -15,6 +16,9 @@ import com.serenegiant.xiaxl.LogUtils;
 
 /**
  * EGL 相关配置
+ * <p>
+ * EGLDisplay / EGLConfig / EGLContext 在录制线程中一直保留，每次录制只创建/销毁编码器的 window surface；
+ * 没有录制时 EGLContext 绑定在一个 1x1 的 pbuffer 上(不支持时不绑定surface)，GL资源保持有效。
  */
 public class XRecoderEGLManager {
 
@@ -25,6 +29,13 @@ public class XRecoderEGLManager {
     private EGLContext mEglContext = EGL14.EGL_NO_CONTEXT;
     private EGLDisplay mEglDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLSurface mEglSurface = EGL14.EGL_NO_SURFACE;
+    private EGLConfig mEglConfig;
+    // 没有编码器surface时使用
+    private EGLSurface mIdleSurface = EGL14.EGL_NO_SURFACE;
+    // 创建 mEglContext 时共享的 EGLContext(GLThread)
+    private EGLContext mShareContext;
+    // 上一帧设置的时间戳 [ns]
+    private long mLastPresentationNs;
 
 
     /**
@@ -32,25 +43,29 @@ public class XRecoderEGLManager {
      *
      * @param xShowEglContext
      */
-    public XRecoderEGLManager(final EGLContext xShowEglContext, final Object mediaCodecsurface) {
+    public XRecoderEGLManager(final EGLContext xShowEglContext) {
 
-        initXRecoderEGL(xShowEglContext, mediaCodecsurface);
+        initXRecoderEGL(xShowEglContext);
     }
 
     /**
-     * 初始化EGL
+     * 构造方法
      *
      * @param xShowEglContext
+     * @param mediaCodecsurface
      */
-    private void initXRecoderEGL(final EGLContext xShowEglContext, final Object mediaCodecsurface) {
+    public XRecoderEGLManager(final EGLContext xShowEglContext, final Object mediaCodecsurface) {
 
-        if (!(mediaCodecsurface instanceof SurfaceView)
-                && !(mediaCodecsurface instanceof Surface)
-                && !(mediaCodecsurface instanceof SurfaceHolder)
-                && !(mediaCodecsurface instanceof SurfaceTexture)) {
-            throw new IllegalArgumentException("unsupported surface");
-        }
+        initXRecoderEGL(xShowEglContext);
+        attachSurface(mediaCodecsurface);
+    }
 
+    /**
+     * 初始化EGL
+     *
+     * @param xShowEglContext
+     */
+    private void initXRecoderEGL(final EGLContext xShowEglContext) {
 
         //--------------------mEGLDisplay-----------------------
         // EGL Display
@@ -70,24 +85,12 @@ public class XRecoderEGLManager {
         }
         //--------------------mEglConfig-----------------------
 
-        // Configure EGL for recording and OpenGL ES 2.0.
-        int[] attribList = {
-                EGL14.EGL_RED_SIZE, 8,
-                EGL14.EGL_GREEN_SIZE, 8,
-                EGL14.EGL_BLUE_SIZE, 8,
-                EGL14.EGL_ALPHA_SIZE, 8,
-                //
-                EGL14.EGL_RENDERABLE_TYPE,
-                EGL14.EGL_OPENGL_ES2_BIT,
-                // 录制android
-                EGL_RECORDABLE_ANDROID,
-                1,
-                EGL14.EGL_NONE
-        };
-        EGLConfig[] configs = new EGLConfig[1];
-        int[] numConfigs = new int[1];
-        EGL14.eglChooseConfig(mEglDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0);
-        if (configs[0] == null) {
+        // 同时支持 window surface 与 pbuffer，没有这样的config时只要求 window surface
+        mEglConfig = chooseConfig(EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT);
+        if (mEglConfig == null) {
+            mEglConfig = chooseConfig(EGL14.EGL_WINDOW_BIT);
+        }
+        if (mEglConfig == null) {
             throw new RuntimeException("chooseConfig failed");
         }
 
@@ -96,6 +99,7 @@ public class XRecoderEGLManager {
         if (shareEglContext == null) {
             shareEglContext = EGL14.EGL_NO_CONTEXT;
         }
+        mShareContext = xShowEglContext;
         //
         final int[] attrib_list = {
                 EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
@@ -104,9 +108,78 @@ public class XRecoderEGLManager {
 
         // eglDisplay 即是之前创建的显示设备，
         // share_context 指定一个共享的EGL Context，共享后，2个EGLContext可以相互使用对方创建的 texture 等资源，默认情况下是不共享的
-        mEglContext = EGL14.eglCreateContext(mEglDisplay, configs[0], shareEglContext, attrib_list, 0);
+        mEglContext = EGL14.eglCreateContext(mEglDisplay, mEglConfig, shareEglContext, attrib_list, 0);
         checkMyEGLError("eglCreateContext");
 
+        //-------------------------mIdleSurface-------------------------
+        final int[] pbufferAttribs = {
+                EGL14.EGL_WIDTH, 1,
+                EGL14.EGL_HEIGHT, 1,
+                EGL14.EGL_NONE
+        };
+        mIdleSurface = EGL14.eglCreatePbufferSurface(mEglDisplay, mEglConfig, pbufferAttribs, 0);
+        if (mIdleSurface == null) {
+            // 只能使用 EGL_KHR_surfaceless_context
+            EGL14.eglGetError();
+            mIdleSurface = EGL14.EGL_NO_SURFACE;
+        }
+        makeIdleCurrent();
+    }
+
+    /**
+     * Configure EGL for recording and OpenGL ES 2.0.
+     *
+     * @param surfaceType
+     * @return 没有满足条件的config时为null
+     */
+    private EGLConfig chooseConfig(final int surfaceType) {
+        final int[] attribList = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                //
+                EGL14.EGL_RENDERABLE_TYPE,
+                EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE,
+                surfaceType,
+                // 录制android
+                EGL_RECORDABLE_ANDROID,
+                1,
+                EGL14.EGL_NONE
+        };
+        final EGLConfig[] configs = new EGLConfig[1];
+        final int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mEglDisplay, attribList, 0, configs, 0, configs.length, numConfigs, 0)
+                || numConfigs[0] <= 0) {
+            return null;
+        }
+        return configs[0];
+    }
+
+    /**
+     * @param xShowEglContext
+     * @return 与这个 EGLContext 在同一个 share group 中，可以直接复用
+     */
+    public boolean isSharedWith(final EGLContext xShowEglContext) {
+        return mShareContext == null ? xShowEglContext == null : mShareContext.equals(xShowEglContext);
+    }
+
+    /**
+     * 创建编码器输入surface的 window surface 并设置为当前
+     *
+     * @param mediaCodecsurface
+     * @return
+     */
+    public boolean attachSurface(final Object mediaCodecsurface) {
+
+        if (!(mediaCodecsurface instanceof SurfaceView)
+                && !(mediaCodecsurface instanceof Surface)
+                && !(mediaCodecsurface instanceof SurfaceHolder)
+                && !(mediaCodecsurface instanceof SurfaceTexture)) {
+            throw new IllegalArgumentException("unsupported surface");
+        }
+        detachSurface();
 
         //-------------------------mEglSurface-------------------------
         //
@@ -115,12 +188,53 @@ public class XRecoderEGLManager {
         };
         //
         try {
-            mEglSurface = EGL14.eglCreateWindowSurface(mEglDisplay, configs[0], mediaCodecsurface, surfaceAttribs, 0);
+            mEglSurface = EGL14.eglCreateWindowSurface(mEglDisplay, mEglConfig, mediaCodecsurface, surfaceAttribs, 0);
         } catch (final IllegalArgumentException e) {
             Log.e(TAG, "eglCreateWindowSurface", e);
         }
+        // 新的编码器，时间戳重新开始
+        mLastPresentationNs = 0;
         //-----------------------------
-        makeMyEGLCurrentSurface();
+        return makeMyEGLCurrentSurface();
+    }
+
+    /**
+     * @param what EGL14.EGL_WIDTH / EGL14.EGL_HEIGHT
+     * @return 编码器 window surface 的大小，没有surface时为0
+     */
+    public int querySurface(final int what) {
+        final int[] value = new int[1];
+        if (mEglSurface == null || mEglSurface == EGL14.EGL_NO_SURFACE
+                || !EGL14.eglQuerySurface(mEglDisplay, mEglSurface, what, value, 0)) {
+            return 0;
+        }
+        return value[0];
+    }
+
+    /**
+     * 销毁编码器的 window surface，EGLContext 保留(切换到 pbuffer)
+     */
+    public void detachSurface() {
+        if (mEglSurface == null || mEglSurface == EGL14.EGL_NO_SURFACE) {
+            mEglSurface = EGL14.EGL_NO_SURFACE;
+            return;
+        }
+        makeIdleCurrent();
+        EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
+        mEglSurface = EGL14.EGL_NO_SURFACE;
+    }
+
+    /**
+     * 没有编码器surface时保持 EGLContext 为当前，可以继续创建/删除GL资源
+     *
+     * @return
+     */
+    public boolean makeIdleCurrent() {
+        if (!EGL14.eglMakeCurrent(mEglDisplay, mIdleSurface, mIdleSurface, mEglContext)) {
+            Log.w(TAG, "makeIdleCurrent:" + EGL14.eglGetError());
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -150,6 +264,30 @@ public class XRecoderEGLManager {
     }
 
 
+    /**
+     * 设置下一帧的时间戳(swap之前调用)，编码器输出的时间戳即为该值
+     * <p>
+     * 不设置时系统在swap时打上帧到达的时间，录制线程延迟会直接变成帧间隔的抖动
+     *
+     * @param timestampNs 相机帧的时间戳，0 时使用当前时间(同为 System.nanoTime 的时钟)
+     * @return 实际设置的时间戳，失败时为 -1
+     */
+    public long setPresentationTime(long timestampNs) {
+        if (timestampNs <= 0) {
+            timestampNs = System.nanoTime();
+        }
+        if (timestampNs <= mLastPresentationNs) {
+            // 时间戳不递增的帧可能被编码器丢弃；muxer 以us为单位，至少前进1us
+            timestampNs = mLastPresentationNs + 1000;
+        }
+        if (!EGLExt.eglPresentationTimeANDROID(mEglDisplay, mEglSurface, timestampNs)) {
+            Log.w(TAG, "eglPresentationTimeANDROID:" + EGL14.eglGetError());
+            return -1;
+        }
+        mLastPresentationNs = timestampNs;
+        return timestampNs;
+    }
+
     /**
      * 交换buffer数据
      *
@@ -174,7 +312,12 @@ public class XRecoderEGLManager {
 
         // -------mEglSurface----------
         EGL14.eglMakeCurrent(mEglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
-        EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
+        if (mEglSurface != null && mEglSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(mEglDisplay, mEglSurface);
+        }
+        if (mIdleSurface != null && mIdleSurface != EGL14.EGL_NO_SURFACE) {
+            EGL14.eglDestroySurface(mEglDisplay, mIdleSurface);
+        }
 
         // -------mEglContext----------
         EGL14.eglDestroyContext(mEglDisplay, mEglContext);
@@ -182,8 +325,10 @@ public class XRecoderEGLManager {
         EGL14.eglReleaseThread();
         //
         mEglSurface = EGL14.EGL_NO_SURFACE;
+        mIdleSurface = EGL14.EGL_NO_SURFACE;
         mEglDisplay = EGL14.EGL_NO_DISPLAY;
         mEglContext = EGL14.EGL_NO_CONTEXT;
+        mShareContext = null;
     }
 
 
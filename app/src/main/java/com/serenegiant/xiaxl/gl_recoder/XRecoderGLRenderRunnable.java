@@ -1,24 +1,39 @@
 package com.serenegiant.xiaxl.gl_recoder;
 
 import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
-import android.opengl.Matrix;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
+import com.serenegiant.xiaxl.LogUtils;
 import com.serenegiant.xiaxl.XShowGLSurfaceView;
+import com.serenegiant.xiaxl.gl_util.GLRenderTarget;
+import com.serenegiant.xiaxl.gl_util.GLStateCache;
 import com.serenegiant.xiaxl.gl_widget.XTextureGLRect;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
+import com.serenegiant.xiaxl.media_metrics.XStageMetrics;
+import com.serenegiant.xiaxl.util.XCoalescingSignal;
 
+import java.util.ArrayList;
 
 /**
  * RenderRunnable
+ * <p>
+ * 录制线程结束录制后不退出：EGLContext 与 XTextureGLRect(程序/VBO) 保留，只销毁编码器的 window surface，
+ * 放回空闲列表(obtain / recycle)，下一次录制只需要创建新的 window surface。
  */
 public final class XRecoderGLRenderRunnable implements Runnable {
 
     private static final String TAG = XRecoderGLRenderRunnable.class.getSimpleName();
 
+    // 最多保留的空闲录制线程(同时录制的编码器数)
+    private static final int MAX_IDLE = 2;
+    private static final ArrayList<XRecoderGLRenderRunnable> sIdle = new ArrayList<XRecoderGLRenderRunnable>(MAX_IDLE);
+
     private final Object mSync = new Object();
 
     /**
@@ -36,16 +51,20 @@ public final class XRecoderGLRenderRunnable implements Runnable {
     private Object xRecoderSurface;
 
 
-    // 最终变换矩阵，从glThread中拷贝过来的最终变换矩阵
-    private float[] mRecoderMatrix = new float[16];
+    // GLThread 交给录制线程的帧(变换矩阵/纹理/相机帧时间戳)，录制线程总是取最新的一帧
+    private final XFrameSlots mFrameSlots = new XFrameSlots();
+    // 有新帧时唤醒录制线程(无锁)
+    private final XCoalescingSignal mFrameSignal = new XCoalescingSignal();
 
     private boolean mRequestSetEglContext;
+    private boolean mRequestDetach;
+    // 录制线程中使用，编码器的 window surface 可以绘制
+    private boolean mSurfaceAttached;
 
     // 是否需要释放资源
-    private boolean mRequestRelease;
-
-    // 需要绘制的次数
-    private int mRequestDraw;
+    private volatile boolean mRequestRelease;
+    // 相机帧到录制swap完成的延时
+    private final XStageMetrics mDrawMetrics = XMetricsRegistry.stage(XMetricsRegistry.Stage.RECORDER_DRAW);
 
     /**
      * 创建线程,开启这个Runable
@@ -66,6 +85,40 @@ public final class XRecoderGLRenderRunnable implements Runnable {
         return handler;
     }
 
+    /**
+     * 取一个空闲的录制线程(保留着 EGLContext)，没有时创建新的线程
+     *
+     * @param name 新建线程时的线程名
+     * @return
+     */
+    public static XRecoderGLRenderRunnable obtain(final String name) {
+        synchronized (sIdle) {
+            while (!sIdle.isEmpty()) {
+                final XRecoderGLRenderRunnable handler = sIdle.remove(sIdle.size() - 1);
+                if (!handler.mRequestRelease) {
+                    return handler;
+                }
+            }
+        }
+        return createHandler(name);
+    }
+
+    /**
+     * 释放所有空闲的录制线程
+     * <p>
+     * 预览的 EGLContext 销毁时调用，空闲线程的 EGLContext 与之共享，已经不能再用
+     */
+    public static void releaseIdle() {
+        final XRecoderGLRenderRunnable[] idle;
+        synchronized (sIdle) {
+            idle = sIdle.toArray(new XRecoderGLRenderRunnable[sIdle.size()]);
+            sIdle.clear();
+        }
+        for (final XRecoderGLRenderRunnable handler : idle) {
+            handler.release();
+        }
+    }
+
     /**
      * 开始录制时，调用该方法,设置一些数据
      *
@@ -93,6 +146,7 @@ public final class XRecoderGLRenderRunnable implements Runnable {
             mRequestSetEglContext = true;
             //
             mSync.notifyAll();
+            mFrameSignal.wakeUp();
             try {
                 mSync.wait();
             } catch (final InterruptedException e) {
@@ -105,9 +159,11 @@ public final class XRecoderGLRenderRunnable implements Runnable {
      * 运行在GLThread
      *
      * @param mvp_matrix
+     * @param timestampNs 送给编码器的时间戳
+     * @param captureNs   相机帧的时间戳
      */
-    public final void draw(final float[] mvp_matrix) {
-        draw(xShowGLTexId, mvp_matrix);
+    public final boolean draw(final float[] mvp_matrix, final long timestampNs, final long captureNs) {
+        return draw(xShowGLTexId, null, mvp_matrix, timestampNs, captureNs);
     }
 
     /**
@@ -115,25 +171,95 @@ public final class XRecoderGLRenderRunnable implements Runnable {
      *
      * @param texId
      * @param mvpMatrix
+     * @param timestampNs 送给编码器的时间戳
+     * @param captureNs   相机帧的时间戳
+     * @return true 录制线程还没有取走上一帧，上一帧被这一帧替换(跳过)
+     */
+    public final boolean draw(final int texId, final float[] mvpMatrix, final long timestampNs, final long captureNs) {
+        return draw(texId, null, mvpMatrix, timestampNs, captureNs);
+    }
+
+    /**
+     * 运行在GLThread
+     *
+     * @param target      已经 markWritten 并 hold 的渲染目标，由录制线程用完后释放
+     * @param mvpMatrix
+     * @param timestampNs 送给编码器的时间戳
+     * @param captureNs   相机帧的时间戳
+     * @return true 录制线程还没有取走上一帧，上一帧被这一帧替换(跳过)
+     */
+    public final boolean draw(final GLRenderTarget target, final float[] mvpMatrix, final long timestampNs, final long captureNs) {
+        return draw(target.getTextureId(), target, mvpMatrix, timestampNs, captureNs);
+    }
+
+    private boolean draw(final int texId, final GLRenderTarget target, final float[] mvpMatrix,
+                         final long timestampNs, final long captureNs) {
+        // 释放资源
+        if (mRequestRelease) {
+            if (target != null) {
+                target.releaseHold();
+            }
+            return false;
+        }
+        // 拷贝到预先分配的槽，不加锁
+        mFrameSlots.write(texId, target, mvpMatrix, timestampNs, captureNs);
+        final boolean skipped = mFrameSlots.publish();
+        if (skipped) {
+            mDrawMetrics.onDrop(1);
+        }
+        mDrawMetrics.setQueueDepth(1);
+        mFrameSignal.signal();
+        return skipped;
+    }
+
+    /**
+     * @return 录制线程还没有取走最新的一帧(编码器跟不上时swap会阻塞)
+     */
+    public final boolean hasPendingFrame() {
+        return mFrameSlots.hasPending();
+    }
+
+    /**
+     * @return 还没被录制线程取走就被新帧替换的帧数
+     */
+    public final long getSkippedFrameCount() {
+        return mFrameSlots.getSkippedCount();
+    }
+
+    /**
+     * @return GLThread 交给录制线程的帧数
      */
-    public final void draw(final int texId, final float[] mvpMatrix) {
+    public final long getSubmittedFrameCount() {
+        return mFrameSlots.getPublishedCount();
+    }
+
+    /**
+     * 结束录制，在释放编码器的输入surface之前调用：销毁 window surface 后放回空闲列表，空闲列表已满时释放
+     */
+    public final void recycle() {
         synchronized (mSync) {
-            // 释放资源
             if (mRequestRelease) {
                 return;
             }
-            //
-            xShowGLTexId = texId;
-
-            // 拷贝最终变换矩阵
-            if (mvpMatrix != null) {
-                mRecoderMatrix = mvpMatrix.clone();
-            } else {
-                Matrix.setIdentityM(mRecoderMatrix, 0);
-            }
-            mRequestDraw++;
+            mRequestDetach = true;
             mSync.notifyAll();
+            mFrameSignal.wakeUp();
+            try {
+                mSync.wait();
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+            }
+            // 不再引用 XShowGLSurfaceView
+            xShowGLSurfaceView = null;
+            xShowGLTexId = -1;
+        }
+        synchronized (sIdle) {
+            if (!mRequestRelease && sIdle.size() < MAX_IDLE && !sIdle.contains(this)) {
+                sIdle.add(this);
+                return;
+            }
         }
+        release();
     }
 
     /**
@@ -146,6 +272,7 @@ public final class XRecoderGLRenderRunnable implements Runnable {
             }
             mRequestRelease = true;
             mSync.notifyAll();
+            mFrameSignal.wakeUp();
             try {
                 mSync.wait();
             } catch (final InterruptedException e) {
@@ -162,10 +289,11 @@ public final class XRecoderGLRenderRunnable implements Runnable {
 
         synchronized (mSync) {
             mRequestSetEglContext = mRequestRelease = false;
-            mRequestDraw = 0;
+            mFrameSignal.reset();
+            mFrameSignal.bindConsumer();
+            mFrameSlots.clearPending();
             mSync.notifyAll();
         }
-        boolean localRequestDraw;
         // 无限循环
         for (; ; ) {
             //
@@ -179,36 +307,56 @@ public final class XRecoderGLRenderRunnable implements Runnable {
                     mRequestSetEglContext = false;
                     internalPrepare();
                 }
-                localRequestDraw = mRequestDraw > 0;
-                if (localRequestDraw) {
-                    mRequestDraw--;
-
+                if (mRequestDetach) {
+                    mRequestDetach = false;
+                    internalDetach();
                 }
             }
-            if (localRequestDraw) {
-                if ((mXRecoderEglManager != null) && xShowGLTexId >= 0) {
+            // 只取最新的一帧，期间被替换的帧不再绘制
+            final XFrameSlots.Slot frame = mFrameSlots.acquire();
+            if (frame != null) {
+                mDrawMetrics.setQueueDepth(0);
+                if (!mSurfaceAttached || frame.texId < 0) {
+                    mFrameSlots.finish(frame, false);
+                } else {
                     // 清屏颜色为黑色
                     GLES20.glClearColor(0, 0, 0, 0);
                     GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT
                             | GLES20.GL_COLOR_BUFFER_BIT);
 
-                    mXRecoderGLRect.draw(xShowGLTexId, mRecoderMatrix);
-                    mXRecoderEglManager.swapMyEGLBuffers();
+                    if (frame.target != null) {
+                        // GLThread 写完之后再采样
+                        frame.target.waitWritten();
+                    }
+                    mXRecoderGLRect.draw(frame.texId, frame.mvpMatrix);
+                    // 采样的命令已经发出，GLThread 可以在这之后重新绘制这张纹理
+                    mFrameSlots.finish(frame, true);
+                    // 编码器使用选帧后的时间戳，而不是帧到达编码器的时间
+                    mXRecoderEglManager.setPresentationTime(frame.timestampNs);
+                    final int error = mXRecoderEglManager.swapMyEGLBuffers();
+                    if (error == EGL14.EGL_SUCCESS) {
+                        // 延时从采集时刻算起(相机帧时间戳与 System.nanoTime() 同一时钟)
+                        mDrawMetrics.onFrame(frame.captureNs > 0 ? (System.nanoTime() - frame.captureNs) / 1000L : -1, 0);
+                    } else {
+                        // 编码器的surface已经失效(停止录制时)，这一帧没有送到编码器
+                        Log.w(TAG, "swapMyEGLBuffers:" + error);
+                        mDrawMetrics.onDrop(1);
+                    }
+                    final GLStateCache cache = GLStateCache.current();
+                    cache.endFrame();
+                    XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.RECORDER_GL_CALLS, cache.getLastFrameCalls());
+                    XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.RECORDER_GL_CALLS_SKIPPED, cache.getLastFrameSkipped());
                 }
             } else {
                 //--------进入等待状态-----------
-                synchronized (mSync) {
-                    try {
-                        mSync.wait();
-                    } catch (final InterruptedException e) {
-                        e.printStackTrace();
-                        break;
-                    }
+                if (mFrameSignal.await() < 0) {
+                    break;
                 }
             }
         }
         synchronized (mSync) {
             mRequestRelease = true;
+            mFrameSlots.clearPending();
             releaseEGL();
             mSync.notifyAll();
         }
@@ -216,13 +364,43 @@ public final class XRecoderGLRenderRunnable implements Runnable {
     }
 
     private final void internalPrepare() {
-        //
-        releaseEGL();
-        //
-        mXRecoderEglManager = new XRecoderEGLManager(xShowEGLContext, xRecoderSurface);
-        //
-        mXRecoderGLRect = new XTextureGLRect(xShowGLSurfaceView.mCameraPreviewWidth, xShowGLSurfaceView.mCameraPreviewHeight);
+        final long startNs = System.nanoTime();
+        // 上一次录制的 EGLContext 与预览在同一个 share group 时直接复用
+        final boolean reuse = mXRecoderEglManager != null && mXRecoderEglManager.isSharedWith(xShowEGLContext);
+        if (!reuse) {
+            //
+            releaseEGL();
+            //
+            mXRecoderEglManager = new XRecoderEGLManager(xShowEGLContext);
+            // 新的 EGLContext，GL状态未知
+            GLStateCache.current().invalidate();
+            //
+            // GLThread 已经把相机帧剪裁/旋转/缩放到编码分辨率的2D纹理(XCameraFrameStage)
+            mXRecoderGLRect = new XTextureGLRect();
+            // 纹理由GLThread写入
+            mXRecoderGLRect.setSharedInput(true);
+        }
+        mSurfaceAttached = mXRecoderEglManager.attachSurface(xRecoderSurface);
+        if (mSurfaceAttached) {
+            // 复用的 EGLContext 保留着上一个编码器的 viewport
+            GLES20.glViewport(0, 0, mXRecoderEglManager.querySurface(EGL14.EGL_WIDTH),
+                    mXRecoderEglManager.querySurface(EGL14.EGL_HEIGHT));
+        }
         xRecoderSurface = null;
+        mFrameSlots.clearPending();
+        LogUtils.i(TAG, "internalPrepare: reuse=" + reuse + " " + (System.nanoTime() - startNs) / 1000L + "us");
+        mSync.notifyAll();
+    }
+
+    /**
+     * 销毁编码器的 window surface，EGLContext 与GL资源保留
+     */
+    private final void internalDetach() {
+        mSurfaceAttached = false;
+        if (mXRecoderEglManager != null) {
+            mXRecoderEglManager.detachSurface();
+        }
+        mFrameSlots.clearPending();
         mSync.notifyAll();
     }
 
@@ -230,6 +408,15 @@ public final class XRecoderGLRenderRunnable implements Runnable {
      *
      */
     private final void releaseEGL() {
+        mSurfaceAttached = false;
+        if (mXRecoderGLRect != null) {
+            // EGLContext 还是当前的(window surface 或 pbuffer)，程序放回缓存给下一次录制使用
+            if (mXRecoderEglManager != null) {
+                mXRecoderEglManager.makeIdleCurrent();
+            }
+            mXRecoderGLRect.release();
+            mXRecoderGLRect = null;
+        }
         if (mXRecoderEglManager != null) {
             mXRecoderEglManager.release();
             mXRecoderEglManager = null;
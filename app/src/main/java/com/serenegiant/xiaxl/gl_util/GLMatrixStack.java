@@ -0,0 +1,159 @@
+package com.serenegiant.xiaxl.gl_util;
+
+import android.opengl.Matrix;
+
+/**
+ * 每个渲染器各自持有的矩阵状态(替代全静态的 GLMatrixState)
+ * <p>
+ * 模型矩阵栈是一块预先分配的连续 float 数组，push/pop 只移动栈顶下标；
+ * 投影矩阵 * 摄像机矩阵 只在 setCamera/setProject* 之后重新计算一次。
+ * 绘制时不分配内存、不加锁；不是线程安全的，只在创建它的GL线程中使用
+ */
+public final class GLMatrixStack {
+
+    public static final int DEFAULT_DEPTH = 8;
+
+    private static final int MATRIX_SIZE = 16;
+
+    //4x4矩阵 投影用
+    private final float[] mProjMatrix = new float[MATRIX_SIZE];
+    //摄像机位置朝向矩阵
+    private final float[] mVMatrix = new float[MATRIX_SIZE];
+    // mProjMatrix * mVMatrix
+    private final float[] mVpMatrix = new float[MATRIX_SIZE];
+    private boolean mVpDirty = true;
+
+    // 模型矩阵栈，栈顶为当前变换矩阵
+    private final float[] mStack;
+    private int mTop;
+
+    // 总变换矩阵，模型矩阵或 mVpMatrix 变化后重新计算
+    private final float[] mMvpMatrix = new float[MATRIX_SIZE];
+    private boolean mMvpDirty = true;
+
+    // rotate 用的临时矩阵，Matrix.multiplyMM 的结果不能与参数重叠
+    private final float[] mTemp = new float[MATRIX_SIZE * 2];
+
+    public GLMatrixStack() {
+        this(DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param depth 最多可以 push 的次数
+     */
+    public GLMatrixStack(final int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("invalid depth:" + depth);
+        }
+        mStack = new float[(depth + 1) * MATRIX_SIZE];
+        Matrix.setIdentityM(mProjMatrix, 0);
+        Matrix.setIdentityM(mVMatrix, 0);
+        setInitStack();
+    }
+
+    //清空栈，当前变换矩阵设为单位矩阵
+    public void setInitStack() {
+        mTop = 0;
+        Matrix.setIdentityM(mStack, 0);
+        mMvpDirty = true;
+    }
+
+    //保护变换矩阵
+    public void pushMatrix() {
+        final int next = mTop + MATRIX_SIZE;
+        if (next >= mStack.length) {
+            throw new IllegalStateException("matrix stack overflow");
+        }
+        System.arraycopy(mStack, mTop, mStack, next, MATRIX_SIZE);
+        mTop = next;
+    }
+
+    //恢复变换矩阵
+    public void popMatrix() {
+        if (mTop == 0) {
+            throw new IllegalStateException("matrix stack underflow");
+        }
+        mTop -= MATRIX_SIZE;
+        mMvpDirty = true;
+    }
+
+    //设置沿xyz轴移动
+    public void translate(final float x, final float y, final float z) {
+        Matrix.translateM(mStack, mTop, x, y, z);
+        mMvpDirty = true;
+    }
+
+    //设置绕xyz轴旋转
+    public void rotate(final float angle, final float x, final float y, final float z) {
+        // 与 Matrix.rotateM 相同，但不使用它内部加锁的静态临时数组
+        Matrix.setRotateM(mTemp, MATRIX_SIZE, angle, x, y, z);
+        Matrix.multiplyMM(mTemp, 0, mStack, mTop, mTemp, MATRIX_SIZE);
+        System.arraycopy(mTemp, 0, mStack, mTop, MATRIX_SIZE);
+        mMvpDirty = true;
+    }
+
+    public void scale(final float x, final float y, final float z) {
+        Matrix.scaleM(mStack, mTop, x, y, z);
+        mMvpDirty = true;
+    }
+
+    //设置摄像机
+    public void setCamera(final float cx, final float cy, final float cz,
+                          final float tx, final float ty, final float tz,
+                          final float upx, final float upy, final float upz) {
+        Matrix.setLookAtM(mVMatrix, 0, cx, cy, cz, tx, ty, tz, upx, upy, upz);
+        mVpDirty = true;
+    }
+
+    //设置透视投影参数
+    public void setProjectFrustum(final float left, final float right, final float bottom, final float top,
+                                  final float near, final float far) {
+        Matrix.frustumM(mProjMatrix, 0, left, right, bottom, top, near, far);
+        mVpDirty = true;
+    }
+
+    //设置正交投影参数
+    public void setProjectOrtho(final float left, final float right, final float bottom, final float top,
+                                final float near, final float far) {
+        Matrix.orthoM(mProjMatrix, 0, left, right, bottom, top, near, far);
+        mVpDirty = true;
+    }
+
+    /**
+     * 获取具体物体的总变换矩阵
+     *
+     * @return 内部数组，下一次修改矩阵后内容会变化，需要保留时自行拷贝
+     */
+    public float[] getFinalMatrix() {
+        if (mVpDirty) {
+            Matrix.multiplyMM(mVpMatrix, 0, mProjMatrix, 0, mVMatrix, 0);
+            mVpDirty = false;
+            mMvpDirty = true;
+        }
+        if (mMvpDirty) {
+            Matrix.multiplyMM(mMvpMatrix, 0, mVpMatrix, 0, mStack, mTop);
+            mMvpDirty = false;
+        }
+        return mMvpMatrix;
+    }
+
+    /**
+     * 拷贝当前的模型矩阵
+     *
+     * @param dst
+     * @param offset
+     */
+    public void getMMatrix(final float[] dst, final int offset) {
+        System.arraycopy(mStack, mTop, dst, offset, MATRIX_SIZE);
+    }
+
+    //获取摄像机朝向的矩阵(只读)
+    public float[] getCaMatrix() {
+        return mVMatrix;
+    }
+
+    //获取投影矩阵(只读)
+    public float[] getProjMatrix() {
+        return mProjMatrix;
+    }
+}
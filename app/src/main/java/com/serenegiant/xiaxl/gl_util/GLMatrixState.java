@@ -8,6 +8,10 @@ import java.nio.FloatBuffer;
 import java.util.Stack;
 
 //存储系统矩阵状态的类
+/**
+ * @deprecated 全静态状态，push 与 getFinalMatrix 每次都分配内存，使用每个渲染器各自的 {@link GLMatrixStack}
+ */
+@Deprecated
 public class GLMatrixState {
     //4x4矩阵 投影用
     private static float[] mProjMatrix = new float[16];
@@ -0,0 +1,327 @@
+package com.serenegiant.xiaxl.gl_util;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 着色器程序缓存，按着色器源码的hash复用已经链接好的程序
+ * <p>
+ * 预览的 EGLContext 与录制线程的 EGLContext 在同一个 share group 中，程序对象可以共用。
+ * uniform 的值属于程序对象，两个线程同时使用同一个程序会互相覆盖，所以程序是"借出"的：
+ * acquire 取一个空闲的程序(没有时新建)，release 放回，下一次录制的 XTextureGLRect 直接复用，不再编译。
+ * <p>
+ * share group 重新创建后驱动会重新分配同样的程序id，所以借出的程序记录借出时的 generation，
+ * invalidate 之前借出的程序 release 时直接丢弃，不会放回新的 share group 的空闲列表，也不调用GL删除同id的新程序。
+ * <p>
+ * 新建程序时，驱动支持 program binary(GLES3)且设置了缓存目录的情况下，先尝试从磁盘加载二进制，
+ * 加载失败再从源码编译，编译后把二进制写到磁盘，冷启动时跳过编译。
+ *
+ * @author xiaxl1
+ */
+public final class GLProgramCache {
+
+    private static final String TAG = GLProgramCache.class.getSimpleName();
+
+    private static final int FILE_MAGIC = 0x58475042; // "XGPB"
+    private static final int FILE_VERSION = 1;
+    // 二进制文件的上限，超过时认为文件损坏
+    private static final int MAX_BINARY_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * acquire 借出的程序，用完传给 release
+     */
+    public static final class Lease {
+        public final int program;
+        final String key;
+        final int generation;
+
+        Lease(final int program, final String key, final int generation) {
+            this.program = program;
+            this.key = key;
+            this.generation = generation;
+        }
+    }
+
+    private static final Object sSync = new Object();
+    // 源码hash -> 空闲的程序
+    private static final HashMap<String, ArrayList<Integer>> sFree = new HashMap<String, ArrayList<Integer>>();
+    // invalidate 一次加1
+    private static int sGeneration;
+    private static File sCacheDir;
+
+    private static int sCompileCount;
+    private static int sBinaryLoadCount;
+    private static int sReuseCount;
+
+    private GLProgramCache() {
+    }
+
+    /**
+     * 设置保存 program binary 的目录，不设置时只在内存中缓存
+     *
+     * @param dir 例如 new File(context.getCacheDir(), "gl_programs")
+     */
+    public static void setCacheDir(final File dir) {
+        synchronized (sSync) {
+            sCacheDir = dir;
+        }
+    }
+
+    /**
+     * 在GL线程中调用，取得一个链接好的程序，用完调用 release
+     *
+     * @param vertexSource
+     * @param fragmentSource
+     * @return 借出的程序，失败时为null
+     */
+    public static Lease acquire(final String vertexSource, final String fragmentSource) {
+        final String key = hash(vertexSource, fragmentSource);
+        final File cacheDir;
+        final int generation;
+        synchronized (sSync) {
+            final ArrayList<Integer> free = sFree.get(key);
+            if (free != null && !free.isEmpty()) {
+                sReuseCount++;
+                return new Lease(free.remove(free.size() - 1), key, sGeneration);
+            }
+            cacheDir = sCacheDir;
+            generation = sGeneration;
+        }
+        // 锁外创建，编译可能要几十毫秒
+        final boolean binarySupported = cacheDir != null && isBinarySupported();
+        final File file = binarySupported ? new File(cacheDir, key + ".bin") : null;
+        int program = binarySupported ? loadBinary(file) : 0;
+        if (program != 0) {
+            synchronized (sSync) {
+                sBinaryLoadCount++;
+            }
+        } else {
+            program = GLShaderUtil.createProgram(vertexSource, fragmentSource);
+            if (program == 0) {
+                return null;
+            }
+            synchronized (sSync) {
+                sCompileCount++;
+            }
+            if (binarySupported) {
+                saveBinary(program, file);
+            }
+        }
+        return new Lease(program, key, generation);
+    }
+
+    /**
+     * 在GL线程中调用，把 acquire 取得的程序放回缓存(不删除)
+     *
+     * @param lease
+     */
+    public static void release(final Lease lease) {
+        if (lease == null) {
+            return;
+        }
+        synchronized (sSync) {
+            if (lease.generation != sGeneration) {
+                // invalidate() 之前借出的程序属于已经销毁的 share group，同样的id可能已经分配给新的程序，不调用GL
+                return;
+            }
+            ArrayList<Integer> free = sFree.get(lease.key);
+            if (free == null) {
+                free = new ArrayList<Integer>(2);
+                sFree.put(lease.key, free);
+            }
+            free.add(lease.program);
+        }
+    }
+
+    /**
+     * share group 已经销毁(预览的 EGLContext 重新创建)，丢弃所有程序id(不调用GL)；磁盘上的二进制保留
+     */
+    public static void invalidate() {
+        synchronized (sSync) {
+            sFree.clear();
+            sGeneration++;
+        }
+    }
+
+    /**
+     * @return 从源码编译的次数
+     */
+    public static int getCompileCount() {
+        synchronized (sSync) {
+            return sCompileCount;
+        }
+    }
+
+    /**
+     * @return 从磁盘的 program binary 加载的次数
+     */
+    public static int getBinaryLoadCount() {
+        synchronized (sSync) {
+            return sBinaryLoadCount;
+        }
+    }
+
+    /**
+     * @return 直接复用空闲程序的次数
+     */
+    public static int getReuseCount() {
+        synchronized (sSync) {
+            return sReuseCount;
+        }
+    }
+
+    /**
+     * 当前 EGLContext 是 GLES3 且至少支持一种二进制格式
+     */
+    private static boolean isBinarySupported() {
+        final String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            return false;
+        }
+        final int[] formats = new int[1];
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+        return formats[0] > 0;
+    }
+
+    /**
+     * 驱动更新后旧的二进制不能用，文件头中记录驱动信息
+     */
+    private static String driverId() {
+        return GLES20.glGetString(GLES20.GL_RENDERER) + "/" + GLES20.glGetString(GLES20.GL_VERSION);
+    }
+
+    private static int loadBinary(final File file) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        final int format;
+        final ByteBuffer binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || !driverId().equals(in.readUTF())) {
+                in.close();
+                in = null;
+                file.delete();
+                return 0;
+            }
+            format = in.readInt();
+            final int length = in.readInt();
+            if (length <= 0 || length > MAX_BINARY_LENGTH) {
+                throw new IOException("invalid binary length:" + length);
+            }
+            final byte[] data = new byte[length];
+            in.readFully(data);
+            binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            binary.put(data).position(0);
+        } catch (final IOException e) {
+            Log.w(TAG, "loadBinary: " + file, e);
+            file.delete();
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+        final int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        GLES30.glProgramBinary(program, format, binary, binary.capacity());
+        final int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // 驱动拒绝(例如系统更新)，删除文件后从源码编译
+            GLES20.glDeleteProgram(program);
+            file.delete();
+            return 0;
+        }
+        return program;
+    }
+
+    private static void saveBinary(final int program, final File file) {
+        final int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0 || length[0] > MAX_BINARY_LENGTH) {
+            return;
+        }
+        final ByteBuffer binary = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        final int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return;
+        }
+        final byte[] data = new byte[length[0]];
+        binary.position(0);
+        binary.get(data);
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        // 先写临时文件再改名，进程中途退出时不会留下不完整的文件
+        final File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(driverId());
+            out.writeInt(format[0]);
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "saveBinary: " + file, e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * 64bit FNV-1a
+     */
+    static String hash(final String vertexSource, final String fragmentSource) {
+        long h = 0xcbf29ce484222325L;
+        h = fnv(h, vertexSource);
+        // 分隔两段源码
+        h *= 0x100000001b3L;
+        h = fnv(h, fragmentSource);
+        return Long.toHexString(h);
+    }
+
+    private static long fnv(long h, final String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            final char c = s.charAt(i);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,207 @@
+package com.serenegiant.xiaxl.gl_util;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 离屏渲染目标: framebuffer + RGBA 纹理(GL_TEXTURE_2D)
+ * <p>
+ * 纹理可以在同一个 share group 的其他 EGLContext 中采样；
+ * 只能在创建它的GL线程中 bind/release
+ * <p>
+ * 交给其他 EGLContext(录制线程)采样时：GL线程写完后 markWritten、交出前 hold；
+ * 读的一方采样前 waitWritten，用完后 releaseAfterRead(没有采样时 releaseHold)。
+ * 被持有期间GL线程不能再绘制或删除它(isHeld)。
+ * 同步使用 GLES3 的 fence，不支持时用 glFinish
+ *
+ * @author xiaxl1
+ */
+public final class GLRenderTarget {
+
+    private final int mWidth;
+    private final int mHeight;
+    private int mFramebufferId;
+    private int mTextureId;
+
+    // 读的一方最多保留的 fence 数，超过时读的一方用 glFinish
+    private static final int MAX_READ_FENCES = 4;
+    // 其他 EGLContext 还没有用完的次数
+    private final AtomicInteger mHolds = new AtomicInteger();
+    // GL线程写完时的 fence，读的一方采样前等待
+    private volatile long mWriteFence;
+    // 读的一方用完时的 fence，GL线程再次写之前等待(mReadFences 锁)
+    private final long[] mReadFences = new long[MAX_READ_FENCES];
+    private int mReadFenceCount;
+
+    /**
+     * 在GL线程中调用
+     *
+     * @param width
+     * @param height
+     */
+    public GLRenderTarget(final int width, final int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid size:" + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mTextureId = GLTextureUtil.create2DTextureID(width, height);
+
+        final int[] fbo = new int[1];
+        GLES20.glGenFramebuffers(1, fbo, 0);
+        mFramebufferId = fbo[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        final int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("framebuffer not complete: 0x" + Integer.toHexString(status));
+        }
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getFramebufferId() {
+        return mFramebufferId;
+    }
+
+    /**
+     * 之后的绘制输出到该纹理，视窗设为纹理大小
+     */
+    public void bind() {
+        if (isHeld()) {
+            throw new IllegalStateException("render target is held by another EGLContext");
+        }
+        beginWrite();
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    /**
+     * 恢复输出到窗口surface，调用方负责恢复窗口的视窗
+     */
+    public static void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * GL线程中调用，绘制完成、交给其他 EGLContext 之前调用一次
+     */
+    public void markWritten() {
+        if (isHeld()) {
+            // 已经交出，内容在这之后没有再写
+            return;
+        }
+        if (GLStateCache.current().isFenceSupported()) {
+            if (mWriteFence != 0) {
+                GLES30.glDeleteSync(mWriteFence);
+            }
+            mWriteFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            // fence 需要提交后其他 EGLContext 才能等待
+            GLES20.glFlush();
+        } else {
+            GLES20.glFinish();
+        }
+    }
+
+    /**
+     * GL线程中调用，交给其他 EGLContext 之前调用，每次 hold 对应一次 releaseHold / releaseAfterRead
+     */
+    public void hold() {
+        mHolds.incrementAndGet();
+    }
+
+    /**
+     * @return 还有其他 EGLContext 没有用完
+     */
+    public boolean isHeld() {
+        return mHolds.get() > 0;
+    }
+
+    /**
+     * 任意线程，没有采样就不再使用
+     */
+    public void releaseHold() {
+        if (mHolds.decrementAndGet() < 0) {
+            mHolds.set(0);
+        }
+    }
+
+    /**
+     * 读的一方的GL线程中调用，采样之前在GPU上等待GL线程写完
+     */
+    public void waitWritten() {
+        final long fence = mWriteFence;
+        if (fence != 0) {
+            GLES30.glWaitSync(fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+        }
+    }
+
+    /**
+     * 读的一方的GL线程中调用，采样的命令都已经发出后调用
+     */
+    public void releaseAfterRead() {
+        boolean finish = true;
+        if (GLStateCache.current().isFenceSupported()) {
+            synchronized (mReadFences) {
+                if (mReadFenceCount < MAX_READ_FENCES) {
+                    mReadFences[mReadFenceCount++] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                    finish = false;
+                }
+            }
+        }
+        if (finish) {
+            GLES20.glFinish();
+        } else {
+            GLES20.glFlush();
+        }
+        releaseHold();
+    }
+
+    /**
+     * GL线程再次写之前，等待读的一方的采样完成
+     */
+    private void beginWrite() {
+        synchronized (mReadFences) {
+            for (int i = 0; i < mReadFenceCount; i++) {
+                GLES30.glWaitSync(mReadFences[i], 0, GLES30.GL_TIMEOUT_IGNORED);
+                GLES30.glDeleteSync(mReadFences[i]);
+                mReadFences[i] = 0;
+            }
+            mReadFenceCount = 0;
+        }
+    }
+
+    /**
+     * GL线程中调用；被持有时由调用方推迟到 isHeld() 为 false 之后
+     */
+    public void release() {
+        beginWrite();
+        if (mWriteFence != 0) {
+            GLES30.glDeleteSync(mWriteFence);
+            mWriteFence = 0;
+        }
+        if (mFramebufferId != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{mFramebufferId}, 0);
+            mFramebufferId = 0;
+        }
+        if (mTextureId != 0) {
+            GLTextureUtil.deleteTex(mTextureId);
+            mTextureId = 0;
+        }
+    }
+}
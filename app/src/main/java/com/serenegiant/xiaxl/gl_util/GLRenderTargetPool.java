@@ -0,0 +1,86 @@
+package com.serenegiant.xiaxl.gl_util;
+
+import java.util.ArrayList;
+
+/**
+ * 按大小复用 GLRenderTarget，避免每帧创建/删除 framebuffer 和纹理
+ * <p>
+ * obtain/recycle 不分配内存(空闲列表很短，线性查找)；只在GL线程中使用。
+ * 放回时还被其他 EGLContext 持有(GLRenderTarget#isHeld)的渲染目标，在释放之前不会被 obtain 取出
+ *
+ * @author xiaxl1
+ */
+public final class GLRenderTargetPool {
+
+    // 空闲的渲染目标最多保留的个数，超过时删除最早放入的
+    private static final int MAX_FREE = 6;
+
+    private final ArrayList<GLRenderTarget> mFree = new ArrayList<GLRenderTarget>(MAX_FREE + 1);
+    private int mCreatedCount;
+
+    /**
+     * @param width
+     * @param height
+     * @return 大小相同的空闲渲染目标，没有时新建
+     */
+    public GLRenderTarget obtain(final int width, final int height) {
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            final GLRenderTarget target = mFree.get(i);
+            if (target.getWidth() == width && target.getHeight() == height && !target.isHeld()) {
+                mFree.remove(i);
+                return target;
+            }
+        }
+        mCreatedCount++;
+        return new GLRenderTarget(width, height);
+    }
+
+    /**
+     * 放回池中，调用后不能再使用 target
+     *
+     * @param target
+     */
+    public void recycle(final GLRenderTarget target) {
+        if (target == null) {
+            return;
+        }
+        mFree.add(target);
+        if (mFree.size() > MAX_FREE) {
+            // 删除最早放入、已经没有被持有的一个；都被持有时暂时超过上限
+            for (int i = 0, n = mFree.size(); i < n; i++) {
+                if (!mFree.get(i).isHeld()) {
+                    mFree.remove(i).release();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 删除所有空闲的渲染目标(EGLContext 销毁前，不再等待其他 EGLContext)
+     */
+    public void clear() {
+        for (int i = 0, n = mFree.size(); i < n; i++) {
+            mFree.get(i).release();
+        }
+        mFree.clear();
+    }
+
+    /**
+     * EGLContext 已经销毁时调用，丢弃所有空闲的渲染目标(不调用GL)
+     */
+    public void abandon() {
+        mFree.clear();
+    }
+
+    /**
+     * @return 创建过的渲染目标个数，稳定后不再增加
+     */
+    public int getCreatedCount() {
+        return mCreatedCount;
+    }
+
+    public int getFreeCount() {
+        return mFree.size();
+    }
+}
@@ -0,0 +1,289 @@
+package com.serenegiant.xiaxl.gl_util;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+
+/**
+ * 每个GL线程(EGLContext)一份的GL状态缓存，跳过重复的 glUseProgram / glActiveTexture /
+ * glBindTexture / glBindBuffer / glVertexAttribPointer / glEnableVertexAttribArray
+ * <p>
+ * 缓存只有在所有状态修改都经过它时才正确：绑定状态的修改都应该调用这里的方法，
+ * 删除对象时调用 onXXXDeleted，EGLContext 重新创建时调用 invalidate()。
+ * 同时统计每帧实际发出的GL调用数和跳过的调用数
+ *
+ * @author xiaxl1
+ */
+public final class GLStateCache {
+
+    // 跟踪的纹理单元数，GLES2 保证片元着色器至少有8个
+    private static final int MAX_TEXTURE_UNITS = 8;
+    // 跟踪的顶点属性数，GLES2 保证至少有8个
+    private static final int MAX_ATTRIBS = 8;
+    private static final int UNKNOWN = -1;
+
+    private static final ThreadLocal<GLStateCache> CURRENT = new ThreadLocal<GLStateCache>() {
+        @Override
+        protected GLStateCache initialValue() {
+            return new GLStateCache();
+        }
+    };
+
+    /**
+     * @return 当前GL线程的状态缓存
+     */
+    public static GLStateCache current() {
+        return CURRENT.get();
+    }
+
+    private int mProgram;
+    private int mActiveUnit;
+    private final int[] mTexture2D = new int[MAX_TEXTURE_UNITS];
+    private final int[] mTextureOES = new int[MAX_TEXTURE_UNITS];
+    private int mArrayBuffer;
+    // 启用的顶点属性(bit)，mAttribsKnown 为 false 时未知
+    private int mEnabledAttribs;
+    private boolean mAttribsKnown;
+    // 每个顶点属性最后一次 glVertexAttribPointer 的 buffer / offset / size / stride
+    private final int[] mAttribBuffer = new int[MAX_ATTRIBS];
+    private final int[] mAttribOffset = new int[MAX_ATTRIBS];
+    private final int[] mAttribLayout = new int[MAX_ATTRIBS];
+
+    // 本帧发出 / 跳过的GL调用数
+    private int mCalls;
+    private int mSkipped;
+    // 上一帧
+    private int mLastFrameCalls;
+    private int mLastFrameSkipped;
+    // 当前 EGLContext 是否支持 glFenceSync(GLES3)，null 时未查询
+    private Boolean mFenceSupported;
+
+    private GLStateCache() {
+        invalidate();
+    }
+
+    /**
+     * 状态未知(新的 EGLContext，或其他代码直接修改了状态)
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mActiveUnit = UNKNOWN;
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            mTexture2D[i] = UNKNOWN;
+            mTextureOES[i] = UNKNOWN;
+        }
+        mArrayBuffer = UNKNOWN;
+        mEnabledAttribs = 0;
+        mAttribsKnown = false;
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            mAttribBuffer[i] = UNKNOWN;
+        }
+        mFenceSupported = null;
+    }
+
+    /**
+     * @return 当前 EGLContext 可以使用 GLES30.glFenceSync / glWaitSync 在 EGLContext 之间同步
+     */
+    public boolean isFenceSupported() {
+        if (mFenceSupported == null) {
+            final String version = GLES20.glGetString(GLES20.GL_VERSION);
+            mFenceSupported = version != null && version.startsWith("OpenGL ES 3");
+        }
+        return mFenceSupported;
+    }
+
+    public void useProgram(final int program) {
+        if (mProgram == program) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        mProgram = program;
+        mCalls++;
+    }
+
+    /**
+     * @param unit 纹理单元序号(0 ~ )，不是 GLES20.GL_TEXTURE0 + n
+     */
+    public void activeTexture(final int unit) {
+        if (mActiveUnit == unit) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        mActiveUnit = unit;
+        mCalls++;
+    }
+
+    /**
+     * 绑定到当前纹理单元
+     *
+     * @param target GLES20.GL_TEXTURE_2D 或 GLES11Ext.GL_TEXTURE_EXTERNAL_OES
+     * @param texId
+     */
+    public void bindTexture(final int target, final int texId) {
+        bindTexture(target, texId, false);
+    }
+
+    /**
+     * 绑定到当前纹理单元
+     *
+     * @param target
+     * @param texId
+     * @param force  true 即使已经绑定也重新绑定；纹理由共享的另一个 EGLContext 写入时，
+     *               只有重新绑定之后才保证能看到新的内容
+     */
+    public void bindTexture(final int target, final int texId, final boolean force) {
+        final int[] bound = bindings(target);
+        final int unit = mActiveUnit;
+        if (bound != null && unit >= 0 && unit < MAX_TEXTURE_UNITS) {
+            if (!force && bound[unit] == texId) {
+                mSkipped++;
+                return;
+            }
+            bound[unit] = texId;
+        }
+        GLES20.glBindTexture(target, texId);
+        mCalls++;
+    }
+
+    public void bindArrayBuffer(final int buffer) {
+        if (mArrayBuffer == buffer) {
+            mSkipped++;
+            return;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        mArrayBuffer = buffer;
+        mCalls++;
+    }
+
+    /**
+     * 使用当前绑定的 GL_ARRAY_BUFFER(bindArrayBuffer)，float 数据
+     *
+     * @param index
+     * @param size
+     * @param stride
+     * @param offset buffer 中的字节偏移
+     */
+    public void vertexAttribPointer(final int index, final int size, final int stride, final int offset) {
+        if (index < 0) {
+            return;
+        }
+        final int layout = (size << 16) | stride;
+        if (index < MAX_ATTRIBS) {
+            if (mArrayBuffer != UNKNOWN && mAttribBuffer[index] == mArrayBuffer
+                    && mAttribOffset[index] == offset && mAttribLayout[index] == layout) {
+                mSkipped++;
+                return;
+            }
+            mAttribBuffer[index] = mArrayBuffer;
+            mAttribOffset[index] = offset;
+            mAttribLayout[index] = layout;
+        }
+        GLES20.glVertexAttribPointer(index, size, GLES20.GL_FLOAT, false, stride, offset);
+        mCalls++;
+    }
+
+    public void enableVertexAttribArray(final int index) {
+        if (index < 0) {
+            return;
+        }
+        if (index < 32) {
+            final int bit = 1 << index;
+            if (mAttribsKnown && (mEnabledAttribs & bit) != 0) {
+                mSkipped++;
+                return;
+            }
+            if (!mAttribsKnown) {
+                mEnabledAttribs = 0;
+                mAttribsKnown = true;
+            }
+            mEnabledAttribs |= bit;
+        }
+        GLES20.glEnableVertexAttribArray(index);
+        mCalls++;
+    }
+
+    /**
+     * 删除纹理后调用(GL会把绑定了它的单元重置为0)
+     */
+    public void onTextureDeleted(final int texId) {
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            if (mTexture2D[i] == texId) {
+                mTexture2D[i] = 0;
+            }
+            if (mTextureOES[i] == texId) {
+                mTextureOES[i] = 0;
+            }
+        }
+    }
+
+    public void onBufferDeleted(final int buffer) {
+        if (mArrayBuffer == buffer) {
+            mArrayBuffer = 0;
+        }
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            if (mAttribBuffer[i] == buffer) {
+                mAttribBuffer[i] = UNKNOWN;
+            }
+        }
+    }
+
+    public void onProgramDeleted(final int program) {
+        if (mProgram == program) {
+            // 新建的程序可能复用同一个id
+            mProgram = UNKNOWN;
+        }
+    }
+
+    /**
+     * 统计不经过缓存的GL调用(glUniform*, glDrawArrays 等)
+     *
+     * @param count
+     */
+    public void countCalls(final int count) {
+        mCalls += count;
+    }
+
+    /**
+     * 统计调用方自己判断后跳过的GL调用(例如值没有变化的 glUniform*)
+     *
+     * @param count
+     */
+    public void countSkipped(final int count) {
+        mSkipped += count;
+    }
+
+    /**
+     * 每帧结束时调用，保存本帧的统计并清零
+     */
+    public void endFrame() {
+        mLastFrameCalls = mCalls;
+        mLastFrameSkipped = mSkipped;
+        mCalls = 0;
+        mSkipped = 0;
+    }
+
+    /**
+     * @return 上一帧实际发出的GL调用数
+     */
+    public int getLastFrameCalls() {
+        return mLastFrameCalls;
+    }
+
+    /**
+     * @return 上一帧因为状态没有变化而跳过的GL调用数
+     */
+    public int getLastFrameSkipped() {
+        return mLastFrameSkipped;
+    }
+
+    private int[] bindings(final int target) {
+        if (target == GLES20.GL_TEXTURE_2D) {
+            return mTexture2D;
+        }
+        if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+            return mTextureOES;
+        }
+        return null;
+    }
+}
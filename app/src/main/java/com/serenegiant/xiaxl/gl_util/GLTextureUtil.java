@@ -21,7 +21,7 @@ public class GLTextureUtil {
     public static int createOESTextureID() {
         final int[] tex = new int[1];
         GLES20.glGenTextures(1, tex, 0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex[0]);
+        GLStateCache.current().bindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, tex[0]);
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
                 GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES,
@@ -35,12 +35,40 @@ public class GLTextureUtil {
     }
 
 
+    /**
+     * 创建 RGBA 的2D纹理id(不填充数据)，用作 framebuffer 的颜色附件
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public static int create2DTextureID(final int width, final int height) {
+        final int[] tex = new int[1];
+        final GLStateCache cache = GLStateCache.current();
+        GLES20.glGenTextures(1, tex, 0);
+        cache.bindTexture(GLES20.GL_TEXTURE_2D, tex[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        cache.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return tex[0];
+    }
+
+
     /**
      * delete specific texture
      */
     public static void deleteTex(final int tex) {
         final int[] texArray = new int[]{tex};
         GLES20.glDeleteTextures(1, texArray, 0);
+        GLStateCache.current().onTextureDeleted(tex);
     }
 
 }
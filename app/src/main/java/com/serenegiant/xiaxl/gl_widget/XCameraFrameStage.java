@@ -0,0 +1,163 @@
+package com.serenegiant.xiaxl.gl_widget;
+
+import android.opengl.GLES20;
+
+import com.serenegiant.xiaxl.gl_util.GLMatrixStack;
+import com.serenegiant.xiaxl.gl_util.GLRenderTarget;
+
+import java.util.ArrayList;
+
+/**
+ * 每个相机帧只采样一次OES纹理：剪裁、旋转并缩放到编码分辨率的2D纹理，
+ * 预览和所有录制线程都绘制这张纹理，不再各自以相机分辨率采样OES纹理
+ * <p>
+ * 多个 GLRenderTarget 轮流使用，只写没有被录制线程持有(GLRenderTarget#isHeld)的一张；
+ * 都被持有时(录制线程落后)增加一张，不会改写录制线程还在读的纹理。
+ * 只在GLThread中使用
+ */
+public final class XCameraFrameStage {
+
+    // 初始的渲染目标数
+    private static final int TARGET_COUNT = 2;
+
+    // 把 XTextureGLRect 的矩形(±2)铺满 framebuffer / surface
+    private static final float FILL_SCALE = 0.5f;
+
+    private final XTextureGLRect mCameraRect;
+    private final ArrayList<GLRenderTarget> mTargets = new ArrayList<GLRenderTarget>(TARGET_COUNT);
+    // 修改大小后还被录制线程持有的旧渲染目标，释放后再删除
+    private final ArrayList<GLRenderTarget> mRetired = new ArrayList<GLRenderTarget>();
+    private int mWidth;
+    private int mHeight;
+    private int mCurrent;
+    private final GLMatrixStack mMatrixStack = new GLMatrixStack(1);
+    private final float[] mFillMatrix = new float[16];
+
+    /**
+     * 在GLThread中调用
+     *
+     * @param cameraPreviewWidth  相机预览宽
+     * @param cameraPreviewHeight 相机预览高
+     * @param width               输出纹理宽(编码分辨率)
+     * @param height              输出纹理高(编码分辨率)
+     */
+    public XCameraFrameStage(final int cameraPreviewWidth, final int cameraPreviewHeight,
+                             final int width, final int height) {
+        mCameraRect = new XTextureGLRect(cameraPreviewWidth, cameraPreviewHeight);
+        setSize(width, height);
+        // 绘制输出纹理时使用的矩阵：铺满
+        final GLMatrixStack fill = new GLMatrixStack(1);
+        fill.scale(FILL_SCALE, FILL_SCALE, 1);
+        System.arraycopy(fill.getFinalMatrix(), 0, mFillMatrix, 0, 16);
+    }
+
+    /**
+     * 修改输出纹理的大小，大小不变时什么都不做
+     *
+     * @param width
+     * @param height
+     */
+    public void setSize(final int width, final int height) {
+        if (!mTargets.isEmpty() && mWidth == width && mHeight == height) {
+            return;
+        }
+        // 录制线程可能还在读旧的纹理，释放之后才删除
+        mRetired.addAll(mTargets);
+        mTargets.clear();
+        deleteRetired();
+        mWidth = width;
+        mHeight = height;
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            mTargets.add(new GLRenderTarget(width, height));
+        }
+        mCurrent = 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 把相机帧绘制到下一张输出纹理，之后恢复输出到窗口surface(调用方恢复视窗)
+     *
+     * @param oesTexId        相机的OES纹理
+     * @param rotationDegrees 相机帧需要旋转的角度
+     * @return 输出的2D纹理id
+     */
+    public int render(final int oesTexId, final float rotationDegrees) {
+        deleteRetired();
+        mCurrent = nextFreeTarget();
+        final GLRenderTarget target = mTargets.get(mCurrent);
+        target.bind();
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        mMatrixStack.setInitStack();
+        mMatrixStack.scale(FILL_SCALE, FILL_SCALE, 1);
+        mMatrixStack.rotate(rotationDegrees, 0, 0, 1);
+        mCameraRect.draw(oesTexId, mMatrixStack.getFinalMatrix());
+
+        GLRenderTarget.unbind();
+        // 交给录制线程前调用方 markWritten(fence)，这里不提交
+        return target.getTextureId();
+    }
+
+    /**
+     * @return 最近一次 render 输出的2D纹理id
+     */
+    public int getTextureId() {
+        return mTargets.get(mCurrent).getTextureId();
+    }
+
+    /**
+     * @return 最近一次 render 的渲染目标，交给录制线程时 markWritten / hold
+     */
+    public GLRenderTarget getTarget() {
+        return mTargets.get(mCurrent);
+    }
+
+    /**
+     * @return 用 XTextureGLRect() 把输出纹理铺满整个surface的变换矩阵(只读)
+     */
+    public float[] getFillMatrix() {
+        return mFillMatrix;
+    }
+
+    /**
+     * 预览的 EGLContext 销毁前调用，不再等待录制线程
+     */
+    public void release() {
+        mRetired.addAll(mTargets);
+        mTargets.clear();
+        for (int i = 0, n = mRetired.size(); i < n; i++) {
+            mRetired.get(i).release();
+        }
+        mRetired.clear();
+    }
+
+    /**
+     * @return 从 mCurrent 的下一张开始第一张没有被持有的渲染目标，都被持有时新建一张
+     */
+    private int nextFreeTarget() {
+        final int n = mTargets.size();
+        for (int i = 1; i <= n; i++) {
+            final int index = (mCurrent + i) % n;
+            if (!mTargets.get(index).isHeld()) {
+                return index;
+            }
+        }
+        mTargets.add(new GLRenderTarget(mWidth, mHeight));
+        return n;
+    }
+
+    private void deleteRetired() {
+        for (int i = mRetired.size() - 1; i >= 0; i--) {
+            if (!mRetired.get(i).isHeld()) {
+                mRetired.remove(i).release();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.serenegiant.xiaxl.gl_widget;
+
+import android.opengl.GLES20;
+
+/**
+ * 颜色校正：亮度 / 对比度 / 饱和度，逐像素
+ */
+public final class XColorAdjustFilter extends XGLFilter {
+
+    private static final String[] UNIFORMS = new String[]{"brightness", "contrast", "saturation"};
+
+    private volatile float mBrightness;
+    private volatile float mContrast = 1f;
+    private volatile float mSaturation = 1f;
+
+    /**
+     * @param brightness -1 ~ 1，0 不变
+     */
+    public void setBrightness(final float brightness) {
+        mBrightness = brightness;
+    }
+
+    /**
+     * @param contrast 0 ~ ，1 不变
+     */
+    public void setContrast(final float contrast) {
+        mContrast = contrast;
+    }
+
+    /**
+     * @param saturation 0 灰度，1 不变
+     */
+    public void setSaturation(final float saturation) {
+        mSaturation = saturation;
+    }
+
+    @Override
+    protected String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    protected String getShaderSource(final String prefix) {
+        return "uniform float " + prefix + "brightness;\n"
+                + "uniform float " + prefix + "contrast;\n"
+                + "uniform float " + prefix + "saturation;\n"
+                + "vec4 " + prefix + "apply(vec4 color, vec2 uv) {\n"
+                + "  vec3 rgb = color.rgb + " + prefix + "brightness;\n"
+                + "  rgb = (rgb - 0.5) * " + prefix + "contrast + 0.5;\n"
+                + "  float luma = dot(rgb, vec3(0.299, 0.587, 0.114));\n"
+                + "  rgb = mix(vec3(luma), rgb, " + prefix + "saturation);\n"
+                + "  return vec4(clamp(rgb, 0.0, 1.0), color.a);\n"
+                + "}\n";
+    }
+
+    @Override
+    protected void onDraw(final int[] uniformLocations, final int firstTextureUnit) {
+        GLES20.glUniform1f(uniformLocations[0], mBrightness);
+        GLES20.glUniform1f(uniformLocations[1], mContrast);
+        GLES20.glUniform1f(uniformLocations[2], mSaturation);
+    }
+}
@@ -0,0 +1,64 @@
+package com.serenegiant.xiaxl.gl_widget;
+
+/**
+ * XGLFilterGraph 中的一个滤镜
+ * <p>
+ * 滤镜提供一段GLSL：uniform 声明(名字以 prefix 开头) 和函数 {@code vec4 <prefix>apply(vec4 color, vec2 uv)}，
+ * color 是前一个滤镜的输出。相邻的逐像素滤镜合并到同一个着色器程序(同一个pass)；
+ * 需要采样周围像素的滤镜(isPointwise() 为 false)总是开始一个新的pass，可以用
+ * {@code sTexture} / {@code uTexelSize} 采样该pass的输入纹理。
+ * <p>
+ * 参数可以在任意线程修改，onDraw 在GL线程中调用
+ */
+public abstract class XGLFilter {
+
+    /**
+     * 滤镜作用于预览、录制或两者
+     */
+    public enum Target {
+        PREVIEW,
+        RECORDING,
+        BOTH;
+
+        boolean includes(final Target target) {
+            return this == BOTH || this == target;
+        }
+    }
+
+    private static final String[] NO_UNIFORMS = new String[0];
+
+    /**
+     * @return true 只依赖当前像素的颜色，可以与前面的滤镜合并
+     */
+    public boolean isPointwise() {
+        return true;
+    }
+
+    /**
+     * @return 除输入纹理外需要的纹理单元数
+     */
+    public int getTextureCount() {
+        return 0;
+    }
+
+    /**
+     * @return uniform 名(不含 prefix)，onDraw 的 uniformLocations 按这个顺序
+     */
+    protected String[] getUniformNames() {
+        return NO_UNIFORMS;
+    }
+
+    /**
+     * @param prefix 每个滤镜在程序中唯一的前缀
+     * @return uniform 声明 + {@code vec4 <prefix>apply(vec4 color, vec2 uv)}
+     */
+    protected abstract String getShaderSource(String prefix);
+
+    /**
+     * 设置 uniform，GL线程中调用，不要分配内存；绑定纹理使用 GLStateCache
+     *
+     * @param uniformLocations 与 getUniformNames() 对应的位置
+     * @param firstTextureUnit 可以使用的第一个纹理单元(GLES20.GL_TEXTURE0 之后的序号)
+     */
+    protected abstract void onDraw(int[] uniformLocations, int firstTextureUnit);
+}
@@ -0,0 +1,405 @@
+package com.serenegiant.xiaxl.gl_widget;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.serenegiant.xiaxl.gl_util.GLRenderTarget;
+import com.serenegiant.xiaxl.gl_util.GLRenderTargetPool;
+import com.serenegiant.xiaxl.gl_util.GLProgramCache;
+import com.serenegiant.xiaxl.gl_util.GLStateCache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+/**
+ * 多pass滤镜链，输入输出都是2D纹理(XCameraFrameStage 的输出)
+ * <p>
+ * 相邻的逐像素滤镜合并成一个着色器程序(一个pass)，只有需要采样相邻像素的滤镜才开始新的pass；
+ * 每个pass输出到从 GLRenderTargetPool 取出的渲染目标，用完放回池中，稳定后不再创建 framebuffer。
+ * 预览和录制各自一条链，两条链的滤镜相同时共用同一个输出。
+ * <p>
+ * add/remove 可以在任意线程调用(复制数组)，下一次 process 时在GL线程中重新生成程序；
+ * process 中不分配内存
+ */
+public final class XGLFilterGraph {
+
+    private static final String TAG = XGLFilterGraph.class.getSimpleName();
+
+    // GLES2 保证片元着色器至少有8个纹理单元
+    private static final int MAX_TEXTURE_UNITS = 8;
+
+    private static final String vertexSource
+            = "attribute vec2 aPosition;\n"
+            + "attribute vec2 aTextureCoord;\n"
+            + "varying highp vec2 vTextureCoord;\n"
+            + "void main() {\n"
+            + "  gl_Position = vec4(aPosition, 0.0, 1.0);\n"
+            + "  vTextureCoord = aTextureCoord;\n"
+            + "}\n";
+
+    private static final String fragmentHeader
+            = "precision mediump float;\n"
+            + "uniform sampler2D sTexture;\n"
+            + "uniform vec2 uTexelSize;\n"
+            + "varying highp vec2 vTextureCoord;\n";
+
+    private static final Entry[] EMPTY = new Entry[0];
+    private static final Pass[] NO_PASSES = new Pass[0];
+
+    private static final class Entry {
+        final XGLFilter filter;
+        final XGLFilter.Target target;
+
+        Entry(final XGLFilter filter, final XGLFilter.Target target) {
+            this.filter = filter;
+            this.target = target;
+        }
+    }
+
+    /**
+     * 一个着色器程序，依次执行 filters
+     */
+    private static final class Pass {
+        final XGLFilter[] filters;
+        final int[][] locations;
+        final int[] textureUnits;
+        final GLProgramCache.Lease lease;
+        final int program;
+        final int aPosition;
+        final int aTexCoord;
+        final int uTexture;
+        final int uTexelSize;
+
+        Pass(final XGLFilter[] filters, final GLProgramCache.Lease lease) {
+            this.filters = filters;
+            this.lease = lease;
+            program = lease.program;
+            aPosition = GLES20.glGetAttribLocation(program, "aPosition");
+            aTexCoord = GLES20.glGetAttribLocation(program, "aTextureCoord");
+            uTexture = GLES20.glGetUniformLocation(program, "sTexture");
+            uTexelSize = GLES20.glGetUniformLocation(program, "uTexelSize");
+            locations = new int[filters.length][];
+            textureUnits = new int[filters.length];
+            int unit = 1;
+            for (int i = 0; i < filters.length; i++) {
+                final String prefix = prefix(i);
+                final String[] names = filters[i].getUniformNames();
+                locations[i] = new int[names.length];
+                for (int j = 0; j < names.length; j++) {
+                    locations[i][j] = GLES20.glGetUniformLocation(program, prefix + names[j]);
+                }
+                textureUnits[i] = unit;
+                unit += filters[i].getTextureCount();
+            }
+        }
+    }
+
+    private final Object mSync = new Object();
+    private volatile Entry[] mEntries = EMPTY;
+
+    //------ 以下只在GL线程中使用 ------
+    private Entry[] mBuiltEntries;
+    // [PREVIEW, RECORDING]
+    private final Pass[][] mPasses = new Pass[][]{NO_PASSES, NO_PASSES};
+    private boolean mShared = true;
+    // 每条链上一次的输出，到下一次 process 才放回池中；
+    // 交给录制线程的输出被持有(GLRenderTarget#hold)，放回池中后也要等录制线程释放才会被再次使用
+    private final GLRenderTarget[] mOutputs = new GLRenderTarget[2];
+    private final GLRenderTargetPool mPool = new GLRenderTargetPool();
+    // 全屏矩形: 顶点坐标(x, y) + 纹理坐标(s, t)，交错存放在一个VBO中
+    private final FloatBuffer mQuadBuffer;
+    private int mQuadBufferId;
+
+    public XGLFilterGraph() {
+        mQuadBuffer = createBuffer(new float[]{
+                -1, -1, 0, 0,
+                1, -1, 1, 0,
+                -1, 1, 0, 1,
+                1, 1, 1, 1});
+    }
+
+    /**
+     * 加到链末尾
+     *
+     * @param filter
+     * @param target 作用于预览、录制或两者
+     */
+    public void addFilter(final XGLFilter filter, final XGLFilter.Target target) {
+        if (filter == null || target == null) {
+            throw new NullPointerException("filter or target is null");
+        }
+        synchronized (mSync) {
+            final Entry[] current = mEntries;
+            final Entry[] entries = new Entry[current.length + 1];
+            System.arraycopy(current, 0, entries, 0, current.length);
+            entries[current.length] = new Entry(filter, target);
+            mEntries = entries;
+        }
+    }
+
+    /**
+     * @param filter
+     * @return false 不在链中
+     */
+    public boolean removeFilter(final XGLFilter filter) {
+        synchronized (mSync) {
+            final Entry[] current = mEntries;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].filter == filter) {
+                    final Entry[] entries = new Entry[current.length - 1];
+                    System.arraycopy(current, 0, entries, 0, i);
+                    System.arraycopy(current, i + 1, entries, i, current.length - i - 1);
+                    mEntries = entries;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public void clear() {
+        synchronized (mSync) {
+            mEntries = EMPTY;
+        }
+    }
+
+    /**
+     * GL线程中调用
+     *
+     * @return 预览和录制的滤镜相同，录制可以直接使用预览的输出
+     */
+    public boolean isShared() {
+        ensurePasses();
+        return mShared;
+    }
+
+    /**
+     * GL线程中调用
+     *
+     * @param target PREVIEW 或 RECORDING
+     * @return 合并后的pass数
+     */
+    public int getPassCount(final XGLFilter.Target target) {
+        ensurePasses();
+        return mPasses[index(target)].length;
+    }
+
+    /**
+     * @return 池中创建过的渲染目标个数
+     */
+    public int getRenderTargetCount() {
+        return mPool.getCreatedCount();
+    }
+
+    /**
+     * 在GL线程中执行 target 的滤镜链，之后恢复输出到窗口surface(调用方恢复视窗)
+     *
+     * @param texId  输入的2D纹理
+     * @param width  输入纹理宽，输出同样大小
+     * @param height 输入纹理高
+     * @param target PREVIEW 或 RECORDING
+     * @return 输出的2D纹理，没有滤镜时为 texId；在下一次以同一个 target 调用之前有效
+     * @see #getOutputTarget(XGLFilter.Target)
+     */
+    public int process(final int texId, final int width, final int height, final XGLFilter.Target target) {
+        final int slot = index(target);
+        ensurePasses();
+        final Pass[] passes = mPasses[slot];
+        final GLRenderTarget previous = mOutputs[slot];
+        mOutputs[slot] = null;
+        if (passes.length == 0) {
+            mPool.recycle(previous);
+            return texId;
+        }
+        int input = texId;
+        GLRenderTarget output = null;
+        for (int i = 0; i < passes.length; i++) {
+            final GLRenderTarget next = mPool.obtain(width, height);
+            next.bind();
+            draw(passes[i], input, width, height);
+            // 上一个pass的输出已经用完
+            mPool.recycle(output);
+            output = next;
+            input = next.getTextureId();
+        }
+        GLRenderTarget.unbind();
+        // 交给录制线程前调用方 markWritten(fence)
+        mPool.recycle(previous);
+        mOutputs[slot] = output;
+        return input;
+    }
+
+    /**
+     * GL线程中调用
+     *
+     * @param target PREVIEW 或 RECORDING
+     * @return 最近一次 process 输出的渲染目标，没有滤镜时为null；
+     * 交给录制线程时 markWritten / hold，录制线程释放之前不会被改写
+     */
+    public GLRenderTarget getOutputTarget(final XGLFilter.Target target) {
+        return mOutputs[index(target)];
+    }
+
+    /**
+     * GL线程中调用，删除所有程序和渲染目标
+     */
+    public void release() {
+        deletePasses();
+        if (mQuadBufferId != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mQuadBufferId}, 0);
+            GLStateCache.current().onBufferDeleted(mQuadBufferId);
+            mQuadBufferId = 0;
+        }
+        for (int i = 0; i < mOutputs.length; i++) {
+            if (mOutputs[i] != null) {
+                mOutputs[i].release();
+                mOutputs[i] = null;
+            }
+        }
+        mPool.clear();
+        mBuiltEntries = null;
+    }
+
+    /**
+     * EGLContext 已经销毁(例如 onSurfaceCreated 时)，丢弃所有GL对象而不调用GL，下一次 process 时重新创建
+     */
+    public void abandonGLResources() {
+        mPasses[0] = mPasses[1] = NO_PASSES;
+        mQuadBufferId = 0;
+        mOutputs[0] = mOutputs[1] = null;
+        mPool.abandon();
+        mBuiltEntries = null;
+    }
+
+    private void draw(final Pass pass, final int texId, final int width, final int height) {
+        final GLStateCache cache = GLStateCache.current();
+        cache.useProgram(pass.program);
+        cache.activeTexture(0);
+        cache.bindTexture(GLES20.GL_TEXTURE_2D, texId);
+        GLES20.glUniform1i(pass.uTexture, 0);
+        GLES20.glUniform2f(pass.uTexelSize, 1f / width, 1f / height);
+        cache.countCalls(2);
+        cache.bindArrayBuffer(mQuadBufferId);
+        cache.vertexAttribPointer(pass.aPosition, 2, 4 * 4, 0);
+        cache.vertexAttribPointer(pass.aTexCoord, 2, 4 * 4, 2 * 4);
+        cache.enableVertexAttribArray(pass.aPosition);
+        cache.enableVertexAttribArray(pass.aTexCoord);
+        for (int i = 0; i < pass.filters.length; i++) {
+            pass.filters[i].onDraw(pass.locations[i], pass.textureUnits[i]);
+            cache.countCalls(pass.locations[i].length);
+        }
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        cache.countCalls(1);
+    }
+
+    /**
+     * 滤镜有变化时重新生成两条链的程序
+     */
+    private void ensurePasses() {
+        final Entry[] entries = mEntries;
+        if (entries == mBuiltEntries) {
+            return;
+        }
+        if (mQuadBufferId == 0) {
+            final int[] buffer = new int[1];
+            GLES20.glGenBuffers(1, buffer, 0);
+            mQuadBufferId = buffer[0];
+            GLStateCache.current().bindArrayBuffer(mQuadBufferId);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, 16 * 4, mQuadBuffer, GLES20.GL_STATIC_DRAW);
+        }
+        deletePasses();
+        final ArrayList<XGLFilter> preview = collect(entries, XGLFilter.Target.PREVIEW);
+        final ArrayList<XGLFilter> recording = collect(entries, XGLFilter.Target.RECORDING);
+        mPasses[0] = buildPasses(preview);
+        mShared = preview.equals(recording);
+        mPasses[1] = mShared ? mPasses[0] : buildPasses(recording);
+        mBuiltEntries = entries;
+    }
+
+    private void deletePasses() {
+        for (int i = 0; i < mPasses.length; i++) {
+            if (i == 1 && mPasses[1] == mPasses[0]) {
+                break;
+            }
+            for (final Pass pass : mPasses[i]) {
+                GLProgramCache.release(pass.lease);
+            }
+        }
+        mPasses[0] = mPasses[1] = NO_PASSES;
+    }
+
+    private static ArrayList<XGLFilter> collect(final Entry[] entries, final XGLFilter.Target target) {
+        final ArrayList<XGLFilter> filters = new ArrayList<XGLFilter>(entries.length);
+        for (final Entry entry : entries) {
+            if (entry.target.includes(target)) {
+                filters.add(entry.filter);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * 合并相邻的逐像素滤镜：需要采样相邻像素的滤镜、或纹理单元不够时开始新的pass
+     */
+    private static Pass[] buildPasses(final ArrayList<XGLFilter> filters) {
+        final ArrayList<Pass> passes = new ArrayList<Pass>();
+        final ArrayList<XGLFilter> group = new ArrayList<XGLFilter>();
+        int units = 1;
+        for (final XGLFilter filter : filters) {
+            if (!group.isEmpty()
+                    && (!filter.isPointwise() || units + filter.getTextureCount() > MAX_TEXTURE_UNITS)) {
+                addPass(passes, group);
+                group.clear();
+                units = 1;
+            }
+            group.add(filter);
+            units += filter.getTextureCount();
+        }
+        if (!group.isEmpty()) {
+            addPass(passes, group);
+        }
+        return passes.toArray(new Pass[passes.size()]);
+    }
+
+    private static void addPass(final ArrayList<Pass> passes, final ArrayList<XGLFilter> group) {
+        final StringBuilder source = new StringBuilder(fragmentHeader);
+        for (int i = 0; i < group.size(); i++) {
+            source.append(group.get(i).getShaderSource(prefix(i)));
+        }
+        source.append("void main() {\n")
+                .append("  vec4 color = texture2D(sTexture, vTextureCoord);\n");
+        for (int i = 0; i < group.size(); i++) {
+            source.append("  color = ").append(prefix(i)).append("apply(color, vTextureCoord);\n");
+        }
+        source.append("  gl_FragColor = color;\n")
+                .append("}\n");
+        final GLProgramCache.Lease lease = GLProgramCache.acquire(vertexSource, source.toString());
+        if (lease == null) {
+            // 编译失败的pass跳过，不影响其他滤镜
+            Log.e(TAG, "filter pass skipped: " + group);
+            return;
+        }
+        passes.add(new Pass(group.toArray(new XGLFilter[group.size()]), lease));
+    }
+
+    private static String prefix(final int index) {
+        return "f" + index + "_";
+    }
+
+    private static int index(final XGLFilter.Target target) {
+        if (target == XGLFilter.Target.BOTH) {
+            throw new IllegalArgumentException("process PREVIEW or RECORDING");
+        }
+        return target == XGLFilter.Target.PREVIEW ? 0 : 1;
+    }
+
+    private static FloatBuffer createBuffer(final float[] data) {
+        final FloatBuffer buffer = ByteBuffer.allocateDirect(data.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(data);
+        buffer.position(0);
+        return buffer;
+    }
+}
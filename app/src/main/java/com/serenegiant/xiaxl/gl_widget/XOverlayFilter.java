@@ -0,0 +1,89 @@
+package com.serenegiant.xiaxl.gl_widget;
+
+import android.opengl.GLES20;
+
+import com.serenegiant.xiaxl.gl_util.GLStateCache;
+
+/**
+ * 叠加一张2D纹理(水印/贴图)到输出的指定区域，逐像素
+ * <p>
+ * 区域以输出纹理坐标表示(原点在左下角)，叠加纹理为非预乘alpha，
+ * 纹理由调用方在同一个GL线程中创建和删除
+ */
+public final class XOverlayFilter extends XGLFilter {
+
+    private static final String[] UNIFORMS = new String[]{"overlay", "rect", "alpha"};
+
+    private volatile int mTextureId;
+    private volatile float mX;
+    private volatile float mY;
+    private volatile float mWidth = 1f;
+    private volatile float mHeight = 1f;
+    private volatile float mAlpha = 1f;
+
+    /**
+     * @param textureId 叠加的2D纹理
+     */
+    public XOverlayFilter(final int textureId) {
+        mTextureId = textureId;
+    }
+
+    public void setTextureId(final int textureId) {
+        mTextureId = textureId;
+    }
+
+    /**
+     * @param x      左下角 0 ~ 1
+     * @param y      左下角 0 ~ 1
+     * @param width  0 ~ 1
+     * @param height 0 ~ 1
+     */
+    public void setRect(final float x, final float y, final float width, final float height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid overlay size:" + width + "x" + height);
+        }
+        mX = x;
+        mY = y;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public void setAlpha(final float alpha) {
+        mAlpha = alpha;
+    }
+
+    @Override
+    public int getTextureCount() {
+        return 1;
+    }
+
+    @Override
+    protected String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    protected String getShaderSource(final String prefix) {
+        return "uniform sampler2D " + prefix + "overlay;\n"
+                + "uniform vec4 " + prefix + "rect;\n"
+                + "uniform float " + prefix + "alpha;\n"
+                + "vec4 " + prefix + "apply(vec4 color, vec2 uv) {\n"
+                + "  vec2 p = (uv - " + prefix + "rect.xy) / " + prefix + "rect.zw;\n"
+                + "  if (p.x < 0.0 || p.y < 0.0 || p.x > 1.0 || p.y > 1.0) {\n"
+                + "    return color;\n"
+                + "  }\n"
+                + "  vec4 o = texture2D(" + prefix + "overlay, p);\n"
+                + "  return vec4(mix(color.rgb, o.rgb, o.a * " + prefix + "alpha), color.a);\n"
+                + "}\n";
+    }
+
+    @Override
+    protected void onDraw(final int[] uniformLocations, final int firstTextureUnit) {
+        final GLStateCache cache = GLStateCache.current();
+        cache.activeTexture(firstTextureUnit);
+        cache.bindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glUniform1i(uniformLocations[0], firstTextureUnit);
+        GLES20.glUniform4f(uniformLocations[1], mX, mY, mWidth, mHeight);
+        GLES20.glUniform1f(uniformLocations[2], mAlpha);
+    }
+}
@@ -0,0 +1,52 @@
+package com.serenegiant.xiaxl.gl_widget;
+
+import android.opengl.GLES20;
+
+/**
+ * 锐化(unsharp mask，上下左右4个相邻像素)，需要采样相邻像素，总是开始一个新的pass
+ */
+public final class XSharpenFilter extends XGLFilter {
+
+    private static final String[] UNIFORMS = new String[]{"amount"};
+
+    private volatile float mAmount;
+
+    public XSharpenFilter(final float amount) {
+        mAmount = amount;
+    }
+
+    /**
+     * @param amount 0 不变，一般 0.3 ~ 1
+     */
+    public void setAmount(final float amount) {
+        mAmount = amount;
+    }
+
+    @Override
+    public boolean isPointwise() {
+        return false;
+    }
+
+    @Override
+    protected String[] getUniformNames() {
+        return UNIFORMS;
+    }
+
+    @Override
+    protected String getShaderSource(final String prefix) {
+        return "uniform float " + prefix + "amount;\n"
+                + "vec4 " + prefix + "apply(vec4 color, vec2 uv) {\n"
+                + "  vec3 blur = texture2D(sTexture, uv + vec2(uTexelSize.x, 0.0)).rgb\n"
+                + "      + texture2D(sTexture, uv - vec2(uTexelSize.x, 0.0)).rgb\n"
+                + "      + texture2D(sTexture, uv + vec2(0.0, uTexelSize.y)).rgb\n"
+                + "      + texture2D(sTexture, uv - vec2(0.0, uTexelSize.y)).rgb;\n"
+                + "  vec3 rgb = color.rgb + (color.rgb - blur * 0.25) * " + prefix + "amount;\n"
+                + "  return vec4(clamp(rgb, 0.0, 1.0), color.a);\n"
+                + "}\n";
+    }
+
+    @Override
+    protected void onDraw(final int[] uniformLocations, final int firstTextureUnit) {
+        GLES20.glUniform1f(uniformLocations[0], mAmount);
+    }
+}
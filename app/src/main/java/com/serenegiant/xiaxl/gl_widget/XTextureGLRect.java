@@ -4,7 +4,8 @@ package com.serenegiant.xiaxl.gl_widget;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
-import com.serenegiant.xiaxl.gl_util.GLShaderUtil;
+import com.serenegiant.xiaxl.gl_util.GLProgramCache;
+import com.serenegiant.xiaxl.gl_util.GLStateCache;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -35,18 +36,29 @@ public class XTextureGLRect {
             + "void main() {\n"
             + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
             + "}";
+    // 片元着色器(2D纹理，GLRenderTarget 的输出)
+    private static final String fragmentSource2D
+            = "precision mediump float;\n"
+            + "uniform sampler2D sTexture;\n"
+            + "varying highp vec2 vTextureCoord;\n"
+            + "void main() {\n"
+            + "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n"
+            + "}";
 
     // 顶点的数量
     private static final int VERTEX_NUM = 6;
 
 
-    //顶点坐标数据缓冲
-    private FloatBuffer mVertexBuffer;
-    //顶点纹理坐标数据缓冲
-    private FloatBuffer mTexCoorBuffer;
+    // 上传到GPU的顶点坐标 + 纹理坐标(一个VBO，纹理坐标从 mTexCoorOffset 字节开始)，绘制时不再从 FloatBuffer 传数据
+    private int mBufferId;
+    private int mTexCoorOffset;
+
+    // GLES11Ext.GL_TEXTURE_EXTERNAL_OES 或 GLES20.GL_TEXTURE_2D
+    private final int mTextureTarget;
 
     //自定义渲染管线着色器程序id
     private int mProgram;
+    private GLProgramCache.Lease mProgramLease;
 
     //顶点位置属性引用
     int maPositionHandle;
@@ -54,12 +66,18 @@ public class XTextureGLRect {
     int maTexCoorHandle;
     //变换矩阵引用
     int muMVPMatrixHandle;
+    // 最后一次传入着色器的变换矩阵，没有变化时不再调用 glUniformMatrix4fv
+    private final float[] mUploadedMatrix = new float[16];
+    private boolean mMatrixUploaded;
+    // 输入纹理由另一个 EGLContext 写入，每次绘制都要重新绑定
+    private boolean mSharedInput;
 
 
     /**
-     * 构造方法
+     * 构造方法，绘制相机的OES纹理(剪裁为正方形)
      */
     public XTextureGLRect(float cameraPreviewWidth, float cameraPreviewHeight) {
+        mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
         // 顶点坐标和纹理坐标
         initVertexData(cameraPreviewWidth, cameraPreviewHeight);
         // 初始化着色器
@@ -67,6 +85,23 @@ public class XTextureGLRect {
         //
     }
 
+    /**
+     * 构造方法，绘制 GLRenderTarget 的2D纹理(不剪裁，纹理原点在左下角)
+     */
+    public XTextureGLRect() {
+        mTextureTarget = GLES20.GL_TEXTURE_2D;
+        initVertexData(0, 0);
+        initShader();
+    }
+
+
+    /**
+     * @param sharedInput true 输入纹理由共享的另一个 EGLContext 写入(例如录制线程绘制GLThread的输出)，
+     *                    每次绘制都重新 glBindTexture，否则可能看不到新写入的内容
+     */
+    public void setSharedInput(final boolean sharedInput) {
+        mSharedInput = sharedInput;
+    }
 
     /**
      * 初始化顶点坐标与着色数据的方法
@@ -86,12 +121,6 @@ public class XTextureGLRect {
                         2.0f, -2.0f, 0,
                         2.0f, 2.0f, 0
                 };
-        //创建顶点坐标数据缓冲
-        ByteBuffer vbb = ByteBuffer.allocateDirect(vertices.length * 4);
-        vbb.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vbb.asFloatBuffer();
-        mVertexBuffer.put(vertices);
-        mVertexBuffer.position(0);
 
 
         /**
@@ -106,23 +135,34 @@ public class XTextureGLRect {
             tempX1 = (cameraPreviewWidth - cameraPreviewHeight) / (cameraPreviewWidth * 2f);
             tempX2 = 1 - tempX1;
         }
+        // 2、framebuffer 的纹理原点在左下角，上下与相机纹理相反
+        final float top = mTextureTarget == GLES20.GL_TEXTURE_2D ? 1 : 0;
+        final float bottom = 1 - top;
         float texCoor[] = new float[]//纹理坐标
                 {
-                        tempX1, 0,
-                        tempX1, 1,
-                        tempX2, 0,
-                        tempX1, 1,
-                        tempX2, 1,
-                        tempX2, 0
+                        tempX1, top,
+                        tempX1, bottom,
+                        tempX2, top,
+                        tempX1, bottom,
+                        tempX2, bottom,
+                        tempX2, top
                 };
 
-        //创建顶点纹理坐标数据缓冲
-        ByteBuffer cbb = ByteBuffer.allocateDirect(texCoor.length * 4);
-        cbb.order(ByteOrder.nativeOrder());
-        mTexCoorBuffer = cbb.asFloatBuffer();
-        mTexCoorBuffer.put(texCoor);
-        mTexCoorBuffer.position(0);
-
+        // 3、上传到VBO(只在这里用一次的临时缓冲)，顶点坐标在前，纹理坐标在后
+        final GLStateCache cache = GLStateCache.current();
+        if (mBufferId != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mBufferId}, 0);
+            cache.onBufferDeleted(mBufferId);
+        }
+        final int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mBufferId = buffers[0];
+        mTexCoorOffset = vertices.length * 4;
+        final FloatBuffer data = ByteBuffer.allocateDirect((vertices.length + texCoor.length) * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        data.put(vertices).put(texCoor).position(0);
+        cache.bindArrayBuffer(mBufferId);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, (vertices.length + texCoor.length) * 4, data, GLES20.GL_STATIC_DRAW);
 
     }
 
@@ -133,8 +173,10 @@ public class XTextureGLRect {
     private void initShader() {
 
 
-        //基于顶点着色器与片元着色器创建程序
-        mProgram = GLShaderUtil.createProgram(vertexSource, fragmentSource);
+        //基于顶点着色器与片元着色器创建程序(同样的源码复用已经链接好的程序)
+        mProgramLease = GLProgramCache.acquire(vertexSource,
+                mTextureTarget == GLES20.GL_TEXTURE_2D ? fragmentSource2D : fragmentSource);
+        mProgram = mProgramLease != null ? mProgramLease.program : 0;
         //获取程序中顶点位置属性引用
         maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         //获取程序中顶点纹理坐标属性引用
@@ -146,7 +188,7 @@ public class XTextureGLRect {
 
 
     /**
-     * 绘制
+     * 绘制，状态(程序/纹理/顶点属性/矩阵)没有变化时不重复调用GL
      *
      * @param texId      纹理id
      * @param mMvpMatrix 最终变换矩阵
@@ -154,42 +196,62 @@ public class XTextureGLRect {
     public void draw(final int texId, float[] mMvpMatrix) {
 
         // ---------注：这里直接用最终变换矩阵进行绘制，不要再进行其他的矩阵变换-----------
+        final GLStateCache cache = GLStateCache.current();
 
         //制定使用某套着色器程序
-        GLES20.glUseProgram(mProgram);
+        cache.useProgram(mProgram);
         //矩阵传入着色器程序
-        GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMvpMatrix, 0);
+        if (mMatrixUploaded && equalsMatrix(mUploadedMatrix, mMvpMatrix)) {
+            cache.countSkipped(1);
+        } else {
+            GLES20.glUniformMatrix4fv(muMVPMatrixHandle, 1, false, mMvpMatrix, 0);
+            System.arraycopy(mMvpMatrix, 0, mUploadedMatrix, 0, 16);
+            mMatrixUploaded = true;
+            cache.countCalls(1);
+        }
 
         // 将顶点坐标数据传入渲染管线
-        GLES20.glVertexAttribPointer
-                (
-                        maPositionHandle,
-                        3,
-                        GLES20.GL_FLOAT,
-                        false,
-                        3 * 4,
-                        mVertexBuffer
-                );
-
+        cache.bindArrayBuffer(mBufferId);
+        cache.vertexAttribPointer(maPositionHandle, 3, 3 * 4, 0);
         // 将顶点纹理坐标数据传入渲染管线
-        GLES20.glVertexAttribPointer
-                (
-                        maTexCoorHandle,
-                        2,
-                        GLES20.GL_FLOAT,
-                        false,
-                        2 * 4,
-                        mTexCoorBuffer
-                );
+        cache.vertexAttribPointer(maTexCoorHandle, 2, 2 * 4, mTexCoorOffset);
 
         // 启用顶点位置数据
-        GLES20.glEnableVertexAttribArray(maPositionHandle);
-        GLES20.glEnableVertexAttribArray(maTexCoorHandle);
+        cache.enableVertexAttribArray(maPositionHandle);
+        cache.enableVertexAttribArray(maTexCoorHandle);
 
         //绑定纹理
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texId);
+        cache.activeTexture(0);
+        cache.bindTexture(mTextureTarget, texId, mSharedInput);
         // 绘制三角形
         GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, VERTEX_NUM);
+        cache.countCalls(1);
+    }
+
+    /**
+     * 在创建它的GL线程中调用，删除VBO，着色器程序放回 GLProgramCache
+     */
+    public void release() {
+        final GLStateCache cache = GLStateCache.current();
+        if (mBufferId != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mBufferId}, 0);
+            cache.onBufferDeleted(mBufferId);
+            mBufferId = 0;
+        }
+        if (mProgramLease != null) {
+            GLProgramCache.release(mProgramLease);
+            mProgramLease = null;
+            mProgram = 0;
+            mMatrixUploaded = false;
+        }
+    }
+
+    private static boolean equalsMatrix(final float[] a, final float[] b) {
+        for (int i = 0; i < 16; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 }
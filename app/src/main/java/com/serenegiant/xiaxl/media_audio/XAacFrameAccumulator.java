@@ -0,0 +1,179 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import com.serenegiant.xiaxl.media_clock.XDriftEstimator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按AAC帧(每声道1024个采样)对齐地从PCM缓冲取数据
+ * <p>
+ * 每次送入编码器的数据都是整数个AAC帧，编码器不需要拼接半帧，
+ * 输入/输出的次数与AAC帧数一致；积压时一次最多送 maxFramesPerInput 帧
+ * <p>
+ * 设置了 XDriftEstimator 时，偏差超过 DEADBAND_SAMPLES 后每个AAC帧插入或丢弃1个采样，
+ * 直到偏差修正完，输出的采样数跟随会话时钟；时间戳也加上已修正的采样数，前后帧保持连续
+ */
+public final class XAacFrameAccumulator {
+
+    // AAC-LC 每帧每声道的采样数
+    public static final int SAMPLES_PER_AAC_FRAME = 1024;
+
+    // 开始修正漂移的偏差(采样数)
+    private static final int DEADBAND_SAMPLES = 32;
+
+    private final XPcmRingBuffer mPcmBuffer;
+    // 一个AAC帧的PCM字节数
+    private final int mFrameBytes;
+    private final int mBytesPerFrame;
+    private final int mMaxFramesPerInput;
+
+    private XDriftEstimator mDriftEstimator;
+    // 已插入(正)或丢弃(负)的采样数
+    private long mAppliedCorrection;
+    private boolean mCorrecting;
+    // 要丢弃的采样还没有写入缓冲，下次读取前丢弃
+    private boolean mPendingDrop;
+
+    private long mLastPtsUs;
+    private long mInputCount;
+    private long mFrameCount;
+
+    /**
+     * @param pcmBuffer         PCM缓冲
+     * @param bytesPerFrame     每个采样帧的字节数(声道数 * 2)
+     * @param maxFramesPerInput 一次最多送入编码器的AAC帧数
+     */
+    public XAacFrameAccumulator(final XPcmRingBuffer pcmBuffer, final int bytesPerFrame, final int maxFramesPerInput) {
+        mPcmBuffer = pcmBuffer;
+        mFrameBytes = SAMPLES_PER_AAC_FRAME * bytesPerFrame;
+        mBytesPerFrame = bytesPerFrame;
+        mMaxFramesPerInput = Math.max(1, maxFramesPerInput);
+    }
+
+    /**
+     * @param driftEstimator 为null时不修正漂移
+     */
+    public void setDriftEstimator(final XDriftEstimator driftEstimator) {
+        mDriftEstimator = driftEstimator;
+    }
+
+    /**
+     * @return 已插入(正)或丢弃(负)的采样数
+     */
+    public long getAppliedCorrection() {
+        return mAppliedCorrection;
+    }
+
+    /**
+     * @return 一次送入编码器的最大字节数
+     */
+    public int getMaxInputBytes() {
+        return mFrameBytes * mMaxFramesPerInput;
+    }
+
+    /**
+     * @return 缓冲中完整的AAC帧数
+     */
+    public int framesAvailable() {
+        return mPcmBuffer.available() / mFrameBytes;
+    }
+
+    /**
+     * 读出整数个AAC帧
+     *
+     * @param dst 至少 getMaxInputBytes() 字节
+     * @return 读出的字节数，不足一帧时为0
+     */
+    public int readFrames(final ByteBuffer dst) {
+        if (mPendingDrop) {
+            dropSample();
+        }
+        final int frames = Math.min(Math.min(framesAvailable(), mMaxFramesPerInput), dst.remaining() / mFrameBytes);
+        if (frames <= 0) {
+            return 0;
+        }
+        final int correction = mPendingDrop ? 0 : nextCorrection();
+        if (correction > 0) {
+            // 少读一个采样，重复最后一个采样
+            final int read = read(dst, mFrameBytes - mBytesPerFrame, 1);
+            for (int i = 0; i < mBytesPerFrame; i++) {
+                dst.put(dst.get(dst.position() - mBytesPerFrame));
+            }
+            mAppliedCorrection++;
+            return read + mBytesPerFrame;
+        } else if (correction < 0) {
+            // 读一帧后跳过一个采样
+            final int read = read(dst, mFrameBytes, 1);
+            mPendingDrop = true;
+            dropSample();
+            return read;
+        }
+        return read(dst, frames * mFrameBytes, frames);
+    }
+
+    private void dropSample() {
+        if (mPcmBuffer.skip(mBytesPerFrame) > 0) {
+            mPendingDrop = false;
+            mAppliedCorrection--;
+        }
+    }
+
+    /**
+     * @return 这一帧需要插入(1)或丢弃(-1)采样，不需要修正时为0
+     */
+    private int nextCorrection() {
+        if (mDriftEstimator == null) {
+            return 0;
+        }
+        final long diff = mDriftEstimator.getTargetCorrectionSamples() - mAppliedCorrection;
+        if (!mCorrecting && Math.abs(diff) > DEADBAND_SAMPLES) {
+            mCorrecting = true;
+        } else if (mCorrecting && diff == 0) {
+            mCorrecting = false;
+        }
+        return mCorrecting ? Long.signum(diff) : 0;
+    }
+
+    /**
+     * 结束时读出剩余不足一帧的数据
+     *
+     * @param dst
+     * @return 读出的字节数
+     */
+    public int readRemainder(final ByteBuffer dst) {
+        return read(dst, Math.min(mPcmBuffer.available(), mFrameBytes), 1);
+    }
+
+    private int read(final ByteBuffer dst, final int bytes, final int frames) {
+        final long ptsUs = mPcmBuffer.peekPtsUs();
+        final int read = mPcmBuffer.read(dst, bytes);
+        if (read > 0) {
+            // 加上已修正的采样数，输出的时间戳保持连续
+            mLastPtsUs = ptsUs + mAppliedCorrection * 1000000L / mPcmBuffer.getSampleRate();
+            mInputCount++;
+            mFrameCount += frames;
+        }
+        return read;
+    }
+
+    /**
+     * @return 最后一次读出的数据第一个采样的时间戳
+     */
+    public long getLastPtsUs() {
+        return mLastPtsUs;
+    }
+
+    /**
+     * @return 送入编码器的次数
+     */
+    public long getInputCount() {
+        return mInputCount;
+    }
+
+    /**
+     * @return 送入编码器的AAC帧数
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+}
@@ -0,0 +1,99 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * AAC-LC 的静音帧(raw_data_block，不带ADTS头)
+ * <p>
+ * 单声道为 SCE，双声道为 common_window 的 CPE；max_sfb = 0，没有频谱数据，
+ * 解码结果为全0。单声道4字节，双声道6字节(ISO/IEC 14496-3 4.4.2)
+ */
+public final class XAacSilenceFrame {
+
+    private static final int ID_SCE = 0;
+    private static final int ID_CPE = 1;
+    private static final int ID_END = 7;
+    // 没有频谱数据时不影响解码结果
+    private static final int GLOBAL_GAIN = 160;
+
+    /**
+     * @param channelCount 1 或 2
+     * @return 一帧静音数据
+     */
+    public static byte[] create(final int channelCount) {
+        if (channelCount != 1 && channelCount != 2) {
+            throw new IllegalArgumentException("unsupported channel count:" + channelCount);
+        }
+        final BitWriter writer = new BitWriter(8);
+        if (channelCount == 1) {
+            writer.write(ID_SCE, 3);
+            // element_instance_tag
+            writer.write(0, 4);
+            writer.write(GLOBAL_GAIN, 8);
+            writeIcsInfo(writer);
+            writeIcsTail(writer);
+        } else {
+            writer.write(ID_CPE, 3);
+            writer.write(0, 4);
+            // common_window
+            writer.write(1, 1);
+            writeIcsInfo(writer);
+            // ms_mask_present
+            writer.write(0, 2);
+            for (int i = 0; i < 2; i++) {
+                writer.write(GLOBAL_GAIN, 8);
+                writeIcsTail(writer);
+            }
+        }
+        writer.write(ID_END, 3);
+        return writer.toByteArray();
+    }
+
+    /**
+     * ONLY_LONG_SEQUENCE，max_sfb = 0
+     */
+    private static void writeIcsInfo(final BitWriter writer) {
+        // ics_reserved_bit
+        writer.write(0, 1);
+        // window_sequence
+        writer.write(0, 2);
+        // window_shape (KBD)
+        writer.write(1, 1);
+        // max_sfb
+        writer.write(0, 6);
+        // predictor_data_present
+        writer.write(0, 1);
+    }
+
+    /**
+     * section_data / scale_factor_data 为空，pulse/tns/gain_control 都不存在
+     */
+    private static void writeIcsTail(final BitWriter writer) {
+        writer.write(0, 3);
+    }
+
+    private static final class BitWriter {
+        private final byte[] mData;
+        private int mBitPosition;
+
+        BitWriter(final int capacity) {
+            mData = new byte[capacity];
+        }
+
+        void write(final int value, final int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                if (((value >> i) & 1) != 0) {
+                    mData[mBitPosition >> 3] |= (byte) (0x80 >>> (mBitPosition & 7));
+                }
+                mBitPosition++;
+            }
+        }
+
+        byte[] toByteArray() {
+            final byte[] result = new byte[(mBitPosition + 7) >> 3];
+            System.arraycopy(mData, 0, result, 0, result.length);
+            return result;
+        }
+    }
+
+    private XAacSilenceFrame() {
+    }
+}
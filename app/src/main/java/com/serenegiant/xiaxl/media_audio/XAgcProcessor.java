@@ -0,0 +1,116 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 自动增益控制: 把平均电平(RMS)调整到目标值
+ * <p>
+ * 增益下降快(attackMs)、上升慢(releaseMs)；电平低于 noiseFloorDb 时保持当前增益，不放大底噪。
+ * 期望增益每 UPDATE_FRAMES 帧计算一次，增益逐帧平滑过渡
+ */
+public final class XAgcProcessor implements XAudioProcessor {
+
+    // 期望增益的更新间隔
+    private static final int UPDATE_FRAMES = 32;
+    // RMS 检测的时间
+    private static final float RMS_WINDOW_MS = 300f;
+
+    private final float mTarget;
+    private final float mMinGain;
+    private final float mMaxGain;
+    private final float mNoiseFloor;
+    private final float mAttackMs;
+    private final float mReleaseMs;
+
+    private int mChannelCount = 1;
+    private float mRmsCoef;
+    private float mAttackCoef;
+    private float mReleaseCoef;
+
+    private float mMeanSquare;
+    private float mGain = 1f;
+    private float mDesiredGain = 1f;
+    private int mUpdateCounter;
+    private volatile float mCurrentGainDb;
+
+    /**
+     * 目标 -18dBFS，增益范围 -12dB - +24dB，低于 -55dBFS 不放大，attack 50ms / release 2s
+     */
+    public XAgcProcessor() {
+        this(-18f, -12f, 24f, -55f, 50f, 2000f);
+    }
+
+    /**
+     * @param targetDb     目标电平 [dBFS]
+     * @param minGainDb    最小增益 [dB]
+     * @param maxGainDb    最大增益 [dB]
+     * @param noiseFloorDb 低于这个电平时保持增益 [dBFS]
+     * @param attackMs     增益下降的时间
+     * @param releaseMs    增益上升的时间
+     */
+    public XAgcProcessor(final float targetDb, final float minGainDb, final float maxGainDb,
+                         final float noiseFloorDb, final float attackMs, final float releaseMs) {
+        mTarget = XDspMath.dbToLinear(targetDb);
+        mMinGain = XDspMath.dbToLinear(minGainDb);
+        mMaxGain = XDspMath.dbToLinear(maxGainDb);
+        mNoiseFloor = XDspMath.dbToLinear(noiseFloorDb);
+        mAttackMs = attackMs;
+        mReleaseMs = releaseMs;
+    }
+
+    @Override
+    public void configure(final int sampleRate, final int channelCount) {
+        mChannelCount = channelCount;
+        mRmsCoef = XDspMath.timeCoefficient(RMS_WINDOW_MS, sampleRate);
+        mAttackCoef = XDspMath.timeCoefficient(mAttackMs, sampleRate);
+        mReleaseCoef = XDspMath.timeCoefficient(mReleaseMs, sampleRate);
+    }
+
+    @Override
+    public void process(final float[] samples, final int frames) {
+        final int channels = mChannelCount;
+        final float rmsCoef = mRmsCoef;
+        float meanSquare = mMeanSquare;
+        float gain = mGain;
+        float desired = mDesiredGain;
+        int counter = mUpdateCounter;
+        for (int f = 0, i = 0; f < frames; f++, i += channels) {
+            float square = 0f;
+            for (int c = 0; c < channels; c++) {
+                square += samples[i + c] * samples[i + c];
+            }
+            square /= channels;
+            meanSquare = square + rmsCoef * (meanSquare - square);
+            if (++counter >= UPDATE_FRAMES) {
+                counter = 0;
+                final float rms = (float) Math.sqrt(meanSquare);
+                if (rms > mNoiseFloor) {
+                    desired = Math.max(mMinGain, Math.min(mMaxGain, mTarget / rms));
+                }
+            }
+            final float coef = desired < gain ? mAttackCoef : mReleaseCoef;
+            gain = desired + coef * (gain - desired);
+            for (int c = 0; c < channels; c++) {
+                samples[i + c] *= gain;
+            }
+        }
+        mMeanSquare = meanSquare;
+        mGain = gain;
+        mDesiredGain = desired;
+        mUpdateCounter = counter;
+        mCurrentGainDb = XDspMath.linearToDb(gain);
+    }
+
+    /**
+     * @return 当前增益 [dB]，可以在任意线程调用
+     */
+    public float getCurrentGainDb() {
+        return mCurrentGainDb;
+    }
+
+    @Override
+    public void reset() {
+        mMeanSquare = 0f;
+        mGain = mDesiredGain = 1f;
+        mUpdateCounter = 0;
+        mCurrentGainDb = 0f;
+    }
+}
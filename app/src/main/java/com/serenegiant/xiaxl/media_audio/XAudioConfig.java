@@ -0,0 +1,95 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import android.media.MediaCodecInfo;
+
+/**
+ * 音频录制参数(不可变)
+ * <p>
+ * sampleRate / channelCount 是编码输出的格式；
+ * captureSampleRate 是采集时向 AudioRecord 请求的采样率，与输出不同时由 XPcmConverter 重采样，
+ * 设备不支持请求的格式时退回 44.1kHz 单声道采集，同样转换成输出格式
+ */
+public final class XAudioConfig {
+
+    /**
+     * 44.1kHz 单声道 64kbps AAC-LC，所有设备都支持
+     */
+    public static final XAudioConfig DEFAULT = new XAudioConfig(44100, 1, 64000,
+            MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mBitRate;
+    private final int mAacProfile;
+    private final int mCaptureSampleRate;
+
+    /**
+     * 采集与输出使用相同的采样率
+     *
+     * @param sampleRate   输出采样率
+     * @param channelCount 输出声道数，1 或 2
+     * @param bitRate      编码码率 [bps]
+     * @param aacProfile   MediaCodecInfo.CodecProfileLevel.AACObjectXXX
+     */
+    public XAudioConfig(final int sampleRate, final int channelCount, final int bitRate, final int aacProfile) {
+        this(sampleRate, channelCount, bitRate, aacProfile, sampleRate);
+    }
+
+    /**
+     * @param sampleRate        输出采样率
+     * @param channelCount      输出声道数，1 或 2
+     * @param bitRate           编码码率 [bps]
+     * @param aacProfile        MediaCodecInfo.CodecProfileLevel.AACObjectXXX
+     * @param captureSampleRate 采集采样率，例如设备原生的48kHz
+     */
+    public XAudioConfig(final int sampleRate, final int channelCount, final int bitRate, final int aacProfile,
+                        final int captureSampleRate) {
+        if (sampleRate <= 0 || captureSampleRate <= 0) {
+            throw new IllegalArgumentException("invalid sample rate:" + sampleRate + "/" + captureSampleRate);
+        }
+        if (channelCount != 1 && channelCount != 2) {
+            throw new IllegalArgumentException("invalid channel count:" + channelCount);
+        }
+        if (bitRate <= 0) {
+            throw new IllegalArgumentException("invalid bit rate:" + bitRate);
+        }
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mBitRate = bitRate;
+        mAacProfile = aacProfile;
+        mCaptureSampleRate = captureSampleRate;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getAacProfile() {
+        return mAacProfile;
+    }
+
+    public int getCaptureSampleRate() {
+        return mCaptureSampleRate;
+    }
+
+    /**
+     * @return 每个采样帧的字节数(16bit)
+     */
+    public int getBytesPerFrame() {
+        return mChannelCount * 2;
+    }
+
+    @Override
+    public String toString() {
+        return "XAudioConfig{" + mSampleRate + "Hz, " + mChannelCount + "ch, " + mBitRate + "bps"
+                + ", profile=" + mAacProfile + ", capture=" + mCaptureSampleRate + "Hz}";
+    }
+}
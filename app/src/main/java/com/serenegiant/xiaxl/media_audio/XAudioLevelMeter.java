@@ -0,0 +1,46 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 电平表，由 XAudioProcessorChain 在写回PCM的同一次循环中更新，
+ * 保存最近一个处理块(约23ms)的 RMS/峰值，UI线程可以直接读取
+ */
+public final class XAudioLevelMeter {
+
+    private volatile float mRmsDb = XDspMath.MIN_DB;
+    private volatile float mPeakDb = XDspMath.MIN_DB;
+    private volatile long mClipCount;
+
+    void update(final float peak, final double sumOfSquares, final int samples, final int clips) {
+        mPeakDb = XDspMath.linearToDb(peak);
+        mRmsDb = samples > 0 ? XDspMath.linearToDb((float) Math.sqrt(sumOfSquares / samples)) : XDspMath.MIN_DB;
+        if (clips > 0) {
+            mClipCount += clips;
+        }
+    }
+
+    /**
+     * @return 最近一个处理块的 RMS 电平 [dBFS]
+     */
+    public float getRmsDb() {
+        return mRmsDb;
+    }
+
+    /**
+     * @return 最近一个处理块的峰值电平 [dBFS]
+     */
+    public float getPeakDb() {
+        return mPeakDb;
+    }
+
+    /**
+     * @return 达到满幅度的采样数
+     */
+    public long getClipCount() {
+        return mClipCount;
+    }
+
+    public void reset() {
+        mRmsDb = mPeakDb = XDspMath.MIN_DB;
+        mClipCount = 0;
+    }
+}
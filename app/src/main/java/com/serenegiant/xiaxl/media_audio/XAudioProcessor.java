@@ -0,0 +1,29 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 音频处理器，插在 AudioRecord.read 与 encode() 之间
+ * <p>
+ * 由 XAudioProcessorChain 调用，数据为交错的 float 采样(-1.0 - 1.0)，原地处理；
+ * process() 在送编码器的线程中调用，不能分配内存或阻塞
+ */
+public interface XAudioProcessor {
+
+    /**
+     * 开始录制前或加入已经开始的处理链时调用，可以在这里分配内存
+     *
+     * @param sampleRate
+     * @param channelCount
+     */
+    void configure(int sampleRate, int channelCount);
+
+    /**
+     * @param samples 交错的采样
+     * @param frames  帧数(采样数 / 声道数)
+     */
+    void process(float[] samples, int frames);
+
+    /**
+     * 清除内部状态(包络等)
+     */
+    void reset();
+}
@@ -0,0 +1,155 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 音频处理链，在 AudioRecord.read 与 encode() 之间原地处理16bit PCM
+ * <p>
+ * 每个处理块只做一次 short -> float 转换，依次调用各个处理器，
+ * 写回 short 的同一次循环中计算电平表；没有处理器时只计算电平表。
+ * 处理器可以在录制中增删(复制数组，只有增删时分配内存)，process() 中不分配内存。
+ * 缓冲区需要是 ByteOrder.nativeOrder()
+ */
+public final class XAudioProcessorChain {
+
+    private static final XAudioProcessor[] EMPTY = new XAudioProcessor[0];
+
+    private final Object mSync = new Object();
+    private volatile XAudioProcessor[] mProcessors = EMPTY;
+    private final XAudioLevelMeter mLevelMeter = new XAudioLevelMeter();
+
+    private int mSampleRate;
+    private int mChannelCount = 1;
+    private float[] mWork;
+    private int mMaxFrames;
+
+    /**
+     * 开始录制前调用
+     *
+     * @param sampleRate
+     * @param channelCount
+     * @param maxFrames    一次处理的最大帧数，超过时分多次处理
+     */
+    public void configure(final int sampleRate, final int channelCount, final int maxFrames) {
+        synchronized (mSync) {
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mMaxFrames = maxFrames;
+            mWork = new float[maxFrames * channelCount];
+            for (final XAudioProcessor processor : mProcessors) {
+                processor.configure(sampleRate, channelCount);
+                processor.reset();
+            }
+            mLevelMeter.reset();
+        }
+    }
+
+    /**
+     * 加到处理链末尾，可以在录制中调用
+     *
+     * @param processor
+     */
+    public void add(final XAudioProcessor processor) {
+        synchronized (mSync) {
+            if (mWork != null) {
+                processor.configure(mSampleRate, mChannelCount);
+            }
+            final XAudioProcessor[] current = mProcessors;
+            final XAudioProcessor[] processors = new XAudioProcessor[current.length + 1];
+            System.arraycopy(current, 0, processors, 0, current.length);
+            processors[current.length] = processor;
+            mProcessors = processors;
+        }
+    }
+
+    /**
+     * @param processor
+     * @return false 不在处理链中
+     */
+    public boolean remove(final XAudioProcessor processor) {
+        synchronized (mSync) {
+            final XAudioProcessor[] current = mProcessors;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == processor) {
+                    final XAudioProcessor[] processors = new XAudioProcessor[current.length - 1];
+                    System.arraycopy(current, 0, processors, 0, i);
+                    System.arraycopy(current, i + 1, processors, i, current.length - i - 1);
+                    mProcessors = processors;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public void clear() {
+        synchronized (mSync) {
+            mProcessors = EMPTY;
+        }
+    }
+
+    public XAudioLevelMeter getLevelMeter() {
+        return mLevelMeter;
+    }
+
+    /**
+     * 原地处理 buf 的 position 开始的 bytes 字节，position/limit 不变；在送编码器的线程中调用
+     *
+     * @param buf
+     * @param bytes
+     */
+    public void process(final ByteBuffer buf, final int bytes) {
+        final float[] work = mWork;
+        if (work == null) {
+            return;
+        }
+        final XAudioProcessor[] processors = mProcessors;
+        final int channels = mChannelCount;
+        int frames = bytes / (channels * 2);
+        int offset = buf.position();
+        float peak = 0f;
+        double sumOfSquares = 0;
+        int clips = 0;
+        final int total = frames * channels;
+        while (frames > 0) {
+            final int n = Math.min(frames, mMaxFrames);
+            final int samples = n * channels;
+            if (processors.length == 0) {
+                for (int i = 0; i < samples; i++) {
+                    final short s = buf.getShort(offset + i * 2);
+                    final float v = s * (1f / 32768f);
+                    peak = Math.max(peak, Math.abs(v));
+                    sumOfSquares += v * v;
+                    if (s == Short.MAX_VALUE || s == Short.MIN_VALUE) {
+                        clips++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < samples; i++) {
+                    work[i] = buf.getShort(offset + i * 2) * (1f / 32768f);
+                }
+                for (final XAudioProcessor processor : processors) {
+                    processor.process(work, n);
+                }
+                // 写回的同时计算电平
+                for (int i = 0; i < samples; i++) {
+                    final float v = work[i];
+                    peak = Math.max(peak, Math.abs(v));
+                    sumOfSquares += v * v;
+                    int s = (int) (v * 32768f);
+                    if (s >= Short.MAX_VALUE) {
+                        s = Short.MAX_VALUE;
+                        clips++;
+                    } else if (s <= Short.MIN_VALUE) {
+                        s = Short.MIN_VALUE;
+                        clips++;
+                    }
+                    buf.putShort(offset + i * 2, (short) s);
+                }
+            }
+            offset += samples * 2;
+            frames -= n;
+        }
+        mLevelMeter.update(Math.min(peak, 1f), sumOfSquares, total, clips);
+    }
+}
@@ -0,0 +1,96 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 16bit PCM 声道转换，在原缓冲区上进行，不分配内存
+ * <p>
+ * 转为单声道时取所有声道的平均值；单声道转多声道时复制到每个声道；
+ * 其他情况保留前面的声道，多出的声道补0。
+ * 缓冲区需要是 ByteOrder.nativeOrder()(与 AudioRecord 输出一致)
+ */
+public final class XChannelMixer {
+
+    private final int mInChannels;
+    private final int mOutChannels;
+
+    public XChannelMixer(final int inChannels, final int outChannels) {
+        if (inChannels <= 0 || outChannels <= 0) {
+            throw new IllegalArgumentException("invalid channels:" + inChannels + "->" + outChannels);
+        }
+        mInChannels = inChannels;
+        mOutChannels = outChannels;
+    }
+
+    public int getInChannels() {
+        return mInChannels;
+    }
+
+    public int getOutChannels() {
+        return mOutChannels;
+    }
+
+    /**
+     * @return 转换 inBytes 字节需要的缓冲区大小
+     */
+    public int getOutputBytes(final int inBytes) {
+        return inBytes / (mInChannels * 2) * mOutChannels * 2;
+    }
+
+    /**
+     * 转换 buf 的 position 开始的 bytes 字节，position 不变，增加声道时 limit 不够会扩展到结果末尾
+     *
+     * @param buf   增加声道时 capacity 需要足够放下结果
+     * @param bytes
+     * @return 转换后的字节数
+     */
+    public int process(final ByteBuffer buf, final int bytes) {
+        final int frames = bytes / (mInChannels * 2);
+        final int outBytes = frames * mOutChannels * 2;
+        if (mInChannels == mOutChannels) {
+            return outBytes;
+        }
+        final int base = buf.position();
+        if (base + outBytes > buf.capacity()) {
+            throw new IllegalArgumentException("buffer too small:" + buf.capacity() + " < " + (base + outBytes));
+        }
+        if (mOutChannels < mInChannels) {
+            // 输出比输入短，从前往后写不会覆盖未读的数据
+            for (int f = 0; f < frames; f++) {
+                final int in = base + f * mInChannels * 2;
+                final int out = base + f * mOutChannels * 2;
+                if (mOutChannels == 1) {
+                    int sum = 0;
+                    for (int c = 0; c < mInChannels; c++) {
+                        sum += buf.getShort(in + c * 2);
+                    }
+                    buf.putShort(out, (short) (sum / mInChannels));
+                } else {
+                    for (int c = 0; c < mOutChannels; c++) {
+                        buf.putShort(out + c * 2, buf.getShort(in + c * 2));
+                    }
+                }
+            }
+        } else {
+            // 输出比输入长，从后往前写
+            if (outBytes > buf.limit() - base) {
+                buf.limit(base + outBytes);
+            }
+            for (int f = frames - 1; f >= 0; f--) {
+                final int in = base + f * mInChannels * 2;
+                final int out = base + f * mOutChannels * 2;
+                if (mInChannels == 1) {
+                    final short s = buf.getShort(in);
+                    for (int c = mOutChannels - 1; c >= 0; c--) {
+                        buf.putShort(out + c * 2, s);
+                    }
+                } else {
+                    for (int c = mOutChannels - 1; c >= 0; c--) {
+                        buf.putShort(out + c * 2, c < mInChannels ? buf.getShort(in + c * 2) : 0);
+                    }
+                }
+            }
+        }
+        return outBytes;
+    }
+}
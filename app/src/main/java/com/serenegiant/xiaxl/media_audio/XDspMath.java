@@ -0,0 +1,34 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 音频处理用的换算
+ */
+final class XDspMath {
+
+    // 计算 dB 时的下限
+    static final float MIN_DB = -120f;
+
+    static float dbToLinear(final float db) {
+        return (float) Math.pow(10, db / 20.0);
+    }
+
+    static float linearToDb(final float value) {
+        if (value <= 0f) {
+            return MIN_DB;
+        }
+        return Math.max(MIN_DB, (float) (20 * Math.log10(value)));
+    }
+
+    /**
+     * @return 一阶平滑系数，经过 timeMs 后变化约63%
+     */
+    static float timeCoefficient(final float timeMs, final int sampleRate) {
+        if (timeMs <= 0f) {
+            return 0f;
+        }
+        return (float) Math.exp(-1.0 / (timeMs * 0.001 * sampleRate));
+    }
+
+    private XDspMath() {
+    }
+}
@@ -0,0 +1,66 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 固定增益，修改增益时在一个处理块内线性过渡，不会产生爆音
+ */
+public final class XGainProcessor implements XAudioProcessor {
+
+    private int mChannelCount = 1;
+    private volatile float mTargetGain;
+    private float mGain;
+
+    /**
+     * @param gainDb 增益 [dB]
+     */
+    public XGainProcessor(final float gainDb) {
+        mTargetGain = mGain = XDspMath.dbToLinear(gainDb);
+    }
+
+    /**
+     * 可以在任意线程调用
+     *
+     * @param gainDb 增益 [dB]
+     */
+    public void setGainDb(final float gainDb) {
+        mTargetGain = XDspMath.dbToLinear(gainDb);
+    }
+
+    public float getGainDb() {
+        return XDspMath.linearToDb(mTargetGain);
+    }
+
+    @Override
+    public void configure(final int sampleRate, final int channelCount) {
+        mChannelCount = channelCount;
+    }
+
+    @Override
+    public void process(final float[] samples, final int frames) {
+        final int channels = mChannelCount;
+        final float target = mTargetGain;
+        final float start = mGain;
+        if (start == target) {
+            if (target != 1f) {
+                final int n = frames * channels;
+                for (int i = 0; i < n; i++) {
+                    samples[i] *= target;
+                }
+            }
+            return;
+        }
+        final float step = (target - start) / frames;
+        float gain = start;
+        for (int f = 0, i = 0; f < frames; f++) {
+            gain += step;
+            for (int c = 0; c < channels; c++, i++) {
+                samples[i] *= gain;
+            }
+        }
+        mGain = target;
+    }
+
+    @Override
+    public void reset() {
+        mGain = mTargetGain;
+    }
+}
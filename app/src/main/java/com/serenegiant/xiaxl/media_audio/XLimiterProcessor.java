@@ -0,0 +1,82 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 峰值限制器: 峰值超过 ceilingDb 时立即降低增益，之后按 releaseMs 恢复，
+ * 最后再按上限截断，保证输出不超过上限(不会削波溢出)
+ * <p>
+ * 各声道联动
+ */
+public final class XLimiterProcessor implements XAudioProcessor {
+
+    private final float mCeiling;
+    private final float mReleaseMs;
+
+    private int mChannelCount = 1;
+    private float mReleaseCoef;
+
+    private float mGain = 1f;
+    private volatile float mMinGainDb;
+
+    /**
+     * 上限 -1dBFS，release 50ms
+     */
+    public XLimiterProcessor() {
+        this(-1f, 50f);
+    }
+
+    /**
+     * @param ceilingDb 输出上限 [dBFS]
+     * @param releaseMs 增益恢复的时间
+     */
+    public XLimiterProcessor(final float ceilingDb, final float releaseMs) {
+        mCeiling = XDspMath.dbToLinear(ceilingDb);
+        mReleaseMs = releaseMs;
+    }
+
+    @Override
+    public void configure(final int sampleRate, final int channelCount) {
+        mChannelCount = channelCount;
+        mReleaseCoef = XDspMath.timeCoefficient(mReleaseMs, sampleRate);
+    }
+
+    @Override
+    public void process(final float[] samples, final int frames) {
+        final int channels = mChannelCount;
+        final float ceiling = mCeiling;
+        float gain = mGain;
+        float minGain = 1f;
+        for (int f = 0, i = 0; f < frames; f++, i += channels) {
+            float peak = 0f;
+            for (int c = 0; c < channels; c++) {
+                peak = Math.max(peak, Math.abs(samples[i + c]));
+            }
+            // 恢复
+            gain = 1f + mReleaseCoef * (gain - 1f);
+            if (peak * gain > ceiling) {
+                gain = ceiling / peak;
+            }
+            if (gain < minGain) {
+                minGain = gain;
+            }
+            for (int c = 0; c < channels; c++) {
+                final float v = samples[i + c] * gain;
+                samples[i + c] = v > ceiling ? ceiling : (v < -ceiling ? -ceiling : v);
+            }
+        }
+        mGain = gain;
+        mMinGainDb = XDspMath.linearToDb(minGain);
+    }
+
+    /**
+     * @return 最近一个处理块中的最大增益衰减 [dB](0 表示没有限制)，可以在任意线程调用
+     */
+    public float getGainReductionDb() {
+        return mMinGainDb;
+    }
+
+    @Override
+    public void reset() {
+        mGain = 1f;
+        mMinGainDb = 0f;
+    }
+}
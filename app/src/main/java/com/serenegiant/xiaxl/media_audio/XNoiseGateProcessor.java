@@ -0,0 +1,105 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 噪声门: 电平低于阈值并持续 holdMs 后逐渐衰减到 floorDb，高于阈值时快速打开
+ * <p>
+ * 各声道联动，用所有声道的最大绝对值做包络
+ */
+public final class XNoiseGateProcessor implements XAudioProcessor {
+
+    private final float mThreshold;
+    private final float mFloor;
+    private final float mAttackMs;
+    private final float mHoldMs;
+    private final float mReleaseMs;
+
+    private int mChannelCount = 1;
+    private float mEnvelopeRelease;
+    private float mAttackCoef;
+    private float mReleaseCoef;
+    private int mHoldFrames;
+
+    private float mEnvelope;
+    private float mGain = 1f;
+    private int mHoldCounter;
+
+    /**
+     * 阈值 -50dB，关闭时衰减到 -40dB，attack 1ms / hold 100ms / release 150ms
+     */
+    public XNoiseGateProcessor() {
+        this(-50f, -40f, 1f, 100f, 150f);
+    }
+
+    /**
+     * @param thresholdDb 打开阈值 [dBFS]
+     * @param floorDb     关闭时的增益 [dB]
+     * @param attackMs    打开的时间
+     * @param holdMs      低于阈值后保持打开的时间
+     * @param releaseMs   关闭的时间
+     */
+    public XNoiseGateProcessor(final float thresholdDb, final float floorDb,
+                               final float attackMs, final float holdMs, final float releaseMs) {
+        mThreshold = XDspMath.dbToLinear(thresholdDb);
+        mFloor = XDspMath.dbToLinear(floorDb);
+        mAttackMs = attackMs;
+        mHoldMs = holdMs;
+        mReleaseMs = releaseMs;
+    }
+
+    @Override
+    public void configure(final int sampleRate, final int channelCount) {
+        mChannelCount = channelCount;
+        mAttackCoef = XDspMath.timeCoefficient(mAttackMs, sampleRate);
+        mReleaseCoef = XDspMath.timeCoefficient(mReleaseMs, sampleRate);
+        // 包络检测的释放时间固定为10ms
+        mEnvelopeRelease = XDspMath.timeCoefficient(10f, sampleRate);
+        mHoldFrames = (int) (mHoldMs * 0.001f * sampleRate);
+    }
+
+    @Override
+    public void process(final float[] samples, final int frames) {
+        final int channels = mChannelCount;
+        float envelope = mEnvelope;
+        float gain = mGain;
+        int hold = mHoldCounter;
+        for (int f = 0, i = 0; f < frames; f++, i += channels) {
+            float peak = 0f;
+            for (int c = 0; c < channels; c++) {
+                peak = Math.max(peak, Math.abs(samples[i + c]));
+            }
+            envelope = peak > envelope ? peak : peak + mEnvelopeRelease * (envelope - peak);
+            final float target;
+            if (envelope >= mThreshold) {
+                hold = mHoldFrames;
+                target = 1f;
+            } else if (hold > 0) {
+                hold--;
+                target = 1f;
+            } else {
+                target = mFloor;
+            }
+            final float coef = target > gain ? mAttackCoef : mReleaseCoef;
+            gain = target + coef * (gain - target);
+            for (int c = 0; c < channels; c++) {
+                samples[i + c] *= gain;
+            }
+        }
+        mEnvelope = envelope;
+        mGain = gain;
+        mHoldCounter = hold;
+    }
+
+    /**
+     * @return 门是否打开
+     */
+    public boolean isOpen() {
+        return mGain > 0.5f;
+    }
+
+    @Override
+    public void reset() {
+        mEnvelope = 0f;
+        mGain = 1f;
+        mHoldCounter = 0;
+    }
+}
@@ -0,0 +1,93 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 把采集格式的16bit PCM 转换为编码格式(声道数 + 采样率)
+ * <p>
+ * 减少声道时先混音再重采样，增加声道时先重采样再混音，重采样总是按较少的声道数计算
+ */
+public final class XPcmConverter {
+
+    private final int mInChannels;
+    private final int mOutChannels;
+    private final XChannelMixer mMixer;
+    private final XPolyphaseResampler mResampler;
+
+    /**
+     * @param inRate         采集采样率
+     * @param inChannels     采集声道数
+     * @param outRate        输出采样率
+     * @param outChannels    输出声道数
+     * @param maxInputFrames 一次转换的最大输入帧数
+     */
+    public XPcmConverter(final int inRate, final int inChannels, final int outRate, final int outChannels,
+                         final int maxInputFrames) {
+        mInChannels = inChannels;
+        mOutChannels = outChannels;
+        mMixer = inChannels != outChannels ? new XChannelMixer(inChannels, outChannels) : null;
+        mResampler = inRate != outRate
+                ? new XPolyphaseResampler(inRate, outRate, Math.min(inChannels, outChannels), maxInputFrames)
+                : null;
+    }
+
+    /**
+     * @return 采集格式与输出格式相同，不需要转换
+     */
+    public boolean isPassthrough() {
+        return mMixer == null && mResampler == null;
+    }
+
+    /**
+     * @return 转换 inBytes 字节时 dst 需要的大小
+     */
+    public int getMaxOutputBytes(final int inBytes) {
+        final int frames = inBytes / (mInChannels * 2);
+        final int resampleChannels = Math.min(mInChannels, mOutChannels);
+        int bytes = frames * resampleChannels * 2;
+        if (mResampler != null) {
+            bytes = mResampler.getMaxOutputBytes(bytes);
+        }
+        return bytes / (resampleChannels * 2) * mOutChannels * 2;
+    }
+
+    /**
+     * 转换 src 的 position 开始的 bytes 字节(减少声道时会修改 src 的内容)，
+     * 结果写到 dst 的 position 开始的位置，src/dst 的 position 不变
+     *
+     * @param src
+     * @param bytes
+     * @param dst   至少 getMaxOutputBytes(bytes) 字节
+     * @return 输出的字节数
+     */
+    public int convert(final ByteBuffer src, final int bytes, final ByteBuffer dst) {
+        int srcBytes = bytes;
+        if (mMixer != null && mOutChannels < mInChannels) {
+            srcBytes = mMixer.process(src, srcBytes);
+        }
+        final int dstPosition = dst.position();
+        int dstBytes;
+        if (mResampler != null) {
+            dstBytes = mResampler.process(src, srcBytes, dst);
+            dst.position(dstPosition);
+        } else {
+            final int position = src.position();
+            final int limit = src.limit();
+            src.limit(position + srcBytes);
+            dst.put(src);
+            src.limit(limit).position(position);
+            dst.position(dstPosition);
+            dstBytes = srcBytes;
+        }
+        if (mMixer != null && mOutChannels > mInChannels) {
+            dstBytes = mMixer.process(dst, dstBytes);
+        }
+        return dstBytes;
+    }
+
+    public void reset() {
+        if (mResampler != null) {
+            mResampler.reset();
+        }
+    }
+}
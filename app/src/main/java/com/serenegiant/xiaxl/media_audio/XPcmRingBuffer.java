@@ -0,0 +1,259 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁的PCM环形缓冲区(单生产者/单消费者)
+ * <p>
+ * 采集线程只做 AudioRecord.read 和一次拷贝，不会因为编码器没有空闲输入缓冲区而阻塞；
+ * 缓冲区满时丢弃新数据并计数(overrun)，编码线程取不到数据时计数(underrun)。
+ * <p>
+ * 每次写入时记录这批数据第一个采样的时间戳(mark)，读出任意位置的数据时都能算出准确的时间戳，
+ * 丢弃数据造成的空缺不会影响之后数据的时间戳
+ */
+public final class XPcmRingBuffer {
+
+    private final ByteBuffer mData;
+    private final int mCapacity;
+    private final int mMask;
+    // 每帧字节数(声道数 * 2)
+    private final int mBytesPerFrame;
+    private final int mSampleRate;
+
+    // 时间戳标记，环形
+    private final long[] mMarkPositions;
+    private final long[] mMarkPtsUs;
+    private final int mMarkMask;
+
+    // 写入/读出的累计字节数，只增不减
+    private final AtomicLong mWritePosition = new AtomicLong();
+    private final AtomicLong mReadPosition = new AtomicLong();
+    // 已写入的mark数 / 消费者当前使用的mark
+    private final AtomicLong mMarkWrite = new AtomicLong();
+    private final AtomicLong mMarkRead = new AtomicLong();
+
+    // 生产者和消费者各自使用的视图，避免修改 mData 的 position/limit
+    private final ByteBuffer mWriteView;
+    private final ByteBuffer mReadView;
+
+    // 统计
+    private final AtomicLong mOverrunCount = new AtomicLong();
+    private final AtomicLong mOverrunBytes = new AtomicLong();
+    private final AtomicLong mUnderrunCount = new AtomicLong();
+    private volatile int mMaxFillBytes;
+
+    /**
+     * @param capacityBytes 缓冲区大小，向上取2的幂
+     * @param bytesPerFrame 每帧字节数(声道数 * 2)
+     * @param sampleRate    采样率
+     * @param maxMarks      最多同时保存的写入次数，向上取2的幂
+     */
+    public XPcmRingBuffer(final int capacityBytes, final int bytesPerFrame, final int sampleRate, final int maxMarks) {
+        mCapacity = roundUpToPowerOfTwo(capacityBytes);
+        mMask = mCapacity - 1;
+        mBytesPerFrame = bytesPerFrame;
+        mSampleRate = sampleRate;
+        mData = ByteBuffer.allocateDirect(mCapacity);
+        mWriteView = mData.duplicate();
+        mReadView = mData.duplicate();
+        final int marks = roundUpToPowerOfTwo(maxMarks);
+        mMarkPositions = new long[marks];
+        mMarkPtsUs = new long[marks];
+        mMarkMask = marks - 1;
+    }
+
+    //================================================================================
+    // 生产者(采集线程)
+    //================================================================================
+
+    /**
+     * 写入 src 的 position 到 position + bytes 之间的数据，src 的 position 不变
+     *
+     * @param src
+     * @param bytes
+     * @param ptsUs 第一个采样的时间戳
+     * @return false 缓冲区满，数据被丢弃
+     */
+    public boolean write(final ByteBuffer src, final int bytes, final long ptsUs) {
+        final long writePosition = mWritePosition.get();
+        final long readPosition = mReadPosition.get();
+        final long markWrite = mMarkWrite.get();
+        if (bytes > mCapacity - (writePosition - readPosition)
+                || markWrite - mMarkRead.get() >= mMarkPositions.length) {
+            mOverrunCount.incrementAndGet();
+            mOverrunBytes.addAndGet(bytes);
+            return false;
+        }
+        final int position = src.position();
+        final int limit = src.limit();
+        final int offset = (int) (writePosition & mMask);
+        final int first = Math.min(bytes, mCapacity - offset);
+        src.limit(position + first);
+        mWriteView.limit(offset + first).position(offset);
+        mWriteView.put(src);
+        if (first < bytes) {
+            // 绕回开头
+            src.limit(position + bytes);
+            mWriteView.limit(bytes - first).position(0);
+            mWriteView.put(src);
+        }
+        src.limit(limit).position(position);
+
+        final int markIndex = (int) (markWrite & mMarkMask);
+        mMarkPositions[markIndex] = writePosition;
+        mMarkPtsUs[markIndex] = ptsUs;
+        mMarkWrite.lazySet(markWrite + 1);
+        // 发布数据，之前写入的数据和mark对消费者可见
+        mWritePosition.lazySet(writePosition + bytes);
+
+        final int fill = (int) (writePosition + bytes - readPosition);
+        if (fill > mMaxFillBytes) {
+            mMaxFillBytes = fill;
+        }
+        return true;
+    }
+
+    //================================================================================
+    // 消费者(编码线程)
+    //================================================================================
+
+    /**
+     * @return 可以读出的字节数
+     */
+    public int available() {
+        return (int) (mWritePosition.get() - mReadPosition.get());
+    }
+
+    /**
+     * 读出数据到 dst 的 position，dst 的 position 前进
+     *
+     * @param dst
+     * @param maxBytes 最多读出的字节数，会按帧对齐
+     * @return 读出的字节数，没有数据时为0并计为underrun
+     */
+    public int read(final ByteBuffer dst, final int maxBytes) {
+        final long readPosition = mReadPosition.get();
+        final int available = (int) (mWritePosition.get() - readPosition);
+        int bytes = Math.min(Math.min(available, maxBytes), dst.remaining());
+        bytes -= bytes % mBytesPerFrame;
+        if (bytes <= 0) {
+            if (available == 0) {
+                mUnderrunCount.incrementAndGet();
+            }
+            return 0;
+        }
+        final int offset = (int) (readPosition & mMask);
+        final int first = Math.min(bytes, mCapacity - offset);
+        mReadView.limit(offset + first).position(offset);
+        dst.put(mReadView);
+        if (first < bytes) {
+            mReadView.limit(bytes - first).position(0);
+            dst.put(mReadView);
+        }
+        mReadPosition.lazySet(readPosition + bytes);
+        advanceMarks(readPosition + bytes, mMarkWrite.get());
+        return bytes;
+    }
+
+    /**
+     * 跳过已经读完的mark，释放给生产者
+     *
+     * @return readPosition 所在的mark
+     */
+    private long advanceMarks(final long readPosition, final long markWrite) {
+        long markRead = mMarkRead.get();
+        while (markRead + 1 < markWrite
+                && mMarkPositions[(int) ((markRead + 1) & mMarkMask)] <= readPosition) {
+            markRead++;
+        }
+        mMarkRead.lazySet(markRead);
+        return markRead;
+    }
+
+    /**
+     * 丢弃数据(不拷贝)
+     *
+     * @param maxBytes
+     * @return 丢弃的字节数
+     */
+    public int skip(final int maxBytes) {
+        final long readPosition = mReadPosition.get();
+        int bytes = Math.min((int) (mWritePosition.get() - readPosition), maxBytes);
+        bytes -= bytes % mBytesPerFrame;
+        if (bytes > 0) {
+            mReadPosition.lazySet(readPosition + bytes);
+            advanceMarks(readPosition + bytes, mMarkWrite.get());
+        }
+        return Math.max(bytes, 0);
+    }
+
+    /**
+     * @return 下一个读出的采样的时间戳，没有数据时为-1
+     */
+    public long peekPtsUs() {
+        final long readPosition = mReadPosition.get();
+        if (mWritePosition.get() == readPosition) {
+            return -1;
+        }
+        final long markWrite = mMarkWrite.get();
+        final long markRead = advanceMarks(readPosition, markWrite);
+        final int markIndex = (int) (markRead & mMarkMask);
+        final long frames = (readPosition - mMarkPositions[markIndex]) / mBytesPerFrame;
+        return mMarkPtsUs[markIndex] + frames * 1000000L / mSampleRate;
+    }
+
+    /**
+     * 消费者调用，清空缓冲区
+     */
+    public void clear() {
+        mReadPosition.lazySet(mWritePosition.get());
+        mMarkRead.lazySet(Math.max(0, mMarkWrite.get() - 1));
+    }
+
+    //================================================================================
+    // 统计
+    //================================================================================
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return 当前填充比例 0.0 - 1.0
+     */
+    public float getFillLevel() {
+        return available() / (float) mCapacity;
+    }
+
+    public float getMaxFillLevel() {
+        return mMaxFillBytes / (float) mCapacity;
+    }
+
+    /**
+     * @return 缓冲区满丢弃数据的次数
+     */
+    public long getOverrunCount() {
+        return mOverrunCount.get();
+    }
+
+    public long getOverrunBytes() {
+        return mOverrunBytes.get();
+    }
+
+    /**
+     * @return 编码线程取数据时缓冲区为空的次数
+     */
+    public long getUnderrunCount() {
+        return mUnderrunCount.get();
+    }
+
+    private static int roundUpToPowerOfTwo(final int value) {
+        final int highest = Integer.highestOneBit(Math.max(1, value));
+        return highest == value ? value : highest << 1;
+    }
+}
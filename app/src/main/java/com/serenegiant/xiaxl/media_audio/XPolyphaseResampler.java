@@ -0,0 +1,227 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 流式多相(polyphase)重采样，16bit 交错PCM，纯Java
+ * <p>
+ * 采样率之比约分为 up/down，原型滤波器为 Kaiser 窗 sinc 低通(截止频率为较低一侧奈奎斯特频率的92%)，
+ * 按相位拆成 up 组、每组 taps 个系数；每个输出采样只计算一组系数，不需要真正插零/抽取。
+ * <p>
+ * 构造时分配所有内存，process() 中不分配内存；滤波器延时已经在初始历史数据中抵消，
+ * 输出的第一个采样与输入的第一个采样对齐，调用方不需要修正时间戳。
+ * 缓冲区需要是 ByteOrder.nativeOrder()
+ */
+public final class XPolyphaseResampler {
+
+    // 每个相位的系数个数，越大过渡带越窄
+    public static final int DEFAULT_TAPS = 64;
+    // 截止频率(相对较低一侧的奈奎斯特频率)
+    private static final double CUTOFF = 0.92;
+    // Kaiser 窗参数，阻带约 -80dB
+    private static final double KAISER_BETA = 8.0;
+    // up 太大时系数表过大
+    private static final int MAX_PHASES = 1024;
+
+    private final int mInRate;
+    private final int mOutRate;
+    private final int mChannels;
+    private final int mTaps;
+    private final int mUp;
+    private final int mDown;
+    // [相位][系数]
+    private final float[] mCoefs;
+
+    // 交错的输入数据(float)，前面是上次剩下的历史数据
+    private final int mMaxInputFrames;
+    private final float[] mWork;
+    private int mWorkFrames;
+    // 下一个输出使用的第一个输入帧 / 相位
+    private int mBase;
+    private int mPhase;
+
+    public XPolyphaseResampler(final int inRate, final int outRate, final int channels, final int maxInputFrames) {
+        this(inRate, outRate, channels, DEFAULT_TAPS, maxInputFrames);
+    }
+
+    /**
+     * @param inRate         输入采样率
+     * @param outRate        输出采样率
+     * @param channels       声道数
+     * @param taps           每个相位的系数个数(偶数)
+     * @param maxInputFrames 一次处理的最大输入帧数，超过时分多次处理
+     */
+    public XPolyphaseResampler(final int inRate, final int outRate, final int channels, final int taps,
+                               final int maxInputFrames) {
+        if (inRate <= 0 || outRate <= 0 || channels <= 0 || taps < 2 || maxInputFrames <= 0) {
+            throw new IllegalArgumentException("invalid resampler parameter");
+        }
+        final int gcd = gcd(inRate, outRate);
+        mUp = outRate / gcd;
+        mDown = inRate / gcd;
+        if (mUp > MAX_PHASES || mDown > mUp * (taps / 2)) {
+            throw new IllegalArgumentException("unsupported rate ratio:" + inRate + "->" + outRate);
+        }
+        mInRate = inRate;
+        mOutRate = outRate;
+        mChannels = channels;
+        mTaps = taps & ~1;
+        mCoefs = designFilter(mUp, mDown, mTaps);
+        mMaxInputFrames = maxInputFrames;
+        mWork = new float[(mTaps + maxInputFrames) * channels];
+        reset();
+    }
+
+    /**
+     * 清除历史数据，开始新的流
+     */
+    public void reset() {
+        Arrays.fill(mWork, 0f);
+        // 抵消滤波器的群延时
+        mWorkFrames = mTaps / 2 - 1;
+        mBase = 0;
+        mPhase = 0;
+    }
+
+    public int getInRate() {
+        return mInRate;
+    }
+
+    public int getOutRate() {
+        return mOutRate;
+    }
+
+    /**
+     * @return 处理 inBytes 字节时最多输出的字节数
+     */
+    public int getMaxOutputBytes(final int inBytes) {
+        final long frames = inBytes / (mChannels * 2) + mTaps;
+        return (int) (frames * mUp / mDown + 1) * mChannels * 2;
+    }
+
+    /**
+     * 处理 src 的 position 开始的 bytes 字节，src 的 position 不变；
+     * 结果写到 dst 的 position，dst 的 position 前进
+     *
+     * @param src
+     * @param bytes
+     * @param dst   至少 getMaxOutputBytes(bytes) 字节
+     * @return 输出的字节数
+     */
+    public int process(final ByteBuffer src, final int bytes, final ByteBuffer dst) {
+        final int channels = mChannels;
+        int inFrames = bytes / (channels * 2);
+        int srcPosition = src.position();
+        int written = 0;
+        while (inFrames > 0) {
+            final int n = Math.min(inFrames, mMaxInputFrames);
+            final int samples = n * channels;
+            final int offset = mWorkFrames * channels;
+            for (int i = 0; i < samples; i++) {
+                mWork[offset + i] = src.getShort(srcPosition + i * 2) * (1f / 32768f);
+            }
+            mWorkFrames += n;
+            srcPosition += samples * 2;
+            inFrames -= n;
+            written += produce(dst);
+            // 把剩下的历史数据移到开头
+            final int remain = mWorkFrames - mBase;
+            System.arraycopy(mWork, mBase * channels, mWork, 0, remain * channels);
+            mWorkFrames = remain;
+            mBase = 0;
+        }
+        return written;
+    }
+
+    private int produce(final ByteBuffer dst) {
+        final int channels = mChannels;
+        final int taps = mTaps;
+        final float[] work = mWork;
+        final float[] coefs = mCoefs;
+        int written = 0;
+        while (mBase + taps <= mWorkFrames) {
+            final int coef = mPhase * taps;
+            final int x = mBase * channels;
+            for (int c = 0; c < channels; c++) {
+                float acc = 0f;
+                for (int t = 0, i = x + c; t < taps; t++, i += channels) {
+                    acc += coefs[coef + t] * work[i];
+                }
+                dst.putShort(toShort(acc));
+            }
+            written += channels * 2;
+            mPhase += mDown;
+            mBase += mPhase / mUp;
+            mPhase %= mUp;
+        }
+        return written;
+    }
+
+    private static short toShort(final float value) {
+        final int v = (int) (value * 32768f + (value >= 0 ? 0.5f : -0.5f));
+        if (v > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (v < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) v;
+    }
+
+    /**
+     * 原型滤波器长度 up * taps，按相位重新排列；
+     * 相位 p 的第 t 个系数乘以 第 base + t 个输入帧
+     */
+    private static float[] designFilter(final int up, final int down, final int taps) {
+        final int length = up * taps;
+        // 以插值后的采样率归一化的截止频率
+        final double cutoff = CUTOFF * 0.5 / Math.max(up, down);
+        // 中心取整数位置，与初始历史数据(taps / 2 - 1 帧)一起使输出与输入对齐
+        final double center = length / 2.0;
+        final double i0Beta = besselI0(KAISER_BETA);
+        final double[] prototype = new double[length];
+        for (int n = 0; n < length; n++) {
+            final double x = n - center;
+            final double sinc = x == 0 ? 1.0 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+            final double r = x / center;
+            final double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / i0Beta;
+            prototype[n] = 2 * cutoff * sinc * window;
+        }
+        final float[] coefs = new float[length];
+        for (int p = 0; p < up; p++) {
+            // 每个相位的直流增益归一化为1
+            double sum = 0;
+            for (int t = 0; t < taps; t++) {
+                sum += prototype[(taps - 1 - t) * up + p];
+            }
+            for (int t = 0; t < taps; t++) {
+                coefs[p * taps + t] = (float) (prototype[(taps - 1 - t) * up + p] / sum);
+            }
+        }
+        return coefs;
+    }
+
+    private static double besselI0(final double x) {
+        double sum = 1;
+        double term = 1;
+        final double q = x * x / 4;
+        for (int k = 1; k < 50; k++) {
+            term *= q / (k * k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
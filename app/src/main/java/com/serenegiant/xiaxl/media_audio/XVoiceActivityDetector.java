@@ -0,0 +1,152 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于电平的语音/静音检测
+ * <p>
+ * 跟踪底噪(下降快、每秒最多上升 FLOOR_RISE_DB_PER_SEC)，电平高于 max(minSpeechDb, 底噪 + marginDb) 时为语音；
+ * 语音结束后保持 hangoverUs 再判定为静音，避免切掉词尾。
+ * 电平使用 XAudioLevelMeter 在同一个处理块中算好的 RMS，这里只有几次比较
+ */
+public final class XVoiceActivityDetector {
+
+    /**
+     * 一个区间结束时回调(在送编码器的线程)
+     */
+    public interface OnSegmentListener {
+        void onSegment(XVoiceSegment segment);
+    }
+
+    // 底噪上升的速度 [dB/sec]
+    private static final float FLOOR_RISE_DB_PER_SEC = 1f;
+
+    private final float mMinSpeechDb;
+    private final float mMarginDb;
+    private final long mHangoverUs;
+
+    private float mFloorDb = Float.NaN;
+    private long mLastSpeechUs = Long.MIN_VALUE;
+    private boolean mSpeech;
+    private long mSegmentStartUs = -1;
+    private long mSpeechDurationUs;
+    private long mSilenceDurationUs;
+
+    private final List<XVoiceSegment> mSegments = new ArrayList<XVoiceSegment>();
+    private volatile OnSegmentListener mListener;
+
+    /**
+     * 语音最低 -55dBFS，高于底噪 10dB，hangover 400ms
+     */
+    public XVoiceActivityDetector() {
+        this(-55f, 10f, 400000L);
+    }
+
+    /**
+     * @param minSpeechDb 低于这个电平总是静音 [dBFS]
+     * @param marginDb    高于底噪多少判定为语音 [dB]
+     * @param hangoverUs  语音结束后保持的时间
+     */
+    public XVoiceActivityDetector(final float minSpeechDb, final float marginDb, final long hangoverUs) {
+        mMinSpeechDb = minSpeechDb;
+        mMarginDb = marginDb;
+        mHangoverUs = hangoverUs;
+    }
+
+    public void setOnSegmentListener(final OnSegmentListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 每个处理块调用一次
+     *
+     * @param rmsDb      这个块的 RMS 电平
+     * @param ptsUs      这个块第一个采样的时间戳
+     * @param durationUs 这个块的时长
+     * @return true 语音(包括 hangover)
+     */
+    public boolean update(final float rmsDb, final long ptsUs, final long durationUs) {
+        if (Float.isNaN(mFloorDb) || rmsDb < mFloorDb) {
+            mFloorDb = Float.isNaN(mFloorDb) ? rmsDb : mFloorDb + (rmsDb - mFloorDb) * 0.5f;
+        } else {
+            mFloorDb += FLOOR_RISE_DB_PER_SEC * durationUs / 1000000f;
+        }
+        if (rmsDb > Math.max(mMinSpeechDb, mFloorDb + mMarginDb)) {
+            mLastSpeechUs = ptsUs + durationUs;
+        }
+        final boolean speech = mLastSpeechUs != Long.MIN_VALUE && ptsUs < mLastSpeechUs + mHangoverUs;
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = ptsUs;
+            mSpeech = speech;
+        } else if (speech != mSpeech) {
+            closeSegment(ptsUs);
+            mSegmentStartUs = ptsUs;
+            mSpeech = speech;
+        }
+        if (speech) {
+            mSpeechDurationUs += durationUs;
+        } else {
+            mSilenceDurationUs += durationUs;
+        }
+        return speech;
+    }
+
+    /**
+     * 录制结束时调用，结束当前区间
+     *
+     * @param endUs
+     */
+    public void finish(final long endUs) {
+        if (mSegmentStartUs >= 0 && endUs > mSegmentStartUs) {
+            closeSegment(endUs);
+        }
+        mSegmentStartUs = -1;
+    }
+
+    private void closeSegment(final long endUs) {
+        final XVoiceSegment segment = new XVoiceSegment(mSpeech, mSegmentStartUs, endUs);
+        synchronized (mSegments) {
+            mSegments.add(segment);
+        }
+        final OnSegmentListener listener = mListener;
+        if (listener != null) {
+            listener.onSegment(segment);
+        }
+    }
+
+    /**
+     * @return 已经结束的区间，可以在任意线程调用
+     */
+    public List<XVoiceSegment> getSegments() {
+        synchronized (mSegments) {
+            return new ArrayList<XVoiceSegment>(mSegments);
+        }
+    }
+
+    public long getSpeechDurationUs() {
+        return mSpeechDurationUs;
+    }
+
+    public long getSilenceDurationUs() {
+        return mSilenceDurationUs;
+    }
+
+    /**
+     * @return 当前的底噪估计 [dBFS]
+     */
+    public float getNoiseFloorDb() {
+        return mFloorDb;
+    }
+
+    public void reset() {
+        mFloorDb = Float.NaN;
+        mLastSpeechUs = Long.MIN_VALUE;
+        mSpeech = false;
+        mSegmentStartUs = -1;
+        mSpeechDurationUs = mSilenceDurationUs = 0;
+        synchronized (mSegments) {
+            mSegments.clear();
+        }
+    }
+}
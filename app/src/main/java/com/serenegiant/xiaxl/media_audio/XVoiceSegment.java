@@ -0,0 +1,38 @@
+package com.serenegiant.xiaxl.media_audio;
+
+/**
+ * 检测到的语音/静音区间，时间为会话时钟 [usec]
+ */
+public final class XVoiceSegment {
+
+    private final boolean mSpeech;
+    private final long mStartUs;
+    private final long mEndUs;
+
+    public XVoiceSegment(final boolean speech, final long startUs, final long endUs) {
+        mSpeech = speech;
+        mStartUs = startUs;
+        mEndUs = endUs;
+    }
+
+    public boolean isSpeech() {
+        return mSpeech;
+    }
+
+    public long getStartUs() {
+        return mStartUs;
+    }
+
+    public long getEndUs() {
+        return mEndUs;
+    }
+
+    public long getDurationUs() {
+        return mEndUs - mStartUs;
+    }
+
+    @Override
+    public String toString() {
+        return (mSpeech ? "speech[" : "silence[") + mStartUs + ", " + mEndUs + ")";
+    }
+}
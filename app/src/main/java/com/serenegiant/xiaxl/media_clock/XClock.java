@@ -0,0 +1,12 @@
+package com.serenegiant.xiaxl.media_clock;
+
+/**
+ * 录制使用的时钟，测试时可以替换为可控的时钟
+ */
+public interface XClock {
+
+    /**
+     * @return 单调递增的时间，与 SurfaceTexture#getTimestamp 同一时间基准
+     */
+    long nanoTime();
+}
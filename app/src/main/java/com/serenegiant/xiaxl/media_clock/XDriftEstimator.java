@@ -0,0 +1,101 @@
+package com.serenegiant.xiaxl.media_clock;
+
+/**
+ * 估计麦克风采样时钟相对会话时钟(视频也使用这个时钟)的漂移
+ * <p>
+ * 采集线程每次读到数据后调用 onCapture()，比较 按采样数推算的时间 与 会话时钟 的差，
+ * 平滑后得到需要插入(正)或丢弃(负)的采样数，由送编码器的线程逐步修正；
+ * 采集线程中只有几次算术运算
+ */
+public final class XDriftEstimator {
+
+    // 平滑系数，约256次读取(44.1kHz每次1024采样时约6秒)
+    private static final double SMOOTHING = 1.0 / 256;
+    // 开始修正前的观察时间，这段时间内偏差的平均值作为基准；
+    // 平滑要约6秒才收敛，不能直接用观察期结束时的平滑值
+    private static final long WARMUP_US = 2000000L;
+
+    private final XClock mClock;
+    private final int mSampleRate;
+
+    private boolean mStarted;
+    private long mStartUs;
+    private double mSmoothedErrorUs;
+    // 观察期内偏差与时刻的累计，第一次读取可能带有启动时已缓冲的数据，不计入
+    private int mWarmupCount;
+    private double mWarmupErrorSumUs;
+    private double mWarmupTimeSumUs;
+    // 观察期内偏差的平均值，固定的偏差不算漂移；漂移从观察期的平均时刻算起
+    private boolean mHasBaseline;
+    private double mBaselineErrorUs;
+    private long mBaselineUs;
+
+    private volatile double mDriftPpm;
+    private volatile long mTargetCorrectionSamples;
+
+    public XDriftEstimator(final XClock clock, final int sampleRate) {
+        mClock = clock;
+        mSampleRate = sampleRate;
+    }
+
+    public void reset() {
+        mStarted = false;
+        mWarmupCount = 0;
+        mWarmupErrorSumUs = 0;
+        mWarmupTimeSumUs = 0;
+        mHasBaseline = false;
+        mSmoothedErrorUs = 0;
+        mDriftPpm = 0;
+        mTargetCorrectionSamples = 0;
+    }
+
+    /**
+     * 采集线程读到数据后调用
+     *
+     * @param expectedNowUs 按采样数推算的当前时间(XSampleClock.getNextPtsUs())
+     */
+    public void onCapture(final long expectedNowUs) {
+        final long nowUs = mClock.nanoTime() / 1000L;
+        if (!mStarted) {
+            mStarted = true;
+            mStartUs = nowUs;
+            return;
+        }
+        // 正: 采样比时钟慢(需要插入采样)，负: 采样比时钟快(需要丢弃采样)
+        final long errorUs = nowUs - expectedNowUs;
+        if (!mHasBaseline) {
+            mWarmupCount++;
+            mWarmupErrorSumUs += errorUs;
+            mWarmupTimeSumUs += nowUs - mStartUs;
+            if (nowUs - mStartUs >= WARMUP_US) {
+                mHasBaseline = true;
+                mBaselineErrorUs = mWarmupErrorSumUs / mWarmupCount;
+                mBaselineUs = mStartUs + Math.round(mWarmupTimeSumUs / mWarmupCount);
+                // 平滑从平均值开始，不再经过收敛过程
+                mSmoothedErrorUs = mBaselineErrorUs;
+            }
+            return;
+        }
+        mSmoothedErrorUs += (errorUs - mSmoothedErrorUs) * SMOOTHING;
+        final long elapsedUs = nowUs - mBaselineUs;
+        final double driftUs = mSmoothedErrorUs - mBaselineErrorUs;
+        if (elapsedUs > 0) {
+            mDriftPpm = -driftUs * 1e6 / elapsedUs;
+        }
+        mTargetCorrectionSamples = Math.round(driftUs * mSampleRate / 1e6);
+    }
+
+    /**
+     * @return 采样时钟相对会话时钟的漂移 [ppm]，正数表示麦克风偏快
+     */
+    public double getDriftPpm() {
+        return mDriftPpm;
+    }
+
+    /**
+     * @return 到目前为止应该累计插入(正)或丢弃(负)的采样数
+     */
+    public long getTargetCorrectionSamples() {
+        return mTargetCorrectionSamples;
+    }
+}
@@ -0,0 +1,207 @@
+package com.serenegiant.xiaxl.media_clock;
+
+/**
+ * 按相机帧时间戳选择送去编码的帧，使输出帧率等于目标帧率
+ * <p>
+ * 从第一帧开始按选帧间隔划分时间格，每格最多取一帧，多余的帧丢弃；相机帧率低于目标时不能补帧，空出的格跳过。
+ * CONSTANT: 选帧间隔 1/fps，输出时间戳对齐到格点，文件中是恒定帧率；格点与相机时间戳相差不超过半格，
+ * 相机比目标慢(或停顿)到超出半格时，以这一帧重新对齐格点，这一帧保留相机时间戳。
+ * TIME_LAPSE: 选帧间隔为拍摄间隔，输出时间戳改写为按播放帧率连续排列；
+ * 视频时间被压缩，不能与实时的音轨一起录制(XMediaMuxerManager 拒绝同时添加音频编码器)。
+ * VARIABLE: 选帧间隔 1/maxFps，保留相机时间戳。
+ * <p>
+ * onFrame 只在GLThread中调用，输出帧率/抖动可以在任意线程读取
+ */
+public final class XFrameRateGovernor {
+
+    public enum Mode {
+        CONSTANT,
+        TIME_LAPSE,
+        VARIABLE
+    }
+
+    // 统计的平滑系数，约16帧
+    private static final double SMOOTHING = 1.0 / 16;
+
+    private final Mode mMode;
+    // 选帧的时间格 [ns]
+    private final double mIntervalNs;
+    // TIME_LAPSE 输出的帧间隔 [ns]
+    private final double mOutputIntervalNs;
+    private final float mNominalFps;
+
+    // 第一帧的时间戳，TIME_LAPSE 输出时间戳的起点
+    private long mFirstNs = -1;
+    // 当前格点的起点，重新对齐时更新
+    private long mStartNs = -1;
+    private long mLastSlot;
+    private long mOutputFrames;
+
+    // 输出时间戳的统计
+    private long mLastOutputNs = -1;
+    private double mMeanIntervalNs;
+    private double mIntervalVariance;
+    private volatile float mOutputFps;
+    private volatile float mJitterUs;
+    private volatile long mAcceptedCount;
+    private volatile long mDroppedCount;
+
+    /**
+     * @param fps 目标帧率，可以是小数(例如 29.97)
+     */
+    public static XFrameRateGovernor constant(final float fps) {
+        return new XFrameRateGovernor(Mode.CONSTANT, 1e9 / checkFps(fps), 0, fps);
+    }
+
+    /**
+     * 只能用于没有音频编码器的录制
+     *
+     * @param captureIntervalUs 拍摄间隔 [us]
+     * @param playbackFps       播放帧率
+     */
+    public static XFrameRateGovernor timeLapse(final long captureIntervalUs, final float playbackFps) {
+        if (captureIntervalUs <= 0) {
+            throw new IllegalArgumentException("invalid capture interval:" + captureIntervalUs);
+        }
+        return new XFrameRateGovernor(Mode.TIME_LAPSE, captureIntervalUs * 1000.0,
+                1e9 / checkFps(playbackFps), playbackFps);
+    }
+
+    /**
+     * @param maxFps 最大帧率，低于它时跟随相机帧率
+     */
+    public static XFrameRateGovernor variable(final float maxFps) {
+        return new XFrameRateGovernor(Mode.VARIABLE, 1e9 / checkFps(maxFps), 0, maxFps);
+    }
+
+    private XFrameRateGovernor(final Mode mode, final double intervalNs, final double outputIntervalNs,
+                               final float nominalFps) {
+        mMode = mode;
+        mIntervalNs = intervalNs;
+        mOutputIntervalNs = outputIntervalNs;
+        mNominalFps = nominalFps;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return 编码器配置用的帧率(CONSTANT 的目标帧率，TIME_LAPSE 的播放帧率，VARIABLE 的最大帧率)
+     */
+    public float getNominalFps() {
+        return mNominalFps;
+    }
+
+    /**
+     * 开始新的录制
+     */
+    public void reset() {
+        mFirstNs = -1;
+        mStartNs = -1;
+        mLastSlot = 0;
+        mOutputFrames = 0;
+        mLastOutputNs = -1;
+        mMeanIntervalNs = 0;
+        mIntervalVariance = 0;
+        mOutputFps = 0;
+        mJitterUs = 0;
+        mAcceptedCount = 0;
+        mDroppedCount = 0;
+    }
+
+    /**
+     * GLThread 中每个相机帧调用一次
+     *
+     * @param timestampNs 相机帧时间戳，单调递增
+     * @return 这一帧的输出时间戳 [ns]，丢弃时为 -1
+     */
+    public long onFrame(final long timestampNs) {
+        final long outputNs;
+        if (mStartNs < 0 || timestampNs < mStartNs) {
+            // 第一帧(或时钟回退时重新开始)
+            mFirstNs = mStartNs = timestampNs;
+            mLastSlot = 0;
+            mOutputFrames = 0;
+            outputNs = timestampNs;
+        } else {
+            // 到下一个时间格的距离不到半格时丢弃，在下一格的半格以内时取下一格。
+            // 更晚时(相机比目标慢或停顿)以这一帧重新对齐格点，不补发积压的帧，也不会一直落后于相机；
+            // 跳到最接近的格会使下一帧落在半格边界上，抖动时连续丢帧
+            final double position = (timestampNs - mStartNs) / mIntervalNs;
+            if (position < mLastSlot + 0.5) {
+                return drop();
+            }
+            final boolean realign = position > mLastSlot + 1.5;
+            if (realign) {
+                mStartNs = timestampNs;
+                mLastSlot = 0;
+            } else {
+                mLastSlot++;
+            }
+            mOutputFrames++;
+            if (mMode == Mode.CONSTANT) {
+                outputNs = mStartNs + Math.round(mLastSlot * mIntervalNs);
+            } else if (mMode == Mode.TIME_LAPSE) {
+                outputNs = mFirstNs + Math.round(mOutputFrames * mOutputIntervalNs);
+            } else {
+                outputNs = timestampNs;
+            }
+        }
+        mAcceptedCount++;
+        updateStats(outputNs);
+        return outputNs;
+    }
+
+    /**
+     * @return 输出时间戳上测得的帧率(平滑)
+     */
+    public float getOutputFps() {
+        return mOutputFps;
+    }
+
+    /**
+     * @return 输出帧间隔的标准差 [us](平滑)
+     */
+    public float getJitterUs() {
+        return mJitterUs;
+    }
+
+    public long getAcceptedCount() {
+        return mAcceptedCount;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private long drop() {
+        mDroppedCount++;
+        return -1;
+    }
+
+    private void updateStats(final long outputNs) {
+        if (mLastOutputNs >= 0) {
+            final double interval = outputNs - mLastOutputNs;
+            if (mMeanIntervalNs == 0) {
+                mMeanIntervalNs = interval;
+            } else {
+                final double deviation = interval - mMeanIntervalNs;
+                mMeanIntervalNs += deviation * SMOOTHING;
+                mIntervalVariance += (deviation * deviation - mIntervalVariance) * SMOOTHING;
+            }
+            if (mMeanIntervalNs > 0) {
+                mOutputFps = (float) (1e9 / mMeanIntervalNs);
+            }
+            mJitterUs = (float) (Math.sqrt(mIntervalVariance) / 1000);
+        }
+        mLastOutputNs = outputNs;
+    }
+
+    private static float checkFps(final float fps) {
+        if (!(fps > 0)) {
+            throw new IllegalArgumentException("invalid fps:" + fps);
+        }
+        return fps;
+    }
+}
@@ -0,0 +1,65 @@
+package com.serenegiant.xiaxl.media_clock;
+
+/**
+ * 每个轨道写入muxer之前的时间戳处理
+ * <p>
+ * 时间戳来自采集时刻(视频为SurfaceTexture的时间戳，音频为采样数)，由编码器带到输出；
+ * 这里只保证写入muxer的时间戳严格递增，并统计被修正的次数
+ */
+public final class XPtsEngine {
+
+    private final XClock mClock;
+    // 上一次写入的时间戳
+    private long mLastPtsUs = Long.MIN_VALUE;
+    // 被修正的次数
+    private volatile long mCorrectedCount;
+
+    public XPtsEngine(final XClock clock) {
+        if (clock == null) {
+            throw new NullPointerException("XClock is null");
+        }
+        mClock = clock;
+    }
+
+    /**
+     * 新的录制开始时调用
+     */
+    public void reset() {
+        mLastPtsUs = Long.MIN_VALUE;
+        mCorrectedCount = 0;
+    }
+
+    /**
+     * @param ptsUs 编码器输出的时间戳
+     * @return 写入muxer的时间戳
+     */
+    public long toMuxerPtsUs(long ptsUs) {
+        if (ptsUs <= 0) {
+            // 编码器没有带出时间戳，只能使用当前时间
+            ptsUs = mClock.nanoTime() / 1000L;
+            mCorrectedCount++;
+        }
+        if (ptsUs <= mLastPtsUs) {
+            ptsUs = mLastPtsUs + 1;
+            mCorrectedCount++;
+        }
+        mLastPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    /**
+     * @return 当前时间，保证不小于上一次写入的时间戳(用于EOS等没有采集时刻的数据)
+     */
+    public long nowUs() {
+        final long nowUs = mClock.nanoTime() / 1000L;
+        return nowUs > mLastPtsUs ? nowUs : mLastPtsUs + 1;
+    }
+
+    public long getLastPtsUs() {
+        return mLastPtsUs;
+    }
+
+    public long getCorrectedCount() {
+        return mCorrectedCount;
+    }
+}
@@ -0,0 +1,70 @@
+package com.serenegiant.xiaxl.media_clock;
+
+/**
+ * 根据采样数计算音频时间戳
+ * <p>
+ * 第一次读到数据时以当前时间减去这批数据的时长作为起点，
+ * 之后的时间戳 = 起点 + 累计采样数 / 采样率，不受采集线程调度抖动的影响
+ */
+public final class XSampleClock {
+
+    private final XClock mClock;
+    private final int mSampleRate;
+
+    // 起点
+    private long mAnchorUs;
+    // 累计采样数
+    private long mSampleCount;
+    private boolean mStarted;
+
+    public XSampleClock(final XClock clock, final int sampleRate) {
+        if (clock == null) {
+            throw new NullPointerException("XClock is null");
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("invalid sample rate:" + sampleRate);
+        }
+        mClock = clock;
+        mSampleRate = sampleRate;
+    }
+
+    public void reset() {
+        mStarted = false;
+        mSampleCount = 0;
+    }
+
+    /**
+     * 刚读到 samples 个采样时调用
+     *
+     * @param samples 每个声道的采样数
+     * @return 这批数据第一个采样的时间戳
+     */
+    public long onSamples(final int samples) {
+        if (!mStarted) {
+            mStarted = true;
+            mAnchorUs = mClock.nanoTime() / 1000L - samplesToUs(samples);
+        }
+        final long ptsUs = mAnchorUs + samplesToUs(mSampleCount);
+        mSampleCount += samples;
+        return ptsUs;
+    }
+
+    /**
+     * @return 下一个采样的时间戳
+     */
+    public long getNextPtsUs() {
+        return mAnchorUs + samplesToUs(mSampleCount);
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    private long samplesToUs(final long samples) {
+        return samples * 1000000L / mSampleRate;
+    }
+}
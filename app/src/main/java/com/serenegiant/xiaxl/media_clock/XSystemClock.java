@@ -0,0 +1,17 @@
+package com.serenegiant.xiaxl.media_clock;
+
+/**
+ * 系统单调时钟(System.nanoTime)
+ */
+public final class XSystemClock implements XClock {
+
+    public static final XSystemClock INSTANCE = new XSystemClock();
+
+    private XSystemClock() {
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,282 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import com.serenegiant.xiaxl.LogUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回调模式的 MediaCodec 后端(API 21)
+ * <p>
+ * 空闲的输入缓冲区与编码好的输出缓冲区由 MediaCodec.Callback 推送到队列中，
+ * 编码线程直接从队列中取，不再用固定的超时时间去轮询编码器
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class XAsyncMediaCodecBackend implements XSurfaceCodecBackend {
+
+    private static final String TAG = XAsyncMediaCodecBackend.class.getSimpleName();
+
+    private final MediaCodec mMediaCodec;
+    // 回调线程。API 23 才能给 setCallback 指定Handler，之前的版本回调运行在创建 MediaCodec 的线程的Looper上，
+    // 所以 API 21/22 在回调线程中创建 MediaCodec，否则回调会跑到UI线程
+    private HandlerThread mCallbackThread;
+
+    // 可用的输入缓冲区索引
+    private final LinkedBlockingQueue<Integer> mInputIndices = new LinkedBlockingQueue<Integer>();
+    // 可用的输出缓冲区索引，以及 INFO_OUTPUT_FORMAT_CHANGED
+    private final LinkedBlockingQueue<Integer> mOutputIndices = new LinkedBlockingQueue<Integer>();
+    // 每个输出缓冲区索引对应的BufferInfo，复用以减少GC
+    private XCodecBufferInfo[] mOutputInfos = new XCodecBufferInfo[0];
+
+    private volatile XCodecFormat mOutputFormat;
+    private volatile MediaCodec.CodecException mError;
+    private volatile OnOutputAvailableListener mListener;
+
+    public XAsyncMediaCodecBackend(final String mimeType) throws IOException {
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+        try {
+            mMediaCodec = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? MediaCodec.createEncoderByType(mimeType)
+                    : createOnCallbackThread(mimeType);
+        } catch (final IOException | RuntimeException e) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+            throw e;
+        }
+    }
+
+    /**
+     * 在回调线程中创建 MediaCodec，使 setCallback(callback) 的回调运行在回调线程的Looper上
+     *
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    private MediaCodec createOnCallbackThread(final String mimeType) throws IOException {
+        final Object[] result = new Object[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(mCallbackThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = MediaCodec.createEncoderByType(mimeType);
+                } catch (final IOException | RuntimeException e) {
+                    result[0] = e;
+                }
+                latch.countDown();
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (result[0] instanceof IOException) {
+            throw (IOException) result[0];
+        } else if (result[0] instanceof RuntimeException) {
+            throw (RuntimeException) result[0];
+        }
+        return (MediaCodec) result[0];
+    }
+
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+            mInputIndices.offer(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+            obtainOutputInfo(index).set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            mOutputIndices.offer(index);
+            notifyOutputAvailable();
+        }
+
+        @Override
+        public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+            LogUtils.e(TAG, "onError:", e);
+            mError = e;
+            notifyOutputAvailable();
+        }
+
+        @Override
+        public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+            mOutputFormat = XMediaFormats.fromMediaFormat(format);
+            mOutputIndices.offer(INFO_OUTPUT_FORMAT_CHANGED);
+            notifyOutputAvailable();
+        }
+    };
+
+    @Override
+    public void configure(final XCodecFormat format) {
+        // setCallback 必须在 configure 之前调用
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mMediaCodec.setCallback(mCallback, new Handler(mCallbackThread.getLooper()));
+        } else {
+            // MediaCodec 是在回调线程中创建的，回调运行在回调线程的Looper上
+            mMediaCodec.setCallback(mCallback);
+        }
+        mMediaCodec.configure(XMediaFormats.toMediaFormat(format), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+        mInputIndices.clear();
+        mOutputIndices.clear();
+    }
+
+    @Override
+    public boolean isEventDriven() {
+        return true;
+    }
+
+    @Override
+    public void setOnOutputAvailableListener(final OnOutputAvailableListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        checkError();
+        final Integer index = poll(mInputIndices, timeoutUs);
+        return index != null ? index : INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mMediaCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final XCodecBufferInfo info, final long timeoutUs) {
+        checkError();
+        final Integer index = poll(mOutputIndices, timeoutUs);
+        if (index == null) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        if (index >= 0) {
+            info.set(obtainOutputInfo(index));
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mMediaCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public XCodecFormat getOutputFormat() {
+        final XCodecFormat format = mOutputFormat;
+        return format != null ? format : XMediaFormats.fromMediaFormat(mMediaCodec.getOutputFormat());
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitrate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            mMediaCodec.setParameters(params);
+        }
+    }
+
+    /**
+     * 获取索引对应的BufferInfo，不够时扩容
+     *
+     * @param index
+     * @return
+     */
+    private synchronized XCodecBufferInfo obtainOutputInfo(final int index) {
+        if (index >= mOutputInfos.length) {
+            final XCodecBufferInfo[] infos = new XCodecBufferInfo[index + 1];
+            System.arraycopy(mOutputInfos, 0, infos, 0, mOutputInfos.length);
+            for (int i = mOutputInfos.length; i < infos.length; i++) {
+                infos[i] = new XCodecBufferInfo();
+            }
+            mOutputInfos = infos;
+        }
+        return mOutputInfos[index];
+    }
+
+    private void notifyOutputAvailable() {
+        final OnOutputAvailableListener listener = mListener;
+        if (listener != null) {
+            listener.onOutputAvailable(this);
+        }
+    }
+
+    private void checkError() {
+        if (mError != null) {
+            throw new IllegalStateException("codec error", mError);
+        }
+    }
+
+    private static Integer poll(final LinkedBlockingQueue<Integer> queue, final long timeoutUs) {
+        try {
+            if (timeoutUs == 0) {
+                return queue.poll();
+            } else if (timeoutUs < 0) {
+                return queue.take();
+            }
+            return queue.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+}
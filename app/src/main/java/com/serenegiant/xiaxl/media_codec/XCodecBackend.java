@@ -0,0 +1,89 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 编码器后端
+ * <p>
+ * BaseMediaEncoderRunable 通过该接口使用编码器，而不直接依赖 MediaCodec，
+ * 常量的取值与 MediaCodec 中对应的常量一致。
+ * 接口中不出现android类型(格式用 XCodecFormat)，编码状态机可以接 XFakeCodecBackend 在普通JVM上运行；
+ * surface输入的编码器另外实现 XSurfaceCodecBackend
+ */
+public interface XCodecBackend {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_KEY_FRAME = 1;
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /**
+     * 有新的输出数据时回调(事件驱动的后端才会回调)，运行在编码器内部线程
+     */
+    interface OnOutputAvailableListener {
+        void onOutputAvailable(XCodecBackend backend);
+    }
+
+    /**
+     * 以编码模式配置
+     *
+     * @param format
+     * @throws IOException
+     */
+    void configure(XCodecFormat format) throws IOException;
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    /**
+     * @return true 输出数据由后端主动推送，不需要轮询等待
+     */
+    boolean isEventDriven();
+
+    void setOnOutputAvailableListener(OnOutputAvailableListener listener);
+
+    /**
+     * @param timeoutUs
+     * @return 输入缓冲区索引，或 INFO_TRY_AGAIN_LATER
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @param info
+     * @param timeoutUs
+     * @return 输出缓冲区索引，或 INFO_* 状态
+     */
+    int dequeueOutputBuffer(XCodecBufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * @return 输出格式(INFO_OUTPUT_FORMAT_CHANGED 之后包含 csd-0/csd-1)
+     */
+    XCodecFormat getOutputFormat();
+
+    /**
+     * surface输入时结束编码
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * 编码过程中调整视频码率(API 19)，不支持时忽略
+     *
+     * @param bitrate
+     */
+    void setVideoBitrate(int bitrate);
+}
@@ -0,0 +1,11 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import java.io.IOException;
+
+/**
+ * 根据mime创建编码器后端
+ */
+public interface XCodecBackendFactory {
+
+    XCodecBackend create(String mimeType) throws IOException;
+}
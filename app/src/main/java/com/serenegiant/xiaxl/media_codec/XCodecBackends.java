@@ -0,0 +1,62 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * 常用的编码器后端工厂
+ */
+public final class XCodecBackends {
+
+    /**
+     * 轮询模式，兼容所有版本
+     */
+    public static final XCodecBackendFactory SYNC = new XCodecBackendFactory() {
+        @Override
+        public XCodecBackend create(final String mimeType) throws IOException {
+            return new XSyncMediaCodecBackend(mimeType);
+        }
+    };
+
+    /**
+     * 回调模式，需要 API 21
+     */
+    public static final XCodecBackendFactory ASYNC = new XCodecBackendFactory() {
+        @Override
+        public XCodecBackend create(final String mimeType) throws IOException {
+            return new XAsyncMediaCodecBackend(mimeType);
+        }
+    };
+
+    /**
+     * 默认: 支持时使用回调模式
+     */
+    public static final XCodecBackendFactory DEFAULT = new XCodecBackendFactory() {
+        @Override
+        public XCodecBackend create(final String mimeType) throws IOException {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return new XAsyncMediaCodecBackend(mimeType);
+            }
+            return new XSyncMediaCodecBackend(mimeType);
+        }
+    };
+
+    /**
+     * 进程内的假编码器，用于在JVM上压测
+     *
+     * @param latencyUs 每帧的编码延时
+     * @return
+     */
+    public static XCodecBackendFactory fake(final long latencyUs) {
+        return new XCodecBackendFactory() {
+            @Override
+            public XCodecBackend create(final String mimeType) {
+                return new XFakeCodecBackend(latencyUs);
+            }
+        };
+    }
+
+    private XCodecBackends() {
+    }
+}
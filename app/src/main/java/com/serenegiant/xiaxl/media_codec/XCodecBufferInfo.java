@@ -0,0 +1,42 @@
+package com.serenegiant.xiaxl.media_codec;
+
+/**
+ * 与 MediaCodec.BufferInfo 等价的输出缓冲区描述
+ * <p>
+ * 不依赖android类，便于在普通JVM上运行编码状态机
+ */
+public final class XCodecBufferInfo {
+
+    // 数据在缓冲区中的起始位置
+    public int offset;
+    // 数据长度
+    public int size;
+    // 时间戳
+    public long presentationTimeUs;
+    // XCodecBackend.BUFFER_FLAG_*
+    public int flags;
+
+    /**
+     * 设置所有字段
+     *
+     * @param newOffset
+     * @param newSize
+     * @param newTimeUs
+     * @param newFlags
+     */
+    public void set(final int newOffset, final int newSize, final long newTimeUs, final int newFlags) {
+        offset = newOffset;
+        size = newSize;
+        presentationTimeUs = newTimeUs;
+        flags = newFlags;
+    }
+
+    /**
+     * 从另一个BufferInfo拷贝
+     *
+     * @param other
+     */
+    public void set(final XCodecBufferInfo other) {
+        set(other.offset, other.size, other.presentationTimeUs, other.flags);
+    }
+}
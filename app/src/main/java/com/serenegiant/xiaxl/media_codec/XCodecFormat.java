@@ -0,0 +1,162 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * 编码器的输入/输出格式，对应 MediaFormat 中用到的部分
+ * <p>
+ * 不依赖android类，XCodecBackend、编码线程与封装输出之间都传递这个类型，
+ * 只有 MediaCodec/MediaMuxer 的后端在边界上与 MediaFormat 互相转换(XMediaFormats)。
+ * key 与 MediaFormat 中对应的常量一致
+ */
+public final class XCodecFormat {
+
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_CHANNEL_MASK = "channel-mask";
+    public static final String KEY_AAC_PROFILE = "aac-profile";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+    // 编码器的配置数据(H.264 的 SPS/PPS，AAC 的 AudioSpecificConfig)
+    public static final String KEY_CSD_0 = "csd-0";
+    public static final String KEY_CSD_1 = "csd-1";
+
+    private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+
+    public XCodecFormat() {
+    }
+
+    /**
+     * @param mime
+     * @param width
+     * @param height
+     * @return 视频格式
+     */
+    public static XCodecFormat createVideoFormat(final String mime, final int width, final int height) {
+        final XCodecFormat format = new XCodecFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    /**
+     * @param mime
+     * @param sampleRate
+     * @param channelCount
+     * @return 音频格式
+     */
+    public static XCodecFormat createAudioFormat(final String mime, final int sampleRate, final int channelCount) {
+        final XCodecFormat format = new XCodecFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public boolean containsKey(final String key) {
+        return mValues.containsKey(key);
+    }
+
+    public void setString(final String key, final String value) {
+        mValues.put(key, value);
+    }
+
+    public void setInteger(final String key, final int value) {
+        mValues.put(key, value);
+    }
+
+    /**
+     * @param key
+     * @param value 保存 position 到 limit 之间数据的拷贝
+     */
+    public void setByteBuffer(final String key, final ByteBuffer value) {
+        if (value == null) {
+            mValues.remove(key);
+            return;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(value.remaining());
+        copy.put(value.duplicate()).flip();
+        mValues.put(key, copy);
+    }
+
+    /**
+     * @param key
+     * @return 没有时为null
+     */
+    public String getString(final String key) {
+        return (String) mValues.get(key);
+    }
+
+    /**
+     * @param key
+     * @return
+     * @throws NullPointerException 没有这个key
+     */
+    public int getInteger(final String key) {
+        return (Integer) mValues.get(key);
+    }
+
+    /**
+     * @param key
+     * @param defaultValue 没有这个key时的返回值
+     * @return
+     */
+    public int getInteger(final String key, final int defaultValue) {
+        final Integer value = (Integer) mValues.get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @param key
+     * @return 只读的数据，没有时为null
+     */
+    public ByteBuffer getByteBuffer(final String key) {
+        final ByteBuffer value = (ByteBuffer) mValues.get(key);
+        return value != null ? value.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return mime 是 video/xxx
+     */
+    public boolean isVideo() {
+        final String mime = getString(KEY_MIME);
+        return mime != null && mime.startsWith("video/");
+    }
+
+    /**
+     * @return mime 是 audio/xxx
+     */
+    public boolean isAudio() {
+        final String mime = getString(KEY_MIME);
+        return mime != null && mime.startsWith("audio/");
+    }
+
+    /**
+     * @return 所有的key，用于转换成 MediaFormat
+     */
+    public String[] keys() {
+        return mValues.keySet().toArray(new String[mValues.size()]);
+    }
+
+    /**
+     * @param key
+     * @return 对应的值(String / Integer / 只读的 ByteBuffer)，没有时为null
+     */
+    public Object get(final String key) {
+        final Object value = mValues.get(key);
+        return value instanceof ByteBuffer ? ((ByteBuffer) value).asReadOnlyBuffer() : value;
+    }
+
+    @Override
+    public String toString() {
+        return "XCodecFormat" + mValues;
+    }
+}
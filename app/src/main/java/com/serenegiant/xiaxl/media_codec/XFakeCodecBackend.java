@@ -0,0 +1,321 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内的假编码器
+ * <p>
+ * 输入数据原样拷贝到输出，经过固定的延时后"编码完成"，完成时(而不是送入时)通知监听者，
+ * 与回调模式的 MediaCodec 一样。不调用任何android方法，可以在普通JVM上对编码状态机进行压测。
+ * 没有输入surface，视频编码器接这个后端时直接送入缓冲区
+ */
+public class XFakeCodecBackend implements XCodecBackend {
+
+    // 缓冲区数量与大小
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 每隔多少帧输出一个关键帧
+    private static final int KEY_FRAME_INTERVAL = 30;
+
+    private final Object mSync = new Object();
+    private final long mLatencyUs;
+
+    // surface输入结束时使用的输出缓冲区，不对应输入缓冲区
+    private static final int EOS_INDEX = BUFFER_COUNT;
+
+    private final ByteBuffer[] mInputBuffers = new ByteBuffer[BUFFER_COUNT];
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[BUFFER_COUNT + 1];
+    private final XCodecBufferInfo[] mOutputInfos = new XCodecBufferInfo[BUFFER_COUNT + 1];
+    // 每个输出缓冲区编码完成的时间
+    private final long[] mReadyTimeNs = new long[BUFFER_COUNT + 1];
+
+    // 空闲的输入缓冲区
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>(BUFFER_COUNT);
+    // 编码中/已完成的输出缓冲区，按入队顺序
+    private final ArrayDeque<Integer> mPendingOutputs = new ArrayDeque<Integer>(BUFFER_COUNT);
+    // 已被取走但还没有release的输出缓冲区
+    private final boolean[] mOutputInUse = new boolean[BUFFER_COUNT + 1];
+
+    private XCodecFormat mFormat;
+    // 编码完成时通知监听者
+    private ScheduledExecutorService mNotifier;
+    private boolean mStarted;
+    private boolean mFormatNotified;
+    private int mFrameCount;
+    private volatile int mVideoBitrate;
+    private volatile OnOutputAvailableListener mListener;
+
+    /**
+     * @param latencyUs 每帧的编码延时
+     */
+    public XFakeCodecBackend(final long latencyUs) {
+        mLatencyUs = latencyUs;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        mOutputBuffers[EOS_INDEX] = ByteBuffer.allocateDirect(0);
+        for (int i = 0; i <= BUFFER_COUNT; i++) {
+            mOutputInfos[i] = new XCodecBufferInfo();
+        }
+    }
+
+    @Override
+    public void configure(final XCodecFormat format) {
+        mFormat = format;
+    }
+
+    @Override
+    public void start() {
+        synchronized (mSync) {
+            mFreeInputs.clear();
+            mPendingOutputs.clear();
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                mFreeInputs.add(i);
+            }
+            for (int i = 0; i <= BUFFER_COUNT; i++) {
+                mOutputInUse[i] = false;
+            }
+            mFormatNotified = false;
+            mFrameCount = 0;
+            mStarted = true;
+            if (mNotifier == null) {
+                mNotifier = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "XFakeCodecBackend");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            mSync.notifyAll();
+        }
+    }
+
+    @Override
+    public void stop() {
+        final ScheduledExecutorService notifier;
+        synchronized (mSync) {
+            mStarted = false;
+            notifier = mNotifier;
+            mNotifier = null;
+            mSync.notifyAll();
+        }
+        if (notifier != null) {
+            notifier.shutdownNow();
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+    }
+
+    @Override
+    public boolean isEventDriven() {
+        return true;
+    }
+
+    @Override
+    public void setOnOutputAvailableListener(final OnOutputAvailableListener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        synchronized (mSync) {
+            final long deadlineNs = deadline(timeoutUs);
+            while (mStarted && mFreeInputs.isEmpty()) {
+                if (!await(deadlineNs)) {
+                    break;
+                }
+            }
+            if (!mStarted || mFreeInputs.isEmpty()) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            return mFreeInputs.poll();
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        synchronized (mSync) {
+            // 输入与输出缓冲区一一对应，"编码"即拷贝
+            final ByteBuffer src = mInputBuffers[index];
+            final ByteBuffer dst = mOutputBuffers[index];
+            src.limit(offset + size).position(offset);
+            dst.clear();
+            dst.put(src);
+            dst.flip();
+            int outFlags = flags;
+            if ((flags & BUFFER_FLAG_END_OF_STREAM) == 0 && (mFrameCount++ % KEY_FRAME_INTERVAL) == 0) {
+                outFlags |= BUFFER_FLAG_KEY_FRAME;
+            }
+            mOutputInfos[index].set(0, size, presentationTimeUs, outFlags);
+            mReadyTimeNs[index] = System.nanoTime() + mLatencyUs * 1000L;
+            mPendingOutputs.add(index);
+            mSync.notifyAll();
+        }
+        notifyWhenReady();
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final XCodecBufferInfo info, final long timeoutUs) {
+        synchronized (mSync) {
+            if (!mFormatNotified && mStarted) {
+                mFormatNotified = true;
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            final long deadlineNs = deadline(timeoutUs);
+            for (; ; ) {
+                if (!mStarted) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+                final Integer head = mPendingOutputs.peek();
+                if (head != null) {
+                    final long waitNs = mReadyTimeNs[head] - System.nanoTime();
+                    if (waitNs <= 0) {
+                        mPendingOutputs.poll();
+                        mOutputInUse[head] = true;
+                        info.set(mOutputInfos[head]);
+                        return head;
+                    }
+                    final long remainNs = deadlineNs - System.nanoTime();
+                    if (remainNs <= 0) {
+                        return INFO_TRY_AGAIN_LATER;
+                    }
+                    if (!waitNanos(Math.min(waitNs, remainNs))) {
+                        return INFO_TRY_AGAIN_LATER;
+                    }
+                } else if (!await(deadlineNs)) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        synchronized (mSync) {
+            if (mOutputInUse[index]) {
+                mOutputInUse[index] = false;
+                if (index != EOS_INDEX) {
+                    mFreeInputs.add(index);
+                }
+                mSync.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public XCodecFormat getOutputFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mSync) {
+            mOutputInfos[EOS_INDEX].set(0, 0, 0, BUFFER_FLAG_END_OF_STREAM);
+            mReadyTimeNs[EOS_INDEX] = System.nanoTime() + mLatencyUs * 1000L;
+            mPendingOutputs.add(EOS_INDEX);
+            mSync.notifyAll();
+        }
+        notifyWhenReady();
+    }
+
+    /**
+     * 经过 mLatencyUs 后(输出可以取出时)通知监听者
+     */
+    private void notifyWhenReady() {
+        if (mLatencyUs <= 0) {
+            notifyOutputAvailable();
+            return;
+        }
+        synchronized (mSync) {
+            if (mNotifier != null) {
+                mNotifier.schedule(mNotifyTask, mLatencyUs, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    private final Runnable mNotifyTask = new Runnable() {
+        @Override
+        public void run() {
+            notifyOutputAvailable();
+        }
+    };
+
+    @Override
+    public void setVideoBitrate(final int bitrate) {
+        mVideoBitrate = bitrate;
+    }
+
+    /**
+     * @return 最近一次设置的码率，用于检查降级逻辑
+     */
+    public int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    private void notifyOutputAvailable() {
+        final OnOutputAvailableListener listener = mListener;
+        if (listener != null) {
+            listener.onOutputAvailable(this);
+        }
+    }
+
+    private static long deadline(final long timeoutUs) {
+        return timeoutUs < 0 ? Long.MAX_VALUE : System.nanoTime() + timeoutUs * 1000L;
+    }
+
+    /**
+     * 在mSync上等待直到被唤醒或超时
+     *
+     * @param deadlineNs
+     * @return false 已超时或被中断
+     */
+    private boolean await(final long deadlineNs) {
+        if (deadlineNs == Long.MAX_VALUE) {
+            return waitNanos(0);
+        }
+        final long remainNs = deadlineNs - System.nanoTime();
+        if (remainNs <= 0) {
+            return false;
+        }
+        return waitNanos(remainNs);
+    }
+
+    /**
+     * @param nanos 0表示一直等待
+     * @return false 被中断
+     */
+    private boolean waitNanos(final long nanos) {
+        try {
+            if (nanos <= 0) {
+                mSync.wait();
+            } else {
+                mSync.wait(nanos / 1000000L, (int) (nanos % 1000000L));
+            }
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
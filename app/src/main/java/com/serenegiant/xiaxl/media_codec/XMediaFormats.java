@@ -0,0 +1,74 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * XCodecFormat 与 MediaFormat 的转换，只在 MediaCodec/MediaMuxer 的后端中使用
+ */
+public final class XMediaFormats {
+
+    private static final String[] INTEGER_KEYS = {
+            XCodecFormat.KEY_WIDTH, XCodecFormat.KEY_HEIGHT, XCodecFormat.KEY_COLOR_FORMAT,
+            XCodecFormat.KEY_BIT_RATE, XCodecFormat.KEY_FRAME_RATE, XCodecFormat.KEY_I_FRAME_INTERVAL,
+            XCodecFormat.KEY_SAMPLE_RATE, XCodecFormat.KEY_CHANNEL_COUNT, XCodecFormat.KEY_CHANNEL_MASK,
+            XCodecFormat.KEY_AAC_PROFILE, XCodecFormat.KEY_MAX_INPUT_SIZE,
+    };
+    private static final String[] BUFFER_KEYS = {
+            XCodecFormat.KEY_CSD_0, XCodecFormat.KEY_CSD_1,
+    };
+
+    private XMediaFormats() {
+    }
+
+    /**
+     * @param format
+     * @return 传给 MediaCodec.configure / MediaMuxer.addTrack 的格式
+     */
+    public static MediaFormat toMediaFormat(final XCodecFormat format) {
+        final MediaFormat mediaFormat = new MediaFormat();
+        for (final String key : format.keys()) {
+            final Object value = format.get(key);
+            if (value instanceof String) {
+                mediaFormat.setString(key, (String) value);
+            } else if (value instanceof Integer) {
+                mediaFormat.setInteger(key, (Integer) value);
+            } else if (value instanceof ByteBuffer) {
+                final ByteBuffer src = (ByteBuffer) value;
+                final ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+                copy.put(src).flip();
+                mediaFormat.setByteBuffer(key, copy);
+            }
+        }
+        return mediaFormat;
+    }
+
+    /**
+     * 编码器的输出格式中，封装时用到的值
+     *
+     * @param mediaFormat MediaCodec.getOutputFormat()
+     * @return
+     */
+    public static XCodecFormat fromMediaFormat(final MediaFormat mediaFormat) {
+        final XCodecFormat format = new XCodecFormat();
+        if (mediaFormat.containsKey(MediaFormat.KEY_MIME)) {
+            format.setString(XCodecFormat.KEY_MIME, mediaFormat.getString(MediaFormat.KEY_MIME));
+        }
+        for (final String key : INTEGER_KEYS) {
+            if (mediaFormat.containsKey(key)) {
+                try {
+                    format.setInteger(key, mediaFormat.getInteger(key));
+                } catch (final ClassCastException e) {
+                    // 有的编码器把 frame-rate 等保存为 float，封装时用不到
+                }
+            }
+        }
+        for (final String key : BUFFER_KEYS) {
+            if (mediaFormat.containsKey(key)) {
+                format.setByteBuffer(key, mediaFormat.getByteBuffer(key));
+            }
+        }
+        return format;
+    }
+}
@@ -0,0 +1,18 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import android.view.Surface;
+
+/**
+ * 可以用surface作为输入的编码器后端(MediaCodec)
+ * <p>
+ * 视频编码器的后端实现这个接口时由录制线程绘制到输入surface，否则直接送入缓冲区
+ */
+public interface XSurfaceCodecBackend extends XCodecBackend {
+
+    /**
+     * 只能在 configure 与 start 之间调用
+     *
+     * @return 编码器的输入surface
+     */
+    Surface createInputSurface();
+}
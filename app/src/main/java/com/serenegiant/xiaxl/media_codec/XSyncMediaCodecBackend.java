@@ -0,0 +1,120 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 轮询模式的 MediaCodec 后端(dequeueInputBuffer/dequeueOutputBuffer)
+ */
+public class XSyncMediaCodecBackend implements XSurfaceCodecBackend {
+
+    private final MediaCodec mMediaCodec;
+    // create BufferInfo here for effectiveness(to reduce GC)
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    //
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    public XSyncMediaCodecBackend(final String mimeType) throws IOException {
+        mMediaCodec = MediaCodec.createEncoderByType(mimeType);
+    }
+
+    @Override
+    public void configure(final XCodecFormat format) {
+        mMediaCodec.configure(XMediaFormats.toMediaFormat(format), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    }
+
+    @Override
+    public Surface createInputSurface() {
+        return mMediaCodec.createInputSurface();
+    }
+
+    @Override
+    public void start() {
+        mMediaCodec.start();
+        mInputBuffers = mMediaCodec.getInputBuffers();
+        mOutputBuffers = mMediaCodec.getOutputBuffers();
+    }
+
+    @Override
+    public void stop() {
+        mMediaCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaCodec.release();
+        mInputBuffers = mOutputBuffers = null;
+    }
+
+    @Override
+    public boolean isEventDriven() {
+        return false;
+    }
+
+    @Override
+    public void setOnOutputAvailableListener(final OnOutputAvailableListener listener) {
+        // 轮询模式没有回调
+    }
+
+    @Override
+    public int dequeueInputBuffer(final long timeoutUs) {
+        return mMediaCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(final int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, final int offset, final int size, final long presentationTimeUs, final int flags) {
+        mMediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(final XCodecBufferInfo info, final long timeoutUs) {
+        final int index = mMediaCodec.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (index >= 0) {
+            info.set(mBufferInfo.offset, mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+        } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            // this shoud not come when encoding
+            mOutputBuffers = mMediaCodec.getOutputBuffers();
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(final int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index) {
+        mMediaCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public XCodecFormat getOutputFormat() {
+        return XMediaFormats.fromMediaFormat(mMediaCodec.getOutputFormat());
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mMediaCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void setVideoBitrate(final int bitrate) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            mMediaCodec.setParameters(params);
+        }
+    }
+}
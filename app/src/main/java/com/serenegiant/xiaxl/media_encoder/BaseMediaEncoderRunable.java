@@ -1,14 +1,19 @@
 package com.serenegiant.xiaxl.media_encoder;
 
-
-import android.media.MediaCodec;
-import android.media.MediaFormat;
-
 import com.serenegiant.xiaxl.LogUtils;
+import com.serenegiant.xiaxl.media_clock.XPtsEngine;
+import com.serenegiant.xiaxl.media_codec.XCodecBackend;
+import com.serenegiant.xiaxl.media_codec.XCodecBackendFactory;
+import com.serenegiant.xiaxl.media_codec.XCodecBackends;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+import com.serenegiant.xiaxl.media_metrics.XStageMetrics;
 import com.serenegiant.xiaxl.media_muxer.XMediaMuxerManager;
+import com.serenegiant.xiaxl.util.XCoalescingSignal;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 视频与音频录制的基类
@@ -19,6 +24,13 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
 
     // 10[msec]
     protected static final int TIMEOUT_USEC = 10000;
+    // 停止时等待剩余输入送完，每 10[msec] 取一次输出
+    private static final long INPUT_FINISH_POLL_MS = 10;
+    // 输入线程默认最多等待编码器 100[msec]
+    private static final long DEFAULT_BACKPRESSURE_DEADLINE_USEC = 100000;
+    // DROP_OLDEST 策略最多暂存的帧数与每帧的缓冲区大小
+    private static final int INPUT_STASH_CAPACITY = 8;
+    private static final int INPUT_STASH_BUFFER_SIZE = 8192;
 
     /**
      *
@@ -35,27 +47,40 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
     // 是否正在进行录制的状态记录
     protected volatile boolean mIsCapturing;
     // Flag that indicate the frame data will be available soon.
-    // 可用数据帧数量
-    private int mRequestDrainEncoderCount;
+    // 取编码数据的请求(无锁，多个请求会合并)
+    private final XCoalescingSignal mDrainSignal = new XCoalescingSignal();
     // Flag to request stop capturing
     // 结束录制的标识
     protected volatile boolean mRequestStop;
     // Flag that indicate encoder received EOS(End Of Stream)
     // 结束录制标识
-    protected boolean mIsEndOfStream;
+    protected volatile boolean mIsEndOfStream;
     //Flag the indicate the muxer is running
     // muxer结束标识
-    protected boolean mMuxerStarted;
+    protected volatile boolean mMuxerStarted;
     //Track Number
     protected int mTrackIndex;
 
     /**
      * -----------------------------
      */
-    // MediaCodec instance for encoding
-    protected MediaCodec mMediaCodec;
+    // 编码器后端工厂
+    private XCodecBackendFactory mCodecBackendFactory = XCodecBackends.DEFAULT;
+    // codec instance for encoding
+    protected XCodecBackend mCodec;
     // BufferInfo instance for dequeuing
-    private MediaCodec.BufferInfo mBufferInfo;
+    private XCodecBufferInfo mCodecBufferInfo;
+    // 编码线程与输入线程(AudioThread)都可能取编码数据
+    private final ReentrantLock mDrainLock = new ReentrantLock();
+    // 取编码数据的等待策略与统计
+    private final XDrainScheduler mDrainScheduler = new XDrainScheduler();
+    // 写入muxer的时间戳处理
+    protected final XPtsEngine mPtsEngine;
+    // 编码器跟不上时的处理策略
+    protected final XBackpressureController mBackpressure =
+            new XBackpressureController(XBackpressureController.Policy.BLOCK_WITH_DEADLINE, DEFAULT_BACKPRESSURE_DEADLINE_USEC);
+    // DROP_OLDEST 策略的暂存区，只在输入线程中使用
+    private XInputStash mInputStash;
 
     /**
      * ----------------------------
@@ -83,6 +108,7 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
         //
         this.mXMediaMuxerManager = mediaMuxerManager;
         this.mMediaEncoderListener = mediaEncoderListener;
+        this.mPtsEngine = new XPtsEngine(mediaMuxerManager.getClock());
         //
         //
         this.mXMediaMuxerManager.addEncoder(BaseMediaEncoderRunable.this);
@@ -92,7 +118,7 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
         synchronized (mSync) {
             LogUtils.d(TAG,"---BaseMediaEncoderRunable synchronized (mSync) begin---");
             // create BufferInfo here for effectiveness(to reduce GC)
-            mBufferInfo = new MediaCodec.BufferInfo();
+            mCodecBufferInfo = new XCodecBufferInfo();
             // wait for starting thread
             new Thread(this, getClass().getSimpleName()).start();
             try {
@@ -111,25 +137,27 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
      * @return return true if encoder is ready to encod.
      */
     public boolean frameAvailableSoon() {
-        LogUtils.d(TAG, "---frameAvailableSoon---");
-        LogUtils.d(TAG, "---mSync before begin---");
-        synchronized (mSync) {
-            LogUtils.d(TAG, "---mSync begin---");
-            if (!mIsCapturing || mRequestStop) {
-                LogUtils.d(TAG, "mIsCapturing: "+mIsCapturing);
-                LogUtils.d(TAG, "mRequestStop: "+mRequestStop);
-                LogUtils.d(TAG, "return false");
-                return false;
-            }
-            mRequestDrainEncoderCount++;
-            LogUtils.d(TAG, "mRequestDrainEncoderCount: "+mRequestDrainEncoderCount);
-            mSync.notifyAll();
+        // 每帧都会调用，不加锁也不打日志，调用线程不会被编码线程阻塞
+        if (!mIsCapturing || mRequestStop) {
+            return false;
         }
-        LogUtils.d(TAG, "---mSync end---");
-        LogUtils.d(TAG, "return true");
+        mDrainSignal.signal();
         return true;
     }
 
+    /**
+     * 事件驱动的编码器有输出时，请求编码线程取数据
+     */
+    private final XCodecBackend.OnOutputAvailableListener mOnOutputAvailableListener = new XCodecBackend.OnOutputAvailableListener() {
+        @Override
+        public void onOutputAvailable(final XCodecBackend backend) {
+            if (!mIsCapturing || mRequestStop) {
+                return;
+            }
+            mDrainSignal.signal();
+        }
+    };
+
     /**
      * encoding loop on private thread
      */
@@ -142,30 +170,23 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
             LogUtils.d(TAG,"---run synchronized (mSync) begin---");
             //
             mRequestStop = false;
-            mRequestDrainEncoderCount = 0;
+            mDrainSignal.reset();
+            mDrainSignal.bindConsumer();
             //
             mSync.notify();
         }
         LogUtils.d(TAG,"---run synchronized (mSync) end---");
         // 线程开启
         final boolean isRunning = true;
-        boolean localRequestStop;
-        boolean localRequestDrainEncoderFlag;
+        int localDrainRequests = 0;
         while (isRunning) {
-            //
-            LogUtils.d(TAG,"---run2 synchronized (mSync) before begin---");
-            synchronized (mSync) {
-                LogUtils.d(TAG,"---run2 synchronized (mSync) begin---");
-                localRequestStop = mRequestStop;
-                localRequestDrainEncoderFlag = (mRequestDrainEncoderCount > 0);
-                if (localRequestDrainEncoderFlag) {
-                    mRequestDrainEncoderCount--;
-                }
-            }
-            LogUtils.d(TAG,"---run2 synchronized (mSync) end---");
             // 停止编码时，调用
-            if (localRequestStop) {
+            if (mRequestStop) {
                 drainEncoder();
+                // 等子类把已经采集的数据送完再送EOS，等待期间继续取输出，避免编码器没有空闲的输入缓冲区
+                while (mIsCapturing && !awaitInputFinished(INPUT_FINISH_POLL_MS)) {
+                    drainEncoder();
+                }
                 // request stop recording
                 signalEndOfInputStream();
                 // process output data again for EOS signale
@@ -174,22 +195,15 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
                 release();
                 break;
             }
-            // 需要编码
-            if (localRequestDrainEncoderFlag) {
+            // 需要编码，期间到达的多个请求只需要取一次
+            if (localDrainRequests > 0) {
                 drainEncoder();
-            } else {
-                // ------线程进入等待状态---------
-                LogUtils.d(TAG,"---run3 synchronized (mSync) before begin---");
-                synchronized (mSync) {
-                    LogUtils.d(TAG,"---run3 synchronized (mSync) begin---");
-                    try {
-                        mSync.wait();
-                    } catch (final InterruptedException e) {
-                        e.printStackTrace();
-                        break;
-                    }
-                }
-                LogUtils.d(TAG,"---run3 synchronized (mSync) end---");
+            }
+            // ------线程进入等待状态---------
+            localDrainRequests = mDrainSignal.await();
+            if (localDrainRequests < 0) {
+                LogUtils.w(TAG, "encoder thread interrupted");
+                break;
             }
         } // end of while
 
@@ -207,6 +221,41 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
      */
     public abstract void prepare() throws IOException;
 
+    /**
+     * 设置编码器后端，需要在 prepare 之前调用
+     *
+     * @param factory
+     */
+    public void setCodecBackendFactory(final XCodecBackendFactory factory) {
+        if (factory == null) {
+            throw new NullPointerException("XCodecBackendFactory is null");
+        }
+        mCodecBackendFactory = factory;
+    }
+
+    /**
+     * 在 prepare 中创建编码器后端
+     *
+     * @param mimeType
+     * @return
+     * @throws IOException
+     */
+    protected XCodecBackend createCodecBackend(final String mimeType) throws IOException {
+        final XCodecBackend codec = mCodecBackendFactory.create(mimeType);
+        codec.setOnOutputAvailableListener(mOnOutputAvailableListener);
+        return codec;
+    }
+
+    /**
+     * 停止录制时，编码线程在送入EOS之前调用
+     *
+     * @param timeoutMs 最多等待的时间
+     * @return true 没有还未送入编码器的数据
+     */
+    protected boolean awaitInputFinished(final long timeoutMs) {
+        return true;
+    }
+
     /**
      * 目前主线程调用
      */
@@ -214,6 +263,8 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
         LogUtils.d(TAG,"---startRecording synchronized (mSync) before begin---");
         synchronized (mSync) {
             LogUtils.d(TAG,"---startRecording synchronized (mSync) begin---");
+            mPtsEngine.reset();
+            mBackpressure.reset();
             // 正在录制标识
             mIsCapturing = true;
             // 停止标识 置false
@@ -221,6 +272,7 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
             //
             mSync.notifyAll();
         }
+        mDrainSignal.wakeUp();
         LogUtils.d(TAG,"---startRecording synchronized (mSync) end---");
     }
 
@@ -238,9 +290,28 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
             mRequestStop = true;
             mSync.notifyAll();
         }
+        mDrainSignal.wakeUp();
         LogUtils.d(TAG,"---stopRecording synchronized (mSync) end---");
     }
 
+    /**
+     * 编码器跟不上时的处理策略，以及丢帧/迟到帧统计
+     *
+     * @return
+     */
+    public XBackpressureController getBackpressureController() {
+        return mBackpressure;
+    }
+
+    /**
+     * 取编码数据的等待时间与输出队列深度统计
+     *
+     * @return
+     */
+    public XDrainScheduler getDrainScheduler() {
+        return mDrainScheduler;
+    }
+
 
     /**
      * Release all releated objects
@@ -255,11 +326,12 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
         // 设置标识 停止
         mIsCapturing = false;
         // ------释放mediacodec--------
-        if (mMediaCodec != null) {
+        if (mCodec != null) {
             try {
-                mMediaCodec.stop();
-                mMediaCodec.release();
-                mMediaCodec = null;
+                mCodec.setOnOutputAvailableListener(null);
+                mCodec.stop();
+                mCodec.release();
+                mCodec = null;
             } catch (final Exception e) {
                 e.printStackTrace();
             }
@@ -275,7 +347,7 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
             }
         }
         // mBufferInfo置空
-        mBufferInfo = null;
+        mCodecBufferInfo = null;
     }
 
     /**
@@ -297,37 +369,136 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
         if (!mIsCapturing) {
             return;
         }
+        // EOS 必须送入编码器，暂存的数据也先送入
+        if (length <= 0) {
+            while (mInputStash != null && !mInputStash.isEmpty()
+                    && queueInput(mInputStash.peek(), mInputStash.peekPtsUs(), 0, -1)) {
+                mInputStash.pop();
+            }
+            queueInput(null, presentationTimeUs, XCodecBackend.BUFFER_FLAG_END_OF_STREAM, -1);
+            return;
+        }
         //
-        final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
-        //
+        if (mBackpressure.getPolicy() == XBackpressureController.Policy.DROP_OLDEST) {
+            encodeDropOldest(buffer, length, presentationTimeUs);
+            return;
+        }
+        final long startNs = System.nanoTime();
+        final boolean changed;
+        if (queueInput(buffer, presentationTimeUs, 0, mBackpressure.getWaitBudgetUs())) {
+            changed = mBackpressure.onAccepted((System.nanoTime() - startNs) / 1000L);
+        } else {
+            // 编码器跟不上，丢弃当前数据
+            changed = mBackpressure.onDropped(1);
+            getEncodeMetrics().onDrop(1);
+        }
+        if (changed) {
+            onDegrade(mBackpressure.getDegradeLevel());
+        }
+    }
+
+    /**
+     * DROP_OLDEST: 编码器没有空闲的输入缓冲区时暂存，暂存满了丢弃最早的数据
+     *
+     * @param buffer
+     * @param length
+     * @param presentationTimeUs
+     */
+    private void encodeDropOldest(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
+        if (mInputStash == null) {
+            mInputStash = new XInputStash(INPUT_STASH_CAPACITY, Math.max(length, INPUT_STASH_BUFFER_SIZE));
+        }
+        // 先送入暂存的数据，保证顺序
+        while (!mInputStash.isEmpty()
+                && queueInput(mInputStash.peek(), mInputStash.peekPtsUs(), 0, 0)) {
+            mBackpressure.onAccepted((System.nanoTime() - mInputStash.peekTimeNs()) / 1000L);
+            mInputStash.pop();
+        }
+        if (mInputStash.isEmpty() && queueInput(buffer, presentationTimeUs, 0, 0)) {
+            mBackpressure.onAccepted(0);
+            return;
+        }
+        if (mInputStash.push(buffer, presentationTimeUs)) {
+            mBackpressure.onDropped(1);
+            getEncodeMetrics().onDrop(1);
+        }
+    }
+
+    /**
+     * 送入编码器
+     *
+     * @param buffer             数据在 position 与 limit 之间，null 表示没有数据
+     * @param presentationTimeUs
+     * @param flags
+     * @param waitBudgetUs       最多等待的时间，负数表示一直等到停止录制
+     * @return true 已送入编码器
+     */
+    private boolean queueInput(final ByteBuffer buffer, final long presentationTimeUs, final int flags, final long waitBudgetUs) {
+        final long deadlineNs = waitBudgetUs < 0 ? Long.MAX_VALUE : System.nanoTime() + waitBudgetUs * 1000L;
+        boolean retried = false;
         while (mIsCapturing) {
-            final int inputBufferIndex = mMediaCodec.dequeueInputBuffer(TIMEOUT_USEC);
+            long timeoutUs = TIMEOUT_USEC;
+            if (deadlineNs != Long.MAX_VALUE) {
+                timeoutUs = Math.max(0, Math.min(TIMEOUT_USEC, (deadlineNs - System.nanoTime()) / 1000L));
+            }
+            final int inputBufferIndex = mCodec.dequeueInputBuffer(timeoutUs);
             if (inputBufferIndex >= 0) {
-                final ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
+                final ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferIndex);
                 inputBuffer.clear();
                 //
+                int length = 0;
                 if (buffer != null) {
+                    length = buffer.remaining();
                     inputBuffer.put(buffer);
                 }
-                if (length <= 0) {
+                if ((flags & XCodecBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     mIsEndOfStream = true;
-                    //
-                    mMediaCodec.queueInputBuffer(
-                            //
-                            inputBufferIndex, 0, 0,
-                            //
-                            presentationTimeUs,
-                            //
-                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    break;
-                } else {
-                    mMediaCodec.queueInputBuffer(
-                            //
-                            inputBufferIndex, 0, length,
-                            presentationTimeUs, 0);
                 }
-                break;
-            } else if (inputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                mCodec.queueInputBuffer(
+                        //
+                        inputBufferIndex, 0, length,
+                        //
+                        presentationTimeUs,
+                        //
+                        flags);
+                // 顺便取走已经编码好的数据，避免输出在两次drain之间堆积
+                drainOpportunistically();
+                return true;
+            }
+            // 没有空闲的输入缓冲区，取走输出数据以释放缓冲区
+            drainOpportunistically();
+            if (System.nanoTime() >= deadlineNs) {
+                // 取走输出后再试一次
+                if (retried) {
+                    return false;
+                }
+                retried = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * DEGRADE 策略下降级等级变化时回调(运行在输入线程)
+     *
+     * @param level 0 表示恢复正常
+     */
+    protected void onDegrade(final int level) {
+    }
+
+    /**
+     * 在输入线程中不等待地取编码数据，编码线程正在取数据时直接返回
+     */
+    private void drainOpportunistically() {
+        // muxer开始之前的 INFO_OUTPUT_FORMAT_CHANGED 需要等待muxer，只在编码线程中处理
+        if (!mMuxerStarted || mIsEndOfStream) {
+            return;
+        }
+        if (mDrainLock.tryLock()) {
+            try {
+                drainEncoderLocked(true);
+            } finally {
+                mDrainLock.unlock();
             }
         }
     }
@@ -337,43 +508,66 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
      * mEncoder从缓冲区取数据，然后交给mMuxer编码
      */
     protected void drainEncoder() {
-        if (mMediaCodec == null) {
-            return;
+        mDrainLock.lock();
+        try {
+            drainEncoderLocked(false);
+        } finally {
+            mDrainLock.unlock();
         }
+    }
 
-        //
-        int count = 0;
+    /**
+     * @param opportunistic true 不等待，没有数据立即返回
+     */
+    private void drainEncoderLocked(final boolean opportunistic) {
+        if (mCodec == null) {
+            return;
+        }
 
         if (mXMediaMuxerManager == null) {
             return;
         }
 
-        //拿到输出缓冲区,用于取到编码后的数据
-        ByteBuffer[] encoderOutputBuffers = mMediaCodec.getOutputBuffers();
+        // 事件驱动的编码器有输出时会通知: 只有第一次按统计的输出延时等待
+        // (送帧时请求的drain可以直接取到这一帧)，之后不等待也不重试，剩下的输出由下一次通知取走
+        final boolean eventDriven = mCodec.isEventDriven();
+        boolean firstWait = !opportunistic;
+        // 输入线程顺便取数据时不计入统计，否则等待时间和队列深度会被0等待的drain拉低
+        final boolean tracked = !opportunistic;
+        //
+        if (tracked) {
+            mDrainScheduler.beginDrain();
+        }
 
         LOOP:
         while (mIsCapturing) {
             //拿到输出缓冲区的索引
-            int encoderStatus = mMediaCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            final long timeoutUs = mIsEndOfStream ? TIMEOUT_USEC
+                    : (opportunistic || (eventDriven && !firstWait) ? 0 : mDrainScheduler.getTimeoutUs());
+            firstWait = false;
+            final long waitStartNs = System.nanoTime();
+            int encoderStatus = mCodec.dequeueOutputBuffer(mCodecBufferInfo, timeoutUs);
+            if (tracked) {
+                mDrainScheduler.onWait(System.nanoTime() - waitStartNs);
+            }
+            if (encoderStatus == XCodecBackend.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!mIsEndOfStream) {
-                    if (++count > 5) {
+                    if (opportunistic || eventDriven || !mDrainScheduler.onTryAgain()) {
                         // out of while
                         break LOOP;
                     }
                 }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            } else if (encoderStatus == XCodecBackend.INFO_OUTPUT_BUFFERS_CHANGED) {
                 // this shoud not come when encoding
-                // 拿到输出缓冲区,用于取到编码后的数据
-                encoderOutputBuffers = mMediaCodec.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // 后端内部已经更新了输出缓冲区
+            } else if (encoderStatus == XCodecBackend.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
                 if (mMuxerStarted) {
                     throw new RuntimeException("format changed twice");
                 }
                 // get output format from codec and pass them to muxer
-                final MediaFormat format = mMediaCodec.getOutputFormat();
+                final XCodecFormat format = mCodec.getOutputFormat();
                 //
                 mTrackIndex = mXMediaMuxerManager.addTrack(format);
                 //
@@ -395,56 +589,80 @@ public abstract class BaseMediaEncoderRunable implements Runnable {
 
             } else {
                 // 获取解码后的数据
-                final ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                final ByteBuffer encodedData = mCodec.getOutputBuffer(encoderStatus);
                 if (encodedData == null) {
                     // this never should come...may be a MediaCodec internal error
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                 }
                 //
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    mBufferInfo.size = 0;
+                if ((mCodecBufferInfo.flags & XCodecBackend.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    mCodecBufferInfo.size = 0;
                 }
                 //
-                if (mBufferInfo.size != 0) {
+                if (mCodecBufferInfo.size != 0) {
                     // encoded data is ready, clear waiting counter
-                    count = 0;
+                    if (tracked) {
+                        mDrainScheduler.onOutput();
+                    }
                     if (!mMuxerStarted) {
                         // muxer is not ready...this will prrograming failure.
                         throw new RuntimeException("drain:muxer hasn't started");
                     }
-                    // write encoded data to muxer(need to adjust presentationTimeUs.
-                    mBufferInfo.presentationTimeUs = getPTSUs();
-                    // 编码
-                    mXMediaMuxerManager.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    prevOutputPTSUs = mBufferInfo.presentationTimeUs;
+                    final ByteBuffer sampleData = onEncodedSample(encodedData, mCodecBufferInfo);
+                    // 延时从采集时刻算起；写入muxer的时间戳这里只保证递增
+                    getEncodeMetrics().onFrame(mPtsEngine.nowUs() - getCaptureTimeUs(mCodecBufferInfo.presentationTimeUs), mCodecBufferInfo.size);
+                    mCodecBufferInfo.presentationTimeUs = mPtsEngine.toMuxerPtsUs(mCodecBufferInfo.presentationTimeUs);
+                    // 拷贝到写线程的队列，不在这里写文件
+                    mXMediaMuxerManager.writeSampleData(mTrackIndex, sampleData, mCodecBufferInfo);
                 }
                 // return buffer to encoder
-                mMediaCodec.releaseOutputBuffer(encoderStatus, false);
+                mCodec.releaseOutputBuffer(encoderStatus);
                 //
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if ((mCodecBufferInfo.flags & XCodecBackend.BUFFER_FLAG_END_OF_STREAM) != 0) {
                     // when EOS come.
                     mIsCapturing = false;
                     break;      // out of while
                 }
             }
         }
+        if (tracked) {
+            mDrainScheduler.endDrain();
+        }
     }
 
     /**
-     * previous presentationTimeUs for writing
+     * 编码数据写入muxer之前调用(持有取数据的锁)，子类可以替换写入的数据
+     *
+     * @param encodedData 编码器的输出
+     * @param info        时间戳为采集时刻，替换数据时同时修改 offset/size
+     * @return 写入muxer的数据，写入时会拷贝，可以复用
      */
-    private long prevOutputPTSUs = 0;
+    protected ByteBuffer onEncodedSample(final ByteBuffer encodedData, final XCodecBufferInfo info) {
+        return encodedData;
+    }
+
+    /**
+     * @return 编码阶段的统计(采集时刻到编码器输出的延时、输出字节数、丢弃数)
+     */
+    protected abstract XStageMetrics getEncodeMetrics();
+
+    /**
+     * 编码线程调用，统计编码延时用
+     *
+     * @param presentationTimeUs 编码器输出的时间戳
+     * @return 这一帧的采集时刻，默认与送入编码器的时间戳相同
+     */
+    protected long getCaptureTimeUs(final long presentationTimeUs) {
+        return presentationTimeUs;
+    }
 
     /**
-     * get next encoding presentationTimeUs
+     * 没有采集时刻的数据(例如EOS)使用的时间戳
      *
      * @return
      */
     protected long getPTSUs() {
-        long result = System.nanoTime() / 1000L;
-        if (result < prevOutputPTSUs)
-            result = (prevOutputPTSUs - result) + result;
-        return result;
+        return mPtsEngine.nowUs();
     }
 
 }
@@ -2,16 +2,29 @@ package com.serenegiant.xiaxl.media_encoder;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
 import android.media.MediaRecorder;
 
 import com.serenegiant.xiaxl.LogUtils;
+import com.serenegiant.xiaxl.media_audio.XAacFrameAccumulator;
+import com.serenegiant.xiaxl.media_audio.XAacSilenceFrame;
+import com.serenegiant.xiaxl.media_audio.XAudioConfig;
+import com.serenegiant.xiaxl.media_audio.XAudioProcessorChain;
+import com.serenegiant.xiaxl.media_audio.XPcmConverter;
+import com.serenegiant.xiaxl.media_audio.XPcmRingBuffer;
+import com.serenegiant.xiaxl.media_audio.XVoiceActivityDetector;
+import com.serenegiant.xiaxl.media_clock.XDriftEstimator;
+import com.serenegiant.xiaxl.media_clock.XSampleClock;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
+import com.serenegiant.xiaxl.media_metrics.XStageMetrics;
 import com.serenegiant.xiaxl.media_muxer.XMediaMuxerManager;
+import com.serenegiant.xiaxl.util.XCoalescingSignal;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
 
@@ -19,16 +32,46 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
     //
     private static final String MIME_TYPE = "audio/mp4a-latm";
     // 44.1[KHz] is only setting guaranteed to be available on all devices.
-    private static final int SAMPLE_RATE = 44100;
-    //
-    private static final int BIT_RATE = 64000;
+    private static final int FALLBACK_SAMPLE_RATE = 44100;
     // AAC, bytes/frame/channel
     public static final int SAMPLES_PER_FRAME = 1024;
     // AAC, frame/buffer/sec
     public static final int FRAMES_PER_BUFFER = 25;
 
+    // PCM缓冲时长 [msec]
+    private static final int PCM_BUFFER_MS = 1000;
+    // 积压时一次最多送入编码器的AAC帧数
+    private static final int MAX_AAC_FRAMES_PER_INPUT = 2;
+    // 连续送入数字静音超过这个帧数(覆盖编码器延时)后，输出替换为静音帧
+    private static final int SILENCE_PRIME_FRAMES = 4;
+
+    // 输出格式
+    private final XAudioConfig mAudioConfig;
+    // 一个AAC帧的PCM字节数
+    private final int mAacFrameBytes;
     //
     private AudioThread mAudioThread = null;
+    // 停止时编码线程等它把PCM缓冲中剩余的数据送完
+    private volatile AudioFeederThread mFeederThread;
+    // 采集线程与送编码器线程之间的PCM缓冲
+    private XPcmRingBuffer mPcmBuffer;
+    // 采集线程写入数据后通知送编码器线程
+    private final XCoalescingSignal mPcmSignal = new XCoalescingSignal();
+    // 采集结束
+    private volatile boolean mCaptureFinished;
+    private volatile XAacFrameAccumulator mAacFrameAccumulator;
+    // 麦克风时钟相对会话时钟的漂移
+    private volatile XDriftEstimator mDriftEstimator;
+    // 送编码器前的音频处理(增益/AGC/噪声门/限制器)和电平表
+    private final XAudioProcessorChain mProcessorChain = new XAudioProcessorChain();
+    // 静音检测: 静音区间送入数字静音，输出替换为很小的静音帧
+    private volatile boolean mSilenceAware;
+    private final XVoiceActivityDetector mVoiceActivityDetector = new XVoiceActivityDetector();
+    private final XSilenceSpans mSilenceSpans = new XSilenceSpans();
+    private ByteBuffer mSilenceFrame;
+    private long mAacFrameUs;
+    private volatile long mSilenceFrameCount;
+    private volatile long mSilenceBytesSaved;
 
     /**
      * 构造方法，父类中开启了该线程
@@ -37,7 +80,19 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
      * @param mediaEncoderListener
      */
     public MediaAudioEncoderRunable(final XMediaMuxerManager mediaMuxerManager, final MediaEncoderListener mediaEncoderListener) {
+        this(mediaMuxerManager, mediaEncoderListener, XAudioConfig.DEFAULT);
+    }
+
+    /**
+     * @param mediaMuxerManager
+     * @param mediaEncoderListener
+     * @param audioConfig          采样率/声道数/码率/AAC profile
+     */
+    public MediaAudioEncoderRunable(final XMediaMuxerManager mediaMuxerManager, final MediaEncoderListener mediaEncoderListener,
+                                    final XAudioConfig audioConfig) {
         super(mediaMuxerManager, mediaEncoderListener);
+        mAudioConfig = audioConfig;
+        mAacFrameBytes = XAacFrameAccumulator.SAMPLES_PER_AAC_FRAME * audioConfig.getBytesPerFrame();
     }
 
     /**
@@ -52,15 +107,20 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
         mMuxerStarted = mIsEndOfStream = false;
 
         // mediaFormat配置
-        final MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE, SAMPLE_RATE, 1);
-        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_MASK, AudioFormat.CHANNEL_IN_MONO);
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+        final int channelCount = mAudioConfig.getChannelCount();
+        final XCodecFormat audioFormat = XCodecFormat.createAudioFormat(MIME_TYPE, mAudioConfig.getSampleRate(), channelCount);
+        audioFormat.setInteger(XCodecFormat.KEY_AAC_PROFILE, mAudioConfig.getAacProfile());
+        audioFormat.setInteger(XCodecFormat.KEY_CHANNEL_MASK, channelMask(channelCount));
+        audioFormat.setInteger(XCodecFormat.KEY_BIT_RATE, mAudioConfig.getBitRate());
+        audioFormat.setInteger(XCodecFormat.KEY_CHANNEL_COUNT, channelCount);
+        // 一次送入整数个AAC帧
+        audioFormat.setInteger(XCodecFormat.KEY_MAX_INPUT_SIZE, mAacFrameBytes * MAX_AAC_FRAMES_PER_INPUT);
         //
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mMediaCodec.start();
+        mSilenceFrame = ByteBuffer.wrap(XAacSilenceFrame.create(channelCount));
+        mAacFrameUs = XAacFrameAccumulator.SAMPLES_PER_AAC_FRAME * 1000000L / mAudioConfig.getSampleRate();
+        mCodec = createCodecBackend(MIME_TYPE);
+        mCodec.configure(audioFormat);
+        mCodec.start();
 
         if (mMediaEncoderListener != null) {
             try {
@@ -76,17 +136,148 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
         super.startRecording();
         // create and execute audio capturing thread using internal mic
         if (mAudioThread == null) {
+            // 缓冲中是编码格式(转换后)的数据
+            // AudioRecord.read 可能返回不足一帧，mark 按每次至少256个采样准备
+            final int sampleRate = mAudioConfig.getSampleRate();
+            mPcmBuffer = new XPcmRingBuffer(sampleRate * mAudioConfig.getBytesPerFrame() * PCM_BUFFER_MS / 1000,
+                    mAudioConfig.getBytesPerFrame(), sampleRate, sampleRate * PCM_BUFFER_MS / 1000 / 256);
+            mCaptureFinished = false;
+            mDriftEstimator = new XDriftEstimator(mXMediaMuxerManager.getClock(), sampleRate);
+            mProcessorChain.configure(sampleRate, mAudioConfig.getChannelCount(),
+                    XAacFrameAccumulator.SAMPLES_PER_AAC_FRAME * MAX_AAC_FRAMES_PER_INPUT);
+            mVoiceActivityDetector.reset();
+            mSilenceSpans.reset();
+            mSilenceFrameCount = mSilenceBytesSaved = 0;
             mAudioThread = new AudioThread();
             mAudioThread.start();
+            mFeederThread = new AudioFeederThread(mPcmBuffer, mDriftEstimator);
+            mFeederThread.start();
         }
     }
 
     @Override
     public void release() {
         mAudioThread = null;
+        mFeederThread = null;
         super.release();
     }
 
+    @Override
+    protected boolean awaitInputFinished(final long timeoutMs) {
+        final Thread feeder = mFeederThread;
+        if (feeder == null) {
+            return true;
+        }
+        try {
+            feeder.join(timeoutMs);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        return !feeder.isAlive();
+    }
+
+    @Override
+    protected ByteBuffer onEncodedSample(final ByteBuffer encodedData, final XCodecBufferInfo info) {
+        if (mSilenceAware && mSilenceSpans.covers(info.presentationTimeUs, mAacFrameUs,
+                mAacFrameUs * SILENCE_PRIME_FRAMES, mAacFrameUs / 8)) {
+            // 这一帧解码后一定是静音，换成没有频谱数据的静音帧
+            final int size = mSilenceFrame.capacity();
+            if (info.size > size) {
+                mSilenceBytesSaved += info.size - size;
+            }
+            mSilenceFrameCount++;
+            info.offset = 0;
+            info.size = size;
+            return mSilenceFrame;
+        }
+        return encodedData;
+    }
+
+    @Override
+    protected XStageMetrics getEncodeMetrics() {
+        return XMetricsRegistry.stage(XMetricsRegistry.Stage.AUDIO_ENCODE);
+    }
+
+    public XAudioConfig getAudioConfig() {
+        return mAudioConfig;
+    }
+
+    /**
+     * 在录制前或录制中添加处理器，电平表通过 getLevelMeter() 取得
+     *
+     * @return 送编码器前的音频处理链
+     */
+    public XAudioProcessorChain getProcessorChain() {
+        return mProcessorChain;
+    }
+
+    /**
+     * 静音区间(由 XVoiceActivityDetector 判定)送入数字静音，编码输出替换为静音帧(单声道4字节/双声道6字节)，
+     * 需要在 startRecording 之前调用。
+     * 静音帧是 AAC-LC 的 raw_data_block，XAudioConfig 不是 AACObjectLC 时(HE-AAC 等)忽略开启
+     *
+     * @param enabled
+     */
+    public void setSilenceAwareEncoding(final boolean enabled) {
+        if (enabled && mAudioConfig.getAacProfile() != MediaCodecInfo.CodecProfileLevel.AACObjectLC) {
+            LogUtils.w(TAG, "silence aware encoding needs AAC-LC, ignored: " + mAudioConfig);
+            mSilenceAware = false;
+            return;
+        }
+        mSilenceAware = enabled;
+    }
+
+    public boolean isSilenceAwareEncoding() {
+        return mSilenceAware;
+    }
+
+    /**
+     * @return 语音/静音检测，通过它取得检测到的区间
+     */
+    public XVoiceActivityDetector getVoiceActivityDetector() {
+        return mVoiceActivityDetector;
+    }
+
+    /**
+     * @return 替换为静音帧的输出帧数
+     */
+    public long getSilenceFrameCount() {
+        return mSilenceFrameCount;
+    }
+
+    /**
+     * @return 替换为静音帧减少的字节数
+     */
+    public long getSilenceBytesSaved() {
+        return mSilenceBytesSaved;
+    }
+
+    /**
+     * @return 采集线程与编码之间的PCM缓冲(用于查看 overrun/underrun/填充比例)，开始录制前为null
+     */
+    public XPcmRingBuffer getPcmBuffer() {
+        return mPcmBuffer;
+    }
+
+    /**
+     * @return AAC帧对齐的统计(送入编码器的次数/帧数)，开始录制前为null
+     */
+    public XAacFrameAccumulator getAacFrameAccumulator() {
+        return mAacFrameAccumulator;
+    }
+
+    /**
+     * @return 麦克风时钟相对会话时钟的漂移估计，开始录制前为null
+     */
+    public XDriftEstimator getDriftEstimator() {
+        return mDriftEstimator;
+    }
+
+    private static int channelMask(final int channelCount) {
+        return channelCount == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
     private static final int[] AUDIO_SOURCES = new int[]{
             MediaRecorder.AudioSource.MIC,
             MediaRecorder.AudioSource.DEFAULT,
@@ -95,6 +286,56 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
             MediaRecorder.AudioSource.VOICE_RECOGNITION,
     };
 
+    /**
+     * 依次尝试各个音源
+     *
+     * @return 设备不支持这个格式时为null
+     */
+    private static AudioRecord createAudioRecord(final int sampleRate, final int channelCount) {
+        final int min_buffer_size = AudioRecord.getMinBufferSize(
+                //
+                sampleRate,
+                //
+                channelMask(channelCount),
+                //
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (min_buffer_size <= 0) {
+            // ERROR / ERROR_BAD_VALUE: 不支持的格式
+            return null;
+        }
+        //
+        int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER * channelCount;
+        if (buffer_size < min_buffer_size) {
+            buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
+        }
+        //
+        for (final int source : AUDIO_SOURCES) {
+            AudioRecord audioRecord = null;
+            try {
+                audioRecord = new AudioRecord(
+                        source,
+                        //
+                        sampleRate,
+                        //
+                        channelMask(channelCount),
+                        //
+                        AudioFormat.ENCODING_PCM_16BIT,
+                        //
+                        buffer_size);
+                //
+                if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
+                    return audioRecord;
+                }
+                audioRecord.release();
+            } catch (final Exception e) {
+                if (audioRecord != null) {
+                    audioRecord.release();
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Thread to capture audio data from internal mic as uncompressed 16bit PCM data
      * and write them to the MediaCodec encoder
@@ -106,64 +347,64 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
             //
             try {
-                final int min_buffer_size = AudioRecord.getMinBufferSize(
-                        //
-                        SAMPLE_RATE,
-                        // 但声道
-                        AudioFormat.CHANNEL_IN_MONO,
-                        //
-                        AudioFormat.ENCODING_PCM_16BIT);
-                //
-                int buffer_size = SAMPLES_PER_FRAME * FRAMES_PER_BUFFER;
-                if (buffer_size < min_buffer_size) {
-                    buffer_size = ((min_buffer_size / SAMPLES_PER_FRAME) + 1) * SAMPLES_PER_FRAME * 2;
+                // 先按请求的格式采集，设备不支持时退回 44.1kHz 单声道，再转换为编码格式
+                final int channelCount = mAudioConfig.getChannelCount();
+                int captureRate = mAudioConfig.getCaptureSampleRate();
+                int captureChannels = channelCount;
+                AudioRecord audioRecord = createAudioRecord(captureRate, captureChannels);
+                if (audioRecord == null && captureChannels > 1) {
+                    captureChannels = 1;
+                    audioRecord = createAudioRecord(captureRate, captureChannels);
                 }
-                //
-                AudioRecord audioRecord = null;
-                for (final int source : AUDIO_SOURCES) {
-                    try {
-                        audioRecord = new AudioRecord(
-                                source,
-                                //
-                                SAMPLE_RATE,
-                                // 单声道
-                                AudioFormat.CHANNEL_IN_MONO,
-                                //
-                                AudioFormat.ENCODING_PCM_16BIT,
-                                //
-                                buffer_size);
-                        //
-                        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-                            audioRecord = null;
-                        }
-                    } catch (final Exception e) {
-                        audioRecord = null;
-                    }
-                    if (audioRecord != null) {
-                        break;
-                    }
+                if (audioRecord == null && captureRate != FALLBACK_SAMPLE_RATE) {
+                    captureRate = FALLBACK_SAMPLE_RATE;
+                    audioRecord = createAudioRecord(captureRate, captureChannels);
                 }
                 if (audioRecord != null) {
                     try {
                         if (mIsCapturing) {
 
-                            final ByteBuffer buf = ByteBuffer.allocateDirect(SAMPLES_PER_FRAME);
+                            final XPcmRingBuffer pcmBuffer = mPcmBuffer;
+                            final XDriftEstimator driftEstimator = mDriftEstimator;
+                            final int outBytesPerFrame = mAudioConfig.getBytesPerFrame();
+                            // 每次读一个AAC帧时长的数据
+                            final int readSize = XAacFrameAccumulator.SAMPLES_PER_AAC_FRAME * captureChannels * 2;
+                            final ByteBuffer buf = ByteBuffer.allocateDirect(readSize).order(ByteOrder.nativeOrder());
+                            final XPcmConverter converter = new XPcmConverter(captureRate, captureChannels,
+                                    mAudioConfig.getSampleRate(), channelCount, XAacFrameAccumulator.SAMPLES_PER_AAC_FRAME);
+                            final ByteBuffer converted = converter.isPassthrough() ? buf
+                                    : ByteBuffer.allocateDirect(converter.getMaxOutputBytes(readSize)).order(ByteOrder.nativeOrder());
+                            if (!converter.isPassthrough()) {
+                                LogUtils.d(TAG, "capture " + captureRate + "Hz " + captureChannels + "ch -> " + mAudioConfig);
+                            }
+                            // 根据编码格式的采样数计算时间戳
+                            final XSampleClock sampleClock = new XSampleClock(mXMediaMuxerManager.getClock(), mAudioConfig.getSampleRate());
                             int readBytes;
                             audioRecord.startRecording();
                             try {
                                 for (; mIsCapturing && !mRequestStop && !mIsEndOfStream; ) {
                                     // read audio data from internal mic
                                     buf.clear();
-                                    readBytes = audioRecord.read(buf, SAMPLES_PER_FRAME);
+                                    readBytes = audioRecord.read(buf, readSize);
                                     if (readBytes > 0) {
-                                        // set audio data to encoder
-                                        buf.position(readBytes);
-                                        buf.flip();
-                                        encode(buf, readBytes, getPTSUs());
-                                        frameAvailableSoon();
+                                        if (converted != buf) {
+                                            converted.clear();
+                                            readBytes = converter.convert(buf, readBytes, converted);
+                                            if (readBytes <= 0) {
+                                                // 重采样的历史数据还不够一个输出采样
+                                                continue;
+                                            }
+                                        }
+                                        // 只拷贝到PCM缓冲，不等待编码器
+                                        // 丢弃的数据也计入采样数
+                                        if (!pcmBuffer.write(converted, readBytes, sampleClock.onSamples(readBytes / outBytesPerFrame))) {
+                                            getEncodeMetrics().onDrop(1);
+                                        }
+                                        // 采样数推算的时间和会话时钟比较
+                                        driftEstimator.onCapture(sampleClock.getNextPtsUs());
+                                        mPcmSignal.signal();
                                     }
                                 }
-                                frameAvailableSoon();
                             } finally {
                                 audioRecord.stop();
                             }
@@ -176,9 +417,100 @@ public class MediaAudioEncoderRunable extends BaseMediaEncoderRunable {
                 }
             } catch (final Exception e) {
                 LogUtils.e(TAG, "AudioThread#run", e);
+            } finally {
+                mCaptureFinished = true;
+                mPcmSignal.wakeUp();
             }
 
         }
     }
 
+    /**
+     * 从PCM缓冲取数据送入编码器，编码器没有空闲输入缓冲区时只阻塞这个线程
+     */
+    private class AudioFeederThread extends Thread {
+
+        private final XPcmRingBuffer mPcmBuffer;
+        private final XDriftEstimator mDriftEstimator;
+
+        AudioFeederThread(final XPcmRingBuffer pcmBuffer, final XDriftEstimator driftEstimator) {
+            super("AudioFeederThread");
+            mPcmBuffer = pcmBuffer;
+            mDriftEstimator = driftEstimator;
+        }
+
+        @Override
+        public void run() {
+            mPcmSignal.bindConsumer();
+            // 每次送入编码器整数个AAC帧
+            final XAacFrameAccumulator accumulator = new XAacFrameAccumulator(mPcmBuffer, mAudioConfig.getBytesPerFrame(), MAX_AAC_FRAMES_PER_INPUT);
+            // 插入/丢弃采样，使音频跟随视频使用的会话时钟
+            accumulator.setDriftEstimator(mDriftEstimator);
+            mAacFrameAccumulator = accumulator;
+            final ByteBuffer buf = ByteBuffer.allocateDirect(accumulator.getMaxInputBytes()).order(ByteOrder.nativeOrder());
+            // 数字静音
+            final ByteBuffer zeros = ByteBuffer.allocateDirect(accumulator.getMaxInputBytes());
+            final int bytesPerFrame = mAudioConfig.getBytesPerFrame();
+            final int sampleRate = mAudioConfig.getSampleRate();
+            long endPtsUs = -1;
+            try {
+                for (; ; ) {
+                    // 停止录制后不退出，采集线程结束(mCaptureFinished)且PCM缓冲读空后再退出，
+                    // 编码线程等这个线程结束后才送EOS
+                    if (mIsEndOfStream) {
+                        break;
+                    }
+                    buf.clear();
+                    int bytes = accumulator.readFrames(buf);
+                    if (bytes == 0) {
+                        if (mCaptureFinished) {
+                            // 采集结束(停止录制或异常)时送入剩余不足一帧的数据
+                            bytes = accumulator.readRemainder(buf);
+                            if (bytes == 0) {
+                                break;
+                            }
+                        } else {
+                            if (mPcmSignal.await() < 0) {
+                                break;
+                            }
+                            continue;
+                        }
+                    }
+                    if (mIsCapturing) {
+                        buf.flip();
+                        mProcessorChain.process(buf, bytes);
+                        final long ptsUs = accumulator.getLastPtsUs();
+                        final long durationUs = bytes / bytesPerFrame * 1000000L / sampleRate;
+                        endPtsUs = ptsUs + durationUs;
+                        ByteBuffer input = buf;
+                        if (mSilenceAware) {
+                            // 电平已经在处理链中算好
+                            if (mVoiceActivityDetector.update(mProcessorChain.getLevelMeter().getRmsDb(), ptsUs, durationUs)) {
+                                mSilenceSpans.onSpeech();
+                            } else {
+                                mSilenceSpans.onSilent(ptsUs, endPtsUs);
+                                zeros.clear();
+                                zeros.limit(bytes);
+                                input = zeros;
+                            }
+                        }
+                        // set audio data to encoder
+                        encode(input, bytes, ptsUs);
+                        frameAvailableSoon();
+                        XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.AUDIO_DRIFT_PPM,
+                                Math.round(mDriftEstimator.getDriftPpm()));
+                        XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.AUDIO_DRIFT_CORRECTION_SAMPLES,
+                                accumulator.getAppliedCorrection());
+                    }
+                }
+                frameAvailableSoon();
+                if (mSilenceAware) {
+                    mVoiceActivityDetector.finish(endPtsUs);
+                }
+            } catch (final Exception e) {
+                LogUtils.e(TAG, "AudioFeederThread#run", e);
+            }
+        }
+    }
+
 }
@@ -1,18 +1,25 @@
 package com.serenegiant.xiaxl.media_encoder;
 
-import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
-import android.media.MediaFormat;
 import android.opengl.EGLContext;
-import android.util.Log;
 import android.view.Surface;
 
 import com.serenegiant.xiaxl.LogUtils;
 import com.serenegiant.xiaxl.XShowGLSurfaceView;
 import com.serenegiant.xiaxl.gl_recoder.XRecoderGLRenderRunnable;
+import com.serenegiant.xiaxl.gl_util.GLRenderTarget;
+import com.serenegiant.xiaxl.media_clock.XFrameRateGovernor;
+import com.serenegiant.xiaxl.media_codec.XCodecBackend;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+import com.serenegiant.xiaxl.media_codec.XSurfaceCodecBackend;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
+import com.serenegiant.xiaxl.media_metrics.XStageMetrics;
 import com.serenegiant.xiaxl.media_muxer.XMediaMuxerManager;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 public class MediaVideoEncoderRunable extends BaseMediaEncoderRunable {
 
@@ -20,17 +27,33 @@ public class MediaVideoEncoderRunable extends BaseMediaEncoderRunable {
 
     private static final String MIME_TYPE = "video/avc";
 
-    // FPS 帧率
+    // 默认帧率，可以用 setFrameRateGovernor 修改
     private static final int FRAME_RATE = 25;
     //
     private static final float BPP = 0.25f;
 
+    // BLOCK_WITH_DEADLINE 时每次等待的时间
+    private static final long BACKPRESSURE_WAIT_STEP_NS = 500000;
+
     private final int mWidth;
     private final int mHeight;
-    private XRecoderGLRenderRunnable mRenderRunnable;
+    // release 之后为null，录制线程可能已经交给下一个编码器；缓冲区输入时没有录制线程
+    private volatile XRecoderGLRenderRunnable mRenderRunnable;
+    // 后端没有输入surface(XFakeCodecBackend)时，每个选中的帧直接送入一个平均帧大小的缓冲区
+    private volatile boolean mBufferInput;
+    private ByteBuffer mInputFrame;
+    // 按相机帧时间戳选帧
+    private volatile XFrameRateGovernor mFrameRateGovernor = XFrameRateGovernor.constant(FRAME_RATE);
+    // 最近一次选中的帧: 输出时间戳与相机时间戳，只在GLThread中使用
+    private long mSelectedOutputNs = -1;
+    private long mSelectedCaptureNs;
+    // 编码器输出时找回采集时刻
+    private final XCaptureTimes mCaptureTimes = new XCaptureTimes();
 
     // 由MediaCodec创建的输入surface
     private Surface mMediaCodecSurface;
+    // 开始录制(创建编码器)的时刻，得到第一帧编码数据后清零
+    private volatile long mStartNs;
 
     /**
      * 构造方法,父类中，开启了该线程
@@ -43,30 +66,234 @@ public class MediaVideoEncoderRunable extends BaseMediaEncoderRunable {
     public MediaVideoEncoderRunable(final XMediaMuxerManager mediaMuxerManager, final MediaEncoderListener mediaEncoderListener, final int width, final int height) {
         super(mediaMuxerManager, mediaEncoderListener);
         LogUtils.i(TAG, "MediaVideoEncoderRunable: ");
+        mStartNs = System.nanoTime();
         mWidth = width;
         mHeight = height;
+        // 不能阻塞GLThread，默认录制线程只取最新的一帧，没来得及绘制的帧被替换
+        mBackpressure.setPolicy(XBackpressureController.Policy.DROP_OLDEST);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
 
-        /**
-         * 开启了一个看不到的绘制线程
-         */
-        mRenderRunnable = XRecoderGLRenderRunnable.createHandler(TAG);
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 设置帧率(恒定/延时摄影/可变)，在 prepare 之前调用；
+     * 延时摄影只能在没有音频编码器时使用
+     *
+     * @param governor
+     */
+    public void setFrameRateGovernor(final XFrameRateGovernor governor) {
+        if (governor == null) {
+            throw new IllegalArgumentException("governor is null");
+        }
+        if (governor.getMode() == XFrameRateGovernor.Mode.TIME_LAPSE && mXMediaMuxerManager.hasAudioEncoder()) {
+            // 视频时间被压缩，实时的音轨无法对齐
+            throw new IllegalStateException("time-lapse can not be recorded with audio");
+        }
+        mFrameRateGovernor = governor;
+    }
+
+    public XFrameRateGovernor getFrameRateGovernor() {
+        return mFrameRateGovernor;
+    }
+
+    /**
+     * 运行在GLThread，每个相机帧调用一次，决定这一帧是否送去编码
+     *
+     * @param timestampNs 相机帧的时间戳(SurfaceTexture#getTimestamp)
+     * @return 传给 frameAvailableSoon 的时间戳，-1 时丢弃这一帧
+     */
+    public long selectFrame(final long timestampNs) {
+        final XFrameRateGovernor governor = mFrameRateGovernor;
+        final long outputNs = governor.onFrame(timestampNs);
+        if (outputNs >= 0) {
+            mSelectedOutputNs = outputNs;
+            mSelectedCaptureNs = timestampNs;
+            XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.VIDEO_OUTPUT_FPS_X100,
+                    Math.round(governor.getOutputFps() * 100));
+            XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.VIDEO_FRAME_JITTER_US,
+                    Math.round(governor.getJitterUs()));
+        }
+        return outputNs;
+    }
+
+    /**
+     * 运行在GLThread，绘制 setEglContext 时传入的纹理
+     *
+     * @param mvp_matrix
+     * @param timestampNs selectFrame 的返回值，没有选帧时为相机帧的时间戳
+     * @return
+     */
+    public boolean frameAvailableSoon(final float[] mvp_matrix, final long timestampNs) {
+        return frameAvailableSoon(-1, mvp_matrix, timestampNs);
+    }
+
+    /**
+     * 运行在GLThread
+     *
+     * @param texId       这一帧的2D纹理(XCameraFrameStage 的输出)，-1 时使用 setEglContext 时传入的纹理
+     * @param mvp_matrix
+     * @param timestampNs selectFrame 的返回值，没有选帧时为相机帧的时间戳
+     * @return
+     */
+    public boolean frameAvailableSoon(final int texId, final float[] mvp_matrix, final long timestampNs) {
+        return frameAvailableSoon(texId, null, mvp_matrix, timestampNs);
     }
 
     /**
      * 运行在GLThread
      *
+     * @param target      这一帧的渲染目标(已经 markWritten)，交给录制线程期间GLThread不会改写它
      * @param mvp_matrix
+     * @param timestampNs selectFrame 的返回值，没有选帧时为相机帧的时间戳
      * @return
      */
-    public boolean frameAvailableSoon(final float[] mvp_matrix) {
-        LogUtils.d(TAG, "---frameAvailableSoon---");
+    public boolean frameAvailableSoon(final GLRenderTarget target, final float[] mvp_matrix, final long timestampNs) {
+        return frameAvailableSoon(target.getTextureId(), target, mvp_matrix, timestampNs);
+    }
+
+    private boolean frameAvailableSoon(final int texId, final GLRenderTarget target,
+                                       final float[] mvp_matrix, final long timestampNs) {
+        // 选帧改写了时间戳时，延时仍从采集时刻算起
+        final long captureNs = timestampNs == mSelectedOutputNs ? mSelectedCaptureNs : timestampNs;
+        if (mBufferInput) {
+            return encodeBufferFrame(timestampNs, captureNs);
+        }
+        final XRecoderGLRenderRunnable renderRunnable = mRenderRunnable;
+        if (renderRunnable == null) {
+            return false;
+        }
         boolean result;
         if (result = super.frameAvailableSoon()) {
-            mRenderRunnable.draw(mvp_matrix);
+            if (acquireFrame(renderRunnable)) {
+                mCaptureTimes.put(timestampNs / 1000L, captureNs / 1000L);
+                final boolean replaced;
+                if (target != null) {
+                    // 录制线程用完(或这一帧被替换)时释放
+                    target.hold();
+                    replaced = renderRunnable.draw(target, mvp_matrix, timestampNs, captureNs);
+                } else if (texId >= 0) {
+                    replaced = renderRunnable.draw(texId, mvp_matrix, timestampNs, captureNs);
+                } else {
+                    replaced = renderRunnable.draw(mvp_matrix, timestampNs, captureNs);
+                }
+                if (replaced) {
+                    // 上一帧还没绘制就被这一帧替换
+                    if (mBackpressure.onDropped(1)) {
+                        onDegrade(mBackpressure.getDegradeLevel());
+                    }
+                    getEncodeMetrics().onDrop(1);
+                }
+            } else {
+                result = false;
+            }
         }
         return result;
     }
 
+    /**
+     * 缓冲区输入: 在调用线程中送入编码器，用于没有GL环境的压测
+     *
+     * @param timestampNs
+     * @param captureNs
+     * @return
+     */
+    private boolean encodeBufferFrame(final long timestampNs, final long captureNs) {
+        if (!mIsCapturing || mRequestStop) {
+            return false;
+        }
+        mCaptureTimes.put(timestampNs / 1000L, captureNs / 1000L);
+        final ByteBuffer frame = mInputFrame;
+        frame.clear();
+        encode(frame, frame.remaining(), timestampNs / 1000L);
+        return super.frameAvailableSoon();
+    }
+
+    /**
+     * 根据录制线程的积压判断这一帧是否送去编码
+     * <p>
+     * DROP_OLDEST: 总是接受，录制线程还没取走的上一帧被替换(latest-frame-wins)；
+     * 其他策略: 录制线程还有没取走的帧时等待或丢弃这一帧
+     *
+     * @param renderRunnable
+     * @return false 丢弃这一帧
+     */
+    private boolean acquireFrame(final XRecoderGLRenderRunnable renderRunnable) {
+        if (mBackpressure.getPolicy() == XBackpressureController.Policy.DROP_OLDEST) {
+            if (mBackpressure.onAccepted(0)) {
+                onDegrade(mBackpressure.getDegradeLevel());
+            }
+            return true;
+        }
+        final long startNs = System.nanoTime();
+        final long deadlineNs = startNs + mBackpressure.getWaitBudgetUs() * 1000L;
+        final boolean accepted;
+        final boolean changed;
+        for (; ; ) {
+            if (!renderRunnable.hasPendingFrame()) {
+                accepted = true;
+                changed = mBackpressure.onAccepted((System.nanoTime() - startNs) / 1000L);
+                break;
+            }
+            if (System.nanoTime() >= deadlineNs || !mIsCapturing) {
+                accepted = false;
+                changed = mBackpressure.onDropped(1);
+                getEncodeMetrics().onDrop(1);
+                break;
+            }
+            LockSupport.parkNanos(BACKPRESSURE_WAIT_STEP_NS);
+        }
+        if (changed) {
+            onDegrade(mBackpressure.getDegradeLevel());
+        }
+        return accepted;
+    }
+
+    /**
+     * 每降一级码率减半
+     *
+     * @param level
+     */
+    @Override
+    protected void onDegrade(final int level) {
+        final XCodecBackend codec = mCodec;
+        if (codec != null) {
+            final int bitrate = calcBitRate() >> level;
+            LogUtils.i(TAG, "onDegrade: level=" + level + " bitrate=" + bitrate);
+            codec.setVideoBitrate(bitrate);
+        }
+    }
+
+    /**
+     * 统计开始录制到第一帧编码数据的时间
+     */
+    @Override
+    protected ByteBuffer onEncodedSample(final ByteBuffer encodedData, final XCodecBufferInfo info) {
+        final long startNs = mStartNs;
+        if (startNs != 0) {
+            mStartNs = 0;
+            final long latencyUs = (System.nanoTime() - startNs) / 1000L;
+            XMetricsRegistry.setGauge(XMetricsRegistry.Gauge.VIDEO_FIRST_FRAME_LATENCY_US, latencyUs);
+            LogUtils.i(TAG, "first encoded frame: " + latencyUs + "us");
+        }
+        return encodedData;
+    }
+
+    @Override
+    protected XStageMetrics getEncodeMetrics() {
+        return XMetricsRegistry.stage(XMetricsRegistry.Stage.VIDEO_ENCODE);
+    }
+
+    @Override
+    protected long getCaptureTimeUs(final long presentationTimeUs) {
+        return mCaptureTimes.get(presentationTimeUs);
+    }
+
 
     /**
      * 开始录制前的准备(目前由XMediaMuxerManager在主线程调用)
@@ -81,33 +308,51 @@ public class MediaVideoEncoderRunable extends BaseMediaEncoderRunable {
         //
         mMuxerStarted = mIsEndOfStream = false;
 
+        //-----------------Encoder-----------------------
+        mCodec = createCodecBackend(MIME_TYPE);
+        mBufferInput = !(mCodec instanceof XSurfaceCodecBackend);
+        if (!mBufferInput) {
+            /**
+             * 看不到的绘制线程，上一次录制留下的线程(EGLContext)直接复用；
+             * 新建时EGL的初始化与下面编码器的配置同时进行
+             */
+            mRenderRunnable = XRecoderGLRenderRunnable.obtain(TAG);
+        }
+
         //-----------------MediaFormat-----------------------
         // mediaCodeC采用的是H.264编码
-        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
-        // 数据来源自surface
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        final XCodecFormat format = XCodecFormat.createVideoFormat(MIME_TYPE, mWidth, mHeight);
+        if (!mBufferInput) {
+            // 数据来源自surface
+            format.setInteger(XCodecFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        }
         // 视频码率
-        format.setInteger(MediaFormat.KEY_BIT_RATE, calcBitRate());
+        format.setInteger(XCodecFormat.KEY_BIT_RATE, calcBitRate());
         // fps
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        final XFrameRateGovernor governor = mFrameRateGovernor;
+        governor.reset();
+        final int fps = Math.max(1, Math.round(governor.getNominalFps()));
+        format.setInteger(XCodecFormat.KEY_FRAME_RATE, fps);
         //设置关键帧的时间
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10);
+        format.setInteger(XCodecFormat.KEY_I_FRAME_INTERVAL, 10);
 
-        //-----------------Encoder-----------------------
-        mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
-        mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        // get Surface for encoder input
-        // this method only can call between #configure and #start
-        mMediaCodecSurface = mMediaCodec.createInputSurface();
+        mCodec.configure(format);
+        if (mBufferInput) {
+            mInputFrame = ByteBuffer.allocateDirect(Math.max(1, calcBitRate() / 8 / fps));
+        } else {
+            // get Surface for encoder input
+            // this method only can call between #configure and #start
+            mMediaCodecSurface = ((XSurfaceCodecBackend) mCodec).createInputSurface();
+        }
         //
-        mMediaCodec.start();
+        mCodec.start();
         //
         LogUtils.i(TAG, "prepare finishing");
         if (mMediaEncoderListener != null) {
             try {
                 mMediaEncoderListener.onPrepared(this);
             } catch (final Exception e) {
-                Log.e(TAG, "prepare:", e);
+                LogUtils.e(TAG, "prepare:", e);
             }
         }
     }
@@ -119,20 +364,24 @@ public class MediaVideoEncoderRunable extends BaseMediaEncoderRunable {
      * @param xShowGLTexId      纹理Id
      */
     public void setEglContext(final EGLContext xShowEGLContext, XShowGLSurfaceView xShowGLSurfaceView, final int xShowGLTexId) {
-        mRenderRunnable.setEglContext(xShowEGLContext, xShowGLSurfaceView, xShowGLTexId, mMediaCodecSurface);
+        final XRecoderGLRenderRunnable renderRunnable = mRenderRunnable;
+        if (renderRunnable != null) {
+            renderRunnable.setEglContext(xShowEGLContext, xShowGLSurfaceView, xShowGLTexId, mMediaCodecSurface);
+        }
     }
 
     @Override
     public void release() {
         LogUtils.i(TAG, "release:");
+        // 先销毁 window surface 再释放编码器的输入surface，录制线程留给下一次录制
+        if (mRenderRunnable != null) {
+            mRenderRunnable.recycle();
+            mRenderRunnable = null;
+        }
         if (mMediaCodecSurface != null) {
             mMediaCodecSurface.release();
             mMediaCodecSurface = null;
         }
-        if (mRenderRunnable != null) {
-            mRenderRunnable.release();
-            mRenderRunnable = null;
-        }
         super.release();
     }
 
@@ -150,8 +399,13 @@ public class MediaVideoEncoderRunable extends BaseMediaEncoderRunable {
     @Override
     public void signalEndOfInputStream() {
         LogUtils.d(TAG, "sending EOS to encoder");
+        if (mBufferInput) {
+            // 缓冲区输入时EOS也作为输入缓冲区送入
+            super.signalEndOfInputStream();
+            return;
+        }
         // 停止录制
-        mMediaCodec.signalEndOfInputStream();
+        mCodec.signalEndOfInputStream();
         //
         mIsEndOfStream = true;
     }
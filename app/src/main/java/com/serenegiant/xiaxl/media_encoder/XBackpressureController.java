@@ -0,0 +1,142 @@
+package com.serenegiant.xiaxl.media_encoder;
+
+/**
+ * 编码器跟不上时的处理策略与统计
+ * <p>
+ * 每个编码器一个实例，只由输入线程(AudioThread / GLThread)更新
+ */
+public final class XBackpressureController {
+
+    public enum Policy {
+        // 丢弃最早的未编码数据，输入线程从不等待
+        DROP_OLDEST,
+        // 丢弃当前数据，输入线程从不等待
+        DROP_NEWEST,
+        // 最多等待 deadline，超时丢弃当前数据
+        BLOCK_WITH_DEADLINE,
+        // 同 DROP_NEWEST，持续丢帧时降低编码质量，恢复后再提高
+        DEGRADE,
+    }
+
+    // 连续丢帧多少次后降一级
+    private static final int DEGRADE_AFTER_DROPS = 3;
+    // 连续成功多少帧后升一级
+    private static final int RESTORE_AFTER_FRAMES = 100;
+    // 最多降几级
+    public static final int MAX_DEGRADE_LEVEL = 3;
+
+    private volatile Policy mPolicy;
+    // BLOCK_WITH_DEADLINE 最多等待的时间
+    private volatile long mDeadlineUs;
+    // 等待超过该时间才送入编码器的帧记为"迟到"
+    private volatile long mLateThresholdUs;
+
+    private volatile long mAcceptedFrames;
+    private volatile long mDroppedFrames;
+    private volatile long mLateFrames;
+    private volatile int mDegradeLevel;
+    private int mConsecutiveDrops;
+    private int mConsecutiveAccepted;
+
+    public XBackpressureController(final Policy policy, final long deadlineUs) {
+        setPolicy(policy);
+        setDeadlineUs(deadlineUs);
+        mLateThresholdUs = BaseMediaEncoderRunable.TIMEOUT_USEC;
+    }
+
+    public void setPolicy(final Policy policy) {
+        if (policy == null) {
+            throw new NullPointerException("Policy is null");
+        }
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public void setDeadlineUs(final long deadlineUs) {
+        if (deadlineUs < 0) {
+            throw new IllegalArgumentException("invalid deadline:" + deadlineUs);
+        }
+        mDeadlineUs = deadlineUs;
+    }
+
+    public long getDeadlineUs() {
+        return mDeadlineUs;
+    }
+
+    public void setLateThresholdUs(final long lateThresholdUs) {
+        mLateThresholdUs = lateThresholdUs;
+    }
+
+    /**
+     * @return 输入线程最多可以等待的时间
+     */
+    long getWaitBudgetUs() {
+        return mPolicy == Policy.BLOCK_WITH_DEADLINE ? mDeadlineUs : 0;
+    }
+
+    /**
+     * 新的录制开始时调用
+     */
+    void reset() {
+        mAcceptedFrames = mDroppedFrames = mLateFrames = 0;
+        mDegradeLevel = 0;
+        mConsecutiveDrops = mConsecutiveAccepted = 0;
+    }
+
+    /**
+     * 一帧送入了编码器
+     *
+     * @param waitedUs 输入线程为此等待的时间
+     * @return true 降级等级发生了变化
+     */
+    boolean onAccepted(final long waitedUs) {
+        mAcceptedFrames++;
+        if (waitedUs > mLateThresholdUs) {
+            mLateFrames++;
+        }
+        mConsecutiveDrops = 0;
+        if (mPolicy == Policy.DEGRADE && mDegradeLevel > 0 && ++mConsecutiveAccepted >= RESTORE_AFTER_FRAMES) {
+            mConsecutiveAccepted = 0;
+            mDegradeLevel--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 丢弃了帧
+     *
+     * @param count
+     * @return true 降级等级发生了变化
+     */
+    boolean onDropped(final int count) {
+        mDroppedFrames += count;
+        mConsecutiveAccepted = 0;
+        mConsecutiveDrops += count;
+        if (mPolicy == Policy.DEGRADE && mDegradeLevel < MAX_DEGRADE_LEVEL && mConsecutiveDrops >= DEGRADE_AFTER_DROPS) {
+            mConsecutiveDrops = 0;
+            mDegradeLevel++;
+            return true;
+        }
+        return false;
+    }
+
+    public long getAcceptedFrames() {
+        return mAcceptedFrames;
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public long getLateFrames() {
+        return mLateFrames;
+    }
+
+    public int getDegradeLevel() {
+        return mDegradeLevel;
+    }
+}
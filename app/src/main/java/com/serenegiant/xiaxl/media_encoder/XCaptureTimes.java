@@ -0,0 +1,60 @@
+package com.serenegiant.xiaxl.media_encoder;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 送入编码器的时间戳 -> 相机帧的采集时刻
+ * <p>
+ * 选帧后送给编码器的时间戳可能被改写(对齐到格点或按播放帧率重排)，
+ * 编码器输出时用它找回采集时刻来统计延时。
+ * 输入线程写、编码线程读，不加锁；最近 CAPACITY 帧之外的查不到，返回原时间戳
+ */
+final class XCaptureTimes {
+
+    private static final int CAPACITY = 32;
+
+    private final AtomicLongArray mPtsUs = new AtomicLongArray(CAPACITY);
+    private final AtomicLongArray mCaptureUs = new AtomicLongArray(CAPACITY);
+    // 只在输入线程使用
+    private int mNext;
+
+    XCaptureTimes() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mPtsUs.set(i, -1);
+        }
+    }
+
+    /**
+     * 输入线程调用，送入编码器之前
+     *
+     * @param ptsUs     送入编码器的时间戳
+     * @param captureUs 采集时刻
+     */
+    void put(final long ptsUs, final long captureUs) {
+        final int i = mNext;
+        mNext = (i + 1) % CAPACITY;
+        // 先让读线程看不到旧的对应关系，再写入新的
+        mPtsUs.set(i, -1);
+        mCaptureUs.set(i, captureUs);
+        mPtsUs.set(i, ptsUs);
+    }
+
+    /**
+     * 编码线程调用
+     *
+     * @param ptsUs 编码器输出的时间戳
+     * @return 采集时刻，查不到时为 ptsUs
+     */
+    long get(final long ptsUs) {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (mPtsUs.get(i) == ptsUs) {
+                final long captureUs = mCaptureUs.get(i);
+                // 读的过程中被改写时放弃
+                if (mPtsUs.get(i) == ptsUs) {
+                    return captureUs;
+                }
+            }
+        }
+        return ptsUs;
+    }
+}
@@ -0,0 +1,166 @@
+package com.serenegiant.xiaxl.media_encoder;
+
+/**
+ * 自适应的取编码数据调度
+ * <p>
+ * 原来每次 drainEncoder 固定以 10ms 超时重试 6 次(最多空等60ms)。
+ * 这里根据编码器实际的输出延时(EWMA)调整每次等待的超时时间，
+ * 并根据"多等一次是否能等到数据"调整重试次数；
+ * 同时统计每次调用的等待时间与一次取出的输出数量(输出队列深度)
+ * <p>
+ * 事件驱动的后端(XCodecBackend#isEventDriven)只用超时时间: 每次调用的第一次等待按它计算，
+ * 没有输出时不重试，等编码器的通知再取；重试次数只用于同步后端
+ */
+public final class XDrainScheduler {
+
+    // 超时时间的上下限
+    private static final long MIN_TIMEOUT_USEC = 1000;
+    private static final long MAX_TIMEOUT_USEC = 10000;
+    // 重试次数的上下限
+    private static final int MIN_RETRY = 1;
+    private static final int MAX_RETRY = 5;
+    // EWMA 权重 1/8
+    private static final int EWMA_SHIFT = 3;
+
+    // 编码器输出延时的估计值
+    private long mLatencyUs = MAX_TIMEOUT_USEC / 2;
+    // 当前的重试次数
+    private int mRetryBudget = 2;
+
+    // 本次调用的统计
+    private long mCallWaitNs;
+    private long mLastOutputNs;
+    private int mCallTryAgain;
+    private int mCallOutputs;
+
+    // 对外暴露的统计值
+    private volatile long mLastDrainWaitUs;
+    private volatile long mMaxDrainWaitUs;
+    private volatile long mTotalDrainWaitUs;
+    private volatile long mDrainCount;
+    private volatile int mLastOutputQueueDepth;
+    private volatile int mMaxOutputQueueDepth;
+
+    /**
+     * 每次 drainEncoder 开始时调用
+     */
+    void beginDrain() {
+        mLastOutputNs = System.nanoTime();
+        mCallWaitNs = 0;
+        mCallTryAgain = 0;
+        mCallOutputs = 0;
+    }
+
+    /**
+     * @return 本次 dequeueOutputBuffer 的超时时间
+     */
+    long getTimeoutUs() {
+        long timeoutUs = mLatencyUs + (mLatencyUs >> 1);
+        if (timeoutUs < MIN_TIMEOUT_USEC) {
+            timeoutUs = MIN_TIMEOUT_USEC;
+        } else if (timeoutUs > MAX_TIMEOUT_USEC) {
+            timeoutUs = MAX_TIMEOUT_USEC;
+        }
+        return timeoutUs;
+    }
+
+    /**
+     * 记录一次 dequeueOutputBuffer 的阻塞时间
+     *
+     * @param waitNs
+     */
+    void onWait(final long waitNs) {
+        mCallWaitNs += waitNs;
+    }
+
+    /**
+     * 编码器返回 INFO_TRY_AGAIN_LATER
+     *
+     * @return true 继续等待
+     */
+    boolean onTryAgain() {
+        return ++mCallTryAgain <= mRetryBudget;
+    }
+
+    /**
+     * 取到一个输出数据
+     */
+    void onOutput() {
+        final long now = System.nanoTime();
+        // 输出延时: 从开始等待(或上一个输出)到这个输出
+        final long latencyUs = (now - mLastOutputNs) / 1000L;
+        mLastOutputNs = now;
+        if (mCallTryAgain > 0 || mCallWaitNs > 0) {
+            mLatencyUs += (latencyUs - mLatencyUs) >> EWMA_SHIFT;
+        }
+        // 重试后等到了数据，说明值得多等
+        if (mCallTryAgain > 0 && mRetryBudget < MAX_RETRY) {
+            mRetryBudget++;
+        }
+        mCallTryAgain = 0;
+        mCallOutputs++;
+    }
+
+    /**
+     * 每次 drainEncoder 结束时调用
+     */
+    void endDrain() {
+        // 重试用完也没有等到数据，说明等待没有意义
+        if (mCallOutputs == 0 && mCallTryAgain > mRetryBudget && mRetryBudget > MIN_RETRY) {
+            mRetryBudget--;
+        }
+        final long waitUs = mCallWaitNs / 1000L;
+        mLastDrainWaitUs = waitUs;
+        if (waitUs > mMaxDrainWaitUs) {
+            mMaxDrainWaitUs = waitUs;
+        }
+        mTotalDrainWaitUs += waitUs;
+        mDrainCount++;
+        mLastOutputQueueDepth = mCallOutputs;
+        if (mCallOutputs > mMaxOutputQueueDepth) {
+            mMaxOutputQueueDepth = mCallOutputs;
+        }
+    }
+
+    /**
+     * @return 编码器输出延时的估计值
+     */
+    public long getEstimatedLatencyUs() {
+        return mLatencyUs;
+    }
+
+    public int getRetryBudget() {
+        return mRetryBudget;
+    }
+
+    /**
+     * @return 上一次 drainEncoder 阻塞等待的时间
+     */
+    public long getLastDrainWaitUs() {
+        return mLastDrainWaitUs;
+    }
+
+    public long getMaxDrainWaitUs() {
+        return mMaxDrainWaitUs;
+    }
+
+    public long getAverageDrainWaitUs() {
+        final long count = mDrainCount;
+        return count > 0 ? mTotalDrainWaitUs / count : 0;
+    }
+
+    /**
+     * @return 上一次 drainEncoder 取出的输出数量
+     */
+    public int getLastOutputQueueDepth() {
+        return mLastOutputQueueDepth;
+    }
+
+    public int getMaxOutputQueueDepth() {
+        return mMaxOutputQueueDepth;
+    }
+
+    public long getDrainCount() {
+        return mDrainCount;
+    }
+}
@@ -0,0 +1,93 @@
+package com.serenegiant.xiaxl.media_encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DROP_OLDEST 策略下暂存还没送入编码器的数据
+ * <p>
+ * 固定数量的预分配缓冲区，满了以后覆盖最早的数据
+ */
+final class XInputStash {
+
+    private final ByteBuffer[] mBuffers;
+    private final long[] mPtsUs;
+    // 暂存的时间
+    private final long[] mTimeNs;
+    private int mHead;
+    private int mCount;
+
+    /**
+     * @param capacity   最多暂存几帧
+     * @param bufferSize 每帧的最大字节数
+     */
+    XInputStash(final int capacity, final int bufferSize) {
+        mBuffers = new ByteBuffer[capacity];
+        mPtsUs = new long[capacity];
+        mTimeNs = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    void clear() {
+        mHead = mCount = 0;
+    }
+
+    /**
+     * 拷贝一帧
+     *
+     * @param buffer
+     * @param presentationTimeUs
+     * @return true 覆盖了最早的一帧
+     */
+    boolean push(final ByteBuffer buffer, final long presentationTimeUs) {
+        final boolean overwrite = mCount == mBuffers.length;
+        final int index;
+        if (overwrite) {
+            index = mHead;
+            mHead = (mHead + 1) % mBuffers.length;
+        } else {
+            index = (mHead + mCount) % mBuffers.length;
+            mCount++;
+        }
+        final ByteBuffer dst = mBuffers[index];
+        dst.clear();
+        if (buffer.remaining() > dst.remaining()) {
+            // 超出部分丢弃
+            final int limit = buffer.limit();
+            buffer.limit(buffer.position() + dst.remaining());
+            dst.put(buffer);
+            buffer.limit(limit);
+        } else {
+            dst.put(buffer);
+        }
+        dst.flip();
+        mPtsUs[index] = presentationTimeUs;
+        mTimeNs[index] = System.nanoTime();
+        return overwrite;
+    }
+
+    /**
+     * @return 最早的一帧，数据在 position 与 limit 之间
+     */
+    ByteBuffer peek() {
+        return mBuffers[mHead];
+    }
+
+    long peekPtsUs() {
+        return mPtsUs[mHead];
+    }
+
+    long peekTimeNs() {
+        return mTimeNs[mHead];
+    }
+
+    void pop() {
+        mHead = (mHead + 1) % mBuffers.length;
+        mCount--;
+    }
+}
@@ -0,0 +1,61 @@
+package com.serenegiant.xiaxl.media_encoder;
+
+/**
+ * 送入编码器的全0(数字静音)区间，环形保存最近几个
+ * <p>
+ * 送编码器的线程记录区间，取编码数据时判断一个输出帧是否完全落在区间内(考虑编码器延时)；
+ * 编码器输出比输入晚几帧，区间结束后仍然需要保留
+ */
+final class XSilenceSpans {
+
+    private static final int CAPACITY = 8;
+
+    private final long[] mStartUs = new long[CAPACITY];
+    private final long[] mEndUs = new long[CAPACITY];
+    private int mCount;
+    private int mCurrent = -1;
+
+    /**
+     * 送入一个全0的块
+     *
+     * @param startUs 这个块第一个采样的时间戳
+     * @param endUs   这个块之后的时间戳
+     */
+    synchronized void onSilent(final long startUs, final long endUs) {
+        if (mCurrent < 0) {
+            mCurrent = mCount % CAPACITY;
+            mStartUs[mCurrent] = startUs;
+            mCount++;
+        }
+        mEndUs[mCurrent] = endUs;
+    }
+
+    /**
+     * 送入非静音数据，当前区间结束
+     */
+    synchronized void onSpeech() {
+        mCurrent = -1;
+    }
+
+    /**
+     * @param ptsUs      输出帧的时间戳
+     * @param frameUs    一帧的时长
+     * @param primeUs    区间开始后需要经过的时间(编码器延时)
+     * @param toleranceUs
+     * @return true 输出帧解码后一定是静音
+     */
+    synchronized boolean covers(final long ptsUs, final long frameUs, final long primeUs, final long toleranceUs) {
+        final int n = Math.min(mCount, CAPACITY);
+        for (int i = 0; i < n; i++) {
+            if (mStartUs[i] + primeUs <= ptsUs + toleranceUs && ptsUs + frameUs <= mEndUs[i] + toleranceUs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void reset() {
+        mCount = 0;
+        mCurrent = -1;
+    }
+}
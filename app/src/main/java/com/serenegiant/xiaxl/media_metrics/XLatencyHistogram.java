@@ -0,0 +1,96 @@
+package com.serenegiant.xiaxl.media_metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延时直方图(单位 usec)，记录时不分配内存，可以多个线程同时记录
+ * <p>
+ * 小于16us每1us一个桶，之后每个2的幂分为8个桶，相对误差不超过12.5%
+ */
+public final class XLatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 最大 2^32 us(约71分钟)
+    private static final int MAX_EXPONENT = 32;
+    static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * @param valueUs 小于0时忽略
+     */
+    public void record(final long valueUs) {
+        if (valueUs < 0) {
+            return;
+        }
+        mBuckets.incrementAndGet(bucketOf(valueUs));
+        mCount.incrementAndGet();
+        mSumUs.addAndGet(valueUs);
+        long max;
+        while (valueUs > (max = mMaxUs.get())) {
+            if (mMaxUs.compareAndSet(max, valueUs)) {
+                break;
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    static int bucketOf(final long valueUs) {
+        if (valueUs < LINEAR_BUCKETS) {
+            return (int) valueUs;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int sub = (int) (valueUs >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return 桶的上限(不含)
+     */
+    static long upperBoundOf(final int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket + 1;
+        }
+        final int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        final int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BUCKET_BITS));
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getSumUs() {
+        return mSumUs.get();
+    }
+
+    long getMaxUs() {
+        return mMaxUs.get();
+    }
+
+    /**
+     * 拷贝桶的计数
+     */
+    void copyBuckets(final long[] dst) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            dst[i] = mBuckets.get(i);
+        }
+    }
+}
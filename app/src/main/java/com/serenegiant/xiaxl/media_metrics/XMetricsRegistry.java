@@ -0,0 +1,101 @@
+package com.serenegiant.xiaxl.media_metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 录制流水线各阶段的统计
+ * <p>
+ * 采集 -> 预览绘制(onDrawFrame) -> 录制绘制(XRecoderGLRenderRunnable) -> 编码 -> 写文件
+ * <p>
+ * 各阶段在初始化时拿到 XStageMetrics 并保存，热路径只做原子计数；
+ * snapshot() 用于导出，会分配内存
+ */
+public final class XMetricsRegistry {
+
+    public enum Stage {
+        // 相机帧时间戳 -> onDrawFrame 取到数据
+        CAPTURE,
+        // onDrawFrame 中预览绘制的耗时
+        PREVIEW_DRAW,
+        // 相机帧时间戳 -> 录制线程 swap 完成
+        RECORDER_DRAW,
+        // 采集时间戳 -> 编码器输出
+        VIDEO_ENCODE,
+        AUDIO_ENCODE,
+        // 进入写队列 -> 写入文件
+        MUX
+    }
+
+    /**
+     * 单个数值
+     */
+    public enum Gauge {
+        // 麦克风采样时钟相对会话时钟的漂移 [ppm]
+        AUDIO_DRIFT_PPM,
+        // 为修正漂移累计插入(正)或丢弃(负)的采样数
+        AUDIO_DRIFT_CORRECTION_SAMPLES,
+        // 上一帧实际发出的 / 因状态没有变化跳过的GL调用数(GLStateCache)
+        PREVIEW_GL_CALLS,
+        PREVIEW_GL_CALLS_SKIPPED,
+        RECORDER_GL_CALLS,
+        RECORDER_GL_CALLS_SKIPPED,
+        // 送去编码的帧在输出时间戳上测得的帧率 x100 / 帧间隔的抖动 [us](XFrameRateGovernor)
+        VIDEO_OUTPUT_FPS_X100,
+        VIDEO_FRAME_JITTER_US,
+        // 开始录制(创建视频编码器)到第一帧编码数据的时间 [us]
+        VIDEO_FIRST_FRAME_LATENCY_US
+    }
+
+    private static final XStageMetrics[] STAGES;
+    private static final AtomicLongArray GAUGES = new AtomicLongArray(Gauge.values().length);
+
+    static {
+        final Stage[] stages = Stage.values();
+        STAGES = new XStageMetrics[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            STAGES[i] = new XStageMetrics(stages[i]);
+        }
+    }
+
+    public static XStageMetrics stage(final Stage stage) {
+        return STAGES[stage.ordinal()];
+    }
+
+    public static void setGauge(final Gauge gauge, final long value) {
+        GAUGES.set(gauge.ordinal(), value);
+    }
+
+    public static long getGauge(final Gauge gauge) {
+        return GAUGES.get(gauge.ordinal());
+    }
+
+    /**
+     * @return 所有阶段的当前统计
+     */
+    public static List<XStageSnapshot> snapshot() {
+        final long[] buckets = new long[XLatencyHistogram.BUCKET_COUNT];
+        final List<XStageSnapshot> result = new ArrayList<XStageSnapshot>(STAGES.length);
+        for (final XStageMetrics metrics : STAGES) {
+            result.add(metrics.snapshot(buckets));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * 开始新的录制时清零
+     */
+    public static void reset() {
+        for (final XStageMetrics metrics : STAGES) {
+            metrics.reset();
+        }
+        for (int i = 0; i < GAUGES.length(); i++) {
+            GAUGES.set(i, 0);
+        }
+    }
+
+    private XMetricsRegistry() {
+    }
+}
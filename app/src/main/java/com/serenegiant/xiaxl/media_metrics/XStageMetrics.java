@@ -0,0 +1,100 @@
+package com.serenegiant.xiaxl.media_metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个处理阶段的统计: 延时、帧数、字节数、丢弃数、队列深度
+ * <p>
+ * 所有记录方法都不分配内存
+ */
+public final class XStageMetrics {
+
+    private final XMetricsRegistry.Stage mStage;
+    private final XLatencyHistogram mLatency = new XLatencyHistogram();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+    XStageMetrics(final XMetricsRegistry.Stage stage) {
+        mStage = stage;
+    }
+
+    public XMetricsRegistry.Stage getStage() {
+        return mStage;
+    }
+
+    /**
+     * 处理了一帧
+     *
+     * @param latencyUs 延时，小于0时只计数
+     * @param bytes
+     */
+    public void onFrame(final long latencyUs, final int bytes) {
+        mFrames.incrementAndGet();
+        if (bytes > 0) {
+            mBytes.addAndGet(bytes);
+        }
+        mLatency.record(latencyUs);
+    }
+
+    public void onDrop(final int count) {
+        mDrops.addAndGet(count);
+    }
+
+    public void setQueueDepth(final int depth) {
+        mQueueDepth.set(depth);
+        int max;
+        while (depth > (max = mMaxQueueDepth.get())) {
+            if (mMaxQueueDepth.compareAndSet(max, depth)) {
+                break;
+            }
+        }
+    }
+
+    public void reset() {
+        mLatency.reset();
+        mFrames.set(0);
+        mBytes.set(0);
+        mDrops.set(0);
+        mQueueDepth.set(0);
+        mMaxQueueDepth.set(0);
+    }
+
+    /**
+     * 在非热路径中调用，会分配内存
+     */
+    XStageSnapshot snapshot(final long[] buckets) {
+        mLatency.copyBuckets(buckets);
+        final long count = mLatency.getCount();
+        final long max = mLatency.getMaxUs();
+        // 桶的上限可能超过实际最大值
+        return new XStageSnapshot(mStage, mFrames.get(), mBytes.get(), mDrops.get(),
+                mQueueDepth.get(), mMaxQueueDepth.get(),
+                count, count > 0 ? mLatency.getSumUs() / count : 0, max,
+                Math.min(max, percentile(buckets, 0.50)),
+                Math.min(max, percentile(buckets, 0.90)),
+                Math.min(max, percentile(buckets, 0.99)));
+    }
+
+    private static long percentile(final long[] buckets, final double p) {
+        long total = 0;
+        for (final long n : buckets) {
+            total += n;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return XLatencyHistogram.upperBoundOf(i);
+            }
+        }
+        return XLatencyHistogram.upperBoundOf(buckets.length - 1);
+    }
+}
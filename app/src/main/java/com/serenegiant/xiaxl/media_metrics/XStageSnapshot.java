@@ -0,0 +1,49 @@
+package com.serenegiant.xiaxl.media_metrics;
+
+import java.util.Locale;
+
+/**
+ * 一个处理阶段的统计快照
+ */
+public final class XStageSnapshot {
+
+    public final XMetricsRegistry.Stage stage;
+    public final long frames;
+    public final long bytes;
+    public final long drops;
+    public final int queueDepth;
+    public final int maxQueueDepth;
+    // 延时 usec，百分位为所在桶的上限
+    public final long latencyCount;
+    public final long latencyMeanUs;
+    public final long latencyMaxUs;
+    public final long latencyP50Us;
+    public final long latencyP90Us;
+    public final long latencyP99Us;
+
+    XStageSnapshot(final XMetricsRegistry.Stage stage, final long frames, final long bytes, final long drops,
+                   final int queueDepth, final int maxQueueDepth,
+                   final long latencyCount, final long latencyMeanUs, final long latencyMaxUs,
+                   final long latencyP50Us, final long latencyP90Us, final long latencyP99Us) {
+        this.stage = stage;
+        this.frames = frames;
+        this.bytes = bytes;
+        this.drops = drops;
+        this.queueDepth = queueDepth;
+        this.maxQueueDepth = maxQueueDepth;
+        this.latencyCount = latencyCount;
+        this.latencyMeanUs = latencyMeanUs;
+        this.latencyMaxUs = latencyMaxUs;
+        this.latencyP50Us = latencyP50Us;
+        this.latencyP90Us = latencyP90Us;
+        this.latencyP99Us = latencyP99Us;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s frames=%d bytes=%d drops=%d queue=%d/%d latency(us) mean=%d p50=%d p90=%d p99=%d max=%d",
+                stage, frames, bytes, drops, queueDepth, maxQueueDepth,
+                latencyMeanUs, latencyP50Us, latencyP90Us, latencyP99Us, latencyMaxUs);
+    }
+}
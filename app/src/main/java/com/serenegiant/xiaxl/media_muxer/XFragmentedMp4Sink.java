@@ -0,0 +1,82 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * 使用 XFragmentedMp4Writer 输出分片MP4
+ */
+public class XFragmentedMp4Sink implements XMuxerSink {
+
+    private final RandomAccessFile mFile;
+    private final XFragmentedMp4Writer mWriter;
+
+    public XFragmentedMp4Sink(final String outputPath) throws IOException {
+        mFile = new RandomAccessFile(outputPath, "rw");
+        mFile.setLength(0);
+        mWriter = new XFragmentedMp4Writer(mFile.getChannel());
+    }
+
+    public XFragmentedMp4Writer getWriter() {
+        return mWriter;
+    }
+
+    @Override
+    public int addTrack(final XCodecFormat format) {
+        if (format.isVideo()) {
+            return mWriter.addTrack(XMp4TrackFormat.avc(
+                    format.getInteger(XCodecFormat.KEY_WIDTH),
+                    format.getInteger(XCodecFormat.KEY_HEIGHT),
+                    toBytes(format.getByteBuffer(XCodecFormat.KEY_CSD_0)),
+                    toBytes(format.getByteBuffer(XCodecFormat.KEY_CSD_1))));
+        }
+        if (format.isAudio()) {
+            return mWriter.addTrack(XMp4TrackFormat.aac(
+                    format.getInteger(XCodecFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(XCodecFormat.KEY_CHANNEL_COUNT),
+                    toBytes(format.getByteBuffer(XCodecFormat.KEY_CSD_0)),
+                    format.getInteger(XCodecFormat.KEY_BIT_RATE, 0)));
+        }
+        throw new IllegalArgumentException("unsupported format:" + format.getString(XCodecFormat.KEY_MIME));
+    }
+
+    @Override
+    public void start() throws IOException {
+        mWriter.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) throws IOException {
+        mWriter.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        mWriter.stop();
+        mFile.getChannel().force(false);
+    }
+
+    @Override
+    public void release() {
+        try {
+            mFile.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("codec specific data not found");
+        }
+        final ByteBuffer src = buffer.duplicate();
+        src.rewind();
+        final byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        return bytes;
+    }
+}
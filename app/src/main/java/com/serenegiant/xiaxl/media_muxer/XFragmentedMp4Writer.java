@@ -0,0 +1,705 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.media_codec.XCodecBackend;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 纯Java的分片MP4(fMP4)写入
+ * <p>
+ * 文件结构: ftyp + moov(不含样本表) + [moof + mdat]...
+ * 每个分片写完就是完整可播放的，中途崩溃只丢失还在内存中的分片；
+ * 内存只保存当前分片的数据，不随录制时长增长。
+ * <p>
+ * 有视频轨道时在视频关键帧处切分片，每个分片都从关键帧开始。
+ * 样本时长由下一个样本的时间戳计算，所以每个轨道最后一个样本留到下一个分片。
+ * <p>
+ * 不依赖Android API，可以在JVM上用合成的H.264/AAC数据测试
+ */
+public class XFragmentedMp4Writer {
+
+    // 默认分片时长 1[sec]
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+    // 默认分片最大字节数，超过时不等关键帧直接切分片
+    public static final int DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final int FTYP = fourcc("ftyp");
+    private static final int MOOV = fourcc("moov");
+    private static final int MVHD = fourcc("mvhd");
+    private static final int TRAK = fourcc("trak");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int VMHD = fourcc("vmhd");
+    private static final int SMHD = fourcc("smhd");
+    private static final int DINF = fourcc("dinf");
+    private static final int DREF = fourcc("dref");
+    private static final int URL_ = fourcc("url ");
+    private static final int STBL = fourcc("stbl");
+    private static final int STSD = fourcc("stsd");
+    private static final int AVC1 = fourcc("avc1");
+    private static final int AVCC = fourcc("avcC");
+    private static final int MP4A = fourcc("mp4a");
+    private static final int ESDS = fourcc("esds");
+    private static final int STTS = fourcc("stts");
+    private static final int STSC = fourcc("stsc");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STCO = fourcc("stco");
+    private static final int MVEX = fourcc("mvex");
+    private static final int TREX = fourcc("trex");
+    private static final int MOOF = fourcc("moof");
+    private static final int MFHD = fourcc("mfhd");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TFDT = fourcc("tfdt");
+    private static final int TRUN = fourcc("trun");
+    private static final int MDAT = fourcc("mdat");
+
+    // tfhd: default-base-is-moof
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // trun: data-offset, sample-duration, sample-size, sample-flags
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // sample_depends_on=2(不依赖其他帧)
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    // sample_depends_on=1, sample_is_non_sync_sample=1
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    /**
+     * 一个轨道当前分片的数据
+     */
+    private static final class Track {
+        final XMp4TrackFormat format;
+        final int trackId;
+        final int timescale;
+
+        byte[] data = new byte[64 * 1024];
+        ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+        int dataSize;
+
+        int count;
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        long[] ticks = new long[64];
+        // 上一个样本的时长，结束时作为最后一个样本的时长
+        long lastDuration;
+        // 本分片写出的样本数(flush时使用)
+        int flushCount;
+        // trun data_offset 在 mBox 中的位置
+        int dataOffsetPosition;
+
+        Track(final XMp4TrackFormat format, final int trackId) {
+            this.format = format;
+            this.trackId = trackId;
+            this.timescale = format.getTimescale();
+            // 默认时长: 视频30fps，音频一个AAC帧
+            this.lastDuration = format.isVideo ? timescale / 30 : 1024;
+        }
+
+        void ensureData(final int required) {
+            if (required > data.length) {
+                final byte[] grown = new byte[Math.max(required, data.length * 2)];
+                System.arraycopy(data, 0, grown, 0, dataSize);
+                data = grown;
+                dataBuffer = ByteBuffer.wrap(data);
+            }
+        }
+
+        void ensureSamples() {
+            if (count == sizes.length) {
+                final int n = count * 2;
+                final int[] newSizes = new int[n];
+                final int[] newFlags = new int[n];
+                final long[] newTicks = new long[n];
+                System.arraycopy(sizes, 0, newSizes, 0, count);
+                System.arraycopy(flags, 0, newFlags, 0, count);
+                System.arraycopy(ticks, 0, newTicks, 0, count);
+                sizes = newSizes;
+                flags = newFlags;
+                ticks = newTicks;
+            }
+        }
+
+        long durationOf(final int i) {
+            return (i + 1 < count) ? ticks[i + 1] - ticks[i] : lastDuration;
+        }
+    }
+
+    private final FileChannel mChannel;
+    private final List<Track> mTracks = new ArrayList<Track>();
+    private boolean mHasVideo;
+    private boolean mStarted;
+
+    private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+    private int mMaxFragmentBytes = DEFAULT_MAX_FRAGMENT_BYTES;
+
+    // 第一个样本的时间戳，作为时间零点
+    private long mOriginUs = -1;
+    // 当前分片第一个样本的时间戳
+    private long mFragmentStartUs;
+    private int mPendingBytes;
+    private int mSequenceNumber;
+
+    // 写box用
+    private ByteBuffer mBox = ByteBuffer.allocate(4096);
+    // 拷贝输入样本用
+    private byte[] mScratch = new byte[64 * 1024];
+
+    private long mWrittenBytes;
+    private int mFragmentCount;
+
+    public XFragmentedMp4Writer(final FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * @param fragmentDurationUs 分片时长，start()之前调用
+     */
+    public void setFragmentDurationUs(final long fragmentDurationUs) {
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * @param maxFragmentBytes 分片最大字节数，start()之前调用
+     */
+    public void setMaxFragmentBytes(final int maxFragmentBytes) {
+        mMaxFragmentBytes = maxFragmentBytes;
+    }
+
+    /**
+     * @param format
+     * @return 轨道，从0开始
+     */
+    public int addTrack(final XMp4TrackFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("writer already started");
+        }
+        mTracks.add(new Track(format, mTracks.size() + 1));
+        mHasVideo |= format.isVideo;
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * 写 ftyp + moov
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("writer already started");
+        }
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("no track");
+        }
+        mStarted = true;
+        mBox.clear();
+        writeFtyp();
+        writeMoov();
+        mBox.flip();
+        writeFully(mBox);
+    }
+
+    /**
+     * 写入一个样本
+     *
+     * @param trackIndex
+     * @param byteBuf
+     * @param bufferInfo
+     * @throws IOException
+     */
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("writer not started");
+        }
+        if ((bufferInfo.flags & XCodecBackend.BUFFER_FLAG_CODEC_CONFIG) != 0 || bufferInfo.size <= 0) {
+            // 配置数据已经写在moov里
+            return;
+        }
+        final Track track = mTracks.get(trackIndex);
+        final long ptsUs = bufferInfo.presentationTimeUs;
+        if (mOriginUs < 0) {
+            mOriginUs = ptsUs;
+            mFragmentStartUs = ptsUs;
+        }
+        long ticks = Math.max(0, ptsUs - mOriginUs) * track.timescale / 1000000L;
+        if (track.count > 0 && ticks <= track.ticks[track.count - 1]) {
+            // 保证递增
+            ticks = track.ticks[track.count - 1] + 1;
+        }
+        final boolean isKeyFrame = !track.format.isVideo
+                || (bufferInfo.flags & XCodecBackend.BUFFER_FLAG_KEY_FRAME) != 0;
+        final boolean canSplit = track.format.isVideo ? isKeyFrame : !mHasVideo;
+        if ((canSplit && ptsUs - mFragmentStartUs >= mFragmentDurationUs)
+                || mPendingBytes + bufferInfo.size > mMaxFragmentBytes) {
+            flushFragment(track, ticks);
+            mFragmentStartUs = ptsUs;
+        }
+        appendSample(track, byteBuf, bufferInfo, ticks, isKeyFrame);
+    }
+
+    /**
+     * 写出剩余的所有样本
+     *
+     * @throws IOException
+     */
+    public void stop() throws IOException {
+        if (!mStarted) {
+            return;
+        }
+        flushFragment(null, 0);
+        mStarted = false;
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * @return 还在内存中没有写出的字节数
+     */
+    public int getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    private void appendSample(final Track track, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo,
+                              final long ticks, final boolean isKeyFrame) {
+        final int size = bufferInfo.size;
+        if (mScratch.length < size) {
+            mScratch = new byte[size + (size >> 2)];
+        }
+        final int position = byteBuf.position();
+        final int limit = byteBuf.limit();
+        byteBuf.limit(bufferInfo.offset + size).position(bufferInfo.offset);
+        byteBuf.get(mScratch, 0, size);
+        byteBuf.limit(limit).position(position);
+
+        final int start = track.dataSize;
+        if (track.format.isVideo && XMp4TrackFormat.startCodeLength(mScratch, 0, size) > 0) {
+            appendAnnexB(track, mScratch, size);
+        } else {
+            track.ensureData(track.dataSize + size);
+            System.arraycopy(mScratch, 0, track.data, track.dataSize, size);
+            track.dataSize += size;
+        }
+        track.ensureSamples();
+        final int i = track.count++;
+        track.sizes[i] = track.dataSize - start;
+        track.flags[i] = isKeyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        track.ticks[i] = ticks;
+        if (i > 0) {
+            track.lastDuration = ticks - track.ticks[i - 1];
+        }
+        mPendingBytes += track.sizes[i];
+    }
+
+    /**
+     * Annex-B(起始码分隔) 转换为 4字节长度前缀
+     */
+    private static void appendAnnexB(final Track track, final byte[] src, final int end) {
+        // 每个NAL最多增加1个字节(3字节起始码变为4字节长度)
+        track.ensureData(track.dataSize + end + end / 3 + 4);
+        final byte[] dst = track.data;
+        int nalStart = XMp4TrackFormat.startCodeLength(src, 0, end);
+        while (nalStart < end) {
+            int next = nalStart;
+            int nalEnd = end;
+            int startCode = 0;
+            for (; next + 3 <= end; next++) {
+                if (src[next] == 0 && src[next + 1] == 0 && src[next + 2] == 1) {
+                    startCode = 3;
+                    nalEnd = next;
+                    if (nalEnd > nalStart && src[nalEnd - 1] == 0) {
+                        nalEnd--;
+                    }
+                    break;
+                }
+            }
+            final int length = nalEnd - nalStart;
+            if (length > 0) {
+                int p = track.dataSize;
+                dst[p++] = (byte) (length >>> 24);
+                dst[p++] = (byte) (length >>> 16);
+                dst[p++] = (byte) (length >>> 8);
+                dst[p++] = (byte) length;
+                System.arraycopy(src, nalStart, dst, p, length);
+                track.dataSize = p + length;
+            }
+            if (startCode == 0) {
+                break;
+            }
+            nalStart = next + startCode;
+        }
+    }
+
+    /**
+     * 写出一个分片(moof + mdat)
+     *
+     * @param nextTrack 触发切分片的轨道，它最后一个样本的时长由 nextTicks 决定；null 表示结束，写出所有样本
+     * @param nextTicks
+     * @throws IOException
+     */
+    private void flushFragment(final Track nextTrack, final long nextTicks) throws IOException {
+        int total = 0;
+        int mdatSize = 0;
+        for (final Track track : mTracks) {
+            if (nextTrack == null) {
+                track.flushCount = track.count;
+            } else if (track == nextTrack) {
+                if (track.count > 0) {
+                    track.lastDuration = nextTicks - track.ticks[track.count - 1];
+                }
+                track.flushCount = track.count;
+            } else {
+                // 时长未知的最后一个样本留到下一个分片
+                track.flushCount = Math.max(0, track.count - 1);
+            }
+            total += track.flushCount;
+        }
+        if (total == 0) {
+            return;
+        }
+        ensureBox(256 + mTracks.size() * 64 + total * 12);
+        mBox.clear();
+        final int moof = beginBox(MOOF);
+        final int mfhd = fullBox(MFHD, 0, 0);
+        mBox.putInt(++mSequenceNumber);
+        endBox(mfhd);
+        for (final Track track : mTracks) {
+            final int n = track.flushCount;
+            if (n == 0) {
+                continue;
+            }
+            final int traf = beginBox(TRAF);
+            final int tfhd = fullBox(TFHD, 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            mBox.putInt(track.trackId);
+            endBox(tfhd);
+            final int tfdt = fullBox(TFDT, 1, 0);
+            mBox.putLong(track.ticks[0]);
+            endBox(tfdt);
+            final int trun = fullBox(TRUN, 0, TRUN_FLAGS);
+            mBox.putInt(n);
+            track.dataOffsetPosition = mBox.position();
+            mBox.putInt(0);
+            for (int i = 0; i < n; i++) {
+                mBox.putInt((int) track.durationOf(i));
+                mBox.putInt(track.sizes[i]);
+                mBox.putInt(track.flags[i]);
+            }
+            endBox(trun);
+            endBox(traf);
+        }
+        endBox(moof);
+        // data_offset 是相对于moof开始的位置
+        int dataOffset = mBox.position() + 8;
+        for (final Track track : mTracks) {
+            if (track.flushCount == 0) {
+                continue;
+            }
+            mBox.putInt(track.dataOffsetPosition, dataOffset);
+            final int bytes = bytesOf(track, track.flushCount);
+            dataOffset += bytes;
+            mdatSize += bytes;
+        }
+        mBox.putInt(8 + mdatSize);
+        mBox.putInt(MDAT);
+        mBox.flip();
+        writeFully(mBox);
+        for (final Track track : mTracks) {
+            final int n = track.flushCount;
+            if (n == 0) {
+                continue;
+            }
+            final int bytes = bytesOf(track, n);
+            track.dataBuffer.clear();
+            track.dataBuffer.limit(bytes);
+            writeFully(track.dataBuffer);
+            // 留下的样本移到前面
+            final int remain = track.count - n;
+            if (remain > 0) {
+                System.arraycopy(track.data, bytes, track.data, 0, track.dataSize - bytes);
+                System.arraycopy(track.sizes, n, track.sizes, 0, remain);
+                System.arraycopy(track.flags, n, track.flags, 0, remain);
+                System.arraycopy(track.ticks, n, track.ticks, 0, remain);
+            }
+            track.dataSize -= bytes;
+            track.count = remain;
+            mPendingBytes -= bytes;
+        }
+        mFragmentCount++;
+    }
+
+    private static int bytesOf(final Track track, final int n) {
+        int bytes = 0;
+        for (int i = 0; i < n; i++) {
+            bytes += track.sizes[i];
+        }
+        return bytes;
+    }
+
+    private void writeFtyp() {
+        final int ftyp = beginBox(FTYP);
+        mBox.putInt(fourcc("isom"));
+        mBox.putInt(0x200);
+        mBox.putInt(fourcc("isom"));
+        mBox.putInt(fourcc("iso6"));
+        mBox.putInt(fourcc("iso2"));
+        mBox.putInt(fourcc("avc1"));
+        mBox.putInt(fourcc("mp41"));
+        endBox(ftyp);
+    }
+
+    private void writeMoov() {
+        final int moov = beginBox(MOOV);
+        // mvhd
+        final int mvhd = fullBox(MVHD, 0, 0);
+        mBox.putInt(0);             // creation_time
+        mBox.putInt(0);             // modification_time
+        mBox.putInt(1000);          // timescale
+        mBox.putInt(0);             // duration(分片文件中未知)
+        mBox.putInt(0x00010000);    // rate 1.0
+        mBox.putShort((short) 0x0100);  // volume 1.0
+        mBox.putShort((short) 0);
+        mBox.putLong(0);
+        putMatrix();
+        for (int i = 0; i < 6; i++) {
+            mBox.putInt(0);         // pre_defined
+        }
+        mBox.putInt(mTracks.size() + 1);    // next_track_ID
+        endBox(mvhd);
+        for (final Track track : mTracks) {
+            writeTrak(track);
+        }
+        final int mvex = beginBox(MVEX);
+        for (final Track track : mTracks) {
+            final int trex = fullBox(TREX, 0, 0);
+            mBox.putInt(track.trackId);
+            mBox.putInt(1);         // default_sample_description_index
+            mBox.putInt(0);         // default_sample_duration
+            mBox.putInt(0);         // default_sample_size
+            mBox.putInt(0);         // default_sample_flags
+            endBox(trex);
+        }
+        endBox(mvex);
+        endBox(moov);
+    }
+
+    private void writeTrak(final Track track) {
+        final XMp4TrackFormat format = track.format;
+        final int trak = beginBox(TRAK);
+        // tkhd: track_enabled | track_in_movie
+        final int tkhd = fullBox(TKHD, 0, 3);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(track.trackId);
+        mBox.putInt(0);
+        mBox.putInt(0);             // duration
+        mBox.putLong(0);
+        mBox.putShort((short) 0);   // layer
+        mBox.putShort((short) 0);   // alternate_group
+        mBox.putShort((short) (format.isVideo ? 0 : 0x0100));
+        mBox.putShort((short) 0);
+        putMatrix();
+        mBox.putInt(format.width << 16);
+        mBox.putInt(format.height << 16);
+        endBox(tkhd);
+
+        final int mdia = beginBox(MDIA);
+        final int mdhd = fullBox(MDHD, 0, 0);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(track.timescale);
+        mBox.putInt(0);
+        mBox.putShort((short) 0x55C4);  // language: und
+        mBox.putShort((short) 0);
+        endBox(mdhd);
+        final int hdlr = fullBox(HDLR, 0, 0);
+        mBox.putInt(0);
+        mBox.putInt(fourcc(format.isVideo ? "vide" : "soun"));
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        putString(format.isVideo ? "VideoHandler" : "SoundHandler");
+        endBox(hdlr);
+
+        final int minf = beginBox(MINF);
+        if (format.isVideo) {
+            final int vmhd = fullBox(VMHD, 0, 1);
+            mBox.putLong(0);        // graphicsmode + opcolor
+            endBox(vmhd);
+        } else {
+            final int smhd = fullBox(SMHD, 0, 0);
+            mBox.putInt(0);         // balance + reserved
+            endBox(smhd);
+        }
+        final int dinf = beginBox(DINF);
+        final int dref = fullBox(DREF, 0, 0);
+        mBox.putInt(1);
+        endBox(fullBox(URL_, 0, 1));
+        endBox(dref);
+        endBox(dinf);
+
+        final int stbl = beginBox(STBL);
+        final int stsd = fullBox(STSD, 0, 0);
+        mBox.putInt(1);
+        if (format.isVideo) {
+            writeAvc1(format);
+        } else {
+            writeMp4a(format);
+        }
+        endBox(stsd);
+        // 样本表都在moof里，这里为空
+        final int stts = fullBox(STTS, 0, 0);
+        mBox.putInt(0);
+        endBox(stts);
+        final int stsc = fullBox(STSC, 0, 0);
+        mBox.putInt(0);
+        endBox(stsc);
+        final int stsz = fullBox(STSZ, 0, 0);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        endBox(stsz);
+        final int stco = fullBox(STCO, 0, 0);
+        mBox.putInt(0);
+        endBox(stco);
+        endBox(stbl);
+        endBox(minf);
+        endBox(mdia);
+        endBox(trak);
+    }
+
+    private void writeAvc1(final XMp4TrackFormat format) {
+        final int avc1 = beginBox(AVC1);
+        mBox.putInt(0);
+        mBox.putShort((short) 0);
+        mBox.putShort((short) 1);   // data_reference_index
+        mBox.putInt(0);             // pre_defined + reserved
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putShort((short) format.width);
+        mBox.putShort((short) format.height);
+        mBox.putInt(0x00480000);    // 72dpi
+        mBox.putInt(0x00480000);
+        mBox.putInt(0);
+        mBox.putShort((short) 1);   // frame_count
+        for (int i = 0; i < 8; i++) {
+            mBox.putInt(0);         // compressorname
+        }
+        mBox.putShort((short) 0x0018);  // depth
+        mBox.putShort((short) -1);  // pre_defined
+        final int avcC = beginBox(AVCC);
+        mBox.put((byte) 1);
+        mBox.put(format.sps[1]);    // profile
+        mBox.put(format.sps[2]);    // profile compatibility
+        mBox.put(format.sps[3]);    // level
+        mBox.put((byte) 0xFF);      // 4字节长度前缀
+        mBox.put((byte) 0xE1);      // 1个sps
+        mBox.putShort((short) format.sps.length);
+        mBox.put(format.sps);
+        mBox.put((byte) 1);         // 1个pps
+        mBox.putShort((short) format.pps.length);
+        mBox.put(format.pps);
+        endBox(avcC);
+        endBox(avc1);
+    }
+
+    private void writeMp4a(final XMp4TrackFormat format) {
+        final int mp4a = beginBox(MP4A);
+        mBox.putInt(0);
+        mBox.putShort((short) 0);
+        mBox.putShort((short) 1);   // data_reference_index
+        mBox.putLong(0);
+        mBox.putShort((short) format.channelCount);
+        mBox.putShort((short) 16);  // samplesize
+        mBox.putInt(0);             // pre_defined + reserved
+        mBox.putInt(format.sampleRate << 16);
+        final int esds = fullBox(ESDS, 0, 0);
+        final byte[] asc = format.audioSpecificConfig;
+        // ES_Descriptor
+        mBox.put((byte) 0x03);
+        mBox.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        mBox.putShort((short) 1);   // ES_ID
+        mBox.put((byte) 0);
+        // DecoderConfigDescriptor
+        mBox.put((byte) 0x04);
+        mBox.put((byte) (13 + 2 + asc.length));
+        mBox.put((byte) 0x40);      // AAC
+        mBox.put((byte) 0x15);      // AudioStream
+        mBox.put((byte) 0);         // bufferSizeDB
+        mBox.putShort((short) 0);
+        mBox.putInt(format.bitRate);
+        mBox.putInt(format.bitRate);
+        // DecoderSpecificInfo
+        mBox.put((byte) 0x05);
+        mBox.put((byte) asc.length);
+        mBox.put(asc);
+        // SLConfigDescriptor
+        mBox.put((byte) 0x06);
+        mBox.put((byte) 1);
+        mBox.put((byte) 0x02);
+        endBox(esds);
+        endBox(mp4a);
+    }
+
+    private void putMatrix() {
+        mBox.putInt(0x00010000);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(0x00010000);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(0);
+        mBox.putInt(0x40000000);
+    }
+
+    private void putString(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            mBox.put((byte) s.charAt(i));
+        }
+        mBox.put((byte) 0);
+    }
+
+    private int beginBox(final int type) {
+        final int position = mBox.position();
+        mBox.putInt(0);
+        mBox.putInt(type);
+        return position;
+    }
+
+    private int fullBox(final int type, final int version, final int flags) {
+        final int position = beginBox(type);
+        mBox.putInt((version << 24) | flags);
+        return position;
+    }
+
+    private void endBox(final int position) {
+        mBox.putInt(position, mBox.position() - position);
+    }
+
+    private void ensureBox(final int capacity) {
+        if (mBox.capacity() < capacity) {
+            mBox = ByteBuffer.allocate(capacity);
+        }
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mWrittenBytes += mChannel.write(buffer);
+        }
+    }
+
+    private static int fourcc(final String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
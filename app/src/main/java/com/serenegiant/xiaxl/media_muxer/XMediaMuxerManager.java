@@ -2,15 +2,18 @@ package com.serenegiant.xiaxl.media_muxer;
 
 
 import android.content.Context;
-import android.media.MediaCodec;
-import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Environment;
 import android.text.TextUtils;
 
+import com.serenegiant.xiaxl.media_clock.XClock;
+import com.serenegiant.xiaxl.media_clock.XFrameRateGovernor;
+import com.serenegiant.xiaxl.media_clock.XSystemClock;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
 import com.serenegiant.xiaxl.media_encoder.BaseMediaEncoderRunable;
 import com.serenegiant.xiaxl.media_encoder.MediaAudioEncoderRunable;
 import com.serenegiant.xiaxl.media_encoder.MediaVideoEncoderRunable;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
 import com.serenegiant.xiaxl.util.SdCardUtil;
 import com.serenegiant.xiaxl.util.TimeUtil;
 
@@ -29,12 +32,19 @@ public class XMediaMuxerManager {
 
     // 输出文件路径
     private String mOutputPath;
-    // 把音轨和视频轨道合成封装为新的视频
-    private final MediaMuxer mMediaMuxer;
+    private final XMuxerSinkFactory mSinkFactory;
+    // 把音轨和视频轨道合成封装为新的视频，第一个编码器输出格式时才创建(创建时会生成文件)
+    private XMuxerSink mMuxerSink;
+    // 写文件线程
+    private XMuxerWriter mMuxerWriter;
     //
     private int mEncoderCount, mStatredCount;
-    private boolean mIsStarted;
+    private volatile boolean mIsStarted;
+    // sink 已经交给写线程释放，或已经直接释放
+    private boolean mSinkReleased;
     private BaseMediaEncoderRunable mVideoEncoder, mAudioEncoder;
+    // 音频与视频共用的时钟
+    private XClock mClock = XSystemClock.INSTANCE;
 
     /**
      * Constructor
@@ -43,22 +53,51 @@ public class XMediaMuxerManager {
      * @throws IOException
      */
     public XMediaMuxerManager(Context context, String ext) throws IOException {
+        this(context, ext, XMuxerSinks.DEFAULT);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ext         extension of output file
+     * @param sinkFactory 封装输出，例如 XMuxerSinks.FRAGMENTED_MP4
+     * @throws IOException
+     */
+    public XMediaMuxerManager(Context context, String ext, final XMuxerSinkFactory sinkFactory) throws IOException {
+        this(captureFileOf(context, ext), sinkFactory);
+    }
+
+    /**
+     * Constructor
+     * <p>
+     * 不依赖Context，直接指定输出文件，例如在JVM上压测时
+     *
+     * @param outputPath  输出文件路径
+     * @param sinkFactory 封装输出，例如 XMuxerSinks.FRAGMENTED_MP4
+     */
+    public XMediaMuxerManager(final String outputPath, final XMuxerSinkFactory sinkFactory) {
+        if (outputPath == null || sinkFactory == null) {
+            throw new NullPointerException("outputPath or sinkFactory is null");
+        }
+        // 输出文件路径
+        mOutputPath = outputPath;
+        mSinkFactory = sinkFactory;
+        //
+        mEncoderCount = mStatredCount = 0;
+        //
+        mIsStarted = false;
+    }
+
+    private static String captureFileOf(final Context context, String ext) {
         if (TextUtils.isEmpty(ext)) {
             ext = ".mp4";
         }
         try {
             // 输出文件路径
-            mOutputPath = getCaptureFile(context, ext);
-            //
+            return getCaptureFile(context, ext);
         } catch (final NullPointerException e) {
             throw new RuntimeException("This app has no permission of writing external storage");
         }
-        // 编码器
-        mMediaMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        //
-        mEncoderCount = mStatredCount = 0;
-        //
-        mIsStarted = false;
     }
 
     /**
@@ -77,6 +116,8 @@ public class XMediaMuxerManager {
      * 目前主线程调用
      */
     public void startRecording() {
+        // 每次录制重新统计
+        XMetricsRegistry.reset();
         if (mVideoEncoder != null)
             mVideoEncoder.startRecording();
         if (mAudioEncoder != null)
@@ -96,6 +137,22 @@ public class XMediaMuxerManager {
         return mIsStarted;
     }
 
+    /**
+     * 设置时钟，需要在创建编码器之前调用
+     *
+     * @param clock
+     */
+    public void setClock(final XClock clock) {
+        if (clock == null) {
+            throw new NullPointerException("XClock is null");
+        }
+        mClock = clock;
+    }
+
+    public XClock getClock() {
+        return mClock;
+    }
+
 
     /**
      * assign encoder to this calss. this is called from encoder.
@@ -112,6 +169,11 @@ public class XMediaMuxerManager {
             if (mAudioEncoder != null) {
                 throw new IllegalArgumentException("Video encoder already added.");
             }
+            if (mVideoEncoder != null && ((MediaVideoEncoderRunable) mVideoEncoder).getFrameRateGovernor().getMode()
+                    == XFrameRateGovernor.Mode.TIME_LAPSE) {
+                // 延时摄影的视频时间被压缩，实时的音轨无法对齐
+                throw new IllegalArgumentException("time-lapse can not be recorded with audio");
+            }
             mAudioEncoder = encoder;
         } else {
             throw new IllegalArgumentException("unsupported encoder");
@@ -119,6 +181,13 @@ public class XMediaMuxerManager {
         mEncoderCount = (mVideoEncoder != null ? 1 : 0) + (mAudioEncoder != null ? 1 : 0);
     }
 
+    /**
+     * @return 已经添加了音频编码器
+     */
+    public boolean hasAudioEncoder() {
+        return mAudioEncoder != null;
+    }
+
     /**
      * request start recording from encoder
      *
@@ -129,7 +198,12 @@ public class XMediaMuxerManager {
 
         mStatredCount++;
         if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
-            mMediaMuxer.start();
+            try {
+                mMuxerSink.start();
+            } catch (final IOException e) {
+                throw new RuntimeException("failed to start muxer", e);
+            }
+            mMuxerWriter.start();
             mIsStarted = true;
             notifyAll();
 
@@ -145,9 +219,17 @@ public class XMediaMuxerManager {
 
         mStatredCount--;
         if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
-            mMediaMuxer.stop();
-            mMediaMuxer.release();
-            mIsStarted = false;
+            if (mIsStarted) {
+                // 写线程写完剩余数据后结束muxer
+                mIsStarted = false;
+                mMuxerWriter.finish();
+            } else if (!mSinkReleased && mMuxerSink != null) {
+                // 其他编码器没有输出格式就停止了，muxer与写线程都没有开始，
+                // 没有线程会释放sink，在这里直接释放(没有start，不调用stop)；
+                // 所有编码器都没有输出格式时sink没有创建，也不会留下文件
+                mMuxerSink.release();
+            }
+            mSinkReleased = true;
         }
     }
 
@@ -157,11 +239,20 @@ public class XMediaMuxerManager {
      * @param format
      * @return minus value indicate error
      */
-    public synchronized int addTrack(final MediaFormat format) {
+    public synchronized int addTrack(final XCodecFormat format) {
         if (mIsStarted) {
             throw new IllegalStateException("muxer already started");
         }
-        final int trackIx = mMediaMuxer.addTrack(format);
+        if (mMuxerSink == null) {
+            try {
+                mMuxerSink = mSinkFactory.create(mOutputPath);
+            } catch (final IOException e) {
+                throw new RuntimeException("failed to create muxer", e);
+            }
+            mMuxerWriter = new XMuxerWriter(mMuxerSink);
+        }
+        final int trackIx = mMuxerSink.addTrack(format);
+        mMuxerWriter.addTrack(trackIx);
 
         return trackIx;
     }
@@ -169,17 +260,72 @@ public class XMediaMuxerManager {
     /**
      * write encoded data to muxer
      * 写入数据
+     * <p>
+     * 只是拷贝到写线程的队列中，不在编码线程中写文件
      *
      * @param trackIndex 轨道
      * @param byteBuf    buffer数据
      * @param bufferInfo
      */
-    public synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-        if (mStatredCount > 0) {
-            mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) {
+        if (mIsStarted) {
+            mMuxerWriter.enqueue(trackIndex, byteBuf, bufferInfo);
         }
     }
 
+    /**
+     * @param trackIndex
+     * @return 轨道当前等待写入的数据数
+     */
+    public synchronized int getWriteQueueDepth(final int trackIndex) {
+        return mMuxerWriter != null ? mMuxerWriter.getQueueDepth(trackIndex) : 0;
+    }
+
+    public synchronized int getMaxWriteQueueDepth(final int trackIndex) {
+        return mMuxerWriter != null ? mMuxerWriter.getMaxQueueDepth(trackIndex) : 0;
+    }
+
+    /**
+     * @param trackIndex
+     * @return 写队列满导致编码线程等待的次数
+     */
+    public synchronized long getWriteBlockedCount(final int trackIndex) {
+        return mMuxerWriter != null ? mMuxerWriter.getBlockedCount(trackIndex) : 0;
+    }
+
+    /**
+     * @return 已写入文件的数据数
+     */
+    public synchronized long getWrittenSampleCount() {
+        return mMuxerWriter != null ? mMuxerWriter.getWrittenCount() : 0;
+    }
+
+
+    /**
+     * @return 使用 XMuxerSinks.preRoll() 创建时的预录缓冲，否则为null；编码器输出格式之前也为null
+     */
+    public synchronized XPreRollBuffer getPreRollBuffer() {
+        return mMuxerSink instanceof XPreRollBuffer ? (XPreRollBuffer) mMuxerSink : null;
+    }
+
+    /**
+     * 把预录缓冲中最近 windowUs 的数据保存到新文件，编码器继续运行
+     * <p>
+     * 会写文件，不要在主线程和编码线程调用
+     *
+     * @param windowUs 保存的时长
+     * @return 文件路径
+     * @throws IOException
+     */
+    public String savePreRoll(final Context context, final long windowUs) throws IOException {
+        final XPreRollBuffer preRoll = getPreRollBuffer();
+        if (preRoll == null) {
+            throw new IllegalStateException("pre-roll is not enabled");
+        }
+        final String outputPath = getCaptureFile(context, ".mp4");
+        preRoll.flushTo(XMuxerSinks.MEDIA_MUXER.create(outputPath), windowUs);
+        return outputPath;
+    }
 
     /**
      * generate output file
@@ -0,0 +1,51 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+import com.serenegiant.xiaxl.media_codec.XMediaFormats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 使用系统 MediaMuxer 输出
+ */
+public class XMediaMuxerSink implements XMuxerSink {
+
+    private final MediaMuxer mMediaMuxer;
+    // 写线程使用
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public XMediaMuxerSink(final String outputPath) throws IOException {
+        mMediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(final XCodecFormat format) {
+        return mMediaMuxer.addTrack(XMediaFormats.toMediaFormat(format));
+    }
+
+    @Override
+    public void start() {
+        mMediaMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) {
+        mBufferInfo.set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        mMediaMuxer.writeSampleData(trackIndex, byteBuf, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMediaMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMediaMuxer.release();
+    }
+}
@@ -0,0 +1,105 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+/**
+ * 分片MP4的轨道描述，不依赖 MediaFormat，可以在JVM上构造
+ */
+public final class XMp4TrackFormat {
+
+    // 视频时间刻度 90kHz
+    static final int VIDEO_TIMESCALE = 90000;
+
+    final boolean isVideo;
+    // 视频
+    final int width;
+    final int height;
+    final byte[] sps;
+    final byte[] pps;
+    // 音频
+    final int sampleRate;
+    final int channelCount;
+    final byte[] audioSpecificConfig;
+    final int bitRate;
+
+    private XMp4TrackFormat(final boolean isVideo, final int width, final int height,
+                            final byte[] sps, final byte[] pps,
+                            final int sampleRate, final int channelCount,
+                            final byte[] audioSpecificConfig, final int bitRate) {
+        this.isVideo = isVideo;
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.audioSpecificConfig = audioSpecificConfig;
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * H.264 视频轨道
+     *
+     * @param width
+     * @param height
+     * @param sps    可以带 Annex-B 起始码
+     * @param pps    可以带 Annex-B 起始码
+     * @return
+     */
+    public static XMp4TrackFormat avc(final int width, final int height, final byte[] sps, final byte[] pps) {
+        final byte[] rawSps = stripStartCode(sps);
+        if (rawSps.length < 4) {
+            throw new IllegalArgumentException("invalid sps");
+        }
+        return new XMp4TrackFormat(true, width, height, rawSps, stripStartCode(pps),
+                0, 0, null, 0);
+    }
+
+    /**
+     * AAC 音频轨道
+     *
+     * @param sampleRate
+     * @param channelCount
+     * @param audioSpecificConfig csd-0
+     * @param bitRate             可以为0
+     * @return
+     */
+    public static XMp4TrackFormat aac(final int sampleRate, final int channelCount,
+                                      final byte[] audioSpecificConfig, final int bitRate) {
+        if (audioSpecificConfig == null || audioSpecificConfig.length < 2) {
+            throw new IllegalArgumentException("invalid AudioSpecificConfig");
+        }
+        return new XMp4TrackFormat(false, 0, 0, null, null,
+                sampleRate, channelCount, audioSpecificConfig, bitRate);
+    }
+
+    int getTimescale() {
+        return isVideo ? VIDEO_TIMESCALE : sampleRate;
+    }
+
+    /**
+     * 去掉 Annex-B 起始码 00 00 01 / 00 00 00 01
+     */
+    static byte[] stripStartCode(final byte[] nal) {
+        final int skip = startCodeLength(nal, 0, nal.length);
+        if (skip == 0) {
+            return nal;
+        }
+        final byte[] result = new byte[nal.length - skip];
+        System.arraycopy(nal, skip, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * @return offset 处起始码的长度，不是起始码时为0
+     */
+    static int startCodeLength(final byte[] data, final int offset, final int end) {
+        if (offset + 3 <= end && data[offset] == 0 && data[offset + 1] == 0) {
+            if (data[offset + 2] == 1) {
+                return 3;
+            }
+            if (offset + 4 <= end && data[offset + 2] == 0 && data[offset + 3] == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+}
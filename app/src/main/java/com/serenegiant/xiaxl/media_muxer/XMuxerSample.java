@@ -0,0 +1,37 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 等待写入的编码数据(从编码器输出缓冲区拷贝出来，可复用)
+ */
+final class XMuxerSample {
+
+    final XCodecBufferInfo info = new XCodecBufferInfo();
+    ByteBuffer data;
+    // 入队的时间
+    long enqueueTimeNs;
+
+    /**
+     * 拷贝数据，缓冲区不够时重新分配
+     *
+     * @param src
+     * @param srcInfo
+     */
+    void set(final ByteBuffer src, final XCodecBufferInfo srcInfo) {
+        if (data == null || data.capacity() < srcInfo.size) {
+            data = ByteBuffer.allocateDirect(srcInfo.size + (srcInfo.size >> 2));
+        }
+        data.clear();
+        final int position = src.position();
+        final int limit = src.limit();
+        src.limit(srcInfo.offset + srcInfo.size).position(srcInfo.offset);
+        data.put(src);
+        data.flip();
+        src.limit(limit).position(position);
+        info.set(0, srcInfo.size, srcInfo.presentationTimeUs, srcInfo.flags);
+        enqueueTimeNs = System.nanoTime();
+    }
+}
@@ -0,0 +1,35 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 封装输出
+ * <p>
+ * addTrack/start 在编码线程调用，writeSampleData/stop/release 只在写线程(XMuxerWriter)调用
+ */
+public interface XMuxerSink {
+
+    /**
+     * @param format 编码器输出的格式(包含csd-0/csd-1)
+     * @return 轨道
+     */
+    int addTrack(XCodecFormat format);
+
+    void start() throws IOException;
+
+    /**
+     * @param trackIndex 轨道
+     * @param byteBuf    数据，在 bufferInfo.offset 到 bufferInfo.offset + bufferInfo.size 之间
+     * @param bufferInfo
+     * @throws IOException
+     */
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, XCodecBufferInfo bufferInfo) throws IOException;
+
+    void stop() throws IOException;
+
+    void release();
+}
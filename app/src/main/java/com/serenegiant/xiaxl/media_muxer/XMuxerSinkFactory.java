@@ -0,0 +1,11 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import java.io.IOException;
+
+/**
+ * 根据输出文件路径创建封装输出
+ */
+public interface XMuxerSinkFactory {
+
+    XMuxerSink create(String outputPath) throws IOException;
+}
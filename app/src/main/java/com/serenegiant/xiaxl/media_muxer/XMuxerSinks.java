@@ -0,0 +1,66 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import java.io.IOException;
+
+/**
+ * 常用的封装输出工厂
+ */
+public final class XMuxerSinks {
+
+    /**
+     * 系统 MediaMuxer，stop() 时才写moov
+     */
+    public static final XMuxerSinkFactory MEDIA_MUXER = new XMuxerSinkFactory() {
+        @Override
+        public XMuxerSink create(final String outputPath) throws IOException {
+            return new XMediaMuxerSink(outputPath);
+        }
+    };
+
+    /**
+     * 分片MP4(moof/mdat)，边录边写，中途被杀也只丢最后一个分片
+     */
+    public static final XMuxerSinkFactory FRAGMENTED_MP4 = new XMuxerSinkFactory() {
+        @Override
+        public XMuxerSink create(final String outputPath) throws IOException {
+            return new XFragmentedMp4Sink(outputPath);
+        }
+    };
+
+    public static final XMuxerSinkFactory DEFAULT = MEDIA_MUXER;
+
+    /**
+     * 预录缓冲，不写文件，触发时用 XMediaMuxerManager.savePreRoll() 保存最近一段时间
+     *
+     * @param capacityBytes 缓冲区大小，例如 60秒 * 2Mbps 约 15MB
+     * @param maxSamples    最多保存的样本数
+     * @return
+     */
+    public static XMuxerSinkFactory preRoll(final int capacityBytes, final int maxSamples) {
+        return new XMuxerSinkFactory() {
+            @Override
+            public XMuxerSink create(final String outputPath) {
+                return new XPreRollBuffer(capacityBytes, maxSamples);
+            }
+        };
+    }
+
+    /**
+     * 分段录制，每隔 segmentDurationUs 在视频关键帧处切换到新文件
+     *
+     * @param sinkFactory       每个分段的输出
+     * @param segmentDurationUs 分段时长
+     * @return
+     */
+    public static XMuxerSinkFactory segmented(final XMuxerSinkFactory sinkFactory, final long segmentDurationUs) {
+        return new XMuxerSinkFactory() {
+            @Override
+            public XMuxerSink create(final String outputPath) {
+                return new XSegmentedSink(sinkFactory, outputPath, segmentDurationUs);
+            }
+        };
+    }
+
+    private XMuxerSinks() {
+    }
+}
@@ -0,0 +1,253 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.LogUtils;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_metrics.XMetricsRegistry;
+import com.serenegiant.xiaxl.media_metrics.XStageMetrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 专门写文件的线程
+ * <p>
+ * 编码线程只把数据拷贝到对应轨道的有界队列中，不接触文件IO；
+ * 写线程按时间戳从各轨道队列头中取最早的数据写入，使音视频交错有序。
+ * 只有所有轨道都有数据时才能确定哪个最早，某个轨道暂时没有数据时，
+ * 其他轨道的数据最多等待 MAX_HOLD_NS，或者队列满了直接写入。
+ * <p>
+ * 编码器不输出B帧，DTS与PTS相同，按PTS排序即按DTS排序
+ */
+final class XMuxerWriter implements Runnable {
+
+    private static final String TAG = XMuxerWriter.class.getSimpleName();
+
+    // 每个轨道最多排队的数据数
+    private static final int QUEUE_CAPACITY = 64;
+    // 等待其他轨道的最长时间 300[msec]
+    private static final long MAX_HOLD_NS = 300 * 1000000L;
+
+    /**
+     * 一个轨道的队列
+     */
+    private static final class TrackQueue {
+        final ArrayDeque<XMuxerSample> queued = new ArrayDeque<XMuxerSample>(QUEUE_CAPACITY);
+        final ArrayDeque<XMuxerSample> free = new ArrayDeque<XMuxerSample>(QUEUE_CAPACITY);
+        int maxDepth;
+        long blockedCount;
+
+        TrackQueue() {
+            for (int i = 0; i < QUEUE_CAPACITY; i++) {
+                free.add(new XMuxerSample());
+            }
+        }
+    }
+
+    private final Object mSync = new Object();
+    private final XMuxerSink mSink;
+    private final XStageMetrics mMetrics = XMetricsRegistry.stage(XMetricsRegistry.Stage.MUX);
+    private TrackQueue[] mTracks = new TrackQueue[0];
+
+    private boolean mRunning;
+    private boolean mRequestFinish;
+    private volatile long mWrittenCount;
+
+    XMuxerWriter(final XMuxerSink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * 添加轨道(muxer开始之前调用)
+     *
+     * @param trackIndex
+     */
+    void addTrack(final int trackIndex) {
+        synchronized (mSync) {
+            if (trackIndex >= mTracks.length) {
+                final TrackQueue[] tracks = new TrackQueue[trackIndex + 1];
+                System.arraycopy(mTracks, 0, tracks, 0, mTracks.length);
+                mTracks = tracks;
+            }
+            mTracks[trackIndex] = new TrackQueue();
+        }
+    }
+
+    /**
+     * muxer开始后开启写线程
+     */
+    void start() {
+        synchronized (mSync) {
+            mRunning = true;
+            mRequestFinish = false;
+        }
+        new Thread(this, TAG).start();
+    }
+
+    /**
+     * 写完队列中剩余的数据后结束muxer(不等待)
+     */
+    void finish() {
+        synchronized (mSync) {
+            mRequestFinish = true;
+            mSync.notifyAll();
+        }
+    }
+
+    /**
+     * 编码线程调用，拷贝数据到队列，队列满时等待
+     *
+     * @param trackIndex
+     * @param byteBuf
+     * @param bufferInfo
+     */
+    void enqueue(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) {
+        synchronized (mSync) {
+            final TrackQueue track = mTracks[trackIndex];
+            while (track.free.isEmpty() && mRunning) {
+                track.blockedCount++;
+                try {
+                    mSync.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (!mRunning) {
+                mMetrics.onDrop(1);
+                return;
+            }
+            final XMuxerSample sample = track.free.poll();
+            sample.set(byteBuf, bufferInfo);
+            track.queued.add(sample);
+            if (track.queued.size() > track.maxDepth) {
+                track.maxDepth = track.queued.size();
+            }
+            mMetrics.setQueueDepth(track.queued.size());
+            mSync.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (; ; ) {
+                int trackIndex;
+                XMuxerSample sample;
+                synchronized (mSync) {
+                    for (; ; ) {
+                        trackIndex = selectNextTrack();
+                        if (trackIndex >= 0) {
+                            break;
+                        }
+                        if (mRequestFinish && isEmpty()) {
+                            return;
+                        }
+                        try {
+                            mSync.wait(MAX_HOLD_NS / 1000000L / 4);
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
+                    }
+                    sample = mTracks[trackIndex].queued.poll();
+                }
+                // 在锁外写文件，编码线程入队不会被IO阻塞
+                mSink.writeSampleData(trackIndex, sample.data, sample.info);
+                mWrittenCount++;
+                mMetrics.onFrame((System.nanoTime() - sample.enqueueTimeNs) / 1000L, sample.info.size);
+                synchronized (mSync) {
+                    mTracks[trackIndex].free.add(sample);
+                    mSync.notifyAll();
+                }
+            }
+        } catch (final Exception e) {
+            LogUtils.e(TAG, "run:", e);
+        } finally {
+            synchronized (mSync) {
+                mRunning = false;
+                mSync.notifyAll();
+            }
+            try {
+                mSink.stop();
+            } catch (final Exception e) {
+                LogUtils.e(TAG, "stop sink:", e);
+            }
+            try {
+                mSink.release();
+            } catch (final Exception e) {
+                LogUtils.e(TAG, "release sink:", e);
+            }
+        }
+    }
+
+    /**
+     * 选择下一个写入的轨道(持有mSync)
+     *
+     * @return -1 需要等待
+     */
+    private int selectNextTrack() {
+        final long now = System.nanoTime();
+        int earliest = -1;
+        long earliestPtsUs = Long.MAX_VALUE;
+        boolean allReady = true;
+        boolean forceWrite = mRequestFinish;
+        for (int i = 0; i < mTracks.length; i++) {
+            final TrackQueue track = mTracks[i];
+            if (track == null) {
+                continue;
+            }
+            final XMuxerSample head = track.queued.peek();
+            if (head == null) {
+                allReady = false;
+                continue;
+            }
+            if (track.free.isEmpty() || now - head.enqueueTimeNs >= MAX_HOLD_NS) {
+                // 队列满了或者等待太久，不再等待其他轨道
+                forceWrite = true;
+            }
+            if (head.info.presentationTimeUs < earliestPtsUs) {
+                earliestPtsUs = head.info.presentationTimeUs;
+                earliest = i;
+            }
+        }
+        return (allReady || forceWrite) ? earliest : -1;
+    }
+
+    private boolean isEmpty() {
+        for (final TrackQueue track : mTracks) {
+            if (track != null && !track.queued.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param trackIndex
+     * @return 当前排队的数据数
+     */
+    int getQueueDepth(final int trackIndex) {
+        synchronized (mSync) {
+            return mTracks[trackIndex].queued.size();
+        }
+    }
+
+    int getMaxQueueDepth(final int trackIndex) {
+        synchronized (mSync) {
+            return mTracks[trackIndex].maxDepth;
+        }
+    }
+
+    /**
+     * @param trackIndex
+     * @return 队列满导致编码线程等待的次数
+     */
+    long getBlockedCount(final int trackIndex) {
+        synchronized (mSync) {
+            return mTracks[trackIndex].blockedCount;
+        }
+    }
+
+    long getWrittenCount() {
+        return mWrittenCount;
+    }
+}
@@ -0,0 +1,298 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.media_codec.XCodecBackend;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 预录缓冲("保存最近N秒")
+ * <p>
+ * 作为 XMuxerSink 接在写线程后面，编码数据不写文件，而是保存到固定大小的堆外环形缓冲区中；
+ * 空间不够时按GOP(从视频关键帧到下一个关键帧)整体丢弃最旧的数据，缓冲区总是从关键帧开始。
+ * 触发时调用 flushTo() 把最近一段时间的数据写到新的文件。
+ * <p>
+ * 编码器的配置数据(csd-0/csd-1)保存在 addTrack() 的 XCodecFormat 中，写文件时重新添加轨道
+ */
+public class XPreRollBuffer implements XMuxerSink {
+
+    private static final int MAX_TRACKS = 2;
+
+    private final Object mSync = new Object();
+    // 数据区
+    private final ByteBuffer mData;
+    private final int mCapacity;
+    // 样本信息，环形，下标为 序号 % mMaxSamples
+    private final int mMaxSamples;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final byte[] mTracks;
+    // 最旧的样本序号 / 下一个样本序号
+    private long mHeadSeq, mTailSeq;
+    // 下一个样本写入的位置
+    private int mWritePosition;
+
+    private final XCodecFormat[] mFormats = new XCodecFormat[MAX_TRACKS];
+    private int mTrackCount;
+    private int mVideoTrack = -1;
+    // 等待视频关键帧，在此之前的视频帧不保存
+    private boolean mWaitKeyFrame = true;
+
+    private long mEvictedCount;
+
+    // 写文件用
+    private ByteBuffer mFlushBuffer;
+    private final XCodecBufferInfo mFlushInfo = new XCodecBufferInfo();
+
+    /**
+     * @param capacityBytes 数据区大小
+     * @param maxSamples    最多保存的样本数
+     */
+    public XPreRollBuffer(final int capacityBytes, final int maxSamples) {
+        mCapacity = capacityBytes;
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mMaxSamples = maxSamples;
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mPtsUs = new long[maxSamples];
+        mFlags = new int[maxSamples];
+        mTracks = new byte[maxSamples];
+    }
+
+    @Override
+    public int addTrack(final XCodecFormat format) {
+        synchronized (mSync) {
+            if (mTrackCount >= MAX_TRACKS) {
+                throw new IllegalStateException("too many tracks");
+            }
+            if (format.isVideo()) {
+                mVideoTrack = mTrackCount;
+            }
+            mFormats[mTrackCount] = format;
+            return mTrackCount++;
+        }
+    }
+
+    @Override
+    public void start() {
+    }
+
+    /**
+     * 写线程调用，保存一个样本
+     */
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) {
+        final int size = bufferInfo.size;
+        if (size <= 0 || size > mCapacity
+                || (bufferInfo.flags & XCodecBackend.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        final boolean isVideo = trackIndex == mVideoTrack;
+        final boolean isKeyFrame = (bufferInfo.flags & XCodecBackend.BUFFER_FLAG_KEY_FRAME) != 0;
+        synchronized (mSync) {
+            if (isVideo && !isKeyFrame && mWaitKeyFrame) {
+                // 缓冲区必须从关键帧开始
+                return;
+            }
+            final int offset = reserve(size);
+            if (isVideo && !isKeyFrame && mWaitKeyFrame) {
+                // 为了腾出空间丢弃了整个GOP
+                return;
+            }
+            if (isVideo && isKeyFrame) {
+                mWaitKeyFrame = false;
+            }
+            final int position = byteBuf.position();
+            final int limit = byteBuf.limit();
+            byteBuf.limit(bufferInfo.offset + size).position(bufferInfo.offset);
+            mData.limit(offset + size).position(offset);
+            mData.put(byteBuf);
+            byteBuf.limit(limit).position(position);
+
+            final int i = (int) (mTailSeq % mMaxSamples);
+            mOffsets[i] = offset;
+            mSizes[i] = size;
+            mPtsUs[i] = bufferInfo.presentationTimeUs;
+            mFlags[i] = bufferInfo.flags;
+            mTracks[i] = (byte) trackIndex;
+            mTailSeq++;
+            mWritePosition = offset + size;
+        }
+    }
+
+    /**
+     * 确保有 size 字节的连续空间，不够时丢弃最旧的GOP(持有mSync)
+     *
+     * @return 写入位置
+     */
+    private int reserve(final int size) {
+        for (; ; ) {
+            if (mHeadSeq == mTailSeq) {
+                mWritePosition = 0;
+                return 0;
+            }
+            if (mTailSeq - mHeadSeq < mMaxSamples) {
+                final int head = mOffsets[(int) (mHeadSeq % mMaxSamples)];
+                if (mWritePosition > head) {
+                    // 使用中的区域是 [head, mWritePosition)
+                    if (mCapacity - mWritePosition >= size) {
+                        return mWritePosition;
+                    }
+                    if (head >= size) {
+                        // 尾部放不下，从头开始
+                        return 0;
+                    }
+                } else if (head - mWritePosition >= size) {
+                    // 已经绕回，空闲区域是 [mWritePosition, head)
+                    return mWritePosition;
+                }
+            }
+            evictGop();
+        }
+    }
+
+    /**
+     * 丢弃最旧的样本，直到下一个视频关键帧(持有mSync)
+     */
+    private void evictGop() {
+        do {
+            mHeadSeq++;
+            mEvictedCount++;
+        } while (mVideoTrack >= 0 && mHeadSeq < mTailSeq && !isVideoKeyFrame(mHeadSeq));
+        if (mHeadSeq == mTailSeq) {
+            mWaitKeyFrame = true;
+        }
+    }
+
+    private boolean isVideoKeyFrame(final long seq) {
+        final int i = (int) (seq % mMaxSamples);
+        return mTracks[i] == mVideoTrack && (mFlags[i] & XCodecBackend.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * 把最近 windowUs 的数据写到 sink，从窗口内最早的视频关键帧开始，写完后结束并释放 sink
+     * <p>
+     * 写文件期间写线程可以继续保存新数据，需要在非编码线程调用，同时只能有一个 flushTo()
+     *
+     * @param sink     输出
+     * @param windowUs 保存的时长
+     * @return 写入的样本数
+     * @throws IOException 写文件时数据已经被覆盖
+     */
+    public synchronized int flushTo(final XMuxerSink sink, final long windowUs) throws IOException {
+        long seq, endSeq;
+        final int[] trackMap = new int[MAX_TRACKS];
+        try {
+            synchronized (mSync) {
+                endSeq = mTailSeq;
+                seq = findStartSeq(windowUs);
+                if (seq >= endSeq) {
+                    return 0;
+                }
+                for (int i = 0; i < mTrackCount; i++) {
+                    trackMap[i] = sink.addTrack(mFormats[i]);
+                }
+            }
+            sink.start();
+            int written = 0;
+            for (; seq < endSeq; seq++) {
+                final int track;
+                synchronized (mSync) {
+                    if (seq < mHeadSeq) {
+                        throw new IOException("pre-roll data overwritten while flushing");
+                    }
+                    final int i = (int) (seq % mMaxSamples);
+                    final int size = mSizes[i];
+                    if (mFlushBuffer == null || mFlushBuffer.capacity() < size) {
+                        mFlushBuffer = ByteBuffer.allocateDirect(size + (size >> 2));
+                    }
+                    mData.limit(mOffsets[i] + size).position(mOffsets[i]);
+                    mFlushBuffer.clear();
+                    mFlushBuffer.put(mData);
+                    mFlushBuffer.flip();
+                    mFlushInfo.set(0, size, mPtsUs[i], mFlags[i]);
+                    track = mTracks[i];
+                }
+                // 在锁外写文件
+                sink.writeSampleData(trackMap[track], mFlushBuffer, mFlushInfo);
+                written++;
+            }
+            sink.stop();
+            return written;
+        } finally {
+            sink.release();
+        }
+    }
+
+    /**
+     * @return 窗口内最早的视频关键帧的序号，没有视频轨道时为窗口内最早的样本(持有mSync)
+     */
+    private long findStartSeq(final long windowUs) {
+        long newestPtsUs = Long.MIN_VALUE;
+        for (long seq = mHeadSeq; seq < mTailSeq; seq++) {
+            newestPtsUs = Math.max(newestPtsUs, mPtsUs[(int) (seq % mMaxSamples)]);
+        }
+        final long startPtsUs = newestPtsUs - windowUs;
+        long fallback = -1;
+        for (long seq = mHeadSeq; seq < mTailSeq; seq++) {
+            final boolean candidate = mVideoTrack < 0 || isVideoKeyFrame(seq);
+            if (!candidate) {
+                continue;
+            }
+            if (mPtsUs[(int) (seq % mMaxSamples)] >= startPtsUs) {
+                return seq;
+            }
+            fallback = seq;
+        }
+        // 窗口内没有关键帧时从最新的关键帧开始
+        return fallback >= 0 ? fallback : mTailSeq;
+    }
+
+    /**
+     * @return 缓冲区中数据的时长
+     */
+    public long getBufferedDurationUs() {
+        synchronized (mSync) {
+            if (mHeadSeq == mTailSeq) {
+                return 0;
+            }
+            return mPtsUs[(int) ((mTailSeq - 1) % mMaxSamples)] - mPtsUs[(int) (mHeadSeq % mMaxSamples)];
+        }
+    }
+
+    public int getBufferedSampleCount() {
+        synchronized (mSync) {
+            return (int) (mTailSeq - mHeadSeq);
+        }
+    }
+
+    /**
+     * @return 因空间不够被丢弃的样本数
+     */
+    public long getEvictedCount() {
+        synchronized (mSync) {
+            return mEvictedCount;
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        synchronized (mSync) {
+            mHeadSeq = mTailSeq;
+            mWritePosition = 0;
+            mWaitKeyFrame = true;
+        }
+    }
+}
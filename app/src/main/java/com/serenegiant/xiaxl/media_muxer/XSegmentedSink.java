@@ -0,0 +1,283 @@
+package com.serenegiant.xiaxl.media_muxer;
+
+import com.serenegiant.xiaxl.LogUtils;
+import com.serenegiant.xiaxl.media_codec.XCodecBackend;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 分段录制: 每隔固定时长在下一个视频关键帧处切换到新文件，编码器不需要重新配置
+ * <p>
+ * 视频关键帧时间戳之前的音频仍然写到上一个文件，之后的音频写到新文件；
+ * 下一个文件在后台提前创建并添加轨道，切换时才start(没有用到的文件不start，释放时直接删除)；
+ * 结束旧文件(写moov)也在后台进行，切换时写线程不等待创建文件的IO
+ */
+public class XSegmentedSink implements XMuxerSink {
+
+    private static final String TAG = XSegmentedSink.class.getSimpleName();
+
+    /**
+     * 一个分段写完时回调(在后台线程)
+     */
+    public interface OnSegmentListener {
+        void onSegmentFinished(String path);
+    }
+
+    private static final class Segment {
+        final String path;
+        final XMuxerSink sink;
+        final int[] trackMap;
+
+        Segment(final String path, final XMuxerSink sink, final int[] trackMap) {
+            this.path = path;
+            this.sink = sink;
+            this.trackMap = trackMap;
+        }
+    }
+
+    private final XMuxerSinkFactory mSinkFactory;
+    private final String mBasePath;
+    private final long mSegmentDurationUs;
+    private final List<XCodecFormat> mFormats = new ArrayList<XCodecFormat>();
+    private int mVideoTrack = -1;
+
+    // 创建和结束文件的后台线程
+    private final ExecutorService mIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(r, TAG);
+        }
+    });
+    private volatile OnSegmentListener mListener;
+
+    // 以下只在写线程中使用
+    private Segment mCurrent;
+    // 等待音频追上切换时间戳的上一个分段
+    private Segment mPrevious;
+    private boolean[] mPreviousDone;
+    private Future<Segment> mNext;
+    private int mSegmentIndex;
+    private long mSegmentStartUs = -1;
+    private long mSplitPtsUs;
+    private volatile int mSegmentCount;
+
+    /**
+     * @param sinkFactory       每个分段的输出
+     * @param basePath          输出路径，分段文件名为 xxx_1.mp4, xxx_2.mp4 ...
+     * @param segmentDurationUs 分段时长
+     */
+    public XSegmentedSink(final XMuxerSinkFactory sinkFactory, final String basePath, final long segmentDurationUs) {
+        mSinkFactory = sinkFactory;
+        mBasePath = basePath;
+        mSegmentDurationUs = segmentDurationUs;
+    }
+
+    public void setOnSegmentListener(final OnSegmentListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return 已经开始的分段数
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    @Override
+    public int addTrack(final XCodecFormat format) {
+        if (format.isVideo()) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mPreviousDone = new boolean[mFormats.size()];
+        mCurrent = openSegment(++mSegmentIndex);
+        mCurrent.sink.start();
+        mSegmentCount = 1;
+        prepareNext();
+    }
+
+    @Override
+    public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) throws IOException {
+        final long ptsUs = bufferInfo.presentationTimeUs;
+        if (mSegmentStartUs < 0) {
+            mSegmentStartUs = ptsUs;
+        }
+        final boolean isVideo = trackIndex == mVideoTrack;
+        final boolean canSplit = mVideoTrack < 0
+                || (isVideo && (bufferInfo.flags & XCodecBackend.BUFFER_FLAG_KEY_FRAME) != 0);
+        if (canSplit && ptsUs - mSegmentStartUs >= mSegmentDurationUs) {
+            rollover(ptsUs);
+        }
+        Segment target = mCurrent;
+        if (mPrevious != null && !isVideo) {
+            if (ptsUs < mSplitPtsUs) {
+                target = mPrevious;
+            } else {
+                mPreviousDone[trackIndex] = true;
+                if (isPreviousDone()) {
+                    closeAsync(mPrevious);
+                    mPrevious = null;
+                }
+            }
+        }
+        target.sink.writeSampleData(target.trackMap[trackIndex], byteBuf, bufferInfo);
+    }
+
+    /**
+     * 切换到提前创建好的下一个分段
+     */
+    private void rollover(final long ptsUs) throws IOException {
+        if (mPrevious != null) {
+            // 音频一直没有追上，不再等待
+            closeAsync(mPrevious);
+            mPrevious = null;
+        }
+        final Segment next = awaitNext();
+        mNext = null;
+        try {
+            next.sink.start();
+        } catch (final IOException e) {
+            next.sink.release();
+            new File(next.path).delete();
+            throw e;
+        }
+        if (mVideoTrack >= 0 && mFormats.size() > 1) {
+            // 等待音频追上切换时间戳
+            mPrevious = mCurrent;
+            for (int i = 0; i < mPreviousDone.length; i++) {
+                mPreviousDone[i] = (i == mVideoTrack);
+            }
+        } else {
+            // 只有一个轨道时当前样本就是切换点
+            closeAsync(mCurrent);
+        }
+        mCurrent = next;
+        mSegmentStartUs = ptsUs;
+        mSplitPtsUs = ptsUs;
+        mSegmentCount++;
+        prepareNext();
+    }
+
+    private boolean isPreviousDone() {
+        for (final boolean done : mPreviousDone) {
+            if (!done) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void prepareNext() {
+        final int index = ++mSegmentIndex;
+        mNext = mIoExecutor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() throws Exception {
+                return openSegment(index);
+            }
+        });
+    }
+
+    private Segment awaitNext() throws IOException {
+        try {
+            // 正常情况下早就创建好了
+            return mNext.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while opening next segment");
+        } catch (final ExecutionException e) {
+            throw new IOException("failed to open next segment", e.getCause());
+        }
+    }
+
+    /**
+     * 创建分段并添加轨道，还没有start
+     */
+    private Segment openSegment(final int index) throws IOException {
+        final String path = getSegmentPath(index);
+        final XMuxerSink sink = mSinkFactory.create(path);
+        final int[] trackMap = new int[mFormats.size()];
+        for (int i = 0; i < trackMap.length; i++) {
+            trackMap[i] = sink.addTrack(mFormats.get(i));
+        }
+        return new Segment(path, sink, trackMap);
+    }
+
+    private void closeAsync(final Segment segment) {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeSegment(segment);
+            }
+        });
+    }
+
+    private void closeSegment(final Segment segment) {
+        try {
+            segment.sink.stop();
+        } catch (final Exception e) {
+            LogUtils.e(TAG, "stop segment:", e);
+        } finally {
+            segment.sink.release();
+        }
+        final OnSegmentListener listener = mListener;
+        if (listener != null) {
+            listener.onSegmentFinished(segment.path);
+        }
+    }
+
+    private String getSegmentPath(final int index) {
+        final int dot = mBasePath.lastIndexOf('.');
+        if (dot <= mBasePath.lastIndexOf(File.separatorChar)) {
+            return mBasePath + "_" + index;
+        }
+        return mBasePath.substring(0, dot) + "_" + index + mBasePath.substring(dot);
+    }
+
+    /**
+     * 写线程结束时调用，结束当前分段；提前创建的分段在 release 中丢弃
+     */
+    @Override
+    public void stop() {
+        if (mPrevious != null) {
+            closeSegment(mPrevious);
+            mPrevious = null;
+        }
+        if (mCurrent != null) {
+            closeSegment(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mNext != null) {
+            try {
+                // 没有start，也没有数据，不调用stop(MediaMuxer会抛出异常)
+                final Segment unused = awaitNext();
+                unused.sink.release();
+                new File(unused.path).delete();
+            } catch (final Exception e) {
+                LogUtils.e(TAG, "release:", e);
+            }
+            mNext = null;
+        }
+        mIoExecutor.shutdown();
+    }
+}
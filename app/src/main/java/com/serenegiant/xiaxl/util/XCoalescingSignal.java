@@ -0,0 +1,76 @@
+package com.serenegiant.xiaxl.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无锁的请求信号(单消费者)
+ * <p>
+ * 生产者(GLThread / AudioThread / 编码器回调线程)只做一次原子自增，
+ * 只有计数从0变为1且消费者正在等待时才会唤醒消费者；
+ * 消费者一次取走所有未处理的请求，多个请求合并为一次处理
+ */
+public final class XCoalescingSignal {
+
+    // 未处理的请求数
+    private final AtomicInteger mPending = new AtomicInteger();
+    // 消费者线程
+    private volatile Thread mConsumer;
+    // 消费者是否正在park
+    private volatile boolean mWaiting;
+
+    /**
+     * 在消费者线程中调用，绑定消费者
+     */
+    public void bindConsumer() {
+        mConsumer = Thread.currentThread();
+    }
+
+    /**
+     * 清空未处理的请求
+     */
+    public void reset() {
+        mPending.set(0);
+    }
+
+    /**
+     * 生产者调用，发出一个请求
+     */
+    public void signal() {
+        if (mPending.getAndIncrement() == 0 && mWaiting) {
+            LockSupport.unpark(mConsumer);
+        }
+    }
+
+    /**
+     * 无论是否有请求都唤醒消费者(例如请求停止时)
+     */
+    public void wakeUp() {
+        final Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * 消费者调用，等待请求
+     *
+     * @return 合并的请求数，被wakeUp唤醒时可能为0，线程被中断时为-1
+     */
+    public int await() {
+        int requests = mPending.getAndSet(0);
+        if (requests > 0) {
+            return requests;
+        }
+        mWaiting = true;
+        // 设置等待标识后再检查一次，避免错过生产者的唤醒
+        if (mPending.get() == 0) {
+            LockSupport.park(this);
+        }
+        mWaiting = false;
+        if (Thread.interrupted()) {
+            return -1;
+        }
+        return mPending.getAndSet(0);
+    }
+}
@@ -0,0 +1,145 @@
+package com.serenegiant.xiaxl.gl_util;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * GLMatrixStack 与原来的 GLMatrixState 的对比
+ * <p>
+ * 每帧的工作量与渲染器相同: 每个物体 push -> 平移/旋转/缩放 -> 取总变换矩阵 -> pop。
+ * 输出每帧的耗时与分配的字节数(只在 HotSpot 上能取得分配量)。
+ * android.opengl.Matrix 由 Robolectric 提供Java实现，绝对值与设备上的native实现不同，只看两者的比例
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+@SuppressWarnings("deprecation")
+public class GLMatrixBenchmark {
+
+    // 每帧绘制的物体数
+    private static final int OBJECTS = 8;
+    private static final int FRAMES = 200000;
+    private static final int ROUNDS = 5;
+
+    private interface Frame {
+        /**
+         * 绘制一帧
+         *
+         * @return 最后一个物体的总变换矩阵的第一个元素(防止被优化掉)
+         */
+        float draw(int frame);
+    }
+
+    private static final Frame STATE = new Frame() {
+        @Override
+        public float draw(final int frame) {
+            float x = 0;
+            for (int i = 0; i < OBJECTS; i++) {
+                GLMatrixState.pushMatrix();
+                GLMatrixState.translate(i, 0.5f, -2);
+                GLMatrixState.rotate(frame % 360, 0, 1, 0);
+                GLMatrixState.scale(0.5f, 0.5f, 0.5f);
+                x += GLMatrixState.getFinalMatrix()[0];
+                GLMatrixState.popMatrix();
+            }
+            return x;
+        }
+    };
+
+    private static final GLMatrixStack sStack = new GLMatrixStack();
+
+    private static final Frame STACK = new Frame() {
+        @Override
+        public float draw(final int frame) {
+            float x = 0;
+            for (int i = 0; i < OBJECTS; i++) {
+                sStack.pushMatrix();
+                sStack.translate(i, 0.5f, -2);
+                sStack.rotate(frame % 360, 0, 1, 0);
+                sStack.scale(0.5f, 0.5f, 0.5f);
+                x += sStack.getFinalMatrix()[0];
+                sStack.popMatrix();
+            }
+            return x;
+        }
+    };
+
+    private static volatile float sSink;
+
+    /**
+     * @return 当前线程已经分配的字节数，取不到时为 -1
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void measure(final String name, final Frame frame) {
+        // 预热
+        float x = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            x += frame.draw(i);
+        }
+        final long[] nsPerFrame = new long[ROUNDS];
+        long bytes = -1;
+        for (int r = 0; r < ROUNDS; r++) {
+            final long startBytes = allocatedBytes();
+            final long startNs = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                x += frame.draw(i);
+            }
+            nsPerFrame[r] = (System.nanoTime() - startNs) / FRAMES;
+            if (startBytes >= 0) {
+                bytes = (allocatedBytes() - startBytes) / FRAMES;
+            }
+        }
+        sSink = x;
+        Arrays.sort(nsPerFrame);
+        System.out.println(String.format("%-14s %6d ns/frame (median of %d)  %5s bytes/frame  (%d objects)",
+                name, nsPerFrame[ROUNDS / 2], ROUNDS, bytes >= 0 ? String.valueOf(bytes) : "n/a", OBJECTS));
+    }
+
+    private static void setUp() {
+        GLMatrixState.setInitStack();
+        GLMatrixState.setCamera(0, 0, 5, 0, 0, 0, 0, 1, 0);
+        GLMatrixState.setProjectFrustum(-1, 1, -1, 1, 1, 100);
+        sStack.setInitStack();
+        sStack.setCamera(0, 0, 5, 0, 0, 0, 0, 1, 0);
+        sStack.setProjectFrustum(-1, 1, -1, 1, 1, 100);
+    }
+
+    @Test
+    public void compareWithMatrixState() {
+        setUp();
+        // 同样的变换得到同样的模型矩阵
+        GLMatrixState.pushMatrix();
+        GLMatrixState.translate(1, 0.5f, -2);
+        GLMatrixState.rotate(30, 0, 1, 0);
+        GLMatrixState.scale(0.5f, 0.5f, 0.5f);
+        sStack.pushMatrix();
+        sStack.translate(1, 0.5f, -2);
+        sStack.rotate(30, 0, 1, 0);
+        sStack.scale(0.5f, 0.5f, 0.5f);
+        final float[] model = new float[16];
+        sStack.getMMatrix(model, 0);
+        final float[] expected = GLMatrixState.getMMatrix();
+        for (int i = 0; i < 16; i++) {
+            assertEquals(expected[i], model[i], 1e-5f);
+        }
+        GLMatrixState.popMatrix();
+        sStack.popMatrix();
+
+        measure("GLMatrixState", STATE);
+        measure("GLMatrixStack", STACK);
+    }
+}
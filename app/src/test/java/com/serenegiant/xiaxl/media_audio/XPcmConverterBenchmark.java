@@ -0,0 +1,115 @@
+package com.serenegiant.xiaxl.media_audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XPolyphaseResampler / XChannelMixer 的单线程吞吐(每核每秒处理的输入帧数)
+ * <p>
+ * 每次处理 1024 帧(与采集线程每次读取的大小相当)，输出帧数/秒与相对实时的倍数
+ */
+public class XPcmConverterBenchmark {
+
+    private static final int CHUNK_FRAMES = 1024;
+    // 每个用例预热与计时的时长
+    private static final long WARMUP_NS = 200000000L;
+    private static final long MEASURE_NS = 500000000L;
+
+    private interface Case {
+        /**
+         * 处理一块输入
+         */
+        void run();
+    }
+
+    private static ByteBuffer sine(final int rate, final int channels, final int frames, final double hz) {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(frames * channels * 2 * 2).order(ByteOrder.nativeOrder());
+        for (int f = 0; f < frames; f++) {
+            final short s = (short) Math.round(Math.sin(2 * Math.PI * hz * f / rate) * 16384);
+            for (int c = 0; c < channels; c++) {
+                buf.putShort((f * channels + c) * 2, s);
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * @return 每秒处理的输入帧数
+     */
+    private static double measure(final Case c) {
+        long startNs = System.nanoTime();
+        while (System.nanoTime() - startNs < WARMUP_NS) {
+            c.run();
+        }
+        long chunks = 0;
+        startNs = System.nanoTime();
+        long elapsedNs;
+        do {
+            c.run();
+            chunks++;
+            elapsedNs = System.nanoTime() - startNs;
+        } while (elapsedNs < MEASURE_NS);
+        return chunks * (double) CHUNK_FRAMES * 1e9 / elapsedNs;
+    }
+
+    private static double resample(final int inRate, final int outRate, final int channels) {
+        final XPolyphaseResampler resampler = new XPolyphaseResampler(inRate, outRate, channels, CHUNK_FRAMES);
+        final ByteBuffer src = sine(inRate, channels, CHUNK_FRAMES, 1000);
+        final ByteBuffer dst = ByteBuffer.allocateDirect(resampler.getMaxOutputBytes(CHUNK_FRAMES * channels * 2))
+                .order(ByteOrder.nativeOrder());
+        final double framesPerSec = measure(new Case() {
+            @Override
+            public void run() {
+                dst.clear();
+                resampler.process(src, CHUNK_FRAMES * channels * 2, dst);
+            }
+        });
+        report("resample " + inRate + "->" + outRate + " ch=" + channels, framesPerSec, inRate);
+        return framesPerSec / inRate;
+    }
+
+    private static double mix(final int inChannels, final int outChannels) {
+        final XChannelMixer mixer = new XChannelMixer(inChannels, outChannels);
+        final ByteBuffer src = sine(44100, inChannels, CHUNK_FRAMES, 1000);
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_FRAMES * Math.max(inChannels, outChannels) * 2)
+                .order(ByteOrder.nativeOrder());
+        final double framesPerSec = measure(new Case() {
+            @Override
+            public void run() {
+                // 在原缓冲区上转换，每次重新拷贝输入
+                buf.clear();
+                src.clear().limit(CHUNK_FRAMES * inChannels * 2);
+                buf.put(src);
+                buf.clear();
+                mixer.process(buf, CHUNK_FRAMES * inChannels * 2);
+            }
+        });
+        report("mix " + inChannels + "->" + outChannels, framesPerSec, 44100);
+        return framesPerSec / 44100;
+    }
+
+    private static void report(final String name, final double framesPerSec, final int rate) {
+        System.out.println(String.format("%-28s %8.2f M frames/s/core  %6.0fx realtime",
+                name, framesPerSec / 1e6, framesPerSec / rate));
+    }
+
+    @Test
+    public void throughput() {
+        final double[] realtime = {
+                resample(48000, 44100, 1),
+                resample(48000, 44100, 2),
+                resample(44100, 48000, 1),
+                resample(16000, 48000, 1),
+                mix(2, 1),
+                mix(1, 2),
+        };
+        // 采集线程中只能占用很小一部分时间
+        for (final double x : realtime) {
+            assertTrue(x > 10);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.serenegiant.xiaxl.media_codec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在普通JVM上检查 XFakeCodecBackend 与 MediaCodec 一致的行为:
+ * 输出在编码延时之后才能取出，通知在输出可以取出时发出
+ */
+public class XFakeCodecBackendTest {
+
+    private static final long LATENCY_US = 20000;
+
+    private XFakeCodecBackend mCodec;
+
+    @Before
+    public void setUp() {
+        mCodec = new XFakeCodecBackend(LATENCY_US);
+        mCodec.configure(XCodecFormat.createVideoFormat("video/avc", 640, 480));
+        mCodec.start();
+        // 第一次取输出时先通知格式
+        final XCodecBufferInfo info = new XCodecBufferInfo();
+        assertEquals(XCodecBackend.INFO_OUTPUT_FORMAT_CHANGED, mCodec.dequeueOutputBuffer(info, 0));
+    }
+
+    @After
+    public void tearDown() {
+        mCodec.release();
+    }
+
+    private void queue(final byte value, final long ptsUs) {
+        final int index = mCodec.dequeueInputBuffer(-1);
+        assertTrue(index >= 0);
+        final ByteBuffer buf = mCodec.getInputBuffer(index);
+        buf.clear();
+        buf.put(value);
+        mCodec.queueInputBuffer(index, 0, 1, ptsUs, 0);
+    }
+
+    @Test
+    public void notifiesWhenOutputIsReady() throws InterruptedException {
+        final CountDownLatch notified = new CountDownLatch(1);
+        final long[] readyIndex = new long[1];
+        final XCodecBufferInfo info = new XCodecBufferInfo();
+        mCodec.setOnOutputAvailableListener(new XCodecBackend.OnOutputAvailableListener() {
+            @Override
+            public void onOutputAvailable(final XCodecBackend codec) {
+                // 收到通知时不等待就能取出
+                readyIndex[0] = codec.dequeueOutputBuffer(info, 0);
+                notified.countDown();
+            }
+        });
+        final long startNs = System.nanoTime();
+        queue((byte) 1, 1000);
+        // 编码延时之前取不到
+        assertEquals(XCodecBackend.INFO_TRY_AGAIN_LATER, mCodec.dequeueOutputBuffer(new XCodecBufferInfo(), 0));
+        assertTrue(notified.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - startNs >= LATENCY_US * 1000L);
+        assertTrue(readyIndex[0] >= 0);
+        assertEquals(1000, info.presentationTimeUs);
+    }
+
+    @Test
+    public void outputsInInputOrder() {
+        for (int i = 0; i < 3; i++) {
+            queue((byte) i, i * 40000L);
+        }
+        mCodec.signalEndOfInputStream();
+        final XCodecBufferInfo info = new XCodecBufferInfo();
+        for (int i = 0; i < 3; i++) {
+            final int index = mCodec.dequeueOutputBuffer(info, 1000000);
+            assertTrue(index >= 0);
+            assertEquals(i * 40000L, info.presentationTimeUs);
+            assertEquals(1, info.size);
+            assertEquals((byte) i, mCodec.getOutputBuffer(index).get(info.offset));
+            // 第一帧是关键帧
+            assertEquals(i == 0, (info.flags & XCodecBackend.BUFFER_FLAG_KEY_FRAME) != 0);
+            mCodec.releaseOutputBuffer(index);
+        }
+        final int index = mCodec.dequeueOutputBuffer(info, 1000000);
+        assertTrue(index >= 0);
+        assertTrue((info.flags & XCodecBackend.BUFFER_FLAG_END_OF_STREAM) != 0);
+        mCodec.releaseOutputBuffer(index);
+    }
+}
@@ -0,0 +1,146 @@
+package com.serenegiant.xiaxl.media_encoder;
+
+import com.serenegiant.xiaxl.LogUtils;
+import com.serenegiant.xiaxl.media_codec.XCodecBackends;
+import com.serenegiant.xiaxl.media_codec.XCodecBufferInfo;
+import com.serenegiant.xiaxl.media_codec.XCodecFormat;
+import com.serenegiant.xiaxl.media_muxer.XMediaMuxerManager;
+import com.serenegiant.xiaxl.media_muxer.XMuxerSink;
+import com.serenegiant.xiaxl.media_muxer.XMuxerSinkFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在普通JVM上，用 XFakeCodecBackend 跑视频编码的完整状态机:
+ * 选帧 -> 缓冲区输入 -> 事件驱动的drain -> 写线程 -> 封装输出
+ */
+public class XFakeVideoEncoderTest {
+
+    // 相机 30fps，编码 25fps
+    private static final long CAMERA_FRAME_NS = 33333333L;
+    private static final int CAMERA_FRAMES = 300;
+    // 假编码器每帧的编码延时
+    private static final long CODEC_LATENCY_US = 2000;
+
+    /**
+     * 只记录写入的数据
+     */
+    private static final class CountingSink implements XMuxerSink {
+        volatile int tracks;
+        volatile boolean started, stopped, released;
+        volatile long samples;
+        volatile long lastPtsUs = -1;
+        volatile boolean ptsOrdered = true;
+
+        @Override
+        public int addTrack(final XCodecFormat format) {
+            assertTrue(format.isVideo());
+            return tracks++;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final XCodecBufferInfo bufferInfo) {
+            if (bufferInfo.presentationTimeUs <= lastPtsUs) {
+                ptsOrdered = false;
+            }
+            lastPtsUs = bufferInfo.presentationTimeUs;
+            samples++;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private final CountingSink mSink = new CountingSink();
+    private XMediaMuxerManager mMuxerManager;
+
+    @Before
+    public void setUp() {
+        LogUtils.setPrinter(new LogUtils.Printer() {
+            @Override
+            public void println(final int priority, final String tag, final String msg, final Throwable tr) {
+                if (tr != null) {
+                    tr.printStackTrace();
+                }
+            }
+        });
+        mMuxerManager = new XMediaMuxerManager("unused.mp4", new XMuxerSinkFactory() {
+            @Override
+            public XMuxerSink create(final String outputPath) {
+                return mSink;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        LogUtils.setPrinter(null);
+    }
+
+    @Test
+    public void encodesEverySelectedFrame() throws Exception {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final MediaVideoEncoderRunable encoder = new MediaVideoEncoderRunable(mMuxerManager,
+                new BaseMediaEncoderRunable.MediaEncoderListener() {
+                    @Override
+                    public void onPrepared(final BaseMediaEncoderRunable encoder) {
+                    }
+
+                    @Override
+                    public void onStopped(final BaseMediaEncoderRunable encoder) {
+                        stopped.countDown();
+                    }
+                }, 640, 480);
+        encoder.setCodecBackendFactory(XCodecBackends.fake(CODEC_LATENCY_US));
+        mMuxerManager.prepare();
+        mMuxerManager.startRecording();
+
+        final float[] mvp = new float[16];
+        int selected = 0;
+        for (int i = 0; i < CAMERA_FRAMES; i++) {
+            final long ptsNs = encoder.selectFrame(i * CAMERA_FRAME_NS);
+            if (ptsNs >= 0 && encoder.frameAvailableSoon(mvp, ptsNs)) {
+                selected++;
+            }
+            Thread.sleep(1);
+        }
+        mMuxerManager.stopRecording();
+        assertTrue("encoder did not stop", stopped.await(5, TimeUnit.SECONDS));
+        // 写线程写完剩余数据后释放sink
+        final long deadlineMs = System.currentTimeMillis() + 5000;
+        while (!mSink.released && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(selected > CAMERA_FRAMES * 25 / 30 - 2);
+        assertEquals(1, mSink.tracks);
+        assertTrue(mSink.started);
+        assertTrue(mSink.stopped);
+        assertTrue(mSink.released);
+        assertTrue(mSink.ptsOrdered);
+        // DROP_OLDEST 只在暂存区满时丢帧，其余的帧都应该写入
+        final long dropped = encoder.getBackpressureController().getDroppedFrames();
+        assertEquals(selected - dropped, mSink.samples);
+    }
+}
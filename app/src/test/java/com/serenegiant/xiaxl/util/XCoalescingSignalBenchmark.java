@@ -0,0 +1,183 @@
+package com.serenegiant.xiaxl.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * XCoalescingSignal 与原来 BaseMediaEncoderRunable 中 mSync 计数方式的对比
+ * <p>
+ * 一个生产者线程连续发出请求(相当于 frameAvailableSoon)，消费者线程每次请求做一小段工作(相当于 drainEncoder)。
+ * 输出生产者每次请求的耗时与消费者被唤醒处理的次数
+ */
+public class XCoalescingSignalBenchmark {
+
+    private static final int SIGNALS = 1000000;
+    private static final int ROUNDS = 5;
+    // 消费者每次处理的工作量
+    private static final int DRAIN_WORK = 50;
+
+    /**
+     * 原来的方式(去掉日志): 每个请求加锁、计数、notifyAll，消费者每次取一个请求
+     */
+    private static final class MonitorSignal {
+        private final Object mSync = new Object();
+        private int mRequestDrainEncoderCount;
+        private boolean mRequestStop;
+
+        void signal() {
+            synchronized (mSync) {
+                mRequestDrainEncoderCount++;
+                mSync.notifyAll();
+            }
+        }
+
+        void stop() {
+            synchronized (mSync) {
+                mRequestStop = true;
+                mSync.notifyAll();
+            }
+        }
+
+        /**
+         * @return 处理的请求数
+         */
+        long consume() {
+            long handled = 0;
+            for (; ; ) {
+                final boolean stop;
+                final boolean drain;
+                synchronized (mSync) {
+                    stop = mRequestStop;
+                    drain = mRequestDrainEncoderCount > 0;
+                    if (drain) {
+                        mRequestDrainEncoderCount--;
+                    }
+                }
+                if (drain) {
+                    work();
+                    handled++;
+                } else if (stop) {
+                    return handled;
+                } else {
+                    synchronized (mSync) {
+                        try {
+                            mSync.wait();
+                        } catch (final InterruptedException e) {
+                            return handled;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static volatile long sSink;
+
+    private static void work() {
+        long x = sSink;
+        for (int i = 0; i < DRAIN_WORK; i++) {
+            x = x * 31 + i;
+        }
+        sSink = x;
+    }
+
+    private interface Round {
+        /**
+         * @return {生产者每次请求的耗时[ns], 消费者处理次数, 请求数}
+         */
+        long[] run() throws InterruptedException;
+    }
+
+    private static final Round MONITOR = new Round() {
+        @Override
+        public long[] run() throws InterruptedException {
+            final MonitorSignal signal = new MonitorSignal();
+            final long[] handled = new long[1];
+            final Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handled[0] = signal.consume();
+                }
+            });
+            consumer.start();
+            final long startNs = System.nanoTime();
+            for (int i = 0; i < SIGNALS; i++) {
+                signal.signal();
+            }
+            final long elapsedNs = System.nanoTime() - startNs;
+            signal.stop();
+            consumer.join();
+            // 每次处理一个请求
+            return new long[]{elapsedNs / SIGNALS, handled[0], handled[0]};
+        }
+    };
+
+    private static final Round COALESCING = new Round() {
+        @Override
+        public long[] run() throws InterruptedException {
+            final XCoalescingSignal signal = new XCoalescingSignal();
+            final long[] result = new long[2];
+            final CountDownLatch bound = new CountDownLatch(1);
+            final Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    signal.bindConsumer();
+                    bound.countDown();
+                    long drains = 0;
+                    long requests = 0;
+                    // 请求不会丢失，取完所有请求后结束
+                    while (requests < SIGNALS) {
+                        final int n = signal.await();
+                        if (n < 0) {
+                            break;
+                        }
+                        if (n > 0) {
+                            work();
+                            drains++;
+                            requests += n;
+                        }
+                    }
+                    result[0] = drains;
+                    result[1] = requests;
+                }
+            });
+            consumer.start();
+            bound.await();
+            final long startNs = System.nanoTime();
+            for (int i = 0; i < SIGNALS; i++) {
+                signal.signal();
+            }
+            final long elapsedNs = System.nanoTime() - startNs;
+            consumer.join(10000);
+            return new long[]{elapsedNs / SIGNALS, result[0], result[1]};
+        }
+    };
+
+    private static long[] measure(final String name, final Round round) throws InterruptedException {
+        // 预热
+        round.run();
+        final long[] nsPerSignal = new long[ROUNDS];
+        long[] last = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            last = round.run();
+            nsPerSignal[i] = last[0];
+        }
+        Arrays.sort(nsPerSignal);
+        System.out.println(name + ": " + nsPerSignal[ROUNDS / 2] + " ns/signal (median of " + ROUNDS
+                + "), consumer passes " + last[1] + " for " + last[2] + " requests");
+        return last;
+    }
+
+    @Test
+    public void compareWithMonitor() throws InterruptedException {
+        final long[] monitor = measure("mSync monitor", MONITOR);
+        final long[] coalescing = measure("XCoalescingSignal", COALESCING);
+        // 两种方式都不能丢失请求
+        assertEquals(SIGNALS, monitor[2]);
+        assertEquals(SIGNALS, coalescing[2]);
+    }
+}